@@ -0,0 +1,16 @@
+package org.aeroplanechess.ai;
+
+/**
+ * An AI player. The presenter asks the strategy for a decision every time the AI has the turn,
+ * and tools such as the tournament runner use strategies to play simulated games.
+ * A strategy may play and undo decisions on the state while it thinks, but must leave it as it
+ * was. Strategies are not thread-safe; create one per thread.
+ */
+public interface AiStrategy {
+
+  /**
+   * Returns one of the decisions available in state (see {@link MutableState#getDecisions}).
+   * The die has been rolled and the game is not over.
+   */
+  int chooseDecision(MutableState state);
+}
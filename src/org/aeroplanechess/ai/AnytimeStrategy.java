@@ -0,0 +1,25 @@
+package org.aeroplanechess.ai;
+
+/**
+ * A strategy whose search can be stopped at any time and resumed later, so that callers decide
+ * how long the AI thinks: a blitz table can answer after 50 ms and an analysis board after 2 s.
+ * It also lets the browser run the search in short slices between events.
+ *
+ * A search is {@link #startSearch started} on a state, then {@link #search continued} until it
+ * is finished or the caller runs out of time, and {@link #getBestDecision} is the best decision
+ * found so far. The state must not change until the search is over.
+ */
+public interface AnytimeStrategy extends AiStrategy {
+
+  /** Starts a new search on state (where the die has been rolled and the game is not over). */
+  void startSearch(MutableState state);
+
+  /**
+   * Searches until the clock (System.currentTimeMillis) reaches deadlineMillis or the search is
+   * finished, and returns whether it is finished.
+   */
+  boolean search(long deadlineMillis);
+
+  /** The best decision found by the search so far (available as soon as it is started). */
+  int getBestDecision();
+}
@@ -0,0 +1,94 @@
+package org.aeroplanechess.ai;
+
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+import static org.aeroplanechess.client.Constants.TOTAL_SPACES;
+
+import java.util.List;
+
+import org.aeroplanechess.client.AeroplaneChessState;
+import org.aeroplanechess.client.Color;
+import org.aeroplanechess.client.Piece;
+import org.aeroplanechess.client.Piece.Zone;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Red and yellow play the same game on opposite sides of the board: every space of yellow's path
+ * (start, shortcut, jumps by color, final stretch) is red's turned by half a lap, 26 spaces. So a
+ * state seen from the other side of the board (the mirrored state) is the same game with the
+ * colors swapped, and any state can be stored in a canonical form where red is to move, which
+ * halves the entries of caches, tables and books and doubles their hits.
+ *
+ * The mirrored state swaps the pieces (and the player ids) of the two sides, keeping the piece
+ * ids, and turns the Track by half a lap; the Hangar, Launch and Final Stretch belong to a color,
+ * so their spaces stay. The die, action and last rolls and moves belong to the side to move and
+ * stay too, and so do the decisions (they refer to piece ids). Mirroring twice gives the original
+ * state back.
+ *
+ * One rule breaks the symmetry: a move does not capture on Track 0-9 (AeroplaneChessLogic
+ * compares the location of the moved piece without its leading zero), while the mirrored spaces
+ * 26-35 do capture. States that differ only by color can so have slightly different values
+ * once a capture on those spaces is possible; a cache keyed by canonical form shares them.
+ */
+public final class ColorSymmetry {
+
+  private ColorSymmetry() { }  // Prevent instantiation/subclassing
+
+  /** Returns the state with red to move: the state itself, or the mirrored state. */
+  public static AeroplaneChessState canonicalize(AeroplaneChessState state) {
+    return state.getTurn().isRed() ? state : mirror(state);
+  }
+
+  /** Returns the state whose canonical form is canonical and where turn is to move. */
+  public static AeroplaneChessState uncanonicalize(AeroplaneChessState canonical, Color turn) {
+    return turn.isRed() ? canonical : mirror(canonical);
+  }
+
+  /** Returns the state seen from the other side of the board. */
+  public static AeroplaneChessState mirror(AeroplaneChessState state) {
+    List<String> playerIds = state.getPlayerIds();
+    return new AeroplaneChessState(
+        state.getTurn().getOppositeColor(),
+        playerIds.size() == 2
+            ? ImmutableList.of(playerIds.get(1), playerIds.get(0))
+            : ImmutableList.copyOf(playerIds),
+        state.getDie(),
+        state.getAction(),
+        mirror(state.getPieces(Color.Y), Color.R),
+        mirror(state.getPieces(Color.R), Color.Y),
+        state.getLastTwoRolls(),
+        state.getLastTwoMoves());
+  }
+
+  private static ImmutableList<Piece> mirror(List<Piece> pieces, Color color) {
+    List<Piece> mirrored = Lists.newArrayList();
+    for (Piece piece : pieces) {
+      mirrored.add(new Piece(piece.getZone(), piece.getPieceId(),
+          piece.getZone() == Zone.TRACK
+              ? (piece.getSpace() + PositionRanking.HALF_LAP) % TOTAL_SPACES : piece.getSpace(),
+          color, piece.isStacked(), piece.isFaceDown()));
+    }
+    return ImmutableList.copyOf(mirrored);
+  }
+
+  /**
+   * Returns the hash (see {@link MutableState#getHash}) of the canonical form of the state: equal
+   * for a state and its mirrored state.
+   */
+  public static long getCanonicalHash(MutableState state) {
+    long hash = state.getHash();
+    if (state.getTurn() == MutableState.RED) {
+      return hash;
+    }
+    hash ^= Zobrist.YELLOW_TO_MOVE;
+    for (int side = 0; side < 2; side++) {
+      for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+        int piece = state.getPiece(side, id);
+        hash ^= Zobrist.PIECES[side * PIECES_PER_PLAYER + id][piece]
+            ^ Zobrist.PIECES[(side ^ 1) * PIECES_PER_PLAYER + id][PositionRanking.rotate(piece)];
+      }
+    }
+    return hash;
+  }
+}
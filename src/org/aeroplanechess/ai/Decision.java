@@ -0,0 +1,78 @@
+package org.aeroplanechess.ai;
+
+/**
+ * Decisions a player can make on one step of a turn, encoded as small ints so that the AI can
+ * generate and store them without allocating. The two low bits hold the piece id (for TAXI and
+ * MOVE), the remaining bits hold the kind. All decisions fit in 6 bits.
+ * Which decisions are available depends on the {@link MutableState.Phase}:
+ * ROLL: PASS, BACK_TO_HANGAR, TAXI or MOVE (one per piece or stack)
+ * STACK: STACK or UNSTACK
+ * JUMP: JUMP (no choice, the jump is automatic)
+ * SHORTCUT: TAKE_SHORTCUT or DECLINE_SHORTCUT
+ */
+public final class Decision {
+
+  private Decision() { }  // Prevent instantiation/subclassing
+
+  /* Kinds of decisions */
+  public static final int PASS_KIND = 0;
+  public static final int BACK_TO_HANGAR_KIND = 1;
+  public static final int TAXI_KIND = 2;
+  public static final int MOVE_KIND = 3;
+  public static final int STACK_KIND = 4;
+  public static final int UNSTACK_KIND = 5;
+  public static final int JUMP_KIND = 6;
+  public static final int TAKE_SHORTCUT_KIND = 7;
+  public static final int DECLINE_SHORTCUT_KIND = 8;
+
+  /* Decisions that don't refer to a piece */
+  public static final int PASS = PASS_KIND << 2;
+  public static final int BACK_TO_HANGAR = BACK_TO_HANGAR_KIND << 2;
+  public static final int STACK = STACK_KIND << 2;
+  public static final int UNSTACK = UNSTACK_KIND << 2;
+  public static final int JUMP = JUMP_KIND << 2;
+  public static final int TAKE_SHORTCUT = TAKE_SHORTCUT_KIND << 2;
+  public static final int DECLINE_SHORTCUT = DECLINE_SHORTCUT_KIND << 2;
+
+  /** Upper bound (exclusive) of any decision value, for decision-indexed arrays. */
+  public static final int LIMIT = 64;
+
+  /** Taxi the piece out of the Hangar into the Launch. */
+  public static int taxi(int pieceId) {
+    return (TAXI_KIND << 2) | pieceId;
+  }
+
+  /** Move the piece (and all pieces stacked with it) by the die roll. */
+  public static int move(int pieceId) {
+    return (MOVE_KIND << 2) | pieceId;
+  }
+
+  public static int getKind(int decision) {
+    return decision >> 2;
+  }
+
+  public static int getPieceId(int decision) {
+    return decision & 3;
+  }
+
+  /** True if the decision selects a piece (TAXI or MOVE). */
+  public static boolean isPieceDecision(int decision) {
+    int kind = getKind(decision);
+    return kind == TAXI_KIND || kind == MOVE_KIND;
+  }
+
+  public static String toString(int decision) {
+    switch (getKind(decision)) {
+      case PASS_KIND: return "pass";
+      case BACK_TO_HANGAR_KIND: return "backToHangar";
+      case TAXI_KIND: return "taxi" + getPieceId(decision);
+      case MOVE_KIND: return "move" + getPieceId(decision);
+      case STACK_KIND: return "stack";
+      case UNSTACK_KIND: return "unstack";
+      case JUMP_KIND: return "jump";
+      case TAKE_SHORTCUT_KIND: return "takeShortcut";
+      case DECLINE_SHORTCUT_KIND: return "declineShortcut";
+      default: throw new IllegalArgumentException("Did not find Decision=" + decision);
+    }
+  }
+}
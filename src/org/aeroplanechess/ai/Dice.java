@@ -0,0 +1,8 @@
+package org.aeroplanechess.ai;
+
+/** A source of die rolls for simulated games. */
+public interface Dice {
+
+  /** Returns the next die roll, in [DIE_FROM, DIE_TO). */
+  int roll();
+}
@@ -0,0 +1,68 @@
+package org.aeroplanechess.ai;
+
+import static org.aeroplanechess.client.Constants.AI_TABLE_BYTES;
+
+/**
+ * How strong an AI opponent plays. A level is an expectimax search with a
+ * {@link WeightedEvaluator}, limited by depth and by a node budget, with noise added to the
+ * evaluation (see {@link NoisyEvaluator}). The budget, not the clock, ends the search, so a
+ * decision costs at most the same work on any machine and a level plays the same on a slow
+ * phone and a fast server; the CPU time per decision is the budget times the cost of a node,
+ * which the server's DifficultyBenchmark measures.
+ *
+ * Most of the strength comes from the noise: with the tuned evaluator, searching deeper than one
+ * roll gains little, and deep searches amplify the noise (each side picks the states whose noise
+ * favors it), so only the level without noise searches deeper.
+ */
+public enum Difficulty {
+
+  /** Looks one roll ahead, not always to the end of the turn, and often misjudges the states. */
+  EASY(1, 200, 0.6),
+
+  /** Looks one roll ahead and sometimes misjudges close states. */
+  MEDIUM(1, 1000, 0.2),
+
+  /** Looks three rolls ahead, without noise. */
+  HARD(3, 20000, 0);
+
+  private final int depth;
+  private final long nodeBudget;
+  private final double noise;
+
+  private Difficulty(int depth, long nodeBudget, double noise) {
+    this.depth = depth;
+    this.nodeBudget = nodeBudget;
+    this.noise = noise;
+  }
+
+  public int getDepth() {
+    return depth;
+  }
+
+  /** The most nodes searched per decision. */
+  public long getNodeBudget() {
+    return nodeBudget;
+  }
+
+  /** The amplitude of the evaluation noise. */
+  public double getNoise() {
+    return noise;
+  }
+
+  /**
+   * Creates a strategy that plays at this level.
+   * @param weights The weights of the {@link WeightedEvaluator}: the tuned weights where they can
+   *     be read, else {@link WeightedEvaluator#DEFAULT_WEIGHTS}.
+   * @param seed Chooses the mistakes of a noisy level.
+   */
+  public ExpectimaxStrategy createStrategy(double[] weights, long seed) {
+    Evaluator evaluator = new WeightedEvaluator(weights);
+    if (noise > 0) {
+      evaluator = new NoisyEvaluator(evaluator, noise, seed);
+    }
+    ExpectimaxStrategy strategy = new ExpectimaxStrategy(
+        evaluator, depth, true, new TranspositionTable(AI_TABLE_BYTES));
+    strategy.setNodeBudget(nodeBudget);
+    return strategy;
+  }
+}
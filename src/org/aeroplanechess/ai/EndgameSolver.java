@@ -0,0 +1,111 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static org.aeroplanechess.ai.EndgameTablebase.NOT_COVERED;
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+
+import java.util.Arrays;
+
+import org.aeroplanechess.ai.EndgameTablebase.MemoryStorage;
+
+/**
+ * Computes the tables of an {@link EndgameTablebase} by value iteration. Games can go on forever
+ * (pieces are captured and backtrack in the final stretch), so the values can't simply be worked
+ * back from the end. Instead every entry starts at 1/2 and is repeatedly set to the average over
+ * the die rolls of the best turn for the side to move, valued by the current entries, until no
+ * entry changes by more than a tolerance. Entries are updated in place (Gauss-Seidel), which
+ * converges faster.
+ *
+ * The tables are solved in order, since a piece that goes home leads to a smaller table, which
+ * must be solved already. The best first decisions are computed from the final values.
+ *
+ * Sweeps over disjoint index ranges can run on several threads at once (each with its own state):
+ * an entry read while another thread writes it is either the old or the new value, and the
+ * iteration converges either way.
+ */
+public class EndgameSolver implements EndgameTablebase.Storage {
+
+  private final MemoryStorage solved = new MemoryStorage();
+  private final EndgameTablebase tablebase = new EndgameTablebase(this);
+
+  /** The table being solved, and its current values. */
+  private int table = NOT_COVERED;
+  private float[] values;
+
+  /** Solves the first tables (in the order of {@link EndgameTablebase#getTable}) on this thread. */
+  public MemoryStorage solve(int tables, double tolerance) {
+    MutableState state = new MutableState();
+    for (int next = 0; next < tables; next++) {
+      startTable(next);
+      int size = EndgameTablebase.getSize(next);
+      while (sweep(0, size, state) > tolerance) { }
+      finish(0, size, state);
+      endTable();
+    }
+    return solved;
+  }
+
+  /** Starts solving the table; the tables before it must be solved. */
+  public void startTable(int nextTable) {
+    checkState(table == NOT_COVERED);
+    for (int before = 0; before < nextTable; before++) {
+      checkArgument(solved.hasTable(before));
+    }
+    table = nextTable;
+    values = new float[EndgameTablebase.getSize(table)];
+    Arrays.fill(values, 0.5f);
+    solved.allocate(table);
+  }
+
+  /**
+   * Updates the entries of the table being solved from index from (inclusive) to index to
+   * (exclusive), and returns the largest change.
+   */
+  public double sweep(int from, int to, MutableState state) {
+    int[] pieces = new int[2 * PIECES_PER_PLAYER];
+    double largestChange = 0;
+    for (int index = from; index < to; index++) {
+      EndgameTablebase.setState(state, table, index, pieces);
+      float value = (float) tablebase.searchTurnStart(state);
+      largestChange = Math.max(largestChange, Math.abs(value - values[index]));
+      values[index] = value;
+    }
+    return largestChange;
+  }
+
+  /** Stores the values and best decisions of the entries in the given range. */
+  public void finish(int from, int to, MutableState state) {
+    int[] pieces = new int[2 * PIECES_PER_PLAYER];
+    for (int index = from; index < to; index++) {
+      EndgameTablebase.setState(state, table, index, pieces);
+      solved.set(table, index, values[index], tablebase.searchBestSlots(state));
+    }
+  }
+
+  /** Ends solving the table, once all of it is {@link #finish finished}. */
+  public void endTable() {
+    table = NOT_COVERED;
+    values = null;
+  }
+
+  /** The tables solved so far. */
+  public MemoryStorage getStorage() {
+    return solved;
+  }
+
+  @Override
+  public boolean hasTable(int someTable) {
+    return someTable == table || solved.hasTable(someTable);
+  }
+
+  @Override
+  public double getWinProbability(int someTable, int index) {
+    return someTable == table ? values[index] : solved.getWinProbability(someTable, index);
+  }
+
+  @Override
+  public int getBestSlots(int someTable, int index) {
+    return solved.getBestSlots(someTable, index);
+  }
+}
@@ -0,0 +1,23 @@
+package org.aeroplanechess.ai;
+
+/**
+ * Plays the endgame perfectly from an {@link EndgameTablebase} instead of searching, and leaves
+ * the rest of the game to another strategy.
+ */
+public class EndgameStrategy implements AiStrategy {
+
+  private final EndgameTablebase tablebase;
+  private final AiStrategy strategy;
+
+  /** @param strategy Plays the states that are not in the tablebase. */
+  public EndgameStrategy(EndgameTablebase tablebase, AiStrategy strategy) {
+    this.tablebase = tablebase;
+    this.strategy = strategy;
+  }
+
+  @Override
+  public int chooseDecision(MutableState state) {
+    return tablebase.contains(state)
+        ? tablebase.chooseDecision(state) : strategy.chooseDecision(state);
+  }
+}
@@ -0,0 +1,459 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.aeroplanechess.client.Constants.DIE_FROM;
+import static org.aeroplanechess.client.Constants.DIE_TO;
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+import static org.aeroplanechess.client.Constants.TOTAL_SPACES;
+import static org.aeroplanechess.client.Constants.WIN_FINAL_SPACE;
+
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+
+/**
+ * Exact win probabilities for the endgame: the states where each side has only one or two
+ * pieces that are not home (facedown in the Hangar), under the standard rules. Since captured
+ * pieces go back to the Hangar faceup, such a game stays in the endgame until it is over.
+ *
+ * There is one table per number of pieces left (red, yellow): (1, 1), (1, 2), (2, 1) and
+ * (2, 2). A table has an entry per state at the start of a turn, with the die still to be rolled:
+ * the positions of the pieces of both sides (in any order), whether they are stacked, the side
+ * to move, and whether the other side's last action was a jump (which forbids jumping on the
+ * first move of the turn). States inside a turn are valued by trying every decision and die roll
+ * up to the end of the turn, which takes at most three rolls. An entry holds the probability that
+ * the side to move wins and, for every die value, which of its pieces the best first decision
+ * moves; see {@link EndgameSolver} for how the tables are computed.
+ *
+ * Entries are perfectly indexed: a piece is one of {@link #POSITIONS} positions (Hangar, Launch,
+ * Track 0-51, Final Stretch 0-4), two pieces of a side are an unordered pair of positions or a
+ * stack, and the index of a state combines those with the side to move and the jump flag. Where
+ * the entries are kept is up to the {@link Storage}.
+ */
+public class EndgameTablebase {
+
+  /** The entries of the tables: in memory or, on the server, in a mapped file. */
+  public interface Storage {
+    /** True if the table has been computed. */
+    boolean hasTable(int table);
+
+    /** The probability (in [0, 1]) that the side to move wins, from the start of its turn. */
+    double getWinProbability(int table, int index);
+
+    /**
+     * Bit (die - 1) holds the slot (0 for the piece with the lower position, 1 for the other) of
+     * the piece that the best first decision with that die moves.
+     */
+    int getBestSlots(int table, int index);
+  }
+
+  /** Tables kept in arrays, as computed by {@link EndgameSolver}. */
+  public static class MemoryStorage implements Storage {
+    private final char[][] values = new char[TABLES][];
+    private final byte[][] bestSlots = new byte[TABLES][];
+
+    /** Makes room for the entries of the table. */
+    public void allocate(int table) {
+      values[table] = new char[getSize(table)];
+      bestSlots[table] = new byte[getSize(table)];
+    }
+
+    @Override
+    public boolean hasTable(int table) {
+      return values[table] != null;
+    }
+
+    @Override
+    public double getWinProbability(int table, int index) {
+      return (double) values[table][index] / VALUE_SCALE;
+    }
+
+    @Override
+    public int getBestSlots(int table, int index) {
+      return bestSlots[table][index];
+    }
+
+    public void set(int table, int index, double winProbability, int slots) {
+      values[table][index] = (char) Math.round(winProbability * VALUE_SCALE);
+      bestSlots[table][index] = (byte) slots;
+    }
+
+    /** The scaled win probabilities of the table, by index (null if it is not allocated). */
+    public char[] getValueArray(int table) {
+      return values[table];
+    }
+
+    /** The best slots of the table, by index (null if it is not allocated). */
+    public byte[] getSlotArray(int table) {
+      return bestSlots[table];
+    }
+  }
+
+  /** The most pieces per side that are not home. */
+  public static final int MAX_ACTIVE = 2;
+
+  public static final int TABLES = MAX_ACTIVE * MAX_ACTIVE;
+
+  /** getTable of a state that is not in the endgame. */
+  public static final int NOT_COVERED = -1;
+
+  /** Stored win probabilities are multiples of 1 / VALUE_SCALE (they fit in a char). */
+  public static final int VALUE_SCALE = 0xFFFF;
+
+  /** Positions of a piece that is not home: Hangar, Launch, Track and Final Stretch spaces. */
+  static final int POSITIONS = 2 + TOTAL_SPACES + WIN_FINAL_SPACE;
+
+  /* Position codes */
+  private static final int HANGAR_CODE = 0;
+  private static final int LAUNCH_CODE = 1;
+  private static final int TRACK_CODE = 2;
+  private static final int FINAL_CODE = TRACK_CODE + TOTAL_SPACES;
+
+  /** Unordered pairs of positions; stacks come after them, one per Track or Final position. */
+  private static final int PAIRS = POSITIONS * (POSITIONS + 1) / 2;
+
+  /** Configurations of a side, by number of pieces that are not home. */
+  private static final int[] SIDE_SIZES = {1, POSITIONS, PAIRS + POSITIONS - TRACK_CODE};
+
+  /* The positions of each pair, lower first */
+  private static final int[] PAIR_FIRST = new int[PAIRS];
+  private static final int[] PAIR_SECOND = new int[PAIRS];
+
+  static {
+    for (int second = 0; second < POSITIONS; second++) {
+      for (int first = 0; first <= second; first++) {
+        int pair = getPair(first, second);
+        PAIR_FIRST[pair] = first;
+        PAIR_SECOND[pair] = second;
+      }
+    }
+  }
+
+  private static final int OUTCOMES = DIE_TO - DIE_FROM;
+
+  /** Added by searchDecisions when a decision leads back to the state it was given. */
+  private static final double LOOP = 2;
+  private static final double LOOP_TOLERANCE = 1e-12;
+
+  private final Storage storage;
+
+  public EndgameTablebase(Storage storage) {
+    this.storage = storage;
+  }
+
+  /** Returns the table for the given numbers of pieces that are not home (1 or 2 each). */
+  public static int getTable(int redActive, int yellowActive) {
+    return (redActive - 1) * MAX_ACTIVE + yellowActive - 1;
+  }
+
+  /** The number of entries of the table. */
+  public static int getSize(int table) {
+    return SIDE_SIZES[table / MAX_ACTIVE + 1] * SIDE_SIZES[table % MAX_ACTIVE + 1] * 4;
+  }
+
+  /** Returns the table of the state, or {@link #NOT_COVERED}. */
+  public static int getTable(MutableState state) {
+    return state.getRules().equals(Rules.STANDARD) ? getTableOf(state) : NOT_COVERED;
+  }
+
+  /** getTable of a state played with the standard rules. */
+  private static int getTableOf(MutableState state) {
+    int redActive = getActiveCount(state, MutableState.RED);
+    int yellowActive = getActiveCount(state, MutableState.YELLOW);
+    if (redActive == 0 || redActive > MAX_ACTIVE
+        || yellowActive == 0 || yellowActive > MAX_ACTIVE) {
+      return NOT_COVERED;
+    }
+    return getTable(redActive, yellowActive);
+  }
+
+  /**
+   * Returns the index of the state in its table. Nothing must have been played in the turn yet,
+   * but the die may have been rolled.
+   */
+  public static int getIndex(MutableState state) {
+    int yellowSize = SIDE_SIZES[getActiveCount(state, MutableState.YELLOW)];
+    int sides = getSideRank(state, MutableState.RED) * yellowSize
+        + getSideRank(state, MutableState.YELLOW);
+    return (sides * 2 + state.getTurn()) * 2 + (state.getAction() == Action.JUMP ? 1 : 0);
+  }
+
+  /** Sets state to the entry at index of table: the start of a turn, with the die to be rolled. */
+  static void setState(MutableState state, int table, int index, int[] pieces) {
+    int sides = index >> 2;
+    int yellowSize = SIDE_SIZES[table % MAX_ACTIVE + 1];
+    setSide(pieces, MutableState.RED, table / MAX_ACTIVE + 1, sides / yellowSize);
+    setSide(pieces, MutableState.YELLOW, table % MAX_ACTIVE + 1, sides % yellowSize);
+    state.setTurnStart(pieces, (index >> 1) & 1, (index & 1) != 0 ? Action.JUMP : Action.MOVE);
+  }
+
+  private static int getActiveCount(MutableState state, int side) {
+    int count = 0;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      count += state.isFaceDown(side, id) ? 0 : 1;
+    }
+    return count;
+  }
+
+  private static int getSideRank(MutableState state, int side) {
+    int first = -1;
+    int second = -1;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      int piece = state.getPiece(side, id);
+      if ((piece & MutableState.FACEDOWN) == 0) {
+        if (first == -1) {
+          first = piece;
+        }
+        else {
+          second = piece;
+        }
+      }
+    }
+    if (second == -1) {
+      return getCode(first);
+    }
+    // A lone stacked flag (left from a stack with pieces that went home) changes nothing
+    if ((first & second & MutableState.STACKED) != 0
+        && ((first ^ second) & MutableState.POSITION_MASK) == 0) {
+      return PAIRS + getCode(first) - TRACK_CODE;
+    }
+    int firstCode = getCode(first);
+    int secondCode = getCode(second);
+    return firstCode <= secondCode
+        ? getPair(firstCode, secondCode) : getPair(secondCode, firstCode);
+  }
+
+  /** Sets the pieces of side to the configuration with the given rank (the others go home). */
+  private static void setSide(int[] pieces, int side, int active, int rank) {
+    int base = side * PIECES_PER_PLAYER;
+    if (active == 1) {
+      pieces[base] = getPiece(0, rank);
+    }
+    else if (rank >= PAIRS) {
+      int code = rank - PAIRS + TRACK_CODE;
+      pieces[base] = getPiece(0, code) | MutableState.STACKED;
+      pieces[base + 1] = getPiece(1, code) | MutableState.STACKED;
+    }
+    else {
+      pieces[base] = getPiece(0, PAIR_FIRST[rank]);
+      pieces[base + 1] = getPiece(1, PAIR_SECOND[rank]);
+    }
+    for (int id = active; id < PIECES_PER_PLAYER; id++) {
+      pieces[base + id] = MutableState.position(MutableState.HANGAR, id) | MutableState.FACEDOWN;
+    }
+  }
+
+  private static int getPair(int first, int second) {
+    return second * (second + 1) / 2 + first;
+  }
+
+  /** The position code of a piece that is not home. */
+  private static int getCode(int piece) {
+    int space = piece & MutableState.SPACE_MASK;
+    switch (MutableState.zoneOf(piece)) {
+      case MutableState.HANGAR:
+        return HANGAR_CODE;
+      case MutableState.LAUNCH:
+        return LAUNCH_CODE;
+      case MutableState.TRACK:
+        return TRACK_CODE + space;
+      default:
+        return FINAL_CODE + space;
+    }
+  }
+
+  private static int getPiece(int pieceId, int code) {
+    if (code == HANGAR_CODE) {
+      return MutableState.position(MutableState.HANGAR, pieceId);
+    }
+    if (code == LAUNCH_CODE) {
+      return MutableState.position(MutableState.LAUNCH, 0);
+    }
+    return code < FINAL_CODE
+        ? MutableState.position(MutableState.TRACK, code - TRACK_CODE)
+        : MutableState.position(MutableState.FINAL_STRETCH, code - FINAL_CODE);
+  }
+
+  /** True if the state is in a table that the storage holds. */
+  public boolean contains(MutableState state) {
+    int table = getTable(state);
+    return table != NOT_COVERED && storage.hasTable(table);
+  }
+
+  /**
+   * Returns the probability that the side to move wins. The state must be {@link #contains
+   * contained}, and the die must have been rolled unless the turn has just started (in which
+   * case this is a lookup).
+   */
+  public double getWinProbability(MutableState state) {
+    checkArgument(contains(state) && !state.isGameOver());
+    checkArgument(!state.isAwaitingRoll() || state.getRoll(0) == -1);
+    return getStartValue(state);
+  }
+
+  /**
+   * Returns the best decision for the player to move in a {@link #contains contained} state (the
+   * die has been rolled and the game is not over). At the start of a turn it is looked up,
+   * otherwise the rest of the turn is searched.
+   */
+  public int chooseDecision(MutableState state) {
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int count = state.getDecisions(decisions);
+    if (count == 1) {
+      return decisions[0];
+    }
+    int turn = state.getTurn();
+    if (state.getRoll(0) == -1) {
+      int slot = (storage.getBestSlots(getTableOf(state), getIndex(state))
+          >> (state.getDie() - DIE_FROM)) & 1;
+      for (int i = 0; i < count; i++) {
+        if (getSlot(state, Decision.getPieceId(decisions[i])) == slot) {
+          return decisions[i];
+        }
+      }
+    }
+    int best = decisions[0];
+    double bestValue = -1;
+    for (int i = 0; i < count; i++) {
+      state.play(decisions[i]);
+      double value = searchTurn(state, turn);
+      state.undo();
+      if (value > bestValue) {
+        bestValue = value;
+        best = decisions[i];
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Returns the best slots (see {@link Storage#getBestSlots}) for the state at the start of a
+   * turn, with the die to be rolled.
+   */
+  int searchBestSlots(MutableState state) {
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int turn = state.getTurn();
+    int slots = 0;
+    for (int die = DIE_FROM; die < DIE_TO; die++) {
+      state.roll(die);
+      int count = state.getDecisions(decisions);
+      double bestValue = -1;
+      int bestSlot = 0;
+      for (int i = 0; i < count && count > 1; i++) {
+        state.play(decisions[i]);
+        double value = searchTurn(state, turn);
+        state.undo();
+        if (value > bestValue) {
+          bestValue = value;
+          bestSlot = getSlot(state, Decision.getPieceId(decisions[i]));
+        }
+      }
+      slots |= bestSlot << (die - DIE_FROM);
+      state.unroll();
+    }
+    return slots;
+  }
+
+  /**
+   * Returns the probability that the side to move wins, from the start of its turn, by averaging
+   * over the die rolls. The die must be to be rolled.
+   */
+  double searchTurnStart(MutableState state) {
+    return searchRoll(state, state.getTurn());
+  }
+
+  /** 0 if the mover's piece has the lower position of its two pieces, else 1. */
+  private static int getSlot(MutableState state, int pieceId) {
+    int turn = state.getTurn();
+    int code = getCode(state.getPiece(turn, pieceId));
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      if (id != pieceId && !state.isFaceDown(turn, id)) {
+        return code > getCode(state.getPiece(turn, id)) ? 1 : 0;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the probability that mover wins, from a state in (or just after) mover's turn, by
+   * trying every decision and die roll until the next turn starts, whose value is then used.
+   */
+  private double searchTurn(MutableState state, int mover) {
+    if (state.isGameOver()) {
+      return state.getWinner() == mover ? 1 : 0;
+    }
+    if (state.getTurn() != mover) {
+      return 1 - getStartValue(state);
+    }
+    if (state.isAwaitingRoll()) {
+      return searchRoll(state, mover);
+    }
+    return searchDecisions(state, mover, 0) % LOOP;
+  }
+
+  /**
+   * Returns the probability that mover wins from a state in mover's turn where the die is to be
+   * rolled.
+   *
+   * Declining the shortcut on a 6 re-rolls the die, and the shortcut is offered again: a decision
+   * can lead back to the same state. With v the value of the state, a die value that allows that
+   * is worth max(v, the best other decision), so v is the fixed point of the average over the die
+   * values, which is found by iterating from the value without the loops.
+   */
+  private double searchRoll(MutableState state, int mover) {
+    long hash = state.getHash();
+    double[] best = new double[OUTCOMES];
+    boolean[] loops = new boolean[OUTCOMES];
+    double value = 0;
+    for (int die = DIE_FROM; die < DIE_TO; die++) {
+      state.roll(die);
+      double result = searchDecisions(state, mover, hash);
+      state.unroll();
+      loops[die - DIE_FROM] = result >= LOOP;
+      best[die - DIE_FROM] = result % LOOP;
+      value += best[die - DIE_FROM] / OUTCOMES;
+    }
+    while (true) {
+      double next = 0;
+      for (int i = 0; i < OUTCOMES; i++) {
+        next += (loops[i] ? Math.max(best[i], value) : best[i]) / OUTCOMES;
+      }
+      if (next - value < LOOP_TOLERANCE) {
+        return next;
+      }
+      value = next;
+    }
+  }
+
+  /**
+   * Returns the best value for mover of the decisions from a state in mover's turn where the die
+   * has been rolled, not counting those that lead back to the state with loopHash (if any does,
+   * {@link #LOOP} is added to the result).
+   */
+  private double searchDecisions(MutableState state, int mover, long loopHash) {
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int count = state.getDecisions(decisions);
+    double best = 0;
+    boolean loops = false;
+    for (int i = 0; i < count; i++) {
+      state.play(decisions[i]);
+      if (state.isAwaitingRoll() && state.getTurn() == mover && state.getHash() == loopHash) {
+        loops = true;
+      }
+      else {
+        best = Math.max(best, searchTurn(state, mover));
+      }
+      state.undo();
+    }
+    return loops ? best + LOOP : best;
+  }
+
+  /**
+   * The value of a state at the start of a turn for the side to move: looked up if the die is
+   * to be rolled, else (the turn passed without a roll, after a piece went home) searched.
+   */
+  private double getStartValue(MutableState state) {
+    if (state.isAwaitingRoll()) {
+      return storage.getWinProbability(getTableOf(state), getIndex(state));
+    }
+    return searchTurn(state, state.getTurn());
+  }
+}
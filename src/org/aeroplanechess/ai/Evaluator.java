@@ -0,0 +1,12 @@
+package org.aeroplanechess.ai;
+
+/**
+ * Heuristic value of a game that is not over, used by the search AIs at their depth limit.
+ * Values are from red's point of view and strictly between -1 (yellow wins) and 1 (red wins),
+ * which are the values of finished games.
+ */
+public interface Evaluator {
+
+  /** The die may or may not have been rolled. */
+  double evaluate(MutableState state);
+}
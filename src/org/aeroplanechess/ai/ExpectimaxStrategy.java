@@ -0,0 +1,470 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.aeroplanechess.client.Constants.DIE_FROM;
+import static org.aeroplanechess.client.Constants.DIE_TO;
+
+/**
+ * An AI that searches the decisions of both players and the die rolls between them
+ * (expectiminimax): red maximizes the value, yellow minimizes it, and the value after a die roll
+ * is the mean over the six outcomes. Extra rolls after a 6 and the third-6 penalty need no special
+ * handling, since they are part of the rules of {@link MutableState}.
+ *
+ * Chance nodes are pruned with Ballard's Star1 (the searched outcomes plus the bounds of the
+ * outcomes still to search already put the mean outside the window) and Star2 (before the full
+ * search, one decision after each outcome is probed, which bounds the value of that outcome for
+ * the player to move). Decisions are searched best first according to the evaluation right after
+ * them. Nothing is allocated during the search.
+ *
+ * Star2 is off by default: the probe is searched again by Star1 unless a transposition table
+ * remembers it, and with {@link ProgressEvaluator} the probes then cost more nodes than they
+ * save. With a table, Star2 pays off.
+ *
+ * The search is iterative deepening (one die roll deeper each iteration), so it is anytime (see
+ * {@link AnytimeStrategy}): when the time is up, the decision of the deepest finished iteration
+ * is used. The best decision of each iteration is searched first by the next one.
+ *
+ * With a {@link TranspositionTable}, the results of decision and chance nodes are stored by
+ * state hash and depth, and the best decision stored for a state is searched first.
+ *
+ * A node budget (see {@link #setNodeBudget}) stops the search like the clock does, but after the
+ * same work on any machine, which bounds the cost of a decision (see {@link Difficulty}).
+ */
+public class ExpectimaxStrategy implements AnytimeStrategy {
+
+  /** The value of a game won by red; evaluations are strictly between -WIN and WIN. */
+  static final double WIN = 1;
+
+  private static final int OUTCOMES = DIE_TO - DIE_FROM;
+
+  /** Chains of decisions without a roll are short, so this is never reached in practice. */
+  private static final int MAX_PLY = 128;
+
+  /** The clock is read every CLOCK_MASK + 1 nodes. */
+  private static final int CLOCK_MASK = 1023;
+
+  private final Evaluator evaluator;
+  private final int depth;
+  private final boolean pruning;
+  private final boolean probing;
+  private final TranspositionTable table;
+
+  private final int[][] decisions = new int[MAX_PLY][MutableState.MAX_DECISIONS];
+  /** Scores of the decisions at each ply, to search the most promising ones first. */
+  private final double[][] scores = new double[MAX_PLY][MutableState.MAX_DECISIONS];
+  /** Lower bounds on the outcomes of a chance node found by the Star2 probes. */
+  private final double[][] probes = new double[MAX_PLY][OUTCOMES];
+  private MutableState state;
+  private double value;
+  private long nodes;
+  /* The probes of the table by the last search, and the ones that found their state */
+  private long tableProbes;
+  private long tableHits;
+  private int bestDecision;
+  /** The depth of the deepest finished iteration. */
+  private int completedDepth;
+  private long deadlineMillis;
+  private long nodeBudget = Long.MAX_VALUE;
+  /** Set when the time is up; the current iteration then unwinds and is thrown away. */
+  private boolean aborted;
+
+  /**
+   * @param depth The number of die rolls to look ahead (at least 1), if there is enough time.
+   */
+  public ExpectimaxStrategy(Evaluator evaluator, int depth) {
+    this(evaluator, depth, false);
+  }
+
+  /**
+   * @param depth The number of die rolls to look ahead (at least 1).
+   * @param probing Whether to use Star2 (see the class comment).
+   */
+  public ExpectimaxStrategy(Evaluator evaluator, int depth, boolean probing) {
+    this(evaluator, depth, true, probing, null);
+  }
+
+  /**
+   * @param depth The number of die rolls to look ahead (at least 1).
+   * @param probing Whether to use Star2 (see the class comment).
+   * @param table Stores search results (possibly shared with other searches using the same
+   *     evaluator), or null.
+   */
+  public ExpectimaxStrategy(Evaluator evaluator, int depth, boolean probing,
+      TranspositionTable table) {
+    this(evaluator, depth, true, probing, table);
+  }
+
+  /** Without pruning, every node is searched with the full window (for testing). */
+  ExpectimaxStrategy(Evaluator evaluator, int depth, boolean pruning, boolean probing,
+      TranspositionTable table) {
+    checkArgument(depth >= 1);
+    this.evaluator = evaluator;
+    this.depth = depth;
+    this.pruning = pruning;
+    this.probing = probing;
+    this.table = pruning ? table : null;
+  }
+
+  /** Searches to the full depth, however long it takes. */
+  @Override
+  public int chooseDecision(MutableState state) {
+    startSearch(state);
+    search(Long.MAX_VALUE);
+    return getBestDecision();
+  }
+
+  @Override
+  public void startSearch(MutableState state) {
+    this.state = state;
+    nodes = 0;
+    tableProbes = 0;
+    tableHits = 0;
+    completedDepth = 0;
+    if (table != null) {
+      table.newSearch();
+    }
+    state.getDecisions(decisions[0]);
+    bestDecision = decisions[0][0];
+  }
+
+  @Override
+  public boolean search(long deadlineMillis) {
+    this.deadlineMillis = deadlineMillis;
+    while (completedDepth < depth) {
+      if (nodes >= nodeBudget) {
+        return true;
+      }
+      if (System.currentTimeMillis() >= deadlineMillis) {
+        return false;
+      }
+      aborted = false;
+      searchRoot(completedDepth + 1);
+      if (aborted) {
+        return nodes >= nodeBudget;
+      }
+      completedDepth++;
+    }
+    return true;
+  }
+
+  @Override
+  public int getBestDecision() {
+    return bestDecision;
+  }
+
+  /** The evaluator of the leaves, which also values the follow-ups of the decisions. */
+  public Evaluator getEvaluator() {
+    return evaluator;
+  }
+
+  /** The depth of the deepest finished iteration of the last search. */
+  public int getCompletedDepth() {
+    return completedDepth;
+  }
+
+  /** One iteration of the search, which sets bestDecision and value unless it is aborted. */
+  private void searchRoot(int depth) {
+    int[] rootDecisions = decisions[0];
+    int count = state.getDecisions(rootDecisions);
+    for (int i = 1; i < count; i++) {
+      if (rootDecisions[i] == bestDecision) {
+        rootDecisions[i] = rootDecisions[0];
+        rootDecisions[0] = bestDecision;
+      }
+    }
+    int sign = state.getTurn() == MutableState.RED ? 1 : -1;
+    int best = rootDecisions[0];
+    double alpha = -WIN;
+    for (int i = 0; i < count && !aborted; i++) {
+      // Values and the window are from the point of view of the player to move
+      double decisionValue = sign * (sign > 0
+          ? searchAfter(rootDecisions[i], depth, 0, alpha, WIN)
+          : searchAfter(rootDecisions[i], depth, 0, -WIN, -alpha));
+      if (i == 0 || decisionValue > alpha) {
+        alpha = decisionValue;
+        best = rootDecisions[i];
+      }
+    }
+    if (!aborted) {
+      bestDecision = best;
+      value = sign * alpha;
+    }
+  }
+
+  /** The value (for red) of the best decision of the last search. */
+  public double getValue() {
+    return value;
+  }
+
+  /**
+   * Sets the most nodes a search may visit, over all its iterations (no limit by default). A
+   * search that runs out of nodes is finished, with the decision of its deepest finished
+   * iteration.
+   */
+  public void setNodeBudget(long nodeBudget) {
+    checkArgument(nodeBudget > 0);
+    this.nodeBudget = nodeBudget;
+  }
+
+  /** The number of nodes of the last search, over all its iterations. */
+  public long getNodes() {
+    return nodes;
+  }
+
+  /** The probes of the transposition table by the last search. */
+  public long getTableProbes() {
+    return tableProbes;
+  }
+
+  /** The probes of the last search that found their state in the transposition table. */
+  public long getTableHits() {
+    return tableHits;
+  }
+
+  /* ***
+   * The search. Values and windows are for red, except inside searchChance.
+   * ***/
+
+  /** Searches the game after decision is played at ply. */
+  private double searchAfter(int decision, int depth, int ply, double alpha, double beta) {
+    state.play(decision);
+    double result = state.isGameOver()
+        ? getTerminalValue()
+        : state.isAwaitingRoll()
+        ? searchChance(depth, ply + 1, alpha, beta)
+        : searchDecision(depth, ply + 1, alpha, beta);
+    state.undo();
+    return result;
+  }
+
+  /** A node where the player to move decides (the die has been rolled). */
+  private double searchDecision(int depth, int ply, double alpha, double beta) {
+    if (countNode()) {
+      return 0;
+    }
+    if (state.isGameOver()) {
+      return getTerminalValue();
+    }
+    if (ply >= MAX_PLY - 1) {
+      return evaluator.evaluate(state);
+    }
+    if (!pruning) {
+      alpha = -WIN;
+      beta = WIN;
+    }
+    double originalAlpha = alpha;
+    double originalBeta = beta;
+    int tableDecision = TranspositionTable.NO_DECISION;
+    if (table != null) {
+      long data = probe();
+      if (data != TranspositionTable.MISS) {
+        tableDecision = TranspositionTable.getDecision(data);
+        if (TranspositionTable.getDepth(data) >= depth) {
+          double tableValue = TranspositionTable.getValue(data);
+          switch (TranspositionTable.getBound(data)) {
+            case TranspositionTable.EXACT:
+              return tableValue;
+            case TranspositionTable.LOWER:
+              alpha = Math.max(alpha, tableValue);
+              break;
+            default:
+              beta = Math.min(beta, tableValue);
+          }
+          if (alpha >= beta) {
+            return tableValue;
+          }
+        }
+      }
+    }
+
+    int[] plyDecisions = decisions[ply];
+    int count = getOrderedDecisions(ply);
+    for (int i = 1; i < count; i++) {
+      if (plyDecisions[i] == tableDecision) {
+        plyDecisions[i] = plyDecisions[0];
+        plyDecisions[0] = tableDecision;
+      }
+    }
+    boolean maximizing = state.getTurn() == MutableState.RED;
+    double best = maximizing ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+    int bestDecision = plyDecisions[0];
+    for (int i = 0; i < count; i++) {
+      double decisionValue = searchAfter(plyDecisions[i], depth, ply, alpha, beta);
+      if (maximizing ? decisionValue > best : decisionValue < best) {
+        best = decisionValue;
+        bestDecision = plyDecisions[i];
+      }
+      if (maximizing) {
+        alpha = Math.max(alpha, best);
+      }
+      else {
+        beta = Math.min(beta, best);
+      }
+      if (alpha >= beta) {
+        break;
+      }
+    }
+    store(depth, best, originalAlpha, originalBeta, bestDecision);
+    return best;
+  }
+
+  /**
+   * A node where the die is rolled. The outcomes are all decided by the same player, so the
+   * search is done from that player's point of view, where every outcome is worth at most WIN.
+   */
+  private double searchChance(int depth, int ply, double alpha, double beta) {
+    if (countNode()) {
+      return 0;
+    }
+    if (depth == 0 || ply >= MAX_PLY - 2) {
+      return evaluator.evaluate(state);
+    }
+    if (!pruning) {
+      alpha = -WIN;
+      beta = WIN;
+    }
+    if (table != null) {
+      long data = probe();
+      if (data != TranspositionTable.MISS && TranspositionTable.getDepth(data) >= depth) {
+        double tableValue = TranspositionTable.getValue(data);
+        int bound = TranspositionTable.getBound(data);
+        if (bound == TranspositionTable.EXACT
+            || (bound == TranspositionTable.LOWER && tableValue >= beta)
+            || (bound == TranspositionTable.UPPER && tableValue <= alpha)) {
+          return tableValue;
+        }
+      }
+    }
+    double result = searchOutcomes(depth, ply, alpha, beta);
+    store(depth, result, alpha, beta, TranspositionTable.NO_DECISION);
+    return result;
+  }
+
+  /** Searches the six outcomes of a chance node, with Star1/Star2 pruning. */
+  private double searchOutcomes(int depth, int ply, double alpha, double beta) {
+    int sign = state.getTurn() == MutableState.RED ? 1 : -1;
+    double a = sign > 0 ? alpha : -beta;
+    double b = sign > 0 ? beta : -alpha;
+    double[] lower = probes[ply];
+    double lowerSum = 0;
+    for (int i = 0; i < OUTCOMES; i++) {
+      lower[i] = -WIN;
+      lowerSum -= WIN;
+    }
+
+    // Star2: probe the best decision per outcome, a lower bound on the outcome. Unless b < WIN,
+    // no cutoff is possible
+    if (pruning && probing && b < WIN) {
+      for (int i = 0; i < OUTCOMES; i++) {
+        double probeBeta = OUTCOMES * b - (lowerSum - lower[i]);
+        state.roll(DIE_FROM + i);
+        double probe = probe(sign, depth - 1, ply + 1, Math.min(probeBeta, WIN));
+        state.unroll();
+        lowerSum += probe - lower[i];
+        lower[i] = probe;
+        if (probe >= probeBeta) {
+          return sign * lowerSum / OUTCOMES;
+        }
+      }
+    }
+
+    // Star1: search each outcome with the window that can still change the mean
+    double sum = 0;
+    for (int i = 0; i < OUTCOMES; i++) {
+      lowerSum -= lower[i];
+      double childAlpha = OUTCOMES * a - sum - (OUTCOMES - 1 - i) * WIN;
+      double childBeta = OUTCOMES * b - sum - lowerSum;
+      double childA = Math.max(childAlpha, -WIN);
+      double childB = Math.min(childBeta, WIN);
+      state.roll(DIE_FROM + i);
+      double outcome = sign * (sign > 0
+          ? searchDecision(depth - 1, ply + 1, childA, childB)
+          : searchDecision(depth - 1, ply + 1, -childB, -childA));
+      state.unroll();
+      sum += outcome;
+      if (outcome <= childAlpha) {
+        return sign * (sum + (OUTCOMES - 1 - i) * WIN) / OUTCOMES;
+      }
+      if (outcome >= childBeta) {
+        return sign * (sum + lowerSum) / OUTCOMES;
+      }
+    }
+    return sign * sum / OUTCOMES;
+  }
+
+  /**
+   * Searches the first decision after a die roll, which is a lower bound (for the player to
+   * move, with sign) on the value of the roll. Only values up to beta are needed.
+   */
+  private double probe(int sign, int depth, int ply, double beta) {
+    if (countNode()) {
+      return 0;
+    }
+    getOrderedDecisions(ply);
+    return sign * (sign > 0
+        ? searchAfter(decisions[ply][0], depth, ply, -WIN, beta)
+        : searchAfter(decisions[ply][0], depth, ply, -beta, WIN));
+  }
+
+  /**
+   * Stores the decisions at ply in decisions[ply] and returns how many there are, best first for
+   * the player to move according to the evaluation right after each decision.
+   */
+  private int getOrderedDecisions(int ply) {
+    int[] plyDecisions = decisions[ply];
+    int count = state.getDecisions(plyDecisions);
+    if (count == 1) {
+      return count;
+    }
+    double[] plyScores = scores[ply];
+    int sign = state.getTurn() == MutableState.RED ? 1 : -1;
+    for (int i = 0; i < count; i++) {
+      state.play(plyDecisions[i]);
+      double score = sign * (state.isGameOver() ? getTerminalValue() : evaluator.evaluate(state));
+      state.undo();
+      // Insertion sort, by decreasing score
+      int decision = plyDecisions[i];
+      int j = i;
+      for (; j > 0 && plyScores[j - 1] < score; j--) {
+        plyScores[j] = plyScores[j - 1];
+        plyDecisions[j] = plyDecisions[j - 1];
+      }
+      plyScores[j] = score;
+      plyDecisions[j] = decision;
+    }
+    return count;
+  }
+
+  /** Counts a node, and returns true if the search has run out of time or nodes. */
+  private boolean countNode() {
+    if (!aborted && (++nodes >= nodeBudget
+        || (nodes & CLOCK_MASK) == 0 && System.currentTimeMillis() >= deadlineMillis)) {
+      aborted = true;
+    }
+    return aborted;
+  }
+
+  /** Probes the table for the state, and counts the probe. */
+  private long probe() {
+    tableProbes++;
+    long data = table.probe(state.getHash());
+    if (data != TranspositionTable.MISS) {
+      tableHits++;
+    }
+    return data;
+  }
+
+  /** Stores the result of a search with the window (alpha, beta) in the table, if any. */
+  private void store(int depth, double result, double alpha, double beta, int decision) {
+    if (table != null && !aborted) {
+      int bound = result <= alpha ? TranspositionTable.UPPER
+          : result >= beta ? TranspositionTable.LOWER
+          : TranspositionTable.EXACT;
+      table.store(state.getHash(), result, depth, bound, decision);
+    }
+  }
+
+  private double getTerminalValue() {
+    return state.getWinner() == MutableState.RED ? WIN : -WIN;
+  }
+}
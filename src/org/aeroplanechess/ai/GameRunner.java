@@ -0,0 +1,34 @@
+package org.aeroplanechess.ai;
+
+/** Plays complete simulated games between two strategies. */
+public final class GameRunner {
+
+  private GameRunner() { }  // Prevent instantiation/subclassing
+
+  /**
+   * Plays a game from the initial board and returns the winning side, or
+   * {@link MutableState#NO_WINNER} if the game was not over after maxSteps decisions.
+   * @param strategies The strategies for the red and the yellow side (in player order).
+   */
+  public static int play(MutableState state, AiStrategy[] strategies, Dice dice, int maxSteps) {
+    state.reset();
+    state.roll(dice.roll());
+    return playOut(state, strategies, dice, maxSteps);
+  }
+
+  /**
+   * Plays the game from the current state until it is over (or maxSteps decisions were made).
+   * The history of the state is cleared after each decision, so the strategies can't undo the
+   * moves that were actually played.
+   */
+  public static int playOut(MutableState state, AiStrategy[] strategies, Dice dice, int maxSteps) {
+    for (int step = 0; step < maxSteps && !state.isGameOver(); step++) {
+      state.play(strategies[state.getTurn()].chooseDecision(state));
+      state.clearHistory();
+      if (state.isAwaitingRoll()) {
+        state.roll(dice.roll());
+      }
+    }
+    return state.getWinner();
+  }
+}
@@ -0,0 +1,252 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.aeroplanechess.client.Constants.DIE_FROM;
+import static org.aeroplanechess.client.Constants.DIE_TO;
+
+import java.util.Random;
+
+/**
+ * An AI that uses Monte Carlo Tree Search: it grows a tree of the games reached from the current
+ * state, picking decisions by UCT and die rolls at random, and values every new node by playing
+ * the game out to its end with a (random or heuristic) playout strategy. The decision that was
+ * searched the most is played.
+ *
+ * The search is anytime (see {@link AnytimeStrategy}): it stops after maxIterations playouts or
+ * once the time is up, whichever comes first, and the tree built so far is used. The tree is
+ * stored in arrays that are reused between searches, and the playouts play and undo decisions on
+ * the given state, so a search allocates nothing once the arrays are large enough.
+ *
+ * To search on several threads, run one MctsStrategy per thread on its own copy of the state and
+ * add up {@link #getRootVisits} (root parallelization).
+ */
+public class MctsStrategy implements AnytimeStrategy {
+
+  /** UCT exploration constant, for values (the share of wins) in [0, 1]. */
+  static final double EXPLORATION = 0.7;
+
+  /** Playouts still running after this many decisions count as draws. */
+  static final int MAX_PLAYOUT_STEPS = 10000;
+
+  /** The tree stops growing at this many nodes (about 24 bytes each). */
+  static final int MAX_NODES = 1 << 21;
+
+  /** How many iterations run between two looks at the clock. */
+  private static final int CLOCK_INTERVAL = 64;
+
+  private static final int OUTCOMES = DIE_TO - DIE_FROM;
+  private static final int UNEXPANDED = -1;
+
+  private final AiStrategy playoutStrategy;
+  private final Random random;
+  private final int maxIterations;
+  private final int timeBudgetMillis;
+
+  /* The tree, one entry per node. Node 0 is the root */
+  private int[] firstChild = new int[1024];
+  private int[] childCount = new int[1024];
+  /** The decision (or, below a die roll, the die value) that leads to the node. */
+  private int[] edge = new int[1024];
+  private int[] visits = new int[1024];
+  /** Sum of the playout results for red: 1 for a win, 0 for a loss, 0.5 if cut off. */
+  private double[] redWins = new double[1024];
+  private int size;
+
+  /** Nodes from the root to the current leaf. */
+  private int[] path = new int[64];
+  private final int[] decisionBuffer = new int[MutableState.MAX_DECISIONS];
+
+  private MutableState state;
+  private int iterations;
+
+  /**
+   * @param playoutStrategy Plays both sides in the playouts.
+   * @param timeBudgetMillis The longest a search may take (0 for no limit).
+   */
+  public MctsStrategy(AiStrategy playoutStrategy, Random random, int maxIterations,
+      int timeBudgetMillis) {
+    checkArgument(maxIterations > 0 && timeBudgetMillis >= 0);
+    this.playoutStrategy = playoutStrategy;
+    this.random = random;
+    this.maxIterations = maxIterations;
+    this.timeBudgetMillis = timeBudgetMillis;
+  }
+
+  /** Searches for at most timeBudgetMillis (or maxIterations playouts). */
+  @Override
+  public int chooseDecision(MutableState state) {
+    startSearch(state);
+    search(timeBudgetMillis == 0
+        ? Long.MAX_VALUE : System.currentTimeMillis() + timeBudgetMillis);
+    return getBestDecision();
+  }
+
+  /** Starts a new tree from state. */
+  @Override
+  public void startSearch(MutableState state) {
+    this.state = state;
+    size = 0;
+    newNode(0);
+    expand(0);
+    iterations = 0;
+  }
+
+  /** Grows the tree until maxIterations playouts in all. The state is left as it was. */
+  @Override
+  public boolean search(long deadlineMillis) {
+    for (int slice = 0; iterations < maxIterations; slice++, iterations++) {
+      if (slice % CLOCK_INTERVAL == 0 && System.currentTimeMillis() >= deadlineMillis) {
+        return false;
+      }
+      iterate();
+    }
+    return true;
+  }
+
+  /** The most searched decision. */
+  @Override
+  public int getBestDecision() {
+    int best = firstChild[0];
+    for (int child = firstChild[0]; child < firstChild[0] + childCount[0]; child++) {
+      if (visits[child] > visits[best]) {
+        best = child;
+      }
+    }
+    return edge[best];
+  }
+
+  /** The number of playouts of the last search. */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Stores the decisions at the root of the last search and how often each was searched, and
+   * returns how many decisions there are.
+   */
+  public int getRootVisits(int[] decisions, int[] decisionVisits) {
+    for (int i = 0; i < childCount[0]; i++) {
+      decisions[i] = edge[firstChild[0] + i];
+      decisionVisits[i] = visits[firstChild[0] + i];
+    }
+    return childCount[0];
+  }
+
+  /** One iteration: select a leaf, expand it, play it out and back up the result. */
+  private void iterate() {
+    int plays = 0;
+    int node = 0;
+    int length = 0;
+    path[length++] = node;
+    while (!state.isGameOver() && (node == 0 || visits[node] > 0)) {
+      if (firstChild[node] == UNEXPANDED && !expand(node)) {
+        break;  // The tree is full
+      }
+      if (state.isAwaitingRoll()) {
+        int die = DIE_FROM + random.nextInt(OUTCOMES);
+        state.roll(die);
+        node = firstChild[node] + die - DIE_FROM;
+      }
+      else {
+        node = select(node);
+        state.play(edge[node]);
+        plays++;
+      }
+      if (length == path.length) {
+        int[] newPath = new int[2 * length];
+        System.arraycopy(path, 0, newPath, 0, length);
+        path = newPath;
+      }
+      path[length++] = node;
+    }
+
+    // Play out
+    for (int step = 0; step < MAX_PLAYOUT_STEPS && !state.isGameOver(); step++) {
+      if (state.isAwaitingRoll()) {
+        state.roll(DIE_FROM + random.nextInt(OUTCOMES));
+      }
+      state.play(playoutStrategy.chooseDecision(state));
+      plays++;
+    }
+    double result = state.isGameOver() ? (state.getWinner() == MutableState.RED ? 1 : 0) : 0.5;
+    for (; plays > 0; plays--) {
+      state.undo();
+    }
+
+    for (int i = 0; i < length; i++) {
+      visits[path[i]]++;
+      redWins[path[i]] += result;
+    }
+  }
+
+  /** Returns the child of a decision node with the best UCT score for the player to move. */
+  private int select(int node) {
+    boolean red = state.getTurn() == MutableState.RED;
+    double logVisits = Math.log(Math.max(1, visits[node]));
+    int best = -1;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (int child = firstChild[node]; child < firstChild[node] + childCount[node]; child++) {
+      if (visits[child] == 0) {
+        return child;
+      }
+      double wins = red ? redWins[child] : visits[child] - redWins[child];
+      double score = wins / visits[child]
+          + EXPLORATION * Math.sqrt(logVisits / visits[child]);
+      if (score > bestScore) {
+        bestScore = score;
+        best = child;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Adds the children of node: one per die value if the die is to be rolled, else one per
+   * decision. Returns false if the tree is full.
+   */
+  private boolean expand(int node) {
+    if (size + OUTCOMES > MAX_NODES) {
+      return false;
+    }
+    firstChild[node] = size;
+    if (state.isAwaitingRoll()) {
+      childCount[node] = OUTCOMES;
+      for (int die = DIE_FROM; die < DIE_TO; die++) {
+        newNode(die);
+      }
+    }
+    else {
+      int count = state.getDecisions(decisionBuffer);
+      childCount[node] = count;
+      for (int i = 0; i < count; i++) {
+        newNode(decisionBuffer[i]);
+      }
+    }
+    return true;
+  }
+
+  private void newNode(int nodeEdge) {
+    if (size == firstChild.length) {
+      int capacity = 2 * size;
+      firstChild = copyOf(firstChild, capacity);
+      childCount = copyOf(childCount, capacity);
+      edge = copyOf(edge, capacity);
+      visits = copyOf(visits, capacity);
+      double[] newRedWins = new double[capacity];
+      System.arraycopy(redWins, 0, newRedWins, 0, size);
+      redWins = newRedWins;
+    }
+    firstChild[size] = UNEXPANDED;
+    childCount[size] = 0;
+    edge[size] = nodeEdge;
+    visits[size] = 0;
+    redWins[size] = 0;
+    size++;
+  }
+
+  private static int[] copyOf(int[] array, int capacity) {
+    int[] copy = new int[capacity];
+    System.arraycopy(array, 0, copy, 0, array.length);
+    return copy;
+  }
+}
@@ -0,0 +1,840 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+import static org.aeroplanechess.client.Constants.SHORTCUT_FINAL_SPACE;
+import static org.aeroplanechess.client.Constants.TOTAL_SPACES;
+import static org.aeroplanechess.client.Constants.WIN_FINAL_SPACE;
+
+import java.util.List;
+
+import org.aeroplanechess.client.AeroplaneChessState;
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.aeroplanechess.client.Color;
+import org.aeroplanechess.client.Piece;
+import org.aeroplanechess.client.Piece.Zone;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * A mutable, undoable copy of an Aeroplane Chess game used by the AI to simulate moves quickly.
+ * Nothing is allocated while playing or undoing decisions.
+ *
+ * The transitions mirror the operations expected by AeroplaneChessLogic (including when the die
+ * is re-rolled and when it is kept), and the phases mirror the messages computed by
+ * AeroplaneChessPresenter, so any decision chosen here can be sent through the presenter.
+ *
+ * Sides are numbered in player order: 0 is red, 1 is yellow. Pieces are packed into ints:
+ * bits 0-5 hold the space, bits 6-7 the zone, bit 8 is set if stacked and bit 9 if facedown.
+ *
+ * A simulation step is: {@link #play} a decision, then if {@link #isAwaitingRoll} call
+ * {@link #roll} with the new die value. {@link #undo} reverts both.
+ *
+ * By default the standard rules are played; see {@link Rules} for the variants.
+ *
+ * The state keeps a Zobrist hash ({@link #getHash}) of everything that affects the rest of the
+ * game, updated with every change, so searches can look states up in O(1).
+ */
+public final class MutableState {
+
+  /**
+   * What the player to move has to decide; see AeroplaneChessPresenter.AeroplaneChessMessage.
+   */
+  public enum Phase {
+    ROLL, STACK, JUMP, SHORTCUT, GAME_OVER
+  }
+
+  public static final int RED = 0;
+  public static final int YELLOW = 1;
+  public static final int NO_WINNER = -1;
+
+  /** Maximum number of decisions available on any step (one per piece). */
+  public static final int MAX_DECISIONS = PIECES_PER_PLAYER;
+
+  /** {@link #getProgress} of a piece that is home. */
+  public static final int PATH_LENGTH = TOTAL_SPACES + WIN_FINAL_SPACE;
+
+  /* Piece encoding */
+  static final int SPACE_MASK = 0x3F;
+  static final int ZONE_SHIFT = 6;
+  static final int POSITION_MASK = 0xFF;
+  static final int STACKED = 1 << 8;
+  static final int FACEDOWN = 1 << 9;
+
+  static final int HANGAR = 0;
+  static final int LAUNCH = 1;
+  static final int TRACK = 2;
+  static final int FINAL_STRETCH = 3;
+
+  /* Per-side board spaces, indexed by side (see AeroplaneChessLogic#getStart etc.) */
+  static final int[] FINAL_START = {16, 42};
+  static final int[] LAUNCH_START = {18, 44};
+  static final int[] SHORTCUT_START = {36, 10};
+  static final int[] SHORTCUT_END = {48, 22};
+  /** Track space T(n) has the color Color.values()[n % 4]; these are R and Y. */
+  static final int[] TRACK_COLOR = {0, 2};
+
+  private static final int ACTION_JUMP = Action.JUMP.ordinal();
+  private static final Action[] ACTIONS = Action.values();
+  private static final Zone[] ZONES = Zone.values();
+
+  /* Layout of one history frame: pieces, then the scalar fields */
+  private static final int PIECES = 2 * PIECES_PER_PLAYER;
+  private static final int FRAME = PIECES + 11;
+
+  private final Rules rules;
+  private final int jumpAmount;
+  private final int shortcutAmount;
+
+  private final int[] pieces = new int[PIECES];
+  private int turn;
+  private int die;
+  private int action;
+  private int roll0;  // lastTwoRolls[0], -1 if none
+  private int roll1;  // lastTwoRolls[1], -1 if none
+  private int moves0;  // lastTwoMoves[0] as a bitmask of piece ids
+  private int moves1;  // lastTwoMoves[1] as a bitmask of piece ids
+  private boolean awaitingRoll;
+  private int winner = NO_WINNER;
+  private long hash;
+
+  private int[] history = new int[FRAME * 64];
+  private int historySize;
+
+  public MutableState() {
+    this(Rules.STANDARD);
+  }
+
+  public MutableState(Rules rules) {
+    this.rules = rules;
+    jumpAmount = rules.getJumpAmount();
+    shortcutAmount = rules.getShortcutAmount();
+    reset();
+  }
+
+  public Rules getRules() {
+    return rules;
+  }
+
+  /**
+   * Resets to the initial board (all pieces faceup in their Hangar spaces, red to move). As with
+   * the initial move in AeroplaneChessLogic, the die still has to be rolled.
+   */
+  public void reset() {
+    for (int side = 0; side < 2; side++) {
+      for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+        pieces[side * PIECES_PER_PLAYER + id] = position(HANGAR, id);
+      }
+    }
+    turn = RED;
+    die = 0;
+    action = Action.INITIALIZE.ordinal();
+    roll0 = roll1 = -1;
+    moves0 = moves1 = 0;
+    awaitingRoll = true;
+    winner = NO_WINNER;
+    hash = computeHash();
+    historySize = 0;
+  }
+
+  /** Copies the given state (the die has been rolled) and clears the history. */
+  public void set(AeroplaneChessState state) {
+    for (int side = 0; side < 2; side++) {
+      List<Piece> sidePieces = state.getPieces(getColor(side));
+      for (Piece piece : sidePieces) {
+        pieces[side * PIECES_PER_PLAYER + piece.getPieceId()] =
+            position(piece.getZone().ordinal(), piece.getSpace())
+            | (piece.isStacked() ? STACKED : 0)
+            | (piece.isFaceDown() ? FACEDOWN : 0);
+      }
+    }
+    turn = getSide(state.getTurn());
+    die = state.getDie();
+    action = state.getAction().ordinal();
+    roll0 = state.getLastTwoRolls().get(0);
+    roll1 = state.getLastTwoRolls().get(1);
+    moves0 = getMovedMask(state.getLastTwoMoves().get(0));
+    moves1 = getMovedMask(state.getLastTwoMoves().get(1));
+    awaitingRoll = false;
+    winner = allHome(RED, 0) ? RED : allHome(YELLOW, 0) ? YELLOW : NO_WINNER;
+    hash = computeHash();
+    historySize = 0;
+  }
+
+  /**
+   * Sets the state to the start of side's turn, with the die to be rolled, and clears the
+   * history. newPieces holds the packed pieces, red's first; lastAction is the action the other
+   * side played last (it decides whether the first move may jump).
+   */
+  void setTurnStart(int[] newPieces, int side, Action lastAction) {
+    System.arraycopy(newPieces, 0, pieces, 0, PIECES);
+    turn = side;
+    die = 0;
+    action = lastAction.ordinal();
+    roll0 = roll1 = -1;
+    moves0 = moves1 = 0;
+    awaitingRoll = true;
+    winner = allHome(RED, 0) ? RED : allHome(YELLOW, 0) ? YELLOW : NO_WINNER;
+    hash = computeHash();
+    historySize = 0;
+  }
+
+  /** Copies another state (played with the same rules), including its history. */
+  public void copyFrom(MutableState other) {
+    checkArgument(rules.equals(other.rules));
+    System.arraycopy(other.pieces, 0, pieces, 0, PIECES);
+    turn = other.turn;
+    die = other.die;
+    action = other.action;
+    roll0 = other.roll0;
+    roll1 = other.roll1;
+    moves0 = other.moves0;
+    moves1 = other.moves1;
+    awaitingRoll = other.awaitingRoll;
+    winner = other.winner;
+    hash = other.hash;
+    if (history.length < other.historySize) {
+      history = new int[other.history.length];
+    }
+    System.arraycopy(other.history, 0, history, 0, other.historySize);
+    historySize = other.historySize;
+  }
+
+  /** Returns the {@link AeroplaneChessState} for this state. */
+  public AeroplaneChessState toAeroplaneChessState(ImmutableList<String> playerIds) {
+    return new AeroplaneChessState(
+        getColor(turn),
+        playerIds,
+        die,
+        ACTIONS[action],
+        getPieces(RED),
+        getPieces(YELLOW),
+        ImmutableList.of(roll0, roll1),
+        ImmutableList.of(getMovedString(moves0), getMovedString(moves1)));
+  }
+
+  private ImmutableList<Piece> getPieces(int side) {
+    List<Piece> result = Lists.newArrayList();
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      result.add(new Piece(getZone(side, id), id, getSpace(side, id), getColor(side),
+          isStacked(side, id), isFaceDown(side, id)));
+    }
+    return ImmutableList.copyOf(result);
+  }
+
+  public static Color getColor(int side) {
+    return Color.fromPlayerOrder(side);
+  }
+
+  public static int getSide(Color color) {
+    return color.isRed() ? RED : YELLOW;
+  }
+
+  private static int getMovedMask(String moved) {
+    int mask = 0;
+    for (int i = 0; i < moved.length(); i++) {
+      mask |= 1 << (moved.charAt(i) - '0');
+    }
+    return mask;
+  }
+
+  private static String getMovedString(int mask) {
+    String moved = "";
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      if ((mask & (1 << id)) != 0) {
+        moved += id;
+      }
+    }
+    return moved;
+  }
+
+  /* ***
+   * Accessors
+   * ***/
+
+  public int getTurn() {
+    return turn;
+  }
+
+  public int getDie() {
+    return die;
+  }
+
+  public Action getAction() {
+    return ACTIONS[action];
+  }
+
+  public int getRoll(int index) {
+    return index == 0 ? roll0 : roll1;
+  }
+
+  /** Bitmask of the piece ids in lastTwoMoves[index]. */
+  public int getMoves(int index) {
+    return index == 0 ? moves0 : moves1;
+  }
+
+  public boolean isAwaitingRoll() {
+    return awaitingRoll;
+  }
+
+  public boolean isGameOver() {
+    return winner != NO_WINNER;
+  }
+
+  public int getWinner() {
+    return winner;
+  }
+
+  /** Packed representation of the piece (see the class comment). */
+  public int getPiece(int side, int pieceId) {
+    return pieces[side * PIECES_PER_PLAYER + pieceId];
+  }
+
+  public Zone getZone(int side, int pieceId) {
+    return ZONES[zoneOf(getPiece(side, pieceId))];
+  }
+
+  public int getSpace(int side, int pieceId) {
+    return getPiece(side, pieceId) & SPACE_MASK;
+  }
+
+  public boolean isStacked(int side, int pieceId) {
+    return (getPiece(side, pieceId) & STACKED) != 0;
+  }
+
+  public boolean isFaceDown(int side, int pieceId) {
+    return (getPiece(side, pieceId) & FACEDOWN) != 0;
+  }
+
+  /**
+   * Returns how far the piece has advanced along its path: 0 in the Hangar, 1 in the Launch,
+   * then one per space on the Track and in the Final Stretch, and {@link #PATH_LENGTH} home.
+   */
+  public int getProgress(int side, int pieceId) {
+    int piece = getPiece(side, pieceId);
+    int space = piece & SPACE_MASK;
+    switch (zoneOf(piece)) {
+      case HANGAR:
+        return (piece & FACEDOWN) != 0 ? PATH_LENGTH : 0;
+      case LAUNCH:
+        return 1;
+      case TRACK:
+        return 1 + (space - LAUNCH_START[side] + TOTAL_SPACES) % TOTAL_SPACES;
+      default:
+        return TOTAL_SPACES + space;
+    }
+  }
+
+  /**
+   * The Zobrist hash of the state: the pieces (with their zone, space, stacked and facedown
+   * flags), the player to move, the die (unless it is to be rolled), the last action and the
+   * last two rolls and moves. Equal states have equal hashes.
+   */
+  public long getHash() {
+    return hash;
+  }
+
+  /** Computes the hash from scratch (it is otherwise updated as the state changes). */
+  long computeHash() {
+    long fullHash = getScalarHash();
+    for (int i = 0; i < PIECES; i++) {
+      fullHash ^= Zobrist.PIECES[i][pieces[i]];
+    }
+    return fullHash;
+  }
+
+  /** The part of the hash for everything but the pieces. */
+  private long getScalarHash() {
+    return (turn == YELLOW ? Zobrist.YELLOW_TO_MOVE : 0)
+        ^ Zobrist.DIE[awaitingRoll ? 0 : die]
+        ^ Zobrist.ACTION[action]
+        ^ Zobrist.ROLL0[roll0 + 1]
+        ^ Zobrist.ROLL1[roll1 + 1]
+        ^ Zobrist.MOVES0[moves0]
+        ^ Zobrist.MOVES1[moves1];
+  }
+
+  /** Number of decisions played since the last {@link #set}, {@link #reset} or clear. */
+  public int getHistorySize() {
+    return historySize / FRAME;
+  }
+
+  /** Forgets the history, so that {@link #undo} can't go back past the current state. */
+  public void clearHistory() {
+    historySize = 0;
+  }
+
+  static int position(int zone, int space) {
+    return (zone << ZONE_SHIFT) | space;
+  }
+
+  static int zoneOf(int piece) {
+    return (piece >> ZONE_SHIFT) & 3;
+  }
+
+  /* ***
+   * Phases and decisions
+   * ***/
+
+  /** Returns what the player to move has to decide (the die must have been rolled). */
+  public Phase getPhase() {
+    checkState(!awaitingRoll, "The die must be rolled first.");
+    if (winner != NO_WINNER) {
+      return Phase.GAME_OVER;
+    }
+    // Turn has just switched, so the player rolls
+    if (roll0 == -1) {
+      return Phase.ROLL;
+    }
+    int base = turn * PIECES_PER_PLAYER;
+    int movedPosition = pieces[base + Integer.numberOfTrailingZeros(moves0)] & POSITION_MASK;
+    // Moves are checked for in this order exactly: stack, jump, shortcut
+    if (isStackAvailable(movedPosition, moves0)) {
+      return Phase.STACK;
+    }
+    if (isJumpAvailable(action, movedPosition)) {
+      return Phase.JUMP;
+    }
+    if (isShortcutAvailable(movedPosition)) {
+      return Phase.SHORTCUT;
+    }
+    return Phase.ROLL;
+  }
+
+  /**
+   * Stores the decisions available to the player to move in decisions (which must hold at least
+   * {@link #MAX_DECISIONS}) and returns how many there are. A stack is one decision, identified
+   * by its lowest piece id.
+   */
+  public int getDecisions(int[] decisions) {
+    switch (getPhase()) {
+      case ROLL:
+        if (die == 6 && roll0 == 6 && roll1 == 6) {
+          decisions[0] = Decision.BACK_TO_HANGAR;
+          return 1;
+        }
+        int count = 0;
+        int base = turn * PIECES_PER_PLAYER;
+        int covered = 0;
+        for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+          int piece = pieces[base + id];
+          if ((piece & FACEDOWN) != 0 || (covered & (1 << id)) != 0) {
+            continue;
+          }
+          if (zoneOf(piece) == HANGAR) {
+            if (die % 2 == 0) {
+              decisions[count++] = Decision.taxi(id);
+            }
+          }
+          else {
+            covered |= getGroup(id);
+            decisions[count++] = Decision.move(id);
+          }
+        }
+        if (count == 0) {
+          decisions[count++] = Decision.PASS;
+        }
+        return count;
+      case STACK:
+        decisions[0] = Decision.STACK;
+        decisions[1] = Decision.UNSTACK;
+        return 2;
+      case JUMP:
+        decisions[0] = Decision.JUMP;
+        return 1;
+      case SHORTCUT:
+        decisions[0] = Decision.TAKE_SHORTCUT;
+        decisions[1] = Decision.DECLINE_SHORTCUT;
+        return 2;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Returns the mask of the pieces that move together with the given piece of the mover: the
+   * stacked pieces on its space. (An unstacked piece can share the space with a stack after
+   * backtracking from the final stretch; it doesn't move with the stack.)
+   */
+  private int getGroup(int pieceId) {
+    int base = turn * PIECES_PER_PLAYER;
+    int piece = pieces[base + pieceId];
+    if ((piece & STACKED) == 0) {
+      return 1 << pieceId;
+    }
+    int group = 0;
+    int stackedPosition = (piece & POSITION_MASK) | STACKED;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      if ((pieces[base + id] & (POSITION_MASK | STACKED)) == stackedPosition) {
+        group |= 1 << id;
+      }
+    }
+    return group;
+  }
+
+  /* ***
+   * Rules (see AeroplaneChessLogic for the documentation of each rule)
+   * ***/
+
+  private boolean isShortcutAvailable(int position) {
+    return shortcutAmount != 0 && position == position(TRACK, SHORTCUT_START[turn]);
+  }
+
+  private boolean isJumpAvailable(int lastAction, int position) {
+    int space = position & SPACE_MASK;
+    return jumpAmount != 0
+        && (position >> ZONE_SHIFT) == TRACK
+        && lastAction != ACTION_JUMP
+        && space % PIECES_PER_PLAYER == TRACK_COLOR[turn]
+        && space != SHORTCUT_END[turn]
+        && space != SHORTCUT_START[turn]
+        && space != FINAL_START[turn];
+  }
+
+  /** True if one of the mover's pieces outside of excluded is on the (non-Hangar/Launch) space. */
+  private boolean isStackAvailable(int position, int excluded) {
+    int zone = position >> ZONE_SHIFT;
+    if (zone == HANGAR || zone == LAUNCH) {
+      return false;
+    }
+    int base = turn * PIECES_PER_PLAYER;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      if ((excluded & (1 << id)) == 0 && (pieces[base + id] & POSITION_MASK) == position) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** True if all pieces of side except those in excluded are facedown in the Hangar. */
+  private boolean allHome(int side, int excluded) {
+    int base = side * PIECES_PER_PLAYER;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      int piece = pieces[base + id];
+      if ((excluded & (1 << id)) == 0 && (zoneOf(piece) != HANGAR || (piece & FACEDOWN) == 0)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the position a piece lands on when it is moved die spaces from position, or -1 if
+   * the move is exact and the piece goes home (facedown to the Hangar).
+   */
+  private int getMoveDestination(int position, int die) {
+    int zone = position >> ZONE_SHIFT;
+    int space = position & SPACE_MASK;
+    int finalStart = FINAL_START[turn];
+    if (zone == LAUNCH) {
+      return position(TRACK, LAUNCH_START[turn] + die);
+    }
+    if (zone == FINAL_STRETCH) {
+      if (space + die == WIN_FINAL_SPACE) {
+        return -1;
+      }
+      if (space + die < WIN_FINAL_SPACE) {
+        return position(FINAL_STRETCH, space + die);
+      }
+      // Inexact roll: backtrack, possibly all the way back to the track
+      return space - die < 0
+          ? position(TRACK, finalStart - (die - space) + 1)
+          : position(FINAL_STRETCH, space - die);
+    }
+    if (space == finalStart) {
+      return die == 6 ? -1 : position(FINAL_STRETCH, die - 1);
+    }
+    if (space < finalStart && space + die > finalStart) {
+      return position(FINAL_STRETCH, space + die - finalStart - 1);
+    }
+    return position(TRACK, (space + die) % TOTAL_SPACES);
+  }
+
+  /* ***
+   * Playing and undoing decisions
+   * ***/
+
+  /** Plays a decision returned by {@link #getDecisions}. */
+  public void play(int decision) {
+    checkState(!awaitingRoll && winner == NO_WINNER);
+    push();
+    hash ^= getScalarHash();
+    switch (Decision.getKind(decision)) {
+      case Decision.PASS_KIND:
+        action = Action.MOVE.ordinal();
+        passTurn();
+        break;
+      case Decision.BACK_TO_HANGAR_KIND:
+        // Third 6: pieces moved on the last two rolls go back (faceup) to the Hangar
+        int base = turn * PIECES_PER_PLAYER;
+        for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+          if (((moves0 | moves1) & (1 << id)) != 0) {
+            setPiece(base + id, position(HANGAR, id));
+          }
+        }
+        action = Action.MOVE.ordinal();
+        passTurn();
+        break;
+      case Decision.TAXI_KIND:
+        playTaxi(Decision.getPieceId(decision));
+        break;
+      case Decision.MOVE_KIND:
+        playMove(getGroup(Decision.getPieceId(decision)));
+        break;
+      case Decision.STACK_KIND:
+      case Decision.UNSTACK_KIND:
+        playStack(decision == Decision.STACK);
+        break;
+      case Decision.JUMP_KIND:
+        playJump();
+        break;
+      case Decision.TAKE_SHORTCUT_KIND:
+        playShortcut();
+        break;
+      case Decision.DECLINE_SHORTCUT_KIND:
+        action = Action.TAKE_SHORTCUT.ordinal();
+        if (die == 6) {
+          awaitingRoll = true;
+        }
+        else {
+          passTurn();
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Did not find Decision=" + decision);
+    }
+    hash ^= getScalarHash();
+  }
+
+  /** Sets the die after a decision that re-rolls it. */
+  public void roll(int value) {
+    checkArgument(value >= 1 && value <= 6);
+    checkState(awaitingRoll);
+    hash ^= getScalarHash();
+    die = value;
+    awaitingRoll = false;
+    hash ^= getScalarHash();
+  }
+
+  /**
+   * Reverts the last {@link #roll}, so that the search can try every die value after a decision
+   * (or at the start of a turn) without playing it again.
+   */
+  public void unroll() {
+    checkState(!awaitingRoll);
+    hash ^= getScalarHash();
+    awaitingRoll = true;
+    hash ^= getScalarHash();
+  }
+
+  /** Reverts the last {@link #play} (and its {@link #roll}). */
+  public void undo() {
+    checkState(historySize > 0);
+    historySize -= FRAME;
+    int[] frame = history;
+    int offset = historySize;
+    System.arraycopy(frame, offset, pieces, 0, PIECES);
+    offset += PIECES;
+    turn = frame[offset++];
+    die = frame[offset++];
+    action = frame[offset++];
+    roll0 = frame[offset++];
+    roll1 = frame[offset++];
+    moves0 = frame[offset++];
+    moves1 = frame[offset++];
+    awaitingRoll = frame[offset++] != 0;
+    winner = frame[offset++];
+    hash = ((long) frame[offset++] << 32) | (frame[offset] & 0xFFFFFFFFL);
+  }
+
+  private void push() {
+    if (historySize + FRAME > history.length) {
+      int[] newHistory = new int[history.length * 2];
+      System.arraycopy(history, 0, newHistory, 0, historySize);
+      history = newHistory;
+    }
+    int offset = historySize;
+    System.arraycopy(pieces, 0, history, offset, PIECES);
+    offset += PIECES;
+    history[offset++] = turn;
+    history[offset++] = die;
+    history[offset++] = action;
+    history[offset++] = roll0;
+    history[offset++] = roll1;
+    history[offset++] = moves0;
+    history[offset++] = moves1;
+    history[offset++] = awaitingRoll ? 1 : 0;
+    history[offset++] = winner;
+    history[offset++] = (int) (hash >>> 32);
+    history[offset] = (int) hash;
+    historySize += FRAME;
+  }
+
+  /** Sets the turn to the other player and rolls the die for them. */
+  private void passTurn() {
+    turn ^= 1;
+    awaitingRoll = true;
+    roll0 = roll1 = -1;
+    moves0 = moves1 = 0;
+  }
+
+  /** Keeps the turn after a 6 (or a stack/jump/shortcut), shifting lastTwoRolls/Moves. */
+  private void shiftLastTwo(int movedMask) {
+    roll1 = roll0;
+    roll0 = die;
+    moves1 = moves0;
+    moves0 = movedMask;
+  }
+
+  private void playTaxi(int pieceId) {
+    setPiece(turn * PIECES_PER_PLAYER + pieceId, position(LAUNCH, 0));
+    action = Action.TAXI.ordinal();
+    if (die == 6) {
+      shiftLastTwo(1 << pieceId);
+      awaitingRoll = true;
+    }
+    else {
+      passTurn();
+    }
+  }
+
+  private void playMove(int group) {
+    int base = turn * PIECES_PER_PLAYER;
+    int from = pieces[base + Integer.numberOfTrailingZeros(group)] & POSITION_MASK;
+    int lastAction = action;
+    action = Action.MOVE.ordinal();
+
+    // An inexact roll in the final stretch backtracks and always ends the turn
+    if (zoneOf(from) == FINAL_STRETCH && (from & SPACE_MASK) + die > WIN_FINAL_SPACE) {
+      movePieces(group, getMoveDestination(from, die));
+      passTurn();
+      return;
+    }
+
+    int to = getMoveDestination(from, die);
+    if (to == -1) {
+      // Exact roll: the pieces go home (facedown in their Hangar spaces)
+      for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+        if ((group & (1 << id)) != 0) {
+          setPiece(base + id, position(HANGAR, id) | (pieces[base + id] & STACKED) | FACEDOWN);
+        }
+      }
+      if (allHome(turn, group)) {
+        winner = turn;
+      }
+      else if (die == 6) {
+        // The turn is kept but the die is not re-rolled
+        shiftLastTwo(group);
+      }
+      else {
+        // The turn passes but the die is not re-rolled
+        turn ^= 1;
+        roll0 = roll1 = -1;
+        moves0 = moves1 = 0;
+      }
+      return;
+    }
+
+    boolean followUp = isShortcutAvailable(to)
+        || isJumpAvailable(lastAction, to)
+        || isStackAvailable(to, 0);
+    movePieces(group, to);
+    // AeroplaneChessLogic only matches the location of a moved piece when it has two digits
+    if (zoneOf(to) == TRACK && (to & SPACE_MASK) >= 10) {
+      capture(to);
+    }
+    if (die == 6 || followUp) {
+      shiftLastTwo(group);
+      awaitingRoll = !followUp;
+    }
+    else {
+      passTurn();
+    }
+  }
+
+  private void playStack(boolean stack) {
+    int base = turn * PIECES_PER_PLAYER;
+    int location = pieces[base + Integer.numberOfTrailingZeros(moves0)] & POSITION_MASK;
+    int stacked = 0;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      if ((pieces[base + id] & POSITION_MASK) == location) {
+        setPiece(base + id, stack ? pieces[base + id] | STACKED : pieces[base + id] & ~STACKED);
+        stacked |= 1 << id;
+      }
+    }
+    action = Action.STACK.ordinal();
+    if (die == 6) {
+      int lastMoves1 = moves1;
+      shiftLastTwo(stack ? stacked : moves0);
+      // A stack replaces the last move instead of shifting it
+      moves1 = lastMoves1;
+      awaitingRoll = true;
+    }
+    else {
+      passTurn();
+    }
+  }
+
+  private void playJump() {
+    int base = turn * PIECES_PER_PLAYER;
+    int from = pieces[base + Integer.numberOfTrailingZeros(moves0)] & POSITION_MASK;
+    int to = position(TRACK, ((from & SPACE_MASK) + jumpAmount) % TOTAL_SPACES);
+    boolean followUp = isShortcutAvailable(to) || isStackAvailable(to, 0);
+    movePieces(moves0, to);
+    capture(to);
+    action = ACTION_JUMP;
+    if (die == 6 || followUp) {
+      // lastTwoRolls/Moves are unchanged, and the die is only re-rolled for the follow-up
+      awaitingRoll = followUp;
+    }
+    else {
+      passTurn();
+    }
+  }
+
+  private void playShortcut() {
+    int base = turn * PIECES_PER_PLAYER;
+    int from = pieces[base + Integer.numberOfTrailingZeros(moves0)] & POSITION_MASK;
+    int to = position(TRACK, ((from & SPACE_MASK) + shortcutAmount) % TOTAL_SPACES);
+    boolean stackAvailable = isStackAvailable(to, 0);
+    movePieces(moves0, to);
+    capture(to);
+    capture(position(FINAL_STRETCH, SHORTCUT_FINAL_SPACE));
+    action = Action.TAKE_SHORTCUT.ordinal();
+    if (die == 6 || stackAvailable) {
+      roll1 = roll0;
+      roll0 = die;
+      awaitingRoll = !stackAvailable;
+    }
+    else {
+      passTurn();
+    }
+  }
+
+  /** Moves the mover's pieces in group to position, keeping their stacked/facedown flags. */
+  private void movePieces(int group, int position) {
+    int base = turn * PIECES_PER_PLAYER;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      if ((group & (1 << id)) != 0) {
+        setPiece(base + id, (pieces[base + id] & ~POSITION_MASK) | position);
+      }
+    }
+  }
+
+  /** Sends the opponent's pieces on position back (faceup, unstacked) to their Hangar spaces. */
+  private void capture(int position) {
+    int base = (turn ^ 1) * PIECES_PER_PLAYER;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      if ((pieces[base + id] & POSITION_MASK) == position) {
+        setPiece(base + id, position(HANGAR, id));
+      }
+    }
+  }
+
+  private void setPiece(int index, int piece) {
+    hash ^= Zobrist.PIECES[index][pieces[index]] ^ Zobrist.PIECES[index][piece];
+    pieces[index] = piece;
+  }
+}
@@ -0,0 +1,41 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Adds noise to the values of another evaluator, to make an AI weaker on purpose: the larger the
+ * amplitude, the more often it misjudges which decision is better. The noise of a state is a
+ * function of its hash and a seed, not a random draw, so a state keeps its value within a search
+ * and in a transposition table, while AIs with different seeds make different mistakes.
+ */
+public class NoisyEvaluator implements Evaluator {
+
+  /** Keeps the values away from the values of finished games. */
+  private static final double MAX_VALUE = 0.99;
+
+  private final Evaluator evaluator;
+  private final double amplitude;
+  private final long seed;
+
+  /** @param amplitude The largest change of a value (values are in (-1, 1)). */
+  public NoisyEvaluator(Evaluator evaluator, double amplitude, long seed) {
+    checkArgument(amplitude >= 0);
+    this.evaluator = evaluator;
+    this.amplitude = amplitude;
+    this.seed = seed;
+  }
+
+  @Override
+  public double evaluate(MutableState state) {
+    double value = evaluator.evaluate(state) + amplitude * getNoise(state.getHash() ^ seed);
+    return Math.max(-MAX_VALUE, Math.min(MAX_VALUE, value));
+  }
+
+  /** Returns a number in [-1, 1) that looks random (the SplitMix64 finalizer). */
+  private static double getNoise(long key) {
+    key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+    key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+    key ^= key >>> 31;
+    return (key >>> 11) * 0x1.0p-52 - 1;
+  }
+}
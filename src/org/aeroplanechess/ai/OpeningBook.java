@@ -0,0 +1,133 @@
+package org.aeroplanechess.ai;
+
+/**
+ * The best decisions of the opening, found offline by a deep search (see
+ * {@link OpeningBookBuilder}), so that the AI answers the first turns of a game at once and keeps
+ * its time for the states that are new in every game. The first turns are mostly about which
+ * Hangar piece to launch and when to leave the Launch, and they recur in nearly every match.
+ *
+ * Entries are keyed by the canonical hash of the state (see
+ * {@link ColorSymmetry#getCanonicalHash}), so one entry serves both colors, and they hold the
+ * best decision and its value for the side to move. The keys are sorted, and a lookup is a binary
+ * search over them. Where the entries are kept is up to the {@link Storage}.
+ */
+public class OpeningBook {
+
+  /** The entries of the book, sorted by key: in memory or, on the server, in a mapped file. */
+  public interface Storage {
+    int getSize();
+
+    long getKey(int index);
+
+    int getDecision(int index);
+
+    /** The scaled value for the side to move of the decision (see {@link #VALUE_SCALE}). */
+    int getScaledValue(int index);
+  }
+
+  /** Entries kept in arrays, as built by {@link OpeningBookBuilder}. */
+  public static class MemoryStorage implements Storage {
+    private final long[] keys;
+    private final byte[] decisions;
+    private final short[] values;
+
+    MemoryStorage(long[] keys, byte[] decisions, short[] values) {
+      this.keys = keys;
+      this.decisions = decisions;
+      this.values = values;
+    }
+
+    @Override
+    public int getSize() {
+      return keys.length;
+    }
+
+    @Override
+    public long getKey(int index) {
+      return keys[index];
+    }
+
+    @Override
+    public int getDecision(int index) {
+      return decisions[index];
+    }
+
+    @Override
+    public int getScaledValue(int index) {
+      return values[index];
+    }
+  }
+
+  /** getDecision of a state that is not in the book. */
+  public static final int NOT_FOUND = -1;
+
+  /** Stored values are multiples of 1 / VALUE_SCALE (they fit in a short). */
+  public static final int VALUE_SCALE = Short.MAX_VALUE;
+
+  private final Storage storage;
+
+  public OpeningBook(Storage storage) {
+    this.storage = storage;
+  }
+
+  public int getSize() {
+    return storage.getSize();
+  }
+
+  public boolean contains(MutableState state) {
+    return getDecision(state) != NOT_FOUND;
+  }
+
+  /**
+   * Returns the book decision for state (where the die has been rolled), or {@link #NOT_FOUND}.
+   * A stored decision that is not available in state (after a hash collision) is not found.
+   */
+  public int getDecision(MutableState state) {
+    int index = find(state);
+    if (index == -1) {
+      return NOT_FOUND;
+    }
+    int decision = storage.getDecision(index);
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int count = state.getDecisions(decisions);
+    for (int i = 0; i < count; i++) {
+      if (decisions[i] == decision) {
+        return decision;
+      }
+    }
+    return NOT_FOUND;
+  }
+
+  /** Returns the value for red of the book decision for state, which the book must contain. */
+  public double getValue(MutableState state) {
+    int index = find(state);
+    if (index == -1) {
+      throw new IllegalArgumentException("The state is not in the opening book.");
+    }
+    double value = (double) storage.getScaledValue(index) / VALUE_SCALE;
+    return state.getTurn() == MutableState.RED ? value : -value;
+  }
+
+  /** Returns the index of the entry for state, or -1. */
+  private int find(MutableState state) {
+    if (state.isAwaitingRoll() || state.isGameOver()
+        || !state.getRules().equals(Rules.STANDARD)) {
+      return -1;
+    }
+    long key = ColorSymmetry.getCanonicalHash(state);
+    int low = 0;
+    int high = storage.getSize() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long middleKey = storage.getKey(middle);
+      if (middleKey < key) {
+        low = middle + 1;
+      } else if (middleKey > key) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,113 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.aeroplanechess.client.AeroplaneChessState;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Builds an {@link OpeningBook}: {@link #getStates} lists the states of the opening where the
+ * player to move has a choice, and {@link #search} finds the best decision of one of them and
+ * adds it to the book. The searches are independent, so the server runs them on several threads
+ * (each with its own strategy and state).
+ */
+public class OpeningBookBuilder {
+
+  private static final ImmutableList<String> PLAYER_IDS = ImmutableList.of("0", "1");
+
+  /* By key: the decision and the scaled value */
+  private final SortedMap<Long, Integer> decisions = Maps.newTreeMap();
+  private final Map<Long, Short> values = Maps.newHashMap();
+
+  /**
+   * Returns the canonical forms (see {@link ColorSymmetry}) of the states with more than one
+   * decision that can be reached from the start of a game with at most rolls die rolls, each
+   * once.
+   */
+  public static List<AeroplaneChessState> getStates(int rolls) {
+    checkArgument(rolls >= 1);
+    Map<Long, AeroplaneChessState> states = Maps.newLinkedHashMap();
+    MutableState state = new MutableState();
+    addStates(state, rolls, Maps.<Long, Integer>newHashMap(), states);
+    return Lists.newArrayList(states.values());
+  }
+
+  /**
+   * Adds the states reachable from state with at most rolls more die rolls.
+   * @param visited The most rolls left with which each state (by canonical hash) was visited.
+   */
+  private static void addStates(MutableState state, int rolls, Map<Long, Integer> visited,
+      Map<Long, AeroplaneChessState> states) {
+    if (state.isGameOver()) {
+      return;
+    }
+    if (state.isAwaitingRoll()) {
+      if (rolls > 0) {
+        for (int die = 1; die <= 6; die++) {
+          state.roll(die);
+          addStates(state, rolls - 1, visited, states);
+          state.unroll();
+        }
+      }
+      return;
+    }
+    long key = ColorSymmetry.getCanonicalHash(state);
+    Integer visitedRolls = visited.get(key);
+    if (visitedRolls != null && visitedRolls >= rolls) {
+      return;
+    }
+    visited.put(key, rolls);
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int count = state.getDecisions(decisions);
+    if (count > 1 && !states.containsKey(key)) {
+      states.put(key,
+          ColorSymmetry.canonicalize(state.toAeroplaneChessState(PLAYER_IDS)));
+    }
+    for (int i = 0; i < count; i++) {
+      state.play(decisions[i]);
+      addStates(state, rolls, visited, states);
+      state.undo();
+    }
+  }
+
+  /**
+   * Searches the canonical state (from {@link #getStates}) on state and adds the best decision
+   * to the book.
+   */
+  public void search(AeroplaneChessState canonical, ExpectimaxStrategy strategy,
+      MutableState state) {
+    state.set(canonical);
+    int decision = strategy.chooseDecision(state);
+    // Red is to move, so the value for red is the value for the side to move
+    add(ColorSymmetry.getCanonicalHash(state), decision, strategy.getValue());
+  }
+
+  /** Adds an entry; value is for the side to move. */
+  public synchronized void add(long key, int decision, double value) {
+    decisions.put(key, decision);
+    values.put(key, (short) Math.round(
+        Math.max(-1, Math.min(1, value)) * OpeningBook.VALUE_SCALE));
+  }
+
+  public synchronized OpeningBook.MemoryStorage getStorage() {
+    int size = decisions.size();
+    long[] keys = new long[size];
+    byte[] decisionArray = new byte[size];
+    short[] valueArray = new short[size];
+    int index = 0;
+    for (Map.Entry<Long, Integer> entry : decisions.entrySet()) {
+      keys[index] = entry.getKey();
+      decisionArray[index] = (byte) (int) entry.getValue();
+      valueArray[index] = values.get(entry.getKey());
+      index++;
+    }
+    return new OpeningBook.MemoryStorage(keys, decisionArray, valueArray);
+  }
+}
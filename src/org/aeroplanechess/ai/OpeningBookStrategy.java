@@ -0,0 +1,43 @@
+package org.aeroplanechess.ai;
+
+/**
+ * Plays the decisions of an {@link OpeningBook} at once, and searches the states that are not in
+ * the book with another strategy. As an anytime strategy, a search of a book state is finished
+ * as soon as it is started, so the caller's time budget is left for later turns.
+ */
+public class OpeningBookStrategy implements AnytimeStrategy {
+
+  private final OpeningBook book;
+  private final AnytimeStrategy strategy;
+  private int bookDecision = OpeningBook.NOT_FOUND;
+
+  /** @param strategy Plays the states that are not in the book. */
+  public OpeningBookStrategy(OpeningBook book, AnytimeStrategy strategy) {
+    this.book = book;
+    this.strategy = strategy;
+  }
+
+  @Override
+  public int chooseDecision(MutableState state) {
+    int decision = book.getDecision(state);
+    return decision != OpeningBook.NOT_FOUND ? decision : strategy.chooseDecision(state);
+  }
+
+  @Override
+  public void startSearch(MutableState state) {
+    bookDecision = book.getDecision(state);
+    if (bookDecision == OpeningBook.NOT_FOUND) {
+      strategy.startSearch(state);
+    }
+  }
+
+  @Override
+  public boolean search(long deadlineMillis) {
+    return bookDecision != OpeningBook.NOT_FOUND || strategy.search(deadlineMillis);
+  }
+
+  @Override
+  public int getBestDecision() {
+    return bookDecision != OpeningBook.NOT_FOUND ? bookDecision : strategy.getBestDecision();
+  }
+}
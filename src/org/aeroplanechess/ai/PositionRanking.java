@@ -0,0 +1,174 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+import static org.aeroplanechess.client.Constants.TOTAL_FINAL_SPACES;
+import static org.aeroplanechess.client.Constants.TOTAL_SPACES;
+
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+
+/**
+ * A bijection between positions (the pieces of both sides and the side to move) and the longs
+ * from 0 to {@link #POSITIONS}, for tables, caches and archives that store one entry per
+ * position. The rest of a state (the die and the last rolls and moves) is not part of the rank.
+ *
+ * A piece is ranked among the {@link #PIECE_STATES} states that the Piece constructor accepts
+ * and the logic can produce: Hangar 0-3 (faceup or facedown, stacked or not, since stacks keep
+ * their flag when they go home), Launch 0 (never stacked), Track 0-51 and Final Stretch 0-5
+ * (stacked or not). A side is the four piece ranks in mixed radix, and a position is the two
+ * sides and the side to move. Combinations that can't occur in a game (a lone stacked piece, say)
+ * still have a rank, so that ranking stays a few table lookups and multiplications, and
+ * unranking a few divisions.
+ *
+ * With color symmetry, a position where yellow is to move is ranked as the same position seen
+ * from the other side of the board: the sides swap and the Track turns by half a lap, so that
+ * red is to move. That halves the ranks ({@link #CANONICAL_POSITIONS}).
+ */
+public final class PositionRanking {
+
+  private PositionRanking() { }  // Prevent instantiation/subclassing
+
+  /** Ranks of a piece. */
+  public static final int PIECE_STATES = 4 * 4 + 1 + 2 * TOTAL_SPACES + 2 * TOTAL_FINAL_SPACES;
+
+  /** Ranks of the pieces of a side. */
+  public static final int SIDE_STATES =
+      PIECE_STATES * PIECE_STATES * PIECE_STATES * PIECE_STATES;
+
+  /** Ranks of positions. */
+  public static final long POSITIONS = (long) SIDE_STATES * SIDE_STATES * 2;
+
+  /** Ranks of positions reduced by color symmetry. */
+  public static final long CANONICAL_POSITIONS = (long) SIDE_STATES * SIDE_STATES;
+
+  /** Track spaces between the same points of red's and yellow's paths. */
+  static final int HALF_LAP = TOTAL_SPACES / 2;
+
+  private static final int PAIR_STATES = PIECE_STATES * PIECE_STATES;
+  private static final int PACKED = 1 << 10;
+
+  /* By packed piece (see MutableState): its rank (-1 if there is none) and its rotated piece */
+  private static final int[] RANKS = new int[PACKED];
+  private static final int[] ROTATED = new int[PACKED];
+  /* By rank of two pieces: the two packed pieces */
+  private static final int[] PAIR_FIRST = new int[PAIR_STATES];
+  private static final int[] PAIR_SECOND = new int[PAIR_STATES];
+
+  static {
+    int[] pieces = new int[PIECE_STATES];
+    int rank = 0;
+    for (int space = 0; space < PIECES_PER_PLAYER; space++) {
+      for (int flags = 0; flags < 4; flags++) {
+        pieces[rank++] = MutableState.position(MutableState.HANGAR, space)
+            | (flags & 1) * MutableState.STACKED | (flags >> 1) * MutableState.FACEDOWN;
+      }
+    }
+    pieces[rank++] = MutableState.position(MutableState.LAUNCH, 0);
+    for (int space = 0; space < TOTAL_SPACES; space++) {
+      pieces[rank++] = MutableState.position(MutableState.TRACK, space);
+      pieces[rank++] = MutableState.position(MutableState.TRACK, space) | MutableState.STACKED;
+    }
+    for (int space = 0; space < TOTAL_FINAL_SPACES; space++) {
+      int piece = MutableState.position(MutableState.FINAL_STRETCH, space);
+      pieces[rank++] = piece;
+      pieces[rank++] = piece | MutableState.STACKED;
+    }
+
+    for (int piece = 0; piece < PACKED; piece++) {
+      RANKS[piece] = -1;
+      ROTATED[piece] = MutableState.zoneOf(piece) == MutableState.TRACK
+          ? (piece & ~MutableState.SPACE_MASK)
+              | ((piece & MutableState.SPACE_MASK) + HALF_LAP) % TOTAL_SPACES
+          : piece;
+    }
+    for (rank = 0; rank < PIECE_STATES; rank++) {
+      RANKS[pieces[rank]] = rank;
+    }
+    for (int pair = 0; pair < PAIR_STATES; pair++) {
+      PAIR_FIRST[pair] = pieces[pair % PIECE_STATES];
+      PAIR_SECOND[pair] = pieces[pair / PIECE_STATES];
+    }
+  }
+
+  /** Returns the rank of a packed piece (see {@link MutableState}), or -1 if it has none. */
+  public static int rankPiece(int piece) {
+    return RANKS[piece & (PACKED - 1)];
+  }
+
+  /** Returns the rank of the position of state. */
+  public static long rank(MutableState state) {
+    return rankSides(state, MutableState.RED, 0) * 2 + state.getTurn();
+  }
+
+  /** Returns the rank of the position of state, reduced by color symmetry. */
+  public static long rankCanonical(MutableState state) {
+    return state.getTurn() == MutableState.RED
+        ? rankSides(state, MutableState.RED, 0)
+        : rankSides(state, MutableState.YELLOW, HALF_LAP);
+  }
+
+  /**
+   * Stores the pieces (packed, red's first) of the position with the given rank in pieces and
+   * returns the side to move.
+   */
+  public static int unrank(long rank, int[] pieces) {
+    checkArgument(rank >= 0 && rank < POSITIONS);
+    unrankSides(rank >> 1, pieces);
+    return (int) rank & 1;
+  }
+
+  /** Stores the pieces of the position with the given canonical rank (red is to move). */
+  public static void unrankCanonical(long rank, int[] pieces) {
+    checkArgument(rank >= 0 && rank < CANONICAL_POSITIONS);
+    unrankSides(rank, pieces);
+  }
+
+  /**
+   * Sets state to the start of a turn in the position with the given rank, with the die to be
+   * rolled.
+   */
+  public static void setState(MutableState state, long rank) {
+    int[] pieces = new int[2 * PIECES_PER_PLAYER];
+    int turn = unrank(rank, pieces);
+    state.setTurnStart(pieces, turn, Action.MOVE);
+  }
+
+  /** Returns the packed piece as seen from the other side of the board. */
+  static int rotate(int piece) {
+    return ROTATED[piece & (PACKED - 1)];
+  }
+
+  /** Ranks first's pieces and then the other side's, with the Track turned by shift spaces. */
+  private static long rankSides(MutableState state, int first, int shift) {
+    return (long) rankSide(state, first, shift) * SIDE_STATES + rankSide(state, first ^ 1, shift);
+  }
+
+  private static int rankSide(MutableState state, int side, int shift) {
+    int rank0 = rankPiece(state, side, 0, shift);
+    int rank1 = rankPiece(state, side, 1, shift);
+    int rank2 = rankPiece(state, side, 2, shift);
+    int rank3 = rankPiece(state, side, 3, shift);
+    checkArgument((rank0 | rank1 | rank2 | rank3) >= 0, "Piece without a rank");
+    return ((rank3 * PIECE_STATES + rank2) * PIECE_STATES + rank1) * PIECE_STATES + rank0;
+  }
+
+  private static int rankPiece(MutableState state, int side, int pieceId, int shift) {
+    int piece = state.getPiece(side, pieceId);
+    return RANKS[(shift == 0 ? piece : ROTATED[piece & (PACKED - 1)]) & (PACKED - 1)];
+  }
+
+  private static void unrankSides(long rank, int[] pieces) {
+    long first = rank / SIDE_STATES;
+    unrankSide((int) first, pieces, 0);
+    unrankSide((int) (rank - first * SIDE_STATES), pieces, PIECES_PER_PLAYER);
+  }
+
+  private static void unrankSide(int rank, int[] pieces, int base) {
+    int low = rank % PAIR_STATES;
+    int high = rank / PAIR_STATES;
+    pieces[base] = PAIR_FIRST[low];
+    pieces[base + 1] = PAIR_SECOND[low];
+    pieces[base + 2] = PAIR_FIRST[high];
+    pieces[base + 3] = PAIR_SECOND[high];
+  }
+}
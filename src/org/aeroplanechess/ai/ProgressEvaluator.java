@@ -0,0 +1,23 @@
+package org.aeroplanechess.ai;
+
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+
+/**
+ * Values a game by how far each side's pieces have advanced (see
+ * {@link MutableState#getProgress}), so a capture is worth as much as the progress it undoes.
+ */
+public class ProgressEvaluator implements Evaluator {
+
+  /** Keeps the values away from the values of finished games. */
+  private static final double SCALE = 0.99 / (PIECES_PER_PLAYER * MutableState.PATH_LENGTH);
+
+  @Override
+  public double evaluate(MutableState state) {
+    int progress = 0;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      progress += state.getProgress(MutableState.RED, id)
+          - state.getProgress(MutableState.YELLOW, id);
+    }
+    return progress * SCALE;
+  }
+}
@@ -0,0 +1,21 @@
+package org.aeroplanechess.ai;
+
+import static org.aeroplanechess.client.Constants.DIE_FROM;
+import static org.aeroplanechess.client.Constants.DIE_TO;
+
+import java.util.Random;
+
+/** Fair dice, as rolled by SetRandomInteger(DIE, DIE_FROM, DIE_TO). */
+public class RandomDice implements Dice {
+
+  private final Random random;
+
+  public RandomDice(Random random) {
+    this.random = random;
+  }
+
+  @Override
+  public int roll() {
+    return random.nextInt(DIE_TO - DIE_FROM) + DIE_FROM;
+  }
+}
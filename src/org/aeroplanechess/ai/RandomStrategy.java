@@ -0,0 +1,27 @@
+package org.aeroplanechess.ai;
+
+import java.util.Random;
+
+/**
+ * Since this game is based on die roll, this AI just picks a decision uniformly at random from
+ * the options that can be taken at this state.
+ */
+public class RandomStrategy implements AiStrategy {
+
+  private final Random random;
+  private final int[] decisions = new int[MutableState.MAX_DECISIONS];
+
+  public RandomStrategy() {
+    this(new Random());
+  }
+
+  public RandomStrategy(Random random) {
+    this.random = random;
+  }
+
+  @Override
+  public int chooseDecision(MutableState state) {
+    int count = state.getDecisions(decisions);
+    return decisions[random.nextInt(count)];
+  }
+}
@@ -0,0 +1,69 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.aeroplanechess.client.Constants.JUMP_AMOUNT;
+import static org.aeroplanechess.client.Constants.SHORTCUT_AMOUNT;
+import static org.aeroplanechess.client.Constants.TOTAL_SPACES;
+
+import java.util.Arrays;
+
+import org.aeroplanechess.client.Equality;
+
+/**
+ * Rule variants that {@link MutableState} can simulate, to measure how much a rule changes the
+ * game. The board is unchanged: the jump and the shortcut still start on the same spaces, only
+ * the distance they move the pieces changes. An amount of 0 turns the rule off.
+ * Only {@link #STANDARD} can be played through AeroplaneChessLogic.
+ */
+public class Rules extends Equality {
+
+  public static final Rules STANDARD = new Rules(JUMP_AMOUNT, SHORTCUT_AMOUNT);
+
+  private final int jumpAmount;
+  private final int shortcutAmount;
+
+  public Rules(int jumpAmount, int shortcutAmount) {
+    checkArgument(jumpAmount >= 0 && jumpAmount < TOTAL_SPACES);
+    checkArgument(shortcutAmount >= 0 && shortcutAmount < TOTAL_SPACES);
+    this.jumpAmount = jumpAmount;
+    this.shortcutAmount = shortcutAmount;
+  }
+
+  /** Parses the format of {@link #toString}, e.g. "jump=4,shortcut=0". */
+  public static Rules parse(String rules) {
+    int jumpAmount = JUMP_AMOUNT;
+    int shortcutAmount = SHORTCUT_AMOUNT;
+    for (String rule : rules.split(",")) {
+      String[] keyValue = rule.split("=");
+      checkArgument(keyValue.length == 2, "Did not find Rules=%s", rules);
+      if (keyValue[0].equals("jump")) {
+        jumpAmount = Integer.parseInt(keyValue[1]);
+      }
+      else if (keyValue[0].equals("shortcut")) {
+        shortcutAmount = Integer.parseInt(keyValue[1]);
+      }
+      else {
+        throw new IllegalArgumentException("Did not find Rules=" + rules);
+      }
+    }
+    return new Rules(jumpAmount, shortcutAmount);
+  }
+
+  public int getJumpAmount() {
+    return jumpAmount;
+  }
+
+  public int getShortcutAmount() {
+    return shortcutAmount;
+  }
+
+  @Override
+  public Object getId() {
+    return Arrays.asList(jumpAmount, shortcutAmount);
+  }
+
+  @Override
+  public String toString() {
+    return "jump=" + jumpAmount + ",shortcut=" + shortcutAmount;
+  }
+}
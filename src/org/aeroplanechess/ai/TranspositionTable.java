@@ -0,0 +1,174 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A fixed-size cache of search results keyed by {@link MutableState#getHash}, so searches don't
+ * evaluate the same state twice. The table can be shared by searches on several threads (and
+ * several games), as long as they use the same evaluator.
+ *
+ * The table is one long[], without locks: each bucket holds two entries of two longs, the key
+ * XORed with the data and the data. A read only accepts an entry whose two halves match the key,
+ * so an entry torn by two threads writing at once reads as a miss (Hyatt's lockless hashing).
+ * The first entry of a bucket keeps the deepest result (unless it is from an older search), the
+ * second one is always replaced. Results are lost when the table is full, which only costs time.
+ *
+ * Data is packed into a long: bits 0-31 hold the value (a float), bits 32-39 the depth, bits
+ * 40-41 the bound, bits 42-47 the best decision, bits 48-55 the search generation, and bit 62 is
+ * always set so that the data of a hit is never 0.
+ *
+ * The table has no counters, so the threads that share it only write the cache lines of their
+ * entries; a search counts its own probes (see {@link ExpectimaxStrategy#getTableHits}). A
+ * shared table starts a generation once per epoch of SHARED_EPOCH_SEARCHES searches rather than
+ * every search, so a search does not age the entries of the searches running beside it.
+ */
+public class TranspositionTable {
+
+  /* Bounds: how the stored value relates to the value of the state */
+  public static final int EXACT = 0;
+  public static final int LOWER = 1;
+  public static final int UPPER = 2;
+
+  /** What {@link #probe} returns for a state that is not in the table. */
+  public static final long MISS = 0;
+
+  /** getDecision of an entry without a best decision. */
+  public static final int NO_DECISION = 63;
+
+  /** Bytes per bucket: two entries of two longs. */
+  static final int BUCKET_BYTES = 32;
+
+  /** The searches of an epoch of a table shared by several threads (see the class comment). */
+  public static final int SHARED_EPOCH_SEARCHES = 256;
+
+  private static final long VALID = 1L << 62;
+
+  private final long[] table;
+  private final int bucketMask;
+  private final int epochSearches;
+  private volatile int generation;
+  /* The searches started in this epoch; an increment lost to a race only makes it longer */
+  private int searches;
+
+  /**
+   * @param memoryBytes The memory budget. The table uses the largest power of two number of
+   *     buckets that fits.
+   * @param epochSearches The searches of a generation: 1 for a table of one thread, and
+   *     {@link #SHARED_EPOCH_SEARCHES} for a table shared by several threads.
+   */
+  public TranspositionTable(long memoryBytes, int epochSearches) {
+    checkArgument(memoryBytes >= BUCKET_BYTES && memoryBytes / BUCKET_BYTES <= 1 << 28);
+    checkArgument(epochSearches > 0);
+    int buckets = Integer.highestOneBit((int) (memoryBytes / BUCKET_BYTES));
+    table = new long[buckets * 4];
+    bucketMask = buckets - 1;
+    this.epochSearches = epochSearches;
+  }
+
+  /** A table for the searches of one thread. */
+  public TranspositionTable(long memoryBytes) {
+    this(memoryBytes, 1);
+  }
+
+  /** The memory used by the entries, in bytes. */
+  public long getMemoryBytes() {
+    return (long) table.length * 8;
+  }
+
+  /**
+   * Starts a new search, and a new generation at the end of an epoch: entries of earlier
+   * generations are replaced first.
+   */
+  public void newSearch() {
+    if (++searches >= epochSearches) {
+      searches = 0;
+      generation = (generation + 1) & 0xFF;
+    }
+  }
+
+  public void clear() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = 0;
+    }
+  }
+
+  /** Returns the data stored for hash, or {@link #MISS}. */
+  public long probe(long hash) {
+    int index = getIndex(hash);
+    for (int entry = index; entry < index + 4; entry += 2) {
+      long data = table[entry + 1];
+      if ((table[entry] ^ data) == hash && data != MISS) {
+        return data;
+      }
+    }
+    return MISS;
+  }
+
+  /**
+   * Stores the result of searching the state with the given hash.
+   * @param depth The depth searched, at most 255.
+   * @param decision The best decision, or {@link #NO_DECISION}.
+   */
+  public void store(long hash, double value, int depth, int bound, int decision) {
+    int generation = this.generation;
+    long data = (Float.floatToIntBits((float) value) & 0xFFFFFFFFL)
+        | ((long) Math.min(depth, 0xFF) << 32)
+        | ((long) bound << 40)
+        | ((long) decision << 42)
+        | ((long) generation << 48)
+        | VALID;
+    int index = getIndex(hash);
+    long preferredData = table[index + 1];
+    boolean samePosition = (table[index] ^ preferredData) == hash;
+    if (samePosition
+        || getDepth(preferredData) <= depth
+        || getGeneration(preferredData) != generation) {
+      table[index] = hash ^ data;
+      table[index + 1] = data;
+    }
+    else {
+      table[index + 2] = hash ^ data;
+      table[index + 3] = data;
+    }
+  }
+
+  public static double getValue(long data) {
+    return Float.intBitsToFloat((int) data);
+  }
+
+  public static int getDepth(long data) {
+    return (int) (data >>> 32) & 0xFF;
+  }
+
+  public static int getBound(long data) {
+    return (int) (data >>> 40) & 3;
+  }
+
+  public static int getDecision(long data) {
+    return (int) (data >>> 42) & 0x3F;
+  }
+
+  private static int getGeneration(long data) {
+    return (int) (data >>> 48) & 0xFF;
+  }
+
+  private int getIndex(long hash) {
+    // The low bits pick the bucket; the key check uses all 64 bits
+    return ((int) hash & bucketMask) << 2;
+  }
+
+  /** The share of entries in use, estimated from the first buckets. */
+  public double getFill() {
+    int sampled = Math.min(table.length, 4096);
+    int used = 0;
+    for (int entry = 0; entry < sampled; entry += 2) {
+      used += table[entry + 1] != MISS ? 1 : 0;
+    }
+    return used * 2.0 / sampled;
+  }
+
+  @Override
+  public String toString() {
+    return (getMemoryBytes() >> 20) + " MB, " + Math.round(100 * getFill()) + "% full";
+  }
+}
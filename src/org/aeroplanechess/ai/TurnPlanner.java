@@ -0,0 +1,142 @@
+package org.aeroplanechess.ai;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Plans the rest of a turn for a die: one turn is a chain of decisions (a move, then maybe a
+ * stack, a jump and a shortcut, in the order of {@link MutableState#getPhase}) that ends when the
+ * die is rolled again or the turn passes. The planner tries every chain in one pass, values the
+ * states where the chains end with an {@link Evaluator}, and returns the best chain as a
+ * {@link Plan}. Chains that reach the same state share its value.
+ *
+ * The presenter asks its strategy for the first decision of a chain and plans the follow-ups
+ * (stack, jump, shortcut) right away, with the evaluator of the strategy, so it can play them at
+ * once instead of searching again after each of them. The follow-ups only look as far as the end
+ * of the chain.
+ */
+public class TurnPlanner {
+
+  /** The decisions of a chain, with the hash of the state before each of them. */
+  public static class Plan {
+    private final int[] decisions = new int[MAX_STEPS];
+    private final long[] hashes = new long[MAX_STEPS];
+    private int size;
+    private double value;
+
+    public int getSize() {
+      return size;
+    }
+
+    public int getDecision(int step) {
+      return decisions[step];
+    }
+
+    /** The hash (see {@link MutableState#getHash}) of the state where the decision is played. */
+    public long getHash(int step) {
+      return hashes[step];
+    }
+
+    /** The value for the side to move of the state where the chain ends. */
+    public double getValue() {
+      return value;
+    }
+  }
+
+  /** Chains are at most a move, a stack, a jump and a shortcut (and a stack after them). */
+  private static final int MAX_STEPS = 8;
+
+  private final Evaluator evaluator;
+  private final int[][] decisions = new int[MAX_STEPS][MutableState.MAX_DECISIONS];
+  /* By state hash: the value for the side to move and the best decision */
+  private final Map<Long, Double> values = Maps.newHashMap();
+  private final Map<Long, Integer> bestDecisions = Maps.newHashMap();
+  private int side;
+
+  public TurnPlanner(Evaluator evaluator) {
+    this.evaluator = evaluator;
+  }
+
+  /** Plans the best chain from state (where the die has been rolled and the game is not over). */
+  public Plan plan(MutableState state) {
+    startPlan(state);
+    search(state, 0);
+    return getPlan(state, -1);
+  }
+
+  /** Plans the best chain from state that starts with firstDecision. */
+  public Plan plan(MutableState state, int firstDecision) {
+    startPlan(state);
+    state.play(firstDecision);
+    search(state, 1);
+    state.undo();
+    return getPlan(state, firstDecision);
+  }
+
+  private void startPlan(MutableState state) {
+    values.clear();
+    bestDecisions.clear();
+    side = state.getTurn();
+  }
+
+  /** Returns the value for side of the best chain from state, at step ply of the chain. */
+  private double search(MutableState state, int ply) {
+    if (state.isGameOver()) {
+      return state.getWinner() == side ? ExpectimaxStrategy.WIN : -ExpectimaxStrategy.WIN;
+    }
+    if (state.isAwaitingRoll() || state.getTurn() != side || ply == MAX_STEPS) {
+      double value = evaluator.evaluate(state);
+      return side == MutableState.RED ? value : -value;
+    }
+    Long hash = state.getHash();
+    Double known = values.get(hash);
+    if (known != null) {
+      return known;
+    }
+    int count = state.getDecisions(decisions[ply]);
+    double best = 0;
+    int bestDecision = decisions[ply][0];
+    for (int i = 0; i < count; i++) {
+      int decision = decisions[ply][i];
+      state.play(decision);
+      double value = search(state, ply + 1);
+      state.undo();
+      if (i == 0 || value > best) {
+        best = value;
+        bestDecision = decision;
+      }
+    }
+    values.put(hash, best);
+    bestDecisions.put(hash, bestDecision);
+    return best;
+  }
+
+  /** Follows the best decisions from state (after firstDecision, unless it is -1). */
+  private Plan getPlan(MutableState state, int firstDecision) {
+    Plan plan = new Plan();
+    int played = 0;
+    if (firstDecision != -1) {
+      addStep(plan, state, firstDecision);
+      played++;
+    }
+    Integer decision;
+    while (played < MAX_STEPS && !state.isGameOver() && !state.isAwaitingRoll()
+        && state.getTurn() == side && (decision = bestDecisions.get(state.getHash())) != null) {
+      addStep(plan, state, decision);
+      played++;
+    }
+    plan.value = search(state, played);
+    for (int i = 0; i < played; i++) {
+      state.undo();
+    }
+    return plan;
+  }
+
+  private static void addStep(Plan plan, MutableState state, int decision) {
+    plan.decisions[plan.size] = decision;
+    plan.hashes[plan.size] = state.getHash();
+    plan.size++;
+    state.play(decision);
+  }
+}
@@ -0,0 +1,215 @@
+package org.aeroplanechess.ai;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+import static org.aeroplanechess.client.Constants.TOTAL_SPACES;
+
+import java.util.Arrays;
+
+/**
+ * Values a game by a weighted sum of features that the rules model, each counted for red minus
+ * yellow (see {@link Feature}). The sum is squashed into (-0.99, 0.99) by x / (1 + |x|), so that
+ * the values stay away from the values of finished games.
+ *
+ * The weights are tuned by self-play (see the server's EvaluatorTuner), and read from and
+ * written to text with one "feature=weight" line per feature (see {@link #parse}). An instance
+ * is not thread-safe, since it reuses its feature arrays.
+ */
+public class WeightedEvaluator implements Evaluator {
+
+  public enum Feature {
+    /** The progress of the pieces along their path, in paths (see MutableState#getProgress). */
+    PROGRESS,
+    /** Pieces in the Final Stretch, where they can't be captured any more. */
+    FINAL_STRETCH,
+    /**
+     * Pieces on the Track that an opponent piece can land on with one roll. Moves to Track 0-9
+     * don't capture (see ColorSymmetry), but they count here, so that the features of a state and
+     * of its mirrored state agree.
+     */
+    EXPOSED,
+    /** Pieces that can reach the shortcut with one roll. */
+    SHORTCUT,
+    /** The chance that a roll lands the piece on a jump space, summed over the pieces. */
+    JUMP,
+    /** Pieces in a stack (that aren't home). */
+    STACKED,
+    /** Pieces still waiting in the Hangar. */
+    HANGAR,
+    /** 1 for the side to move (counted for red minus yellow like the others). */
+    TEMPO;
+
+    /** The name in weights text. */
+    public String getKey() {
+      return name().toLowerCase();
+    }
+  }
+
+  public static final int FEATURES = Feature.values().length;
+
+  /** Hand-picked weights, before tuning: mostly progress, like {@link ProgressEvaluator}. */
+  public static final double[] DEFAULT_WEIGHTS = {1.0, 0.1, -0.15, 0.05, 0.05, 0, -0.1, 0.05};
+
+  private static final double MAX_VALUE = 0.99;
+  private static final int DIE_VALUES = 6;
+
+  private final double[] weights;
+  private final double[] redFeatures = new double[FEATURES];
+  private final double[] yellowFeatures = new double[FEATURES];
+
+  public WeightedEvaluator() {
+    this(DEFAULT_WEIGHTS);
+  }
+
+  /** @param weights One weight per feature, in the order of {@link Feature}. */
+  public WeightedEvaluator(double[] weights) {
+    checkArgument(weights.length == FEATURES, "Expected %s weights", FEATURES);
+    this.weights = weights.clone();
+  }
+
+  /**
+   * Parses the format of {@link #toString}, e.g. "progress=1.0\nexposed=-0.2". Features that
+   * are missing keep their default weight; blank lines and lines starting with # are skipped.
+   */
+  public static WeightedEvaluator parse(String text) {
+    double[] weights = DEFAULT_WEIGHTS.clone();
+    for (String line : text.split("\n")) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] keyValue = line.split("=");
+      checkArgument(keyValue.length == 2, "Did not find weight=%s", line);
+      weights[getFeature(keyValue[0].trim()).ordinal()] = Double.parseDouble(keyValue[1].trim());
+    }
+    return new WeightedEvaluator(weights);
+  }
+
+  private static Feature getFeature(String key) {
+    for (Feature feature : Feature.values()) {
+      if (feature.getKey().equals(key)) {
+        return feature;
+      }
+    }
+    throw new IllegalArgumentException("Did not find Feature=" + key);
+  }
+
+  public double[] getWeights() {
+    return weights.clone();
+  }
+
+  @Override
+  public double evaluate(MutableState state) {
+    getFeatures(state, MutableState.RED, redFeatures);
+    getFeatures(state, MutableState.YELLOW, yellowFeatures);
+    double sum = 0;
+    for (int i = 0; i < FEATURES; i++) {
+      sum += weights[i] * (redFeatures[i] - yellowFeatures[i]);
+    }
+    return MAX_VALUE * sum / (1 + Math.abs(sum));
+  }
+
+  /** Stores the features of side's pieces in features, in the order of {@link Feature}. */
+  public static void getFeatures(MutableState state, int side, double[] features) {
+    Arrays.fill(features, 0);
+    int opponent = side ^ 1;
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      int piece = state.getPiece(side, id);
+      int space = piece & MutableState.SPACE_MASK;
+      features[Feature.PROGRESS.ordinal()] +=
+          (double) state.getProgress(side, id) / MutableState.PATH_LENGTH;
+      switch (MutableState.zoneOf(piece)) {
+        case MutableState.HANGAR:
+          if ((piece & MutableState.FACEDOWN) != 0) {
+            continue;  // Home
+          }
+          features[Feature.HANGAR.ordinal()]++;
+          break;
+        case MutableState.LAUNCH:
+          features[Feature.JUMP.ordinal()] +=
+              getJumpChance(side, MutableState.LAUNCH_START[side], true);
+          break;
+        case MutableState.TRACK:
+          if (isExposed(state, opponent, space)) {
+            features[Feature.EXPOSED.ordinal()]++;
+          }
+          int toShortcut =
+              (MutableState.SHORTCUT_START[side] - space + TOTAL_SPACES) % TOTAL_SPACES;
+          if (toShortcut >= 1 && toShortcut <= DIE_VALUES) {
+            features[Feature.SHORTCUT.ordinal()]++;
+          }
+          features[Feature.JUMP.ordinal()] += getJumpChance(side, space, false);
+          break;
+        default:
+          features[Feature.FINAL_STRETCH.ordinal()]++;
+          break;
+      }
+      if ((piece & MutableState.STACKED) != 0) {
+        features[Feature.STACKED.ordinal()]++;
+      }
+    }
+    if (state.getTurn() == side) {
+      features[Feature.TEMPO.ordinal()] = 1;
+    }
+  }
+
+  /**
+   * Returns the Track space that side's piece on space lands on when moved die spaces, or -1 if
+   * it leaves the Track for the Final Stretch.
+   */
+  private static int getTrackDestination(int side, int space, int die) {
+    int finalStart = MutableState.FINAL_START[side];
+    if (space <= finalStart && space + die > finalStart) {
+      return -1;
+    }
+    return (space + die) % TOTAL_SPACES;
+  }
+
+  /** True if one of opponent's pieces on the Track or in the Launch can land on space. */
+  private static boolean isExposed(MutableState state, int opponent, int space) {
+    for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+      int piece = state.getPiece(opponent, id);
+      int zone = MutableState.zoneOf(piece);
+      int from;
+      if (zone == MutableState.LAUNCH) {
+        from = MutableState.LAUNCH_START[opponent];
+      } else if (zone == MutableState.TRACK) {
+        from = piece & MutableState.SPACE_MASK;
+      } else {
+        continue;
+      }
+      int distance = (space - from + TOTAL_SPACES) % TOTAL_SPACES;
+      if (distance >= 1 && distance <= DIE_VALUES
+          && getTrackDestination(opponent, from, distance) == space) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the chance that one roll moves side's piece from space (in the Launch if launch) to a
+   * space it can jump from.
+   */
+  private static double getJumpChance(int side, int space, boolean launch) {
+    int jumps = 0;
+    for (int die = 1; die <= DIE_VALUES; die++) {
+      int to = launch ? space + die : getTrackDestination(side, space, die);
+      if (to != -1 && to % PIECES_PER_PLAYER == MutableState.TRACK_COLOR[side]
+          && to != MutableState.SHORTCUT_START[side] && to != MutableState.SHORTCUT_END[side]
+          && to != MutableState.FINAL_START[side]) {
+        jumps++;
+      }
+    }
+    return (double) jumps / DIE_VALUES;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder();
+    for (Feature feature : Feature.values()) {
+      text.append(feature.getKey()).append('=').append(weights[feature.ordinal()]).append('\n');
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,59 @@
+package org.aeroplanechess.ai;
+
+import static org.aeroplanechess.client.Constants.DIE_TO;
+import static org.aeroplanechess.client.Constants.PIECES_PER_PLAYER;
+
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+
+/**
+ * Random keys for Zobrist hashing of {@link MutableState}: the hash of a state is the XOR of the
+ * keys of its parts, so changing one part only takes two XORs. The keys are fixed (generated
+ * from a constant seed), so hashes can be stored and compared across runs.
+ */
+final class Zobrist {
+
+  private Zobrist() { }  // Prevent instantiation/subclassing
+
+  /** Piece keys, by side * PIECES_PER_PLAYER + pieceId and then by packed piece. */
+  static final long[][] PIECES = new long[2 * PIECES_PER_PLAYER][1 << 10];
+  static final long YELLOW_TO_MOVE;
+  /** By die value, or 0 while the die is to be rolled. */
+  static final long[] DIE = new long[DIE_TO];
+  static final long[] ACTION = new long[Action.values().length];
+  /** By lastTwoRolls[i] + 1 (it is -1 if there was no roll). */
+  static final long[] ROLL0 = new long[DIE_TO + 1];
+  static final long[] ROLL1 = new long[DIE_TO + 1];
+  /** By the bitmask of lastTwoMoves[i]. */
+  static final long[] MOVES0 = new long[1 << PIECES_PER_PLAYER];
+  static final long[] MOVES1 = new long[1 << PIECES_PER_PLAYER];
+
+  private static long seed = 0x2545F4914F6CDD1DL;
+
+  static {
+    for (long[] keys : PIECES) {
+      fill(keys);
+    }
+    YELLOW_TO_MOVE = next();
+    fill(DIE);
+    fill(ACTION);
+    fill(ROLL0);
+    fill(ROLL1);
+    fill(MOVES0);
+    fill(MOVES1);
+  }
+
+  private static void fill(long[] keys) {
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = next();
+    }
+  }
+
+  /** SplitMix64. */
+  private static long next() {
+    seed += 0x9E3779B97F4A7C15L;
+    long z = seed;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -18,9 +18,20 @@ import org.game_api.GameApi.Operation;
 import org.game_api.GameApi.SetTurn;
 
 
+import org.aeroplanechess.ai.AiStrategy;
+import org.aeroplanechess.ai.AnytimeStrategy;
+import org.aeroplanechess.ai.Decision;
+import org.aeroplanechess.ai.Difficulty;
+import org.aeroplanechess.ai.ExpectimaxStrategy;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.ProgressEvaluator;
+import org.aeroplanechess.ai.TranspositionTable;
+import org.aeroplanechess.ai.TurnPlanner;
+import org.aeroplanechess.ai.WeightedEvaluator;
 import org.aeroplanechess.client.AeroplaneChessState.Action;
 import org.aeroplanechess.client.Piece.Zone;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.aeroplanechess.client.Constants.*;
 import static org.aeroplanechess.client.AeroplaneChessLogic.check;
 
@@ -114,6 +125,25 @@ public class AeroplaneChessPresenter {
   /** Colors are R|Y, or empty for a Viewer. */
   private Optional<Color> myColor;
   private AeroplaneChessState aeroplaneChessState;
+  /**
+   * Chooses the moves of the AI player. The default strategy is created on the first AI move, so
+   * that the presenters of human players (e.g. the bots of a server's load test) do not allocate
+   * its transposition table.
+   */
+  private AiStrategy aiStrategy;
+  private final MutableState aiState = new MutableState();
+  /** How long an AnytimeStrategy may search for each decision. */
+  private int aiThinkDuration = AI_THINK_DURATION;
+  /** Runs the slices of the current AI search, if any. */
+  private Timer aiSearchTimer;
+  /**
+   * Plans the follow-ups of the AI's decisions, which are then played without a search, with the
+   * evaluator of the strategy; null if the strategy has none, which then chooses them too.
+   */
+  private TurnPlanner aiPlanner;
+  private TurnPlanner.Plan aiPlan;
+  /** The step of aiPlan to play next. */
+  private int aiPlanStep;
 
   public AeroplaneChessPresenter(View view, Container container) {
     this.view = view;
@@ -121,6 +151,32 @@ public class AeroplaneChessPresenter {
     view.setPresenter(this);
   }
   
+  /** Sets the strategy used when the presenter plays for the AI player. */
+  public void setAiStrategy(AiStrategy aiStrategy) {
+    this.aiStrategy = aiStrategy;
+    aiPlanner = aiStrategy instanceof ExpectimaxStrategy
+        ? new TurnPlanner(((ExpectimaxStrategy) aiStrategy).getEvaluator()) : null;
+    aiPlan = null;
+  }
+
+  /**
+   * Sets the strategy of the AI player to one of the difficulty levels, whose searches are bounded
+   * by a node budget; the think duration then only caps the time on a slow browser.
+   */
+  public void setAiDifficulty(Difficulty difficulty) {
+    setAiStrategy(difficulty.createStrategy(WeightedEvaluator.DEFAULT_WEIGHTS,
+        new Random().nextLong()));
+  }
+
+  /**
+   * Sets how long the AI player thinks about each decision (e.g. 50 ms for blitz games, or 2 s
+   * for analysis). Only an AnytimeStrategy can use the time; other strategies answer at once.
+   */
+  public void setAiThinkDuration(int aiThinkDuration) {
+    checkArgument(aiThinkDuration >= 0);
+    this.aiThinkDuration = aiThinkDuration;
+  }
+  
   /** 
    * Updates the presenter and the view with the state in updateUI.
    * If the viewer is a player in the game, then he will be able to:
@@ -130,6 +186,11 @@ public class AeroplaneChessPresenter {
    *   AeroplaneChessMessage.SHORTCUT_AVAILABLE
    */
   public void updateUI(UpdateUI updateUI) {
+    if (aiSearchTimer != null) {
+      // The state changed, so the search is out of date
+      aiSearchTimer.cancel();
+      aiSearchTimer = null;
+    }
     List<String> playerIds = updateUI.getPlayerIds();
     String yourPlayerId = updateUI.getYourPlayerId();
     int yourPlayerIndex = updateUI.getPlayerIndex(yourPlayerId);
@@ -196,56 +257,111 @@ public class AeroplaneChessPresenter {
             makeAiMove(getAeroplaneChessMessage());
           }
         };
-        // Offset move by the duration of previous player's move + AI "thinking time"
+        // Offset move by the duration of previous player's move (the AI then thinks)
         int firstDuration = lastAction == Action.TAKE_SHORTCUT ? SHORTCUT_DURATION : NORMAL_DURATION;
-        aiTimer.schedule(firstDuration + AI_THINK_DURATION);
+        aiTimer.schedule(firstDuration);
       }
       return;
     }
   }
   
   /**
-   * Since this game is based on die roll, the AI will just pick a move randomly given the options
-   * that can be taken at this state.
+   * Asks the AI strategy for a decision given the options that can be taken at this state, and
+   * sends it the same way the view would.
    */
   private void makeAiMove(AeroplaneChessMessage aeroplaneChessMessage) {
-    Random randomGenerator = new Random();
-    
     switch (aeroplaneChessMessage) {
-      case ROLL_AVAILABLE:
-        List<Piece> possiblePieces = getPossiblePieces();
-        if (possiblePieces.isEmpty()) {
-          // If there are no available piece choices, choose nothing
-          piecesSelected(Optional.<Piece>absent());
+      case WON_GAME:
+        // Pass turn to other player (so they can know they lost)
+        passTurn();
+      break;
+      case LOST_GAME:
+        // Do nothing (other player already was notified of win)
+      break;
+      case OTHER_TURN:
+        // Not called on the other player's turn
+      break;
+      default:
+        aiState.set(aeroplaneChessState);
+        if (aiStrategy == null) {
+          setAiStrategy(new ExpectimaxStrategy(
+              new ProgressEvaluator(), AI_MAX_DEPTH, true, new TranspositionTable(AI_TABLE_BYTES)));
+        }
+        if (aiPlan != null && aiPlanStep < aiPlan.getSize()
+            && aiPlan.getHash(aiPlanStep) == aiState.getHash()) {
+          // A follow-up (stack, jump, shortcut) that was planned with the first decision
+          sendAiDecision(aiPlan.getDecision(aiPlanStep++));
         }
-        else { 
-          // Otherwise pick a random piece (this also covers the sendToHangar case since
-          // that is checked for directly in piecesSelected).
-          int randomPieceIndex = randomGenerator.nextInt(possiblePieces.size());
-          piecesSelected(Optional.<Piece>of(possiblePieces.get(randomPieceIndex)));
+        else if (aiStrategy instanceof AnytimeStrategy) {
+          startAiSearch((AnytimeStrategy) aiStrategy);
         }
+        else {
+          sendPlannedAiDecision(aiStrategy.chooseDecision(aiState));
+        }
+      break;
+    }
+  }
+
+  /**
+   * Runs the search for aiThinkDuration, in slices of at most AI_SLICE_DURATION so that the
+   * browser stays responsive, and then sends the best decision found.
+   */
+  private void startAiSearch(final AnytimeStrategy anytimeStrategy) {
+    final long deadline = System.currentTimeMillis() + aiThinkDuration;
+    anytimeStrategy.startSearch(aiState);
+    aiSearchTimer = new Timer() {
+      public void run() {
+        long now = System.currentTimeMillis();
+        if (now < deadline && !anytimeStrategy.search(Math.min(deadline, now + AI_SLICE_DURATION))
+            && System.currentTimeMillis() < deadline) {
+          schedule(1);
+          return;
+        }
+        aiSearchTimer = null;
+        sendPlannedAiDecision(anytimeStrategy.getBestDecision());
+      }
+    };
+    aiSearchTimer.schedule(1);
+  }
+  
+  /**
+   * Plans the rest of the turn after the decision of the AI strategy (see {@link TurnPlanner}),
+   * if it has an evaluator, and sends the decision.
+   */
+  private void sendPlannedAiDecision(int decision) {
+    aiPlan = aiPlanner == null ? null : aiPlanner.plan(aiState, decision);
+    aiPlanStep = 1;
+    sendAiDecision(decision);
+  }
+
+  /** Sends a decision of the AI strategy (see {@link Decision}). */
+  private void sendAiDecision(int decision) {
+    switch (Decision.getKind(decision)) {
+      case Decision.TAXI_KIND:
+      case Decision.MOVE_KIND:
+        piecesSelected(Optional.<Piece>of(
+            aeroplaneChessState.getPieces(myColor.get()).get(Decision.getPieceId(decision))));
+      break;
+      case Decision.PASS_KIND:
+      case Decision.BACK_TO_HANGAR_KIND:
+        // No piece to choose (this also covers the sendToHangar case since that is checked for
+        // directly in piecesSelected).
+        piecesSelected(Optional.<Piece>absent());
       break;
-      case STACK_AVAILABLE:
-        // Choose to stack (true) or not stack (false) using random generator
-        stackSelected(randomGenerator.nextInt(2) == 0);
+      case Decision.STACK_KIND:
+      case Decision.UNSTACK_KIND:
+        stackSelected(decision == Decision.STACK);
       break;
-      case SHORTCUT_AVAILABLE:
-        // Choose to take shortcut (true) or not take shortcut (false) using random generator
-        shortcutSelected(randomGenerator.nextInt(2) == 0);
+      case Decision.TAKE_SHORTCUT_KIND:
+      case Decision.DECLINE_SHORTCUT_KIND:
+        shortcutSelected(decision == Decision.TAKE_SHORTCUT);
       break;
-      case JUMP_AVAILABLE:
+      case Decision.JUMP_KIND:
         // No choice to be made - just auto jump
         showJump();
       break;
-      case WON_GAME:
-        // Pass turn to other player (so they can know they lost)
-        passTurn();
-      break;
-      case LOST_GAME:
-        // Do nothing (other player already was notified of win)
-      break;
-      default: 
-        // All cases are covered except OTHER_TURN which won't call this method
+      default:
+        check(false, "Unknown AI decision", decision);
       break;
     }
   }
@@ -546,7 +662,7 @@ public class AeroplaneChessPresenter {
     // Create pieces as they will be after the move
     List<Piece> newPieces = Lists.newArrayList();
     for (Piece piece : oldPieces) {
-      int pieceId = oldPiece.getPieceId(); 
+      int pieceId = piece.getPieceId();
       newPieces.add(new Piece(
           newZone, 
           pieceId, 
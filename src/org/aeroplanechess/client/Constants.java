@@ -25,15 +25,15 @@ public final class Constants {
   
   /* Die info. Range is [DIE_FROM, DIE_TO). */
   static final String DIE = "die";
-  static final int DIE_FROM = 1;
-  static final int DIE_TO = 7;
+  public static final int DIE_FROM = 1;
+  public static final int DIE_TO = 7;
   
   /* Board and player numerics */
-  static final int SHORTCUT_AMOUNT = 12;
-  static final int JUMP_AMOUNT = 4;
+  public static final int SHORTCUT_AMOUNT = 12;
+  public static final int JUMP_AMOUNT = 4;
   public static final int TOTAL_SPACES = 52;
   public static final int TOTAL_FINAL_SPACES = 6;
-  static final int WIN_FINAL_SPACE = 5;
+  public static final int WIN_FINAL_SPACE = 5;
   public static final int PIECES_PER_PLAYER = 4;
   // If the green player is at a space >= 50 (or <= 3) then he can move into his final stretch.
   // Not currently in use for two-player.
@@ -51,7 +51,7 @@ public final class Constants {
    * if another plane takes a shortcut crossing this path. 
    */
   static final String SHORTCUT_FINAL_INTERSECTION = "F02";
-  static final int SHORTCUT_FINAL_SPACE = 2;
+  public static final int SHORTCUT_FINAL_SPACE = 2;
   
   /* Players and space colors (2-player version with R|Y) */
   static final String R = "R";  // Red
@@ -101,6 +101,10 @@ public final class Constants {
   public static final int NORMAL_DURATION = 300;
   public static final int SHORTCUT_DURATION = 1000;
   
-  /* AI timer to "think" like a normal player */
+  /* AI search: the default time the AI thinks (see AeroplaneChessPresenter#setAiThinkDuration),
+   * the longest the browser is kept busy at once, and the default search depth and table size */
   public static final int AI_THINK_DURATION = 1000;
+  public static final int AI_SLICE_DURATION = 25;
+  public static final int AI_MAX_DEPTH = 8;
+  public static final int AI_TABLE_BYTES = 4 << 20;
 }
@@ -0,0 +1,264 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.aeroplanechess.ai.AnytimeStrategy;
+import org.aeroplanechess.ai.ColorSymmetry;
+import org.aeroplanechess.ai.ExpectimaxStrategy;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.WeightedEvaluator;
+import org.aeroplanechess.client.AeroplaneChessState;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Chooses the decisions of the AI players of many games at once, so that one server can host the
+ * AI opponents of many tables without a search per presenter.
+ *
+ * Requests for the same state are coalesced: a request for a state that is already queued or
+ * being searched (by canonical hash, see {@link ColorSymmetry}, so either color) shares its
+ * result, which is common in the opening. A queued search takes the earliest deadline of its
+ * requests; a search that has started only takes requests that can wait for its deadline, and
+ * an impatient request is searched on its own. Searches run on a fixed number of workers with a
+ * bounded queue: a request that finds the queue full fails at once with a
+ * RejectedExecutionException, so that the caller can fall back to a cheaper AI. A search whose
+ * deadline has passed by the time a worker takes it answers with the first decision it orders.
+ *
+ * Each worker has its own strategy, and the strategies of {@link #create} share one
+ * transposition table, so the searches of all the tables help each other. {@link #getMetrics}
+ * reports the queue depth, the coalesced, rejected and expired requests, and the latencies.
+ */
+public class AiService {
+
+  /** A snapshot of the counters of the service. */
+  public static class Metrics {
+    private final long requests;
+    private final long coalesced;
+    private final long rejected;
+    private final long expired;
+    private final int queueDepth;
+    private final int activeSearches;
+    private final double meanLatencyMillis;
+    private final double maxLatencyMillis;
+
+    Metrics(long requests, long coalesced, long rejected, long expired, int queueDepth,
+        int activeSearches, double meanLatencyMillis, double maxLatencyMillis) {
+      this.requests = requests;
+      this.coalesced = coalesced;
+      this.rejected = rejected;
+      this.expired = expired;
+      this.queueDepth = queueDepth;
+      this.activeSearches = activeSearches;
+      this.meanLatencyMillis = meanLatencyMillis;
+      this.maxLatencyMillis = maxLatencyMillis;
+    }
+
+    public long getRequests() {
+      return requests;
+    }
+
+    /** Requests that shared the search of an earlier request. */
+    public long getCoalesced() {
+      return coalesced;
+    }
+
+    /** Requests that found the queue full. */
+    public long getRejected() {
+      return rejected;
+    }
+
+    /** Searches that started after their deadline. */
+    public long getExpired() {
+      return expired;
+    }
+
+    /** Searches waiting for a worker. */
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    public int getActiveSearches() {
+      return activeSearches;
+    }
+
+    /** From a request to its decision, over the answered requests. */
+    public double getMeanLatencyMillis() {
+      return meanLatencyMillis;
+    }
+
+    public double getMaxLatencyMillis() {
+      return maxLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d requests (%d coalesced, %d rejected, %d expired), queue %d, "
+          + "active %d, latency %.1f ms mean, %.1f ms max", requests, coalesced, rejected, expired,
+          queueDepth, activeSearches, meanLatencyMillis, maxLatencyMillis);
+    }
+  }
+
+  /** One search, shared by the requests for its state. Fields are guarded by the service. */
+  private class Search implements Runnable {
+    private final long key;
+    private final MutableState state;
+    private final SettableFuture<Integer> result = SettableFuture.create();
+    /** System.nanoTime of each request. */
+    private final List<Long> requestNanos = Lists.newArrayList();
+    private long deadlineMillis;
+    private boolean started;
+
+    Search(long key, MutableState state, long deadlineMillis) {
+      this.key = key;
+      this.state = state;
+      this.deadlineMillis = deadlineMillis;
+    }
+
+    @Override
+    public void run() {
+      long deadline;
+      synchronized (AiService.this) {
+        started = true;
+        deadline = deadlineMillis;
+      }
+      try {
+        AnytimeStrategy strategy = strategies.get();
+        strategy.startSearch(state);
+        if (System.currentTimeMillis() < deadline) {
+          strategy.search(deadline);
+        } else {
+          synchronized (AiService.this) {
+            expired++;
+          }
+        }
+        int decision = strategy.getBestDecision();
+        finish(this);
+        result.set(decision);
+      } catch (RuntimeException e) {
+        finish(this);
+        result.setException(e);
+      }
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final ThreadLocal<AnytimeStrategy> strategies;
+
+  /* Guarded by this */
+  private final Map<Long, Search> searches = Maps.newHashMap();
+  private final RunningStatistics latencies = new RunningStatistics();
+  private double maxLatencyMillis;
+  private long requests;
+  private long coalesced;
+  private long rejected;
+  private long expired;
+
+  /**
+   * @param threads The number of searches that run at the same time.
+   * @param queueCapacity The most searches waiting for a worker.
+   * @param strategySupplier Creates the strategy of each worker.
+   */
+  public AiService(int threads, int queueCapacity,
+      final Supplier<? extends AnytimeStrategy> strategySupplier) {
+    checkArgument(threads > 0 && queueCapacity > 0);
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity),
+        new ThreadFactoryBuilder().setNameFormat("ai-service-%d").setDaemon(true).build());
+    strategies = new ThreadLocal<AnytimeStrategy>() {
+      @Override
+      protected AnytimeStrategy initialValue() {
+        return strategySupplier.get();
+      }
+    };
+  }
+
+  /**
+   * Returns a service whose workers search with expectimax to the given depth and the evaluator
+   * weights of {@link AiStrategies}, sharing one transposition table.
+   */
+  public static AiService create(int threads, int queueCapacity, final int depth) {
+    return new AiService(threads, queueCapacity, new Supplier<AnytimeStrategy>() {
+      @Override
+      public AnytimeStrategy get() {
+        return new ExpectimaxStrategy(new WeightedEvaluator(AiStrategies.WEIGHTS), depth, true,
+            AiStrategies.WEIGHTED_TABLE.get());
+      }
+    });
+  }
+
+  /**
+   * Requests the decision (see {@link MutableState#getDecisions}) of the player to move in state,
+   * where the die has been rolled and the game is not over. The search stops at deadlineMillis
+   * (System.currentTimeMillis), or sooner if it is finished.
+   */
+  public ListenableFuture<Integer> request(AeroplaneChessState state, long deadlineMillis) {
+    long requestNanos = System.nanoTime();
+    MutableState mutableState = new MutableState();
+    mutableState.set(state);
+    long key = ColorSymmetry.getCanonicalHash(mutableState);
+    synchronized (this) {
+      requests++;
+      Search search = searches.get(key);
+      if (search != null && (!search.started || search.deadlineMillis <= deadlineMillis)) {
+        coalesced++;
+        search.deadlineMillis = Math.min(search.deadlineMillis, deadlineMillis);
+        search.requestNanos.add(requestNanos);
+        return search.result;
+      }
+      Search newSearch = new Search(key, mutableState, deadlineMillis);
+      newSearch.requestNanos.add(requestNanos);
+      try {
+        executor.execute(newSearch);
+      } catch (RejectedExecutionException e) {
+        rejected++;
+        return Futures.immediateFailedFuture(e);
+      }
+      if (search == null) {
+        searches.put(key, newSearch);
+      }
+      return newSearch.result;
+    }
+  }
+
+  /** Records the latencies of the requests of search, which no longer takes requests. */
+  private synchronized void finish(Search search) {
+    if (searches.get(search.key) == search) {
+      searches.remove(search.key);
+    }
+    long now = System.nanoTime();
+    for (long requestNanos : search.requestNanos) {
+      double latencyMillis = (now - requestNanos) / 1e6;
+      latencies.add(latencyMillis);
+      maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+    }
+  }
+
+  public synchronized Metrics getMetrics() {
+    return new Metrics(requests, coalesced, rejected, expired, executor.getQueue().size(),
+        executor.getActiveCount(), latencies.getMean(), maxLatencyMillis);
+  }
+
+  /** Stops the workers; requests that are not answered yet are cancelled. */
+  public synchronized void shutdown() {
+    for (Runnable queued : executor.shutdownNow()) {
+      ((Search) queued).result.cancel(false);
+    }
+    for (Search search : searches.values()) {
+      search.result.cancel(false);
+    }
+    searches.clear();
+  }
+}
@@ -0,0 +1,184 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.aeroplanechess.ai.AiStrategy;
+import org.aeroplanechess.ai.Difficulty;
+import org.aeroplanechess.ai.EndgameStrategy;
+import org.aeroplanechess.ai.EndgameTablebase;
+import org.aeroplanechess.ai.ExpectimaxStrategy;
+import org.aeroplanechess.ai.MctsStrategy;
+import org.aeroplanechess.ai.OpeningBook;
+import org.aeroplanechess.ai.OpeningBookStrategy;
+import org.aeroplanechess.ai.ProgressEvaluator;
+import org.aeroplanechess.ai.RandomStrategy;
+import org.aeroplanechess.ai.TranspositionTable;
+import org.aeroplanechess.ai.WeightedEvaluator;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * The AI strategies that the tools (tournaments, tuning, analytics) can refer to by name.
+ * Each supplier creates a new strategy instance, since strategies are not thread-safe.
+ */
+public final class AiStrategies {
+
+  private AiStrategies() { }  // Prevent instantiation/subclassing
+
+  private static final Map<String, Supplier<AiStrategy>> STRATEGIES = Maps.newLinkedHashMap();
+
+  /** Shared by the strategies that search on several threads. */
+  static final ForkJoinPool POOL = new ForkJoinPool();
+
+  /** Shared by all the searches that use the {@link ProgressEvaluator}. */
+  static final Supplier<TranspositionTable> PROGRESS_TABLE = Suppliers.memoize(
+      new Supplier<TranspositionTable>() {
+        @Override
+        public TranspositionTable get() {
+          return new TranspositionTable(64 << 20, TranspositionTable.SHARED_EPOCH_SEARCHES);
+        }
+      });
+
+  /**
+   * The endgame tablebase built by {@link EndgameTablebaseFile}, mapped when it is first used.
+   * The file is given by the system property aeroplanechess.endgame.
+   */
+  static final Supplier<EndgameTablebase> ENDGAME = Suppliers.memoize(
+      new Supplier<EndgameTablebase>() {
+        @Override
+        public EndgameTablebase get() {
+          File file = new File(System.getProperty("aeroplanechess.endgame", "endgame.tb"));
+          try {
+            return new EndgameTablebase(EndgameTablebaseFile.map(file));
+          } catch (IOException e) {
+            throw new IllegalStateException("Could not map the endgame tablebase " + file, e);
+          }
+        }
+      });
+
+  /**
+   * The opening book built by {@link OpeningBookFile}, mapped when it is first used. The file is
+   * given by the system property aeroplanechess.opening.
+   */
+  static final Supplier<OpeningBook> OPENING = Suppliers.memoize(
+      new Supplier<OpeningBook>() {
+        @Override
+        public OpeningBook get() {
+          File file = new File(System.getProperty("aeroplanechess.opening", "opening.book"));
+          try {
+            return new OpeningBook(OpeningBookFile.map(file));
+          } catch (IOException e) {
+            throw new IllegalStateException("Could not map the opening book " + file, e);
+          }
+        }
+      });
+
+  /**
+   * The weights of {@link WeightedEvaluator} tuned by {@link EvaluatorTuner}, read at startup from
+   * the file given by the system property aeroplanechess.weights (the default weights if there is
+   * no such file).
+   */
+  static final double[] WEIGHTS = readWeights();
+
+  /** Shared by all the searches that use the {@link WeightedEvaluator} with {@link #WEIGHTS}. */
+  static final Supplier<TranspositionTable> WEIGHTED_TABLE = Suppliers.memoize(
+      new Supplier<TranspositionTable>() {
+        @Override
+        public TranspositionTable get() {
+          return new TranspositionTable(64 << 20, TranspositionTable.SHARED_EPOCH_SEARCHES);
+        }
+      });
+
+  static {
+    register("random", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        return new RandomStrategy();
+      }
+    });
+    register("expectimax", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        return new ExpectimaxStrategy(new ProgressEvaluator(), 2, true, PROGRESS_TABLE.get());
+      }
+    });
+    register("expectimax-endgame", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        return new EndgameStrategy(ENDGAME.get(),
+            new ExpectimaxStrategy(new ProgressEvaluator(), 2, true, PROGRESS_TABLE.get()));
+      }
+    });
+    register("expectimax-weighted", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        return new ExpectimaxStrategy(
+            new WeightedEvaluator(WEIGHTS), 2, true, WEIGHTED_TABLE.get());
+      }
+    });
+    register("expectimax-book", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        return new OpeningBookStrategy(OPENING.get(), new ExpectimaxStrategy(
+            new WeightedEvaluator(WEIGHTS), 2, true, WEIGHTED_TABLE.get()));
+      }
+    });
+    for (final Difficulty difficulty : Difficulty.values()) {
+      register(difficulty.name().toLowerCase(), new Supplier<AiStrategy>() {
+        @Override
+        public AiStrategy get() {
+          return difficulty.createStrategy(WEIGHTS, new Random().nextLong());
+        }
+      });
+    }
+    register("mcts", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        Random random = new Random();
+        return new MctsStrategy(new RandomStrategy(random), random, 2000, 0);
+      }
+    });
+    register("mcts-parallel", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        return new ParallelMctsStrategy(
+            POOL, POOL.getParallelism(), 2000, 0, new Random().nextLong());
+      }
+    });
+  }
+
+  private static double[] readWeights() {
+    File file = new File(System.getProperty("aeroplanechess.weights", "weights.txt"));
+    if (!file.exists()) {
+      return WeightedEvaluator.DEFAULT_WEIGHTS.clone();
+    }
+    try {
+      return EvaluatorTuner.read(file).getWeights();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read the evaluator weights " + file, e);
+    }
+  }
+
+  public static synchronized void register(String name, Supplier<AiStrategy> supplier) {
+    STRATEGIES.put(name, supplier);
+  }
+
+  public static synchronized Supplier<AiStrategy> get(String name) {
+    checkArgument(STRATEGIES.containsKey(name), "Did not find AiStrategy=%s", name);
+    return STRATEGIES.get(name);
+  }
+
+  public static synchronized Set<String> getNames() {
+    return ImmutableSet.copyOf(STRATEGIES.keySet());
+  }
+}
@@ -0,0 +1,607 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.aeroplanechess.client.Piece.Zone;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Bitmap indexes over the moves of a {@link ColumnarArchive}, and queries on them. For every
+ * segment, FIRST.index has a {@link Bitmap} per {@link Event} of the moves (numbered in the
+ * segment) where the event happened; the events are derived from the columns by replaying the
+ * locations of the pieces of every game, as the logic moves them. A {@link Query} is a boolean
+ * combination of events, evaluated per segment with the operations of the bitmaps (the segments
+ * in parallel); its {@link Result} counts the moves that match, the games that have one, and the
+ * matching moves that were made by the winner of their game, e.g.:
+ *
+ * - "SHORTCUT & INTERSECTION_CAPTURE": the shortcuts that captured a piece on F02, the
+ * SHORTCUT_FINAL_INTERSECTION.
+ * - "THREE_SIXES & MULTIPLE": the third sixes that sent more than one piece back.
+ * - "FIRST_SIX & TAXI": the players who taxied on their first 6, and how often they won.
+ *
+ * A missing or stale index is built from its segment when the archive is opened.
+ *
+ * Usage: ArchiveIndex --archive=DIR [--threads=N] [QUERY ...], where a query combines the
+ * names of the events with &, |, ! and parentheses.
+ */
+public class ArchiveIndex {
+
+  static final String SUFFIX = ".index";
+  private static final String TEMPORARY = ".tmp";
+  private static final int MAGIC = 0x41434349;
+  private static final int FORMAT = 1;
+  private static final int SHORTCUT_FINAL_INTERSECTION = ColumnarArchive.encodeLocation("F02");
+
+  /** The events of a move that are indexed. */
+  public enum Event {
+    /** The move sent one or more pieces of the opponent back to the hangar. */
+    CAPTURE,
+    /** The move captured a piece on the SHORTCUT_FINAL_INTERSECTION, which shortcuts cross. */
+    INTERSECTION_CAPTURE,
+    TAXI,
+    STACK,
+    JUMP,
+    SHORTCUT,
+    /** A piece in the final stretch moved back, since the die overshot the end. */
+    BACKTRACK,
+    /** The third 6 in a row, which sends the pieces moved with the two before back. */
+    THREE_SIXES,
+    /** The move moved more than one piece (a stack). */
+    MULTIPLE,
+    /** The move was made with a 6. */
+    SIX,
+    /** The first move of its player in the game that was made with a 6. */
+    FIRST_SIX,
+    /** The first move of a player's turn. */
+    TURN_START,
+    /** The move was made by the winner of the game. */
+    WINNER;
+
+    private static final Event[] VALUES = values();
+  }
+
+  /** The counts of the moves that match a query. */
+  public static final class Result {
+    private final long moves;
+    private final long games;
+    private final long winnerMoves;
+
+    Result(long moves, long games, long winnerMoves) {
+      this.moves = moves;
+      this.games = games;
+      this.winnerMoves = winnerMoves;
+    }
+
+    public long getMoves() {
+      return moves;
+    }
+
+    /** The games with at least one move that matches. */
+    public long getGames() {
+      return games;
+    }
+
+    /** The moves that match and were made by the winner of their game. */
+    public long getWinnerMoves() {
+      return winnerMoves;
+    }
+
+    Result plus(Result other) {
+      return new Result(moves + other.moves, games + other.games,
+          winnerMoves + other.winnerMoves);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d moves in %d games, %.1f%% by the winner", moves, games,
+          100.0 * winnerMoves / Math.max(1, moves));
+    }
+  }
+
+  /** A boolean combination of events. */
+  public abstract static class Query {
+    abstract Bitmap evaluate(SegmentIndex index);
+
+    public static Query event(final Event event) {
+      return new Query() {
+        @Override
+        Bitmap evaluate(SegmentIndex index) {
+          return index.bitmaps.get(event);
+        }
+
+        @Override
+        public String toString() {
+          return event.name();
+        }
+      };
+    }
+
+    public static Query and(final Query left, final Query right) {
+      return new Query() {
+        @Override
+        Bitmap evaluate(SegmentIndex index) {
+          // a & !b without the complement of b
+          if (right instanceof Not) {
+            return left.evaluate(index).andNot(((Not) right).query.evaluate(index));
+          }
+          return left.evaluate(index).and(right.evaluate(index));
+        }
+
+        @Override
+        public String toString() {
+          return "(" + left + " & " + right + ")";
+        }
+      };
+    }
+
+    public static Query or(final Query left, final Query right) {
+      return new Query() {
+        @Override
+        Bitmap evaluate(SegmentIndex index) {
+          return left.evaluate(index).or(right.evaluate(index));
+        }
+
+        @Override
+        public String toString() {
+          return "(" + left + " | " + right + ")";
+        }
+      };
+    }
+
+    public static Query not(Query query) {
+      return new Not(query);
+    }
+
+    /** Parses a query such as "SHORTCUT & (CAPTURE | !SIX)"; & binds tighter than |. */
+    public static Query parse(String query) {
+      QueryParser parser = new QueryParser(query);
+      Query result = parser.parseOr();
+      checkArgument(parser.atEnd(), "Unexpected %s in %s", parser.rest(), query);
+      return result;
+    }
+  }
+
+  private static final class Not extends Query {
+    final Query query;
+
+    Not(Query query) {
+      this.query = query;
+    }
+
+    @Override
+    Bitmap evaluate(SegmentIndex index) {
+      return Bitmap.full(index.moves).andNot(query.evaluate(index));
+    }
+
+    @Override
+    public String toString() {
+      return "!" + query;
+    }
+  }
+
+  private static final class QueryParser {
+    private final String query;
+    private int position;
+
+    QueryParser(String query) {
+      this.query = query;
+    }
+
+    Query parseOr() {
+      Query query = parseAnd();
+      while (accept('|')) {
+        query = Query.or(query, parseAnd());
+      }
+      return query;
+    }
+
+    private Query parseAnd() {
+      Query query = parseNot();
+      while (accept('&')) {
+        query = Query.and(query, parseNot());
+      }
+      return query;
+    }
+
+    private Query parseNot() {
+      if (accept('!')) {
+        return Query.not(parseNot());
+      }
+      if (accept('(')) {
+        Query query = parseOr();
+        checkArgument(accept(')'), "Missing ) in %s", this.query);
+        return query;
+      }
+      skipSpaces();
+      int start = position;
+      while (position < query.length()
+          && (Character.isLetterOrDigit(query.charAt(position)) || query.charAt(position) == '_')) {
+        position++;
+      }
+      checkArgument(position > start, "Expected an event at %s in %s", rest(), query);
+      return Query.event(Event.valueOf(query.substring(start, position).toUpperCase()));
+    }
+
+    private boolean accept(char c) {
+      skipSpaces();
+      if (position < query.length() && query.charAt(position) == c) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void skipSpaces() {
+      while (position < query.length() && query.charAt(position) == ' ') {
+        position++;
+      }
+    }
+
+    boolean atEnd() {
+      skipSpaces();
+      return position == query.length();
+    }
+
+    String rest() {
+      return query.substring(position);
+    }
+  }
+
+  /** The bitmaps of the events of a segment, and the first move of every game. */
+  static final class SegmentIndex {
+    final int games;
+    final int moves;
+    final Map<Event, Bitmap> bitmaps;
+    /* gameStarts[game] is the first move of the game, and gameStarts[games] == moves */
+    final int[] gameStarts;
+
+    SegmentIndex(int games, int moves, Map<Event, Bitmap> bitmaps, int[] gameStarts) {
+      this.games = games;
+      this.moves = moves;
+      this.bitmaps = bitmaps;
+      this.gameStarts = gameStarts;
+    }
+
+    /** Derives the events of the moves of a segment. */
+    static SegmentIndex build(ColumnarArchive.Segment segment) throws IOException {
+      int moves = segment.getMoves();
+      Map<Event, Bitmap.Builder> builders = new EnumMap<Event, Bitmap.Builder>(Event.class);
+      for (Event event : Event.VALUES) {
+        builders.put(event, new Bitmap.Builder(moves));
+      }
+      int[] gameStarts = new int[segment.getGames() + 1];
+      int[] locations = new int[8];
+      ColumnarArchive.Cursor cursor = segment.cursor();
+      int move = 0;
+      // The events of a move are added after the next one, which tells if the turn passed
+      int pendingThreeSixes = -1;
+      while (cursor.nextGame()) {
+        gameStarts[cursor.getGameIndex()] = move;
+        for (int piece = 0; piece < locations.length; piece++) {
+          locations[piece] = hangar(piece);
+        }
+        boolean[] sixes = new boolean[2];
+        while (cursor.nextMove()) {
+          if (pendingThreeSixes >= 0 && cursor.isTurnStart()) {
+            builders.get(Event.THREE_SIXES).add(pendingThreeSixes);
+          }
+          pendingThreeSixes = -1;
+          int player = cursor.getPlayer();
+          int die = cursor.getDie();
+          Action action = cursor.getAction();
+          int moved = cursor.getMovedPieces();
+          int captured = cursor.getCapturedPieces();
+          int from = cursor.getFrom();
+          int to = cursor.getTo();
+          boolean intersection = false;
+          for (int piece = 0; piece < locations.length; piece++) {
+            if ((moved & (1 << piece)) != 0) {
+              locations[piece] =
+                  ColumnarArchive.getZone(to) == Zone.HANGAR ? hangar(piece) : to;
+            } else if ((captured & (1 << piece)) != 0) {
+              intersection |= locations[piece] == SHORTCUT_FINAL_INTERSECTION;
+              locations[piece] = hangar(piece);
+            }
+          }
+          add(builders, Event.CAPTURE, move, captured != 0);
+          add(builders, Event.INTERSECTION_CAPTURE, move, intersection);
+          add(builders, Event.TAXI, move, action == Action.TAXI);
+          add(builders, Event.STACK, move, action == Action.STACK);
+          add(builders, Event.JUMP, move, action == Action.JUMP);
+          add(builders, Event.SHORTCUT, move, action == Action.TAKE_SHORTCUT);
+          add(builders, Event.BACKTRACK, move, action == Action.MOVE && moved != 0
+              && isBacktrack(from, to));
+          add(builders, Event.MULTIPLE, move, Integer.bitCount(moved) > 1);
+          add(builders, Event.SIX, move, die == 6);
+          add(builders, Event.FIRST_SIX, move, die == 6 && !sixes[player]);
+          add(builders, Event.TURN_START, move, cursor.isTurnStart());
+          add(builders, Event.WINNER, move, player == cursor.getWinner());
+          if (die == 6) {
+            sixes[player] = true;
+          }
+          // Own pieces go back to the hangar when they finish too, but then the turn goes on
+          boolean lastMove = cursor.getMoveNumber() == cursor.getMoveCount() - 1;
+          if (die == 6 && action == Action.MOVE && moved != 0 && !lastMove
+              && ColumnarArchive.getZone(to) == Zone.HANGAR
+              && ColumnarArchive.getZone(from) != Zone.HANGAR) {
+            pendingThreeSixes = move;
+          }
+          move++;
+        }
+      }
+      gameStarts[segment.getGames()] = move;
+      checkState(move == moves, "%s moves in %s, expected %s", move, segment.getFile(), moves);
+      Map<Event, Bitmap> bitmaps = new EnumMap<Event, Bitmap>(Event.class);
+      for (Event event : Event.VALUES) {
+        bitmaps.put(event, builders.get(event).build());
+      }
+      return new SegmentIndex(segment.getGames(), moves, bitmaps, gameStarts);
+    }
+
+    private static int hangar(int piece) {
+      return Zone.HANGAR.ordinal() << 6 | piece % 4;
+    }
+
+    /** A move from the final stretch back to the track, or to an earlier space of it. */
+    private static boolean isBacktrack(int from, int to) {
+      return ColumnarArchive.getZone(from) == Zone.FINAL_STRETCH
+          && (ColumnarArchive.getZone(to) == Zone.TRACK
+              || ColumnarArchive.getZone(to) == Zone.FINAL_STRETCH
+                  && ColumnarArchive.getSpace(to) < ColumnarArchive.getSpace(from));
+    }
+
+    private static void add(Map<Event, Bitmap.Builder> builders, Event event, int move,
+        boolean happened) {
+      if (happened) {
+        builders.get(event).add(move);
+      }
+    }
+
+    Result count(Query query) {
+      Bitmap matches = query.evaluate(this);
+      long winnerMoves = matches.and(bitmaps.get(Event.WINNER)).cardinality();
+      long games = 0;
+      for (int move = matches.nextSetBit(0); move >= 0; ) {
+        int game = Arrays.binarySearch(gameStarts, move);
+        // Equal starts are games without moves, before the game of the move
+        game = game >= 0 ? game : -game - 2;
+        while (gameStarts[game + 1] <= move) {
+          game++;
+        }
+        games++;
+        move = gameStarts[game + 1] < moves ? matches.nextSetBit(gameStarts[game + 1]) : -1;
+      }
+      return new Result(matches.cardinality(), games, winnerMoves);
+    }
+
+    void write(File file) throws IOException {
+      File temporary = new File(file.getPath() + TEMPORARY);
+      try (FileOutputStream stream = new FileOutputStream(temporary)) {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeInt(games);
+        out.writeInt(moves);
+        for (int start : gameStarts) {
+          out.writeInt(start);
+        }
+        out.writeInt(Event.VALUES.length);
+        for (Event event : Event.VALUES) {
+          out.writeUTF(event.name());
+          bitmaps.get(event).write(out);
+        }
+        out.flush();
+        stream.getFD().sync();
+      }
+      if (!temporary.renameTo(file)) {
+        throw new IOException("Cannot rename " + temporary);
+      }
+    }
+
+    /** Returns null if the file is not the index of the segment with all the events. */
+    static SegmentIndex read(File file, ColumnarArchive.Segment segment) throws IOException {
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+          return null;
+        }
+        int games = in.readInt();
+        int moves = in.readInt();
+        if (games != segment.getGames() || moves != segment.getMoves()) {
+          return null;
+        }
+        int[] gameStarts = new int[games + 1];
+        for (int i = 0; i < gameStarts.length; i++) {
+          gameStarts[i] = in.readInt();
+        }
+        Map<Event, Bitmap> bitmaps = new EnumMap<Event, Bitmap>(Event.class);
+        for (int count = in.readInt(); count > 0; count--) {
+          String name = in.readUTF();
+          Bitmap bitmap = Bitmap.read(in);
+          for (Event event : Event.VALUES) {
+            if (event.name().equals(name)) {
+              bitmaps.put(event, bitmap);
+            }
+          }
+        }
+        return bitmaps.size() == Event.VALUES.length
+            ? new SegmentIndex(games, moves, bitmaps, gameStarts) : null;
+      }
+    }
+
+    int getBytes() {
+      int bytes = 16 + 4 * gameStarts.length;
+      for (Bitmap bitmap : bitmaps.values()) {
+        bytes += bitmap.getBytes();
+      }
+      return bytes;
+    }
+  }
+
+  private final List<SegmentIndex> segments;
+  private final ExecutorService executor;
+
+  private ArchiveIndex(List<SegmentIndex> segments, ExecutorService executor) {
+    this.segments = segments;
+    this.executor = executor;
+  }
+
+  /**
+   * Opens the indexes of the segments of an archive, building (and writing) those that are
+   * missing, on threads threads, which then run the queries.
+   */
+  public static ArchiveIndex open(File directory, int threads) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Callable<SegmentIndex>> loads = Lists.newArrayList();
+    for (final File file : ColumnarArchive.list(directory)) {
+      loads.add(new Callable<SegmentIndex>() {
+        @Override
+        public SegmentIndex call() throws IOException {
+          ColumnarArchive.Segment segment = ColumnarArchive.Segment.open(file);
+          String name = file.getName();
+          File indexFile = new File(file.getParentFile(),
+              name.substring(0, name.length() - ColumnarArchive.SUFFIX.length()) + SUFFIX);
+          SegmentIndex index = indexFile.exists() ? SegmentIndex.read(indexFile, segment) : null;
+          if (index == null) {
+            index = SegmentIndex.build(segment);
+            index.write(indexFile);
+          }
+          return index;
+        }
+      });
+    }
+    try {
+      return new ArchiveIndex(getAll(executor, loads), executor);
+    } catch (IOException | RuntimeException e) {
+      executor.shutdown();
+      throw e;
+    }
+  }
+
+  public Result query(final Query query) throws IOException {
+    List<Callable<Result>> counts = Lists.newArrayList();
+    for (final SegmentIndex segment : segments) {
+      counts.add(new Callable<Result>() {
+        @Override
+        public Result call() {
+          return segment.count(query);
+        }
+      });
+    }
+    Result result = new Result(0, 0, 0);
+    for (Result segmentResult : getAll(executor, counts)) {
+      result = result.plus(segmentResult);
+    }
+    return result;
+  }
+
+  public long getGames() {
+    long games = 0;
+    for (SegmentIndex segment : segments) {
+      games += segment.games;
+    }
+    return games;
+  }
+
+  public long getMoves() {
+    long moves = 0;
+    for (SegmentIndex segment : segments) {
+      moves += segment.moves;
+    }
+    return moves;
+  }
+
+  /** The bytes of the index files. */
+  public long getBytes() {
+    long bytes = 0;
+    for (SegmentIndex segment : segments) {
+      bytes += segment.getBytes();
+    }
+    return bytes;
+  }
+
+  public void close() {
+    executor.shutdown();
+  }
+
+  private static <T> List<T> getAll(ExecutorService executor, List<Callable<T>> tasks)
+      throws IOException {
+    List<T> results = Lists.newArrayListWithCapacity(tasks.size());
+    try {
+      for (Future<T> future : executor.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+
+  public static void main(String[] args) throws IOException {
+    File directory = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    List<String> queries = Lists.newArrayList();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--archive=")) {
+        directory = new File(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else {
+        queries.add(arg);
+      }
+    }
+    if (directory == null) {
+      System.err.println("Usage: ArchiveIndex --archive=DIR [--threads=N] [QUERY ...]");
+      return;
+    }
+    if (queries.isEmpty()) {
+      queries = ImmutableList.of("SHORTCUT & INTERSECTION_CAPTURE", "THREE_SIXES & MULTIPLE",
+          "FIRST_SIX & TAXI", "FIRST_SIX & !TAXI", "BACKTRACK | JUMP & CAPTURE");
+    }
+    long start = System.nanoTime();
+    ArchiveIndex index = open(directory, threads);
+    System.out.println(String.format("Opened the indexes of %d games, %d moves in %.2f s: %.2f "
+        + "bytes per move", index.getGames(), index.getMoves(), (System.nanoTime() - start) / 1e9,
+        (double) index.getBytes() / Math.max(1, index.getMoves())));
+    try {
+      for (String text : queries) {
+        Query query = Query.parse(text);
+        start = System.nanoTime();
+        Result result = index.query(query);
+        System.out.println(String.format("%s: %s (%.1f ms)", query, result,
+            (System.nanoTime() - start) / 1e6));
+      }
+    } finally {
+      index.close();
+    }
+  }
+}
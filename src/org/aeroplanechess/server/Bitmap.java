@@ -0,0 +1,361 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An immutable compressed set of the ints of [0, size), for the indexes of an
+ * {@link ArchiveIndex}: the ints are split into chunks of 2^16, and each chunk is empty, a sorted
+ * array of its values (when it has at most ARRAY_MAX of them) or a bitmap of 1024 longs, so a
+ * rare event costs 2 bytes per value and a frequent one at most a bit per int. The boolean
+ * operations work chunk by chunk and word by word on the bitmaps.
+ */
+final class Bitmap {
+
+  private static final int CHUNK_BITS = 16;
+  static final int CHUNK = 1 << CHUNK_BITS;
+  private static final int WORDS = CHUNK / 64;
+  static final int ARRAY_MAX = 4096;
+  private static final byte EMPTY = 0;
+  private static final byte ARRAY = 1;
+  private static final byte BITS = 2;
+
+  private final int size;
+  /* By chunk: null, a char[] of the low 16 bits of the values, or a long[WORDS] */
+  private final Object[] chunks;
+  private final int cardinality;
+
+  private Bitmap(int size, Object[] chunks) {
+    this.size = size;
+    this.chunks = chunks;
+    int cardinality = 0;
+    for (Object chunk : chunks) {
+      cardinality += cardinality(chunk);
+    }
+    this.cardinality = cardinality;
+  }
+
+  /** Adds increasing values. */
+  static final class Builder {
+    private final int size;
+    private final Object[] chunks;
+    private int last = -1;
+    private int chunk = -1;
+    private char[] values = new char[ARRAY_MAX];
+    private long[] words;
+    private int count;
+
+    Builder(int size) {
+      this.size = size;
+      chunks = new Object[chunkCount(size)];
+    }
+
+    void add(int value) {
+      checkArgument(value > last && value < size, "%s after %s", value, last);
+      last = value;
+      int valueChunk = value >>> CHUNK_BITS;
+      if (valueChunk != chunk) {
+        flush();
+        chunk = valueChunk;
+      }
+      char low = (char) value;
+      if (words != null) {
+        words[low >>> 6] |= 1L << low;
+      } else if (count < ARRAY_MAX) {
+        values[count] = low;
+      } else {
+        words = toWords(values, count);
+        words[low >>> 6] |= 1L << low;
+      }
+      count++;
+    }
+
+    Bitmap build() {
+      flush();
+      return new Bitmap(size, chunks);
+    }
+
+    private void flush() {
+      if (count > 0) {
+        chunks[chunk] = words != null ? words : Arrays.copyOf(values, count);
+      }
+      words = null;
+      count = 0;
+    }
+  }
+
+  /** The set of all the ints of [0, size). */
+  static Bitmap full(int size) {
+    Object[] chunks = new Object[chunkCount(size)];
+    for (int i = 0; i < chunks.length; i++) {
+      long[] words = new long[WORDS];
+      int bits = Math.min(CHUNK, size - i * CHUNK);
+      Arrays.fill(words, 0, bits / 64, -1L);
+      if (bits % 64 != 0) {
+        words[bits / 64] = (1L << (bits % 64)) - 1;
+      }
+      chunks[i] = compact(words);
+    }
+    return new Bitmap(size, chunks);
+  }
+
+  int size() {
+    return size;
+  }
+
+  int cardinality() {
+    return cardinality;
+  }
+
+  boolean contains(int value) {
+    Object chunk = chunks[value >>> CHUNK_BITS];
+    if (chunk instanceof long[]) {
+      return (((long[]) chunk)[(char) value >>> 6] & (1L << value)) != 0;
+    }
+    return chunk != null && Arrays.binarySearch((char[]) chunk, (char) value) >= 0;
+  }
+
+  /** Returns the first value at or after from, or -1. */
+  int nextSetBit(int from) {
+    for (int i = from >>> CHUNK_BITS; i < chunks.length; i++) {
+      Object chunk = chunks[i];
+      int low = i == from >>> CHUNK_BITS ? (char) from : 0;
+      if (chunk instanceof long[]) {
+        long[] words = (long[]) chunk;
+        int word = low >>> 6;
+        long bits = words[word] & (-1L << low);
+        while (true) {
+          if (bits != 0) {
+            return i << CHUNK_BITS | word << 6 | Long.numberOfTrailingZeros(bits);
+          }
+          if (++word == WORDS) {
+            break;
+          }
+          bits = words[word];
+        }
+      } else if (chunk != null) {
+        char[] values = (char[]) chunk;
+        int index = Arrays.binarySearch(values, (char) low);
+        index = index >= 0 ? index : -index - 1;
+        if (index < values.length) {
+          return i << CHUNK_BITS | values[index];
+        }
+      }
+    }
+    return -1;
+  }
+
+  Bitmap and(Bitmap other) {
+    checkArgument(size == other.size);
+    Object[] result = new Object[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      Object a = chunks[i];
+      Object b = other.chunks[i];
+      if (a == null || b == null) {
+        continue;
+      }
+      if (a instanceof long[] && b instanceof long[]) {
+        long[] words = new long[WORDS];
+        for (int word = 0; word < WORDS; word++) {
+          words[word] = ((long[]) a)[word] & ((long[]) b)[word];
+        }
+        result[i] = compact(words);
+      } else if (a instanceof long[]) {
+        result[i] = filter((char[]) b, (long[]) a, true);
+      } else if (b instanceof long[]) {
+        result[i] = filter((char[]) a, (long[]) b, true);
+      } else {
+        result[i] = intersect((char[]) a, (char[]) b);
+      }
+    }
+    return new Bitmap(size, result);
+  }
+
+  Bitmap or(Bitmap other) {
+    checkArgument(size == other.size);
+    Object[] result = new Object[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      Object a = chunks[i];
+      Object b = other.chunks[i];
+      if (a == null || b == null) {
+        result[i] = a == null ? b : a;
+        continue;
+      }
+      long[] words = a instanceof long[] ? ((long[]) a).clone() : toWords((char[]) a);
+      if (b instanceof long[]) {
+        for (int word = 0; word < WORDS; word++) {
+          words[word] |= ((long[]) b)[word];
+        }
+      } else {
+        for (char value : (char[]) b) {
+          words[value >>> 6] |= 1L << value;
+        }
+      }
+      result[i] = compact(words);
+    }
+    return new Bitmap(size, result);
+  }
+
+  Bitmap andNot(Bitmap other) {
+    checkArgument(size == other.size);
+    Object[] result = new Object[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      Object a = chunks[i];
+      Object b = other.chunks[i];
+      if (a == null || b == null) {
+        result[i] = a;
+      } else if (a instanceof char[]) {
+        long[] words = b instanceof long[] ? (long[]) b : toWords((char[]) b);
+        result[i] = filter((char[]) a, words, false);
+      } else {
+        long[] words = ((long[]) a).clone();
+        if (b instanceof long[]) {
+          for (int word = 0; word < WORDS; word++) {
+            words[word] &= ~((long[]) b)[word];
+          }
+        } else {
+          for (char value : (char[]) b) {
+            words[value >>> 6] &= ~(1L << value);
+          }
+        }
+        result[i] = compact(words);
+      }
+    }
+    return new Bitmap(size, result);
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(size);
+    for (Object chunk : chunks) {
+      if (chunk == null) {
+        out.writeByte(EMPTY);
+      } else if (chunk instanceof char[]) {
+        char[] values = (char[]) chunk;
+        out.writeByte(ARRAY);
+        out.writeShort(values.length - 1);
+        for (char value : values) {
+          out.writeChar(value);
+        }
+      } else {
+        out.writeByte(BITS);
+        for (long word : (long[]) chunk) {
+          out.writeLong(word);
+        }
+      }
+    }
+  }
+
+  static Bitmap read(DataInput in) throws IOException {
+    int size = in.readInt();
+    Object[] chunks = new Object[chunkCount(size)];
+    for (int i = 0; i < chunks.length; i++) {
+      byte type = in.readByte();
+      if (type == ARRAY) {
+        char[] values = new char[in.readUnsignedShort() + 1];
+        for (int j = 0; j < values.length; j++) {
+          values[j] = in.readChar();
+        }
+        chunks[i] = values;
+      } else if (type == BITS) {
+        long[] words = new long[WORDS];
+        for (int j = 0; j < WORDS; j++) {
+          words[j] = in.readLong();
+        }
+        chunks[i] = words;
+      } else if (type != EMPTY) {
+        throw new IOException("Unknown chunk type " + type);
+      }
+    }
+    return new Bitmap(size, chunks);
+  }
+
+  /** The bytes that write writes. */
+  int getBytes() {
+    int bytes = 4;
+    for (Object chunk : chunks) {
+      bytes += 1 + (chunk == null ? 0 : chunk instanceof char[]
+          ? 2 + 2 * ((char[]) chunk).length : 8 * WORDS);
+    }
+    return bytes;
+  }
+
+  private static int chunkCount(int size) {
+    return (size + CHUNK - 1) >>> CHUNK_BITS;
+  }
+
+  private static int cardinality(Object chunk) {
+    if (chunk instanceof char[]) {
+      return ((char[]) chunk).length;
+    }
+    int cardinality = 0;
+    if (chunk != null) {
+      for (long word : (long[]) chunk) {
+        cardinality += Long.bitCount(word);
+      }
+    }
+    return cardinality;
+  }
+
+  private static long[] toWords(char[] values) {
+    return toWords(values, values.length);
+  }
+
+  private static long[] toWords(char[] values, int count) {
+    long[] words = new long[WORDS];
+    for (int i = 0; i < count; i++) {
+      words[values[i] >>> 6] |= 1L << values[i];
+    }
+    return words;
+  }
+
+  /** Returns null, an array or the words, whichever the chunk should be. */
+  private static Object compact(long[] words) {
+    int cardinality = cardinality(words);
+    if (cardinality == 0) {
+      return null;
+    } else if (cardinality > ARRAY_MAX) {
+      return words;
+    }
+    char[] values = new char[cardinality];
+    int count = 0;
+    for (int word = 0; word < WORDS; word++) {
+      for (long bits = words[word]; bits != 0; bits &= bits - 1) {
+        values[count++] = (char) (word << 6 | Long.numberOfTrailingZeros(bits));
+      }
+    }
+    return values;
+  }
+
+  /** The values that are (or, if !keep, are not) in words. */
+  private static Object filter(char[] values, long[] words, boolean keep) {
+    char[] result = new char[values.length];
+    int count = 0;
+    for (char value : values) {
+      if (((words[value >>> 6] & (1L << value)) != 0) == keep) {
+        result[count++] = value;
+      }
+    }
+    return count == 0 ? null : Arrays.copyOf(result, count);
+  }
+
+  private static Object intersect(char[] a, char[] b) {
+    char[] result = new char[Math.min(a.length, b.length)];
+    int count = 0;
+    for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result[count++] = a[i];
+        i++;
+        j++;
+      }
+    }
+    return count == 0 ? null : Arrays.copyOf(result, count);
+  }
+}
@@ -0,0 +1,264 @@
+package org.aeroplanechess.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Measures a {@link BroadcastServer}: every match has the given number of spectators, connected
+ * over local sockets, while a thread per match plays it with a {@link RandomPlayer}, a move every
+ * --pause milliseconds. A spectator watches --watch matches in a row, starting with its own. The
+ * spectators are read by one thread; --slow of them per match have a small socket buffer and are
+ * read only every --slowRead milliseconds, so their sockets fill up.
+ *
+ * The benchmark reports the frames the matches encoded, the frames the server sent, coalesced
+ * and the writes it made with the given flush --window, and checks that every spectator received
+ * the last version of the matches it watches.
+ *
+ * Usage: BroadcastBenchmark [--matches=N] [--spectators=N] [--watch=N] [--slow=N]
+ * [--pause=MILLIS] [--slowRead=MILLIS] [--window=MILLIS] [--seed=S]
+ */
+public class BroadcastBenchmark {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  /** A spectator's socket, and the last version it received of every match it watches. */
+  private static class Spectator {
+    final List<Match> matches;
+    final SocketChannel channel;
+    final boolean slow;
+    final StringBuilder line = new StringBuilder();
+    final Map<String, Integer> lastVersions = Maps.newHashMap();
+    long nextReadMillis;
+    long frames;
+
+    Spectator(List<Match> matches, SocketChannel channel, boolean slow) {
+      this.matches = matches;
+      this.channel = channel;
+      this.slow = slow;
+    }
+
+    boolean isCaughtUp() {
+      for (Match match : matches) {
+        Integer version = lastVersions.get(match.getId());
+        if (version == null || version != match.getVersion()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void consume(ByteBuffer buffer) {
+      String text = new String(buffer.array(), 0, buffer.position(), Charsets.UTF_8);
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        if (c != '\n') {
+          line.append(c);
+          continue;
+        }
+        frames++;
+        // {"matchId":"ID","version":N,"message":...}
+        int start = "{\"matchId\":\"".length();
+        String matchId = line.substring(start, line.indexOf("\"", start));
+        start = line.indexOf("\"version\":") + "\"version\":".length();
+        lastVersions.put(matchId, Integer.parseInt(line.substring(start,
+            line.indexOf(",", start))));
+        line.setLength(0);
+      }
+    }
+  }
+
+  /** Plays a match to its end, pausing between the moves. */
+  private static void play(GameServer server, Match match, Random random, long pauseMillis)
+      throws InterruptedException {
+    RandomPlayer player = new RandomPlayer(random);
+    while (!match.isOver()) {
+      int version = match.getVersion();
+      List<Operation> move = null;
+      String playerId = null;
+      try {
+        for (String id : PLAYER_IDS) {
+          move = player.chooseMove(match.getUpdateUI(id));
+          if (move != null) {
+            playerId = id;
+            break;
+          }
+        }
+      } catch (RuntimeException e) {
+        // The presenter refused a choice it offered, so the match cannot go on
+        server.abandon(match);
+        return;
+      }
+      if (move == null) {
+        return;
+      }
+      match.makeMove(playerId, version, new MakeMove(move));
+      Thread.sleep(pauseMillis);
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int matchCount = 8;
+    int spectatorsPerMatch = 200;
+    int watch = 1;
+    int slowPerMatch = 10;
+    long pauseMillis = 50;
+    long slowReadMillis = 200;
+    long windowMillis = BroadcastServer.FLUSH_WINDOW_MILLIS;
+    long seed = System.nanoTime();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--matches=")) {
+        matchCount = Integer.parseInt(value);
+      } else if (arg.startsWith("--spectators=")) {
+        spectatorsPerMatch = Integer.parseInt(value);
+      } else if (arg.startsWith("--watch=")) {
+        watch = Integer.parseInt(value);
+      } else if (arg.startsWith("--slow=")) {
+        slowPerMatch = Integer.parseInt(value);
+      } else if (arg.startsWith("--pause=")) {
+        pauseMillis = Long.parseLong(value);
+      } else if (arg.startsWith("--slowRead=")) {
+        slowReadMillis = Long.parseLong(value);
+      } else if (arg.startsWith("--window=")) {
+        windowMillis = Long.parseLong(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      }
+    }
+
+    final GameServer server = new GameServer();
+    BroadcastServer broadcastServer = new BroadcastServer(server, 0, windowMillis);
+    broadcastServer.start();
+    InetSocketAddress address = new InetSocketAddress("localhost", broadcastServer.getPort());
+    Selector selector = Selector.open();
+    List<Match> matches = Lists.newArrayList();
+    List<Spectator> spectators = Lists.newArrayList();
+    for (int i = 0; i < matchCount; i++) {
+      matches.add(server.createMatch(PLAYER_IDS));
+    }
+    for (int i = 0; i < matchCount; i++) {
+      List<Match> watched = Lists.newArrayList();
+      StringBuilder commands = new StringBuilder();
+      for (int j = 0; j < Math.min(watch, matchCount); j++) {
+        Match match = matches.get((i + j) % matchCount);
+        watched.add(match);
+        commands.append("WATCH ").append(match.getId()).append('\n');
+      }
+      for (int j = 0; j < spectatorsPerMatch; j++) {
+        boolean slow = j < slowPerMatch;
+        SocketChannel channel = SocketChannel.open();
+        if (slow) {
+          channel.socket().setReceiveBufferSize(4096);
+        }
+        channel.connect(address);
+        channel.write(ByteBuffer.wrap(commands.toString().getBytes(Charsets.UTF_8)));
+        channel.configureBlocking(false);
+        Spectator spectator = new Spectator(watched, channel, slow);
+        channel.register(selector, slow ? 0 : SelectionKey.OP_READ, spectator);
+        spectators.add(spectator);
+      }
+    }
+
+    final CountDownLatch done = new CountDownLatch(matchCount);
+    Random seeds = new Random(seed);
+    long start = System.nanoTime();
+    for (final Match match : matches) {
+      final Random random = new Random(seeds.nextLong());
+      final long pause = pauseMillis;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            play(server, match, random, pause);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "broadcast-benchmark-" + match.getId());
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    // Reads until every spectator has the last version of its match
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    ByteBuffer slowBuffer = ByteBuffer.allocate(4096);
+    long deadline = Long.MAX_VALUE;
+    while (System.currentTimeMillis() < deadline) {
+      selector.select(10);
+      for (SelectionKey key : selector.selectedKeys()) {
+        buffer.clear();
+        Spectator spectator = (Spectator) key.attachment();
+        if (spectator.channel.read(buffer) > 0) {
+          spectator.consume(buffer);
+        }
+      }
+      selector.selectedKeys().clear();
+      long now = System.currentTimeMillis();
+      boolean caughtUp = true;
+      for (Spectator spectator : spectators) {
+        if (spectator.slow && now >= spectator.nextReadMillis) {
+          slowBuffer.clear();
+          if (spectator.channel.read(slowBuffer) > 0) {
+            spectator.consume(slowBuffer);
+          }
+          spectator.nextReadMillis = now + slowReadMillis;
+        }
+        caughtUp &= spectator.isCaughtUp();
+      }
+      if (done.getCount() == 0 && deadline == Long.MAX_VALUE) {
+        deadline = now + 30000;
+      }
+      if (done.getCount() == 0 && caughtUp) {
+        break;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    GameServer.Metrics metrics = server.getMetrics();
+    BroadcastServer.Metrics broadcastMetrics = broadcastServer.getMetrics();
+
+    Map<Boolean, long[]> received = Maps.newHashMap();
+    received.put(true, new long[2]);
+    received.put(false, new long[2]);
+    long behind = 0;
+    for (Spectator spectator : spectators) {
+      long[] counts = received.get(spectator.slow);
+      counts[0]++;
+      counts[1] += spectator.frames;
+      if (!spectator.isCaughtUp()) {
+        behind++;
+      }
+      spectator.channel.close();
+    }
+    System.out.println(String.format("%d matches with %d spectators each (%d slow, watching %d "
+        + "matches), %d ms window, %.1f s: %d moves, %d frames encoded, %s", matchCount,
+        spectatorsPerMatch, slowPerMatch, watch, windowMillis, seconds, metrics.getMoves(),
+        metrics.getEncodedFrames(), broadcastMetrics));
+    for (boolean slow : new boolean[] {false, true}) {
+      long[] counts = received.get(slow);
+      System.out.println(String.format("%s spectators received %.1f frames each", slow ? "Slow"
+          : "Fast", (double) counts[1] / Math.max(1, counts[0])));
+    }
+    System.out.println(String.format("%d spectators missed the last version", behind));
+    selector.close();
+    broadcastServer.stop();
+    server.shutdown();
+  }
+}
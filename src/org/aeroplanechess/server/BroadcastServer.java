@@ -0,0 +1,499 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.game_api.GameApi;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Pushes the updates of the matches of a {@link GameServer} to sockets on the local machine, for
+ * spectators and players that watch matches instead of polling them.
+ *
+ * A client connects and sends lines "WATCH matchId [playerId]", without the playerId for a
+ * spectator, and "UNWATCH matchId", and receives the updates of the matches it watches as lines
+ * of JSON (see {@link UpdateFrame}), starting with the current one. The client is subscribed to
+ * the matches (see {@link Match#subscribe}), so an update is encoded once for all the spectators
+ * of a match, and the same bytes are written to all of their sockets.
+ *
+ * All the sockets are served by one thread with a selector, and every client has an outbound
+ * pipeline: the match's thread only hands a frame to the client, and the selector writes the
+ * client's frames when its socket can take them.
+ *
+ * - A client's frames wait the flush window after the first one, and then are written together
+ * with one gathering write, so a burst of moves, such as an AI's moves in a row, costs one write.
+ * - Since a frame has the whole state of a match, a newer frame of a match replaces the one that
+ * waits, so a client has at most one frame per match queued, and a slow client receives the
+ * latest state when its socket drains, rather than the versions it missed.
+ * - While a client's socket is full, the client is blocked: its frames are only coalesced, and
+ * its commands are not read until its socket drains, so a slow client slows down its own sender.
+ * The metrics report the frames queued and the clients blocked.
+ */
+public class BroadcastServer {
+
+  /** The time a client's first frame waits for the frames after it. */
+  public static final long FLUSH_WINDOW_MILLIS = 2;
+
+  /** The matches a client may watch. */
+  public static final int MAX_WATCHES = 64;
+
+  /**
+   * The socket buffer of a client, kept small so that the backlog of a slow client is in its
+   * pipeline, where it is coalesced to the latest state, rather than in the kernel.
+   */
+  private static final int SEND_BUFFER_BYTES = 32 * 1024;
+
+  private static final int MAX_COMMAND_BYTES = 256;
+
+  /**
+   * The time the server stops accepting after a failed accept, e.g. with no file descriptor
+   * left, rather than retrying at once while the connection waits in the backlog.
+   */
+  static final long ACCEPT_PAUSE_MILLIS = 100;
+
+  /** A snapshot of the counters of the server. */
+  public static class Metrics {
+    private final int clients;
+    private final int blockedClients;
+    private final int queuedFrames;
+    private final long sentFrames;
+    private final long coalescedFrames;
+    private final long writes;
+    private final long sentBytes;
+
+    Metrics(int clients, int blockedClients, int queuedFrames, long sentFrames,
+        long coalescedFrames, long writes, long sentBytes) {
+      this.clients = clients;
+      this.blockedClients = blockedClients;
+      this.queuedFrames = queuedFrames;
+      this.sentFrames = sentFrames;
+      this.coalescedFrames = coalescedFrames;
+      this.writes = writes;
+      this.sentBytes = sentBytes;
+    }
+
+    public int getClients() {
+      return clients;
+    }
+
+    /** Clients whose socket is full. */
+    public int getBlockedClients() {
+      return blockedClients;
+    }
+
+    /** Frames waiting to be written, of all the clients. */
+    public int getQueuedFrames() {
+      return queuedFrames;
+    }
+
+    public long getSentFrames() {
+      return sentFrames;
+    }
+
+    /** Frames that were replaced by a newer frame of their match while they waited. */
+    public long getCoalescedFrames() {
+      return coalescedFrames;
+    }
+
+    /** Writes to the sockets; a write may have several frames. */
+    public long getWrites() {
+      return writes;
+    }
+
+    public long getSentBytes() {
+      return sentBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d clients (%d blocked), %d frames queued, %d frames sent in %d writes "
+          + "(%d MB), %d coalesced", clients, blockedClients, queuedFrames, sentFrames, writes,
+          sentBytes >> 20, coalescedFrames);
+    }
+  }
+
+  /** A socket and its outbound pipeline. */
+  private class Client implements Match.Subscriber {
+    private final SocketChannel channel;
+    private final ByteBuffer command = ByteBuffer.allocate(MAX_COMMAND_BYTES);
+    private SelectionKey key;
+    /* Confined to the selector's thread */
+    private final Map<String, Match> matches = Maps.newHashMap();
+    private final Map<String, String> playerIds = Maps.newHashMap();
+    private ByteBuffer[] writing = new ByteBuffer[MAX_WATCHES];
+    private int writingStart;
+    private int writingEnd;
+    private boolean blocked;
+    private boolean closed;
+
+    /* Guarded by this */
+    private final Map<String, UpdateFrame> queue = Maps.newLinkedHashMap();
+    private boolean flushScheduled;
+    private long flushNanos;
+
+    Client(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void offer(UpdateFrame frame) {
+      boolean schedule = false;
+      synchronized (this) {
+        if (queue.put(frame.getMatchId(), frame) == null) {
+          queuedFrames.incrementAndGet();
+        } else {
+          coalescedFrames.incrementAndGet();
+        }
+        if (!flushScheduled) {
+          flushScheduled = true;
+          flushNanos = System.nanoTime() + windowNanos;
+          schedule = true;
+        }
+      }
+      if (schedule) {
+        flushes.add(this);
+        selector.wakeup();
+      }
+    }
+
+    synchronized long getFlushNanos() {
+      return flushNanos;
+    }
+
+    /** Writes the queued frames until the socket is full. */
+    void flush() throws IOException {
+      while (true) {
+        if (writingStart == writingEnd) {
+          synchronized (this) {
+            if (queue.isEmpty()) {
+              flushScheduled = false;
+              setBlocked(false);
+              return;
+            }
+            // A match's thread may still offer a frame after the client unwatched it, so the
+            // queue may hold more matches than the client watches
+            if (writing.length < queue.size()) {
+              writing = new ByteBuffer[queue.size()];
+            }
+            writingStart = 0;
+            writingEnd = 0;
+            for (UpdateFrame frame : queue.values()) {
+              if (matches.containsKey(frame.getMatchId())) {
+                writing[writingEnd++] = frame.getBytes();
+              }
+            }
+            queuedFrames.addAndGet(-queue.size());
+            queue.clear();
+          }
+          if (writingEnd == 0) {
+            continue;
+          }
+        }
+        sentBytes.addAndGet(channel.write(writing, writingStart, writingEnd - writingStart));
+        writes.incrementAndGet();
+        while (writingStart < writingEnd && !writing[writingStart].hasRemaining()) {
+          writing[writingStart++] = null;
+          sentFrames.incrementAndGet();
+        }
+        if (writingStart < writingEnd) {
+          setBlocked(true);
+          return;
+        }
+      }
+    }
+
+    /** While the socket is full, waits for it to drain, and reads no commands. */
+    private void setBlocked(boolean blocked) {
+      if (blocked != this.blocked) {
+        this.blocked = blocked;
+        blockedClients.addAndGet(blocked ? 1 : -1);
+        key.interestOps(blocked ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      }
+    }
+
+    /** Reads the commands, and returns false when the client closed or sent a bad one. */
+    boolean read() throws IOException {
+      if (channel.read(command) < 0) {
+        return false;
+      }
+      int start = 0;
+      for (int i = 0; i < command.position(); i++) {
+        if (command.get(i) == '\n') {
+          if (!run(new String(command.array(), start, i - start, Charsets.UTF_8).trim())) {
+            return false;
+          }
+          start = i + 1;
+        }
+      }
+      if (start == 0 && !command.hasRemaining()) {
+        return refuse("The command is too long");
+      }
+      command.limit(command.position()).position(start);
+      command.compact();
+      return true;
+    }
+
+    private boolean run(String line) throws IOException {
+      String[] words = line.split(" +");
+      if (words.length >= 2 && words.length <= 3 && words[0].equals("WATCH")) {
+        Match match = gameServer.getMatch(words[1]);
+        if (match == null) {
+          return refuse("No live match " + words[1]);
+        }
+        if (!matches.containsKey(match.getId()) && matches.size() == MAX_WATCHES) {
+          return refuse("At most " + MAX_WATCHES + " matches may be watched");
+        }
+        unwatch(match.getId());
+        String playerId = words.length == 3 ? words[2] : GameApi.VIEWER_ID;
+        matches.put(match.getId(), match);
+        playerIds.put(match.getId(), playerId);
+        match.subscribe(playerId, this);
+        return true;
+      } else if (words.length == 2 && words[0].equals("UNWATCH")) {
+        unwatch(words[1]);
+        return true;
+      }
+      return refuse("WATCH matchId [playerId] or UNWATCH matchId expected");
+    }
+
+    private void unwatch(String matchId) {
+      Match match = matches.remove(matchId);
+      if (match != null) {
+        match.unsubscribe(playerIds.remove(matchId), this);
+        synchronized (this) {
+          if (queue.remove(matchId) != null) {
+            queuedFrames.decrementAndGet();
+          }
+        }
+      }
+    }
+
+    private boolean refuse(String error) throws IOException {
+      channel.write(ByteBuffer.wrap((Json.toJson(ImmutableMap.<String, Object>of("error", error))
+          + "\n").getBytes(Charsets.UTF_8)));
+      return false;
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (String matchId : Maps.newHashMap(matches).keySet()) {
+        unwatch(matchId);
+      }
+      if (blocked) {
+        blockedClients.decrementAndGet();
+      }
+      synchronized (this) {
+        queuedFrames.addAndGet(-queue.size());
+        queue.clear();
+        // The frames offered from now on are never flushed
+        flushScheduled = true;
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Closed anyway
+      }
+      clients.decrementAndGet();
+    }
+  }
+
+  private final GameServer gameServer;
+  private final long windowNanos;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  /* The clients to flush, in the order of their flush times */
+  private final Queue<Client> flushes = new ConcurrentLinkedQueue<Client>();
+  private final AtomicInteger clients = new AtomicInteger();
+  private final AtomicInteger blockedClients = new AtomicInteger();
+  private final AtomicInteger queuedFrames = new AtomicInteger();
+  private final AtomicLong sentFrames = new AtomicLong();
+  private final AtomicLong coalescedFrames = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong sentBytes = new AtomicLong();
+  private final SelectionKey acceptKey;
+  private final Thread thread;
+  private volatile boolean stopped;
+  /* Read and written by the thread of the selector only */
+  private boolean acceptPaused;
+  private long acceptResumeNanos;
+
+  /** @param windowMillis The flush window; with 0, frames are written as soon as they come. */
+  public BroadcastServer(GameServer gameServer, int port, long windowMillis) throws IOException {
+    checkArgument(windowMillis >= 0);
+    this.gameServer = gameServer;
+    windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress("localhost", port));
+    serverChannel.configureBlocking(false);
+    acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        serve();
+      }
+    }, "broadcast-server");
+    thread.setDaemon(true);
+  }
+
+  public BroadcastServer(GameServer gameServer, int port) throws IOException {
+    this(gameServer, port, FLUSH_WINDOW_MILLIS);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  public void stop() throws InterruptedException {
+    stopped = true;
+    selector.wakeup();
+    thread.join();
+  }
+
+  public Metrics getMetrics() {
+    return new Metrics(clients.get(), blockedClients.get(), queuedFrames.get(), sentFrames.get(),
+        coalescedFrames.get(), writes.get(), sentBytes.get());
+  }
+
+  private void serve() {
+    try {
+      while (!stopped) {
+        Client next = flushes.peek();
+        long waitNanos = next == null ? Long.MAX_VALUE : next.getFlushNanos() - System.nanoTime();
+        if (acceptPaused) {
+          waitNanos = Math.min(waitNanos, acceptResumeNanos - System.nanoTime());
+        }
+        try {
+          if (waitNanos == Long.MAX_VALUE) {
+            selector.select();
+          } else if (waitNanos > 0) {
+            // Rounded up, since a timeout of 0 waits for ever
+            selector.select(TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999));
+          } else {
+            selector.selectNow();
+          }
+        } catch (IOException e) {
+          // The clients are served at the next select, after a pause, should the error last
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException interrupted) {
+            return;
+          }
+        }
+        long now = System.nanoTime();
+        if (acceptPaused && now - acceptResumeNanos >= 0) {
+          acceptPaused = false;
+          acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+        for (Client client; (client = flushes.peek()) != null && client.getFlushNanos() <= now; ) {
+          flushes.poll();
+          if (client.key.isValid()) {
+            handle(client, SelectionKey.OP_WRITE);
+          }
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            handle((Client) key.attachment(), key.readyOps());
+          }
+        }
+      }
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() != null) {
+          ((Client) key.attachment()).close();
+        }
+      }
+      try {
+        serverChannel.close();
+        selector.close();
+      } catch (IOException e) {
+        // Stopping anyway
+      }
+    }
+  }
+
+  /** Accepts a connection, or returns null if none is waiting. */
+  SocketChannel acceptChannel() throws IOException {
+    return serverChannel.accept();
+  }
+
+  /**
+   * Accepts a client. A failure is of that connection only: the clients that are connected are
+   * still served, and after a failed accept the server accepts again after a pause.
+   */
+  private void accept() {
+    SocketChannel channel;
+    try {
+      channel = acceptChannel();
+    } catch (IOException e) {
+      acceptPaused = true;
+      acceptResumeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_PAUSE_MILLIS);
+      acceptKey.interestOps(0);
+      return;
+    }
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      channel.socket().setSendBufferSize(SEND_BUFFER_BYTES);
+      Client client = new Client(channel);
+      client.key = channel.register(selector, SelectionKey.OP_READ, client);
+    } catch (IOException e) {
+      // E.g. the client reset the connection before it was set up
+      try {
+        channel.close();
+      } catch (IOException closeFailure) {
+        // Closed anyway
+      }
+      return;
+    }
+    clients.incrementAndGet();
+  }
+
+  private void handle(Client client, int readyOps) {
+    try {
+      if ((readyOps & SelectionKey.OP_READ) != 0 && !client.read()) {
+        client.close();
+      } else if ((readyOps & SelectionKey.OP_WRITE) != 0) {
+        client.flush();
+      }
+    } catch (IOException e) {
+      client.close();
+    }
+  }
+}
@@ -0,0 +1,382 @@
+package org.aeroplanechess.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.Operation;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically writes a snapshot of the live matches of a journaled {@link GameServer}, and
+ * compacts the journal segments before it, so that a recovery loads the last snapshot and
+ * replays only the journal after it (see {@link GameServer#recover}).
+ *
+ * A snapshot is tagged with the offset of the journal when it started, read together with the
+ * list of the live matches while no match is being created, so that every match created before
+ * the offset is listed (see {@link GameServer#getCreationLock}). It then reads the matches one
+ * by one: their states are immutable versions (see {@link Match}), so the moves go on
+ * meanwhile, and a match may be saved at a version after the offset. The replay skips the moves
+ * a match already has, and the moves of the matches that were not saved, which ended before
+ * they were read.
+ *
+ * The segments before the one of the snapshot's offset are no longer replayed. Their records are
+ * grouped by game: each game that is over becomes one archive record (see
+ * {@link #readArchive}), and the records of the games that are still live are kept in a pending
+ * file until the segment where they end is compacted.
+ *
+ * The files are in the journal's directory, named by a journal offset: OFFSET.snapshot, the
+ * snapshot at the offset; OFFSET.archive, the games that ended before the offset (not in an
+ * earlier archive); OFFSET.pending, the records before the offset of the games that had not
+ * ended. Each file is written to a temporary file and renamed, and the pending file is written
+ * last, so a compaction that was interrupted is done again.
+ */
+public class Checkpointer {
+
+  /** The offset and the matches created when a snapshot was written. */
+  static class SnapshotInfo {
+    final long offset;
+    final long createdMatches;
+
+    SnapshotInfo(long offset, long createdMatches) {
+      this.offset = offset;
+      this.createdMatches = createdMatches;
+    }
+  }
+
+  public static final long PERIOD_MILLIS = 60000;
+  private static final String SNAPSHOT = ".snapshot";
+  private static final String ARCHIVE = ".archive";
+  private static final String PENDING = ".pending";
+  private static final String TEMPORARY = ".tmp";
+  private static final int MAGIC = 0x41434b50;
+
+  private final GameServer server;
+  private final MoveJournal journal;
+  private final File directory;
+  private final Object checkpointLock = new Object();
+  private ScheduledExecutorService scheduler;
+
+  public Checkpointer(GameServer server, MoveJournal journal) {
+    this.server = server;
+    this.journal = journal;
+    directory = journal.getDirectory();
+  }
+
+  /** Checkpoints every periodMillis, in the background, until {@link #stop}. */
+  public synchronized void start(long periodMillis) {
+    if (scheduler != null) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("checkpointer").setDaemon(true).build());
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          checkpoint();
+        } catch (IOException | RuntimeException e) {
+          // Retried at the next period; the journal still has every record
+        }
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  /** Writes a snapshot and compacts the journal before it; returns a summary. */
+  public String checkpoint() throws IOException {
+    synchronized (checkpointLock) {
+      long start = System.nanoTime();
+      // Read with no match being created, so that a match whose create record is before the
+      // offset is one of the live matches
+      long offset;
+      List<Match> liveMatches;
+      Lock creationLock = server.getCreationLock();
+      creationLock.lock();
+      try {
+        offset = journal.getOffset();
+        liveMatches = server.getLiveMatches();
+      } finally {
+        creationLock.unlock();
+      }
+      int matches = writeSnapshot(offset, liveMatches);
+      long snapshotNanos = System.nanoTime() - start;
+      String compaction = compact(offset);
+      return String.format("snapshot of %d matches at offset %d in %.1f ms; %s", matches, offset,
+          snapshotNanos / 1e6, compaction);
+    }
+  }
+
+  /** Returns the number of matches saved. */
+  private int writeSnapshot(long offset, List<Match> liveMatches) throws IOException {
+    File temporary = new File(directory, name(offset, SNAPSHOT) + TEMPORARY);
+    int matches = 0;
+    try (FileOutputStream file = new FileOutputStream(temporary)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+      writeHeader(out, offset, server.getMetrics().getCreatedMatches());
+      CRC32 crc = new CRC32();
+      for (Match match : liveMatches) {
+        writeRecord(out, crc, match.encodeSnapshot());
+        matches++;
+      }
+      out.writeInt(0);
+      out.flush();
+      file.getFD().sync();
+    }
+    rename(temporary, new File(directory, name(offset, SNAPSHOT)));
+    for (long older : list(directory, SNAPSHOT)) {
+      if (older < offset) {
+        delete(new File(directory, name(older, SNAPSHOT)));
+      }
+    }
+    return matches;
+  }
+
+  /**
+   * Reads the last snapshot, passing the record of each match to reader, and returns its offset
+   * and matches created, or null if there is no snapshot.
+   */
+  static SnapshotInfo readSnapshot(File directory, MoveJournal.RecordReader reader)
+      throws IOException {
+    List<Long> offsets = list(directory, SNAPSHOT);
+    if (offsets.isEmpty()) {
+      return null;
+    }
+    long offset = offsets.get(offsets.size() - 1);
+    long createdMatches = readFile(new File(directory, name(offset, SNAPSHOT)), reader);
+    return new SnapshotInfo(offset, createdMatches);
+  }
+
+  /**
+   * Passes the games of the archive to replay, in the order their journal segments were
+   * compacted, each game as its records: its creation, its moves and its abandonment.
+   */
+  public static void readArchive(File directory, final MoveJournal.Replay replay)
+      throws IOException {
+    for (long offset : list(directory, ARCHIVE)) {
+      readFile(new File(directory, name(offset, ARCHIVE)), new MoveJournal.RecordReader() {
+        @Override
+        public void read(byte[] record) {
+          MoveCodec.decode(ByteBuffer.wrap(record), replay);
+        }
+      });
+    }
+  }
+
+  /** Compacts the full segments before the one that has offset; returns a summary. */
+  private String compact(long offset) throws IOException {
+    List<Long> pendingOffsets = list(directory, PENDING);
+    long compactedOffset = pendingOffsets.isEmpty() ? -1
+        : pendingOffsets.get(pendingOffsets.size() - 1);
+    // An archive after the last pending file is from a compaction that was interrupted
+    for (long archive : list(directory, ARCHIVE)) {
+      if (archive > compactedOffset) {
+        delete(new File(directory, name(archive, ARCHIVE)));
+      }
+    }
+    final Map<String, List<byte[]>> games = Maps.newLinkedHashMap();
+    if (compactedOffset >= 0) {
+      readFile(new File(directory, name(compactedOffset, PENDING)),
+          new MoveJournal.RecordReader() {
+            @Override
+            public void read(byte[] record) {
+              games.put(MoveCodec.decodeMatchId(record), MoveCodec.decodeGame(record));
+            }
+          });
+    }
+    final List<String> endedGames = Lists.newArrayList();
+    final EndDetector endDetector = new EndDetector();
+    MoveJournal.RecordReader reader = new MoveJournal.RecordReader() {
+      @Override
+      public void read(byte[] record) {
+        String matchId = MoveCodec.decodeMatchId(record);
+        List<byte[]> records = games.get(matchId);
+        if (records == null) {
+          records = Lists.newArrayList();
+          games.put(matchId, records);
+        }
+        records.add(record);
+        endDetector.ended = false;
+        MoveCodec.decode(ByteBuffer.wrap(record), endDetector);
+        if (endDetector.ended) {
+          endedGames.add(matchId);
+        }
+      }
+    };
+    List<Long> segments = journal.getSegmentOffsets();
+    List<Long> compacted = Lists.newArrayList();
+    long newCompactedOffset = compactedOffset;
+    for (int i = 0; i + 1 < segments.size() && segments.get(i + 1) <= offset; i++) {
+      // A segment before the last pending file was compacted, but not deleted
+      if (segments.get(i + 1) > compactedOffset) {
+        journal.readSegment(segments.get(i), reader);
+      }
+      compacted.add(segments.get(i));
+      newCompactedOffset = segments.get(i + 1);
+    }
+    if (compacted.isEmpty()) {
+      return "no segment to compact";
+    }
+    List<byte[]> archive = Lists.newArrayListWithCapacity(endedGames.size());
+    for (String matchId : endedGames) {
+      archive.add(MoveCodec.encodeGame(matchId, games.remove(matchId)));
+    }
+    List<byte[]> pending = Lists.newArrayListWithCapacity(games.size());
+    for (Map.Entry<String, List<byte[]>> game : games.entrySet()) {
+      pending.add(MoveCodec.encodeGame(game.getKey(), game.getValue()));
+    }
+    if (newCompactedOffset > compactedOffset) {
+      writeFile(newCompactedOffset, ARCHIVE, archive);
+      writeFile(newCompactedOffset, PENDING, pending);
+      for (long older : pendingOffsets) {
+        delete(new File(directory, name(older, PENDING)));
+      }
+    }
+    for (long segment : compacted) {
+      journal.deleteSegment(segment);
+    }
+    return String.format("compacted %d segments: %d games archived, %d pending", compacted.size(),
+        archive.size(), pending.size());
+  }
+
+  /** Finds whether a record ends its game. */
+  private static class EndDetector implements MoveJournal.Replay {
+    boolean ended;
+
+    @Override
+    public void create(String matchId, List<String> playerIds) {
+    }
+
+    @Override
+    public void move(String matchId, int version, String playerId, List<Operation> operations,
+        int die) {
+      for (Operation operation : operations) {
+        if (operation instanceof EndGame) {
+          ended = true;
+        }
+      }
+    }
+
+    @Override
+    public void abandon(String matchId, int version) {
+      ended = true;
+    }
+  }
+
+  private void writeFile(long offset, String suffix, List<byte[]> records) throws IOException {
+    File temporary = new File(directory, name(offset, suffix) + TEMPORARY);
+    try (FileOutputStream file = new FileOutputStream(temporary)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+      writeHeader(out, offset, 0);
+      CRC32 crc = new CRC32();
+      for (byte[] record : records) {
+        writeRecord(out, crc, record);
+      }
+      out.writeInt(0);
+      out.flush();
+      file.getFD().sync();
+    }
+    rename(temporary, new File(directory, name(offset, suffix)));
+  }
+
+  private static void writeHeader(DataOutputStream out, long offset, long createdMatches)
+      throws IOException {
+    out.writeInt(MAGIC);
+    out.writeLong(offset);
+    out.writeLong(createdMatches);
+  }
+
+  private static void writeRecord(DataOutputStream out, CRC32 crc, byte[] record)
+      throws IOException {
+    crc.reset();
+    crc.update(record);
+    out.writeInt(record.length);
+    out.writeInt((int) crc.getValue());
+    out.write(record);
+  }
+
+  /** Passes the records of a file to reader, and returns the matches created in its header. */
+  private static long readFile(File file, MoveJournal.RecordReader reader) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a checkpoint file: " + file);
+      }
+      in.readLong();
+      long createdMatches = in.readLong();
+      CRC32 crc = new CRC32();
+      for (int length = in.readInt(); length != 0; length = in.readInt()) {
+        int expectedCrc = in.readInt();
+        if (length < 0) {
+          throw new IOException("Corrupt record in " + file);
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        crc.reset();
+        crc.update(record);
+        if ((int) crc.getValue() != expectedCrc) {
+          throw new IOException("Corrupt record in " + file);
+        }
+        reader.read(record);
+      }
+      return createdMatches;
+    } catch (EOFException e) {
+      throw new IOException("Truncated file " + file, e);
+    }
+  }
+
+  /** Returns the offsets of the files with the suffix, in order. */
+  private static List<Long> list(File directory, String suffix) {
+    File[] files = directory.listFiles();
+    List<Long> offsets = Lists.newArrayList();
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      if (name.endsWith(suffix)) {
+        offsets.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+      }
+    }
+    Collections.sort(offsets);
+    return offsets;
+  }
+
+  private static String name(long offset, String suffix) {
+    return String.format("%020d%s", offset, suffix);
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    if (!from.renameTo(to)) {
+      throw new IOException("Cannot rename " + from + " to " + to);
+    }
+  }
+
+  private static void delete(File file) throws IOException {
+    if (!file.delete()) {
+      throw new IOException("Cannot delete " + file);
+    }
+  }
+}
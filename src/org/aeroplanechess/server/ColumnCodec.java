@@ -0,0 +1,274 @@
+package org.aeroplanechess.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+/**
+ * The encodings of the columns of a {@link ColumnarArchive}, and their readers, which decode a
+ * column value by value from a buffer (a slice of a mapped segment), so a column is never
+ * decompressed as a whole:
+ *
+ * - BITS: values of a fixed number of bits (at most 8) packed little-endian, so value i is read
+ * at bit i * bits, and any value can be read or skipped directly.
+ * - RLE: runs of bytes, as the byte and the varint length of the run.
+ * - DELTA: the zigzag varint differences between consecutive values, the first from 0.
+ * - VARINT: varints.
+ * - BYTES: raw bytes.
+ * - STRINGS: a varint count and the strings (see {@link MoveCodec#writeString}), read at once.
+ */
+final class ColumnCodec {
+
+  private ColumnCodec() { }  // Prevent instantiation/subclassing
+
+  static final int BITS = 1;
+  static final int RLE = 2;
+  static final int DELTA = 3;
+  static final int VARINT = 4;
+  static final int BYTES = 5;
+  static final int STRINGS = 6;
+
+  static byte[] encodeBits(int[] values, int count, int bits) {
+    byte[] bytes = new byte[(int) (((long) count * bits + 7) / 8)];
+    long bit = 0;
+    for (int i = 0; i < count; i++, bit += bits) {
+      int value = values[i] & ((1 << bits) - 1);
+      int index = (int) (bit >>> 3);
+      int shift = (int) (bit & 7);
+      bytes[index] |= (byte) (value << shift);
+      if (shift + bits > 8) {
+        bytes[index + 1] |= (byte) (value >>> (8 - shift));
+      }
+    }
+    return bytes;
+  }
+
+  static byte[] encodeRle(int[] values, int count) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    for (int i = 0; i < count; ) {
+      int run = 1;
+      while (i + run < count && values[i + run] == values[i]) {
+        run++;
+      }
+      out.writeByte(values[i]);
+      MoveCodec.writeVarint(out, run);
+      i += run;
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] encodeDelta(long[] values, int count) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      long delta = values[i] - previous;
+      writeVarlong(out, (delta << 1) ^ (delta >> 63));
+      previous = values[i];
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] encodeVarints(int[] values, int count) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    for (int i = 0; i < count; i++) {
+      MoveCodec.writeVarint(out, values[i]);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] encodeBytes(int[] values, int count) {
+    byte[] bytes = new byte[count];
+    for (int i = 0; i < count; i++) {
+      bytes[i] = (byte) values[i];
+    }
+    return bytes;
+  }
+
+  static byte[] encodeStrings(List<String> strings) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    MoveCodec.writeVarint(out, strings.size());
+    for (String string : strings) {
+      MoveCodec.writeString(out, string);
+    }
+    return out.toByteArray();
+  }
+
+  static List<String> decodeStrings(ByteBuffer column) {
+    int count = MoveCodec.readVarint(column);
+    List<String> strings = Lists.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(MoveCodec.readString(column));
+    }
+    return strings;
+  }
+
+  private static void writeVarlong(ByteArrayDataOutput out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarlong(ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  /** Reads the values of a column in order. */
+  abstract static class Reader {
+    abstract int next();
+
+    /** Skips values; faster than next for the encodings with random access. */
+    void skip(int count) {
+      for (int i = 0; i < count; i++) {
+        next();
+      }
+    }
+
+    long nextLong() {
+      return next();
+    }
+  }
+
+  static Reader newReader(int encoding, int bits, ByteBuffer column) {
+    switch (encoding) {
+      case BITS:
+        return new BitReader(column, bits);
+      case RLE:
+        return new RleReader(column);
+      case DELTA:
+        return new DeltaReader(column);
+      case VARINT:
+        return new VarintReader(column);
+      case BYTES:
+        return new ByteReader(column);
+      default:
+        throw new IllegalArgumentException("Unknown encoding " + encoding);
+    }
+  }
+
+  private static final class BitReader extends Reader {
+    private final ByteBuffer column;
+    private final int bits;
+    private final int mask;
+    private long bit;
+
+    BitReader(ByteBuffer column, int bits) {
+      this.column = column;
+      this.bits = bits;
+      mask = (1 << bits) - 1;
+    }
+
+    @Override
+    int next() {
+      int index = (int) (bit >>> 3);
+      int shift = (int) (bit & 7);
+      bit += bits;
+      int value = column.get(index) & 0xff;
+      if (shift + bits > 8) {
+        value |= (column.get(index + 1) & 0xff) << 8;
+      }
+      return (value >>> shift) & mask;
+    }
+
+    @Override
+    void skip(int count) {
+      bit += (long) count * bits;
+    }
+  }
+
+  private static final class RleReader extends Reader {
+    private final ByteBuffer column;
+    private int value;
+    private int run;
+
+    RleReader(ByteBuffer column) {
+      this.column = column;
+    }
+
+    @Override
+    int next() {
+      if (run == 0) {
+        value = column.get() & 0xff;
+        run = MoveCodec.readVarint(column);
+      }
+      run--;
+      return value;
+    }
+
+    @Override
+    void skip(int count) {
+      while (count > 0) {
+        if (run == 0) {
+          value = column.get() & 0xff;
+          run = MoveCodec.readVarint(column);
+        }
+        int skipped = Math.min(run, count);
+        run -= skipped;
+        count -= skipped;
+      }
+    }
+  }
+
+  private static final class DeltaReader extends Reader {
+    private final ByteBuffer column;
+    private long value;
+
+    DeltaReader(ByteBuffer column) {
+      this.column = column;
+    }
+
+    @Override
+    int next() {
+      return (int) nextLong();
+    }
+
+    @Override
+    long nextLong() {
+      long zigzag = readVarlong(column);
+      value += (zigzag >>> 1) ^ -(zigzag & 1);
+      return value;
+    }
+  }
+
+  private static final class VarintReader extends Reader {
+    private final ByteBuffer column;
+
+    VarintReader(ByteBuffer column) {
+      this.column = column;
+    }
+
+    @Override
+    int next() {
+      return MoveCodec.readVarint(column);
+    }
+  }
+
+  private static final class ByteReader extends Reader {
+    private final ByteBuffer column;
+
+    ByteReader(ByteBuffer column) {
+      this.column = column;
+    }
+
+    @Override
+    int next() {
+      return column.get() & 0xff;
+    }
+
+    @Override
+    void skip(int count) {
+      column.position(column.position() + count);
+    }
+  }
+}
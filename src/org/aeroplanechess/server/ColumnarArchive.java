@@ -0,0 +1,533 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.aeroplanechess.client.Piece.Zone;
+import org.game_api.GameApi.Operation;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * An archive of finished games for analytics, stored by column: segment files of up to
+ * GAMES_PER_SEGMENT games (see {@link ColumnarArchiveWriter}), each with a column per field of the
+ * games and of their moves, compressed by column (see {@link ColumnCodec}):
+ *
+ * - MATCH_ID (delta), RED and YELLOW (the players, as indexes in PLAYER_NAMES), MOVES (the number
+ * of moves) and OUTCOME (the winner, or NO_WINNER for an abandoned game; 2 bits) per game.
+ * - DIE (the die the move was made with, 0 for the initial move; 3 bits), ACTION (3 bits), MOVED
+ * and CAPTURED (masks of the pieces the move moved and sent back to the hangar: R0..R3 are bits 0
+ * to 3, Y0..Y3 bits 4 to 7; RLE), FROM and TO (the locations of the lowest moved piece; see
+ * {@link #encodeLocation}) per move, and TURN_STARTS (delta), the moves where a player's turn
+ * starts, which also give the player of every move.
+ *
+ * A segment is named after its first game, FIRST.columns, and is mapped: a {@link Cursor} reads
+ * the columns value by value as it goes, so scanning a column reads only its bytes, and a game
+ * or its moves are skipped without decoding what the cursor does not ask for.
+ *
+ * Usage: ColumnarArchive --journal=DIR --out=DIR [--copies=N] [--segment=GAMES] converts the
+ * archive of a journal (see {@link Checkpointer#readArchive}) and scans it; --copies writes every
+ * game N times, with new ids, to measure a larger archive.
+ */
+public final class ColumnarArchive {
+
+  private ColumnarArchive() { }  // Prevent instantiation/subclassing
+
+  public static final int GAMES_PER_SEGMENT = 16384;
+
+  /** The location of no piece, see {@link #encodeLocation}. */
+  public static final int NO_LOCATION = 0xff;
+
+  /** The action of a move without one. */
+  static final int NO_ACTION = 7;
+
+  static final String SUFFIX = ".columns";
+  static final int MAGIC = 0x41434341;
+  static final int FORMAT = 1;
+
+  /** The columns, in the order of the files. */
+  public enum Column {
+    PLAYER_NAMES(ColumnCodec.STRINGS, 0),
+    MATCH_ID(ColumnCodec.DELTA, 0),
+    RED(ColumnCodec.VARINT, 0),
+    YELLOW(ColumnCodec.VARINT, 0),
+    MOVES(ColumnCodec.VARINT, 0),
+    OUTCOME(ColumnCodec.BITS, 2),
+    TURN_STARTS(ColumnCodec.DELTA, 0),
+    DIE(ColumnCodec.BITS, 3),
+    ACTION(ColumnCodec.BITS, 3),
+    MOVED(ColumnCodec.RLE, 0),
+    CAPTURED(ColumnCodec.RLE, 0),
+    FROM(ColumnCodec.BYTES, 0),
+    TO(ColumnCodec.BYTES, 0);
+
+    private static final Column[] VALUES = values();
+
+    final int encoding;
+    final int bits;
+
+    private Column(int encoding, int bits) {
+      this.encoding = encoding;
+      this.bits = bits;
+    }
+  }
+
+  /** Returns a location, such as "T12", as (zone << 6 | space). */
+  public static int encodeLocation(String location) {
+    return Zone.fromFirstLetter(location.substring(0, 1)).ordinal() << 6
+        | Integer.parseInt(location.substring(1));
+  }
+
+  public static String decodeLocation(int location) {
+    return location == NO_LOCATION ? null : Zone.values()[location >>> 6].getFirstLetter()
+        + String.format("%02d", location & 0x3f);
+  }
+
+  public static Zone getZone(int location) {
+    return Zone.values()[location >>> 6];
+  }
+
+  public static int getSpace(int location) {
+    return location & 0x3f;
+  }
+
+  /** A mapped segment file. */
+  public static final class Segment {
+    private final File file;
+    private final long firstGame;
+    private final int games;
+    private final int moves;
+    private final Map<Column, ByteBuffer> columns = new EnumMap<Column, ByteBuffer>(Column.class);
+    private final Map<Column, Integer> counts = new EnumMap<Column, Integer>(Column.class);
+    private final List<String> playerNames;
+
+    private Segment(File file) throws IOException {
+      this.file = file;
+      MappedByteBuffer data;
+      try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+        data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      }
+      if (data.getInt() != MAGIC || data.getInt() != FORMAT) {
+        throw new IOException("Not a columnar archive segment: " + file);
+      }
+      firstGame = data.getLong();
+      games = data.getInt();
+      moves = data.getInt();
+      int columnCount = data.getInt();
+      int[] lengths = new int[columnCount];
+      int[] crcs = new int[columnCount];
+      Column[] ids = new Column[columnCount];
+      for (int i = 0; i < columnCount; i++) {
+        ids[i] = Column.VALUES[data.getInt()];
+        counts.put(ids[i], data.getInt());
+        lengths[i] = data.getInt();
+        crcs[i] = data.getInt();
+      }
+      CRC32 crc = new CRC32();
+      byte[] chunk = new byte[1 << 16];
+      for (int i = 0; i < columnCount; i++) {
+        ByteBuffer column = data.slice();
+        column.limit(lengths[i]);
+        crc.reset();
+        for (ByteBuffer bytes = column.duplicate(); bytes.hasRemaining(); ) {
+          int length = Math.min(chunk.length, bytes.remaining());
+          bytes.get(chunk, 0, length);
+          crc.update(chunk, 0, length);
+        }
+        if ((int) crc.getValue() != crcs[i]) {
+          throw new IOException("Corrupt column " + ids[i] + " in " + file);
+        }
+        columns.put(ids[i], column);
+        data.position(data.position() + lengths[i]);
+      }
+      playerNames = ColumnCodec.decodeStrings(column(Column.PLAYER_NAMES));
+    }
+
+    public static Segment open(File file) throws IOException {
+      return new Segment(file);
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    /** The number of the first game of the segment in the archive. */
+    public long getFirstGame() {
+      return firstGame;
+    }
+
+    public int getGames() {
+      return games;
+    }
+
+    public int getMoves() {
+      return moves;
+    }
+
+    public int getBytes(Column column) {
+      return columns.get(column).limit();
+    }
+
+    public Cursor cursor() {
+      return new Cursor(this, Collections.<File>emptyList());
+    }
+
+    /** A new view of a column, from its start. */
+    ByteBuffer column(Column column) {
+      return columns.get(column).duplicate();
+    }
+
+    ColumnCodec.Reader reader(Column column) {
+      return ColumnCodec.newReader(column.encoding, column.bits, column(column));
+    }
+  }
+
+  /**
+   * Reads the games of one or more segments, in order, and the moves of every game. A game's
+   * fields are valid after {@link #nextGame}, and a move's after {@link #nextMove}.
+   */
+  public static final class Cursor {
+    private final List<File> nextFiles;
+    private Segment segment;
+    private ColumnCodec.Reader matchIds;
+    private ColumnCodec.Reader reds;
+    private ColumnCodec.Reader yellows;
+    private ColumnCodec.Reader moveCounts;
+    private ColumnCodec.Reader outcomes;
+    private ColumnCodec.Reader turnStarts;
+    private ColumnCodec.Reader dice;
+    private ColumnCodec.Reader actions;
+    private ColumnCodec.Reader moved;
+    private ColumnCodec.Reader captured;
+    private ColumnCodec.Reader from;
+    private ColumnCodec.Reader to;
+    private int game;
+    private int turnStartsLeft;
+    private int nextTurnStart;
+    private int moveIndex;
+    private int movesLeft;
+
+    private long matchId;
+    private String redPlayerId;
+    private String yellowPlayerId;
+    private int moveCount;
+    private int winner;
+
+    private int moveNumber;
+    private int player;
+    private boolean turnStart;
+    private int die;
+    private int action;
+    private int movedPieces;
+    private int capturedPieces;
+    private int fromLocation;
+    private int toLocation;
+
+    private Cursor(Segment segment, List<File> nextFiles) {
+      this.nextFiles = Lists.newLinkedList(nextFiles);
+      open(segment);
+    }
+
+    private void open(Segment segment) {
+      this.segment = segment;
+      matchIds = segment.reader(Column.MATCH_ID);
+      reds = segment.reader(Column.RED);
+      yellows = segment.reader(Column.YELLOW);
+      moveCounts = segment.reader(Column.MOVES);
+      outcomes = segment.reader(Column.OUTCOME);
+      turnStarts = segment.reader(Column.TURN_STARTS);
+      dice = segment.reader(Column.DIE);
+      actions = segment.reader(Column.ACTION);
+      moved = segment.reader(Column.MOVED);
+      captured = segment.reader(Column.CAPTURED);
+      from = segment.reader(Column.FROM);
+      to = segment.reader(Column.TO);
+      game = -1;
+      turnStartsLeft = segment.counts.get(Column.TURN_STARTS);
+      nextTurnStart = -1;
+      advanceTurnStart();
+      moveIndex = 0;
+      movesLeft = 0;
+    }
+
+    private void advanceTurnStart() {
+      if (turnStartsLeft > 0) {
+        turnStartsLeft--;
+        nextTurnStart = turnStarts.next();
+      } else {
+        nextTurnStart = Integer.MAX_VALUE;
+      }
+    }
+
+    /** Moves to the next game, skipping the moves of the current one; false at the end. */
+    public boolean nextGame() throws IOException {
+      if (movesLeft > 0) {
+        dice.skip(movesLeft);
+        actions.skip(movesLeft);
+        moved.skip(movesLeft);
+        captured.skip(movesLeft);
+        from.skip(movesLeft);
+        to.skip(movesLeft);
+        moveIndex += movesLeft;
+        movesLeft = 0;
+        while (nextTurnStart < moveIndex) {
+          advanceTurnStart();
+        }
+      }
+      while (game + 1 == segment.games) {
+        if (nextFiles.isEmpty()) {
+          return false;
+        }
+        open(Segment.open(nextFiles.remove(0)));
+      }
+      game++;
+      matchId = matchIds.nextLong();
+      redPlayerId = segment.playerNames.get(reds.next());
+      yellowPlayerId = segment.playerNames.get(yellows.next());
+      moveCount = moveCounts.next();
+      int outcome = outcomes.next();
+      winner = outcome == 2 ? MutableState.NO_WINNER : outcome;
+      movesLeft = moveCount;
+      moveNumber = -1;
+      return true;
+    }
+
+    /** Moves to the next move of the game; false after its last move. */
+    public boolean nextMove() {
+      if (movesLeft == 0) {
+        return false;
+      }
+      movesLeft--;
+      moveNumber++;
+      turnStart = moveIndex == nextTurnStart;
+      if (turnStart) {
+        advanceTurnStart();
+        player = moveNumber == 0 ? MutableState.RED : 1 - player;
+      }
+      moveIndex++;
+      die = dice.next();
+      action = actions.next();
+      movedPieces = moved.next();
+      capturedPieces = captured.next();
+      fromLocation = from.next();
+      toLocation = to.next();
+      return true;
+    }
+
+    public Segment getSegment() {
+      return segment;
+    }
+
+    /** The index of the game in its segment. */
+    public int getGameIndex() {
+      return game;
+    }
+
+    public long getMatchId() {
+      return matchId;
+    }
+
+    public String getRedPlayerId() {
+      return redPlayerId;
+    }
+
+    public String getYellowPlayerId() {
+      return yellowPlayerId;
+    }
+
+    public int getMoveCount() {
+      return moveCount;
+    }
+
+    /** MutableState.RED or YELLOW, or NO_WINNER if the game was abandoned. */
+    public int getWinner() {
+      return winner;
+    }
+
+    /** The index of the move in its game. */
+    public int getMoveNumber() {
+      return moveNumber;
+    }
+
+    /** MutableState.RED or YELLOW. */
+    public int getPlayer() {
+      return player;
+    }
+
+    /** True for the first move of a player's turn. */
+    public boolean isTurnStart() {
+      return turnStart;
+    }
+
+    /** The die the move was made with, or 0 for the initial move. */
+    public int getDie() {
+      return die;
+    }
+
+    /** The action of the move, or null if it has none. */
+    public Action getAction() {
+      return action == NO_ACTION ? null : Action.values()[action];
+    }
+
+    public int getMovedPieces() {
+      return movedPieces;
+    }
+
+    public int getCapturedPieces() {
+      return capturedPieces;
+    }
+
+    /** The location of the lowest moved piece before the move, or NO_LOCATION. */
+    public int getFrom() {
+      return fromLocation;
+    }
+
+    /** The location of the lowest moved piece after the move, or NO_LOCATION. */
+    public int getTo() {
+      return toLocation;
+    }
+  }
+
+  /** Returns the segment files of an archive, in order. */
+  public static List<File> list(File directory) {
+    File[] files = directory.listFiles();
+    List<File> segments = Lists.newArrayList();
+    for (File file : files == null ? new File[0] : files) {
+      if (file.getName().endsWith(SUFFIX)) {
+        segments.add(file);
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /** Returns a cursor over all the games of an archive; it maps a segment when it reaches it. */
+  public static Cursor open(File directory) throws IOException {
+    List<File> files = list(directory);
+    checkState(!files.isEmpty(), "No segment in %s", directory);
+    return new Cursor(Segment.open(files.get(0)), files.subList(1, files.size()));
+  }
+
+  public static void main(String[] args) throws IOException {
+    File journalDirectory = null;
+    File directory = null;
+    int copies = 1;
+    int gamesPerSegment = GAMES_PER_SEGMENT;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--journal=")) {
+        journalDirectory = new File(value);
+      } else if (arg.startsWith("--out=")) {
+        directory = new File(value);
+      } else if (arg.startsWith("--copies=")) {
+        copies = Integer.parseInt(value);
+      } else if (arg.startsWith("--segment=")) {
+        gamesPerSegment = Integer.parseInt(value);
+      }
+    }
+    if (journalDirectory == null) {
+      System.err.println("Usage: ColumnarArchive --journal=DIR --out=DIR [--copies=N] "
+          + "[--segment=GAMES]");
+      return;
+    }
+    if (directory == null) {
+      directory = Files.createTempDir();
+    }
+    checkState(list(directory).isEmpty(), "%s already has an archive", directory);
+
+    long archiveBytes = 0;
+    for (File file : journalDirectory.listFiles()) {
+      if (file.getName().endsWith(".archive")) {
+        archiveBytes += file.length();
+      }
+    }
+    long start = System.nanoTime();
+    try (final ColumnarArchiveWriter writer =
+        new ColumnarArchiveWriter(directory, gamesPerSegment)) {
+      for (int copy = 0; copy < copies; copy++) {
+        final String prefix = copy == 0 ? "" : String.valueOf(copy);
+        Checkpointer.readArchive(journalDirectory, new MoveJournal.Replay() {
+          @Override
+          public void create(String matchId, List<String> playerIds) {
+            writer.create(prefix + matchId, playerIds);
+          }
+
+          @Override
+          public void move(String matchId, int version, String playerId,
+              List<Operation> operations, int die) {
+            writer.move(prefix + matchId, version, playerId, operations, die);
+          }
+
+          @Override
+          public void abandon(String matchId, int version) {
+            writer.abandon(prefix + matchId, version);
+          }
+        });
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    List<File> segments = list(directory);
+    long games = 0;
+    long moves = 0;
+    Map<Column, Long> bytes = new EnumMap<Column, Long>(Column.class);
+    for (File file : segments) {
+      Segment segment = Segment.open(file);
+      games += segment.getGames();
+      moves += segment.getMoves();
+      for (Column column : Column.VALUES) {
+        Long total = bytes.get(column);
+        bytes.put(column, (total == null ? 0 : total) + segment.getBytes(column));
+      }
+    }
+    long totalBytes = 0;
+    StringBuilder columns = new StringBuilder();
+    for (Map.Entry<Column, Long> column : bytes.entrySet()) {
+      totalBytes += column.getValue();
+      columns.append(String.format(" %s %.2f", column.getKey(),
+          (double) column.getValue() / Math.max(1, moves)));
+    }
+    System.out.println(String.format("Wrote %d games, %d moves in %d segments in %.1f s: %.2f "
+        + "bytes per move (the journal's archive has %.1f); by column:%s", games, moves,
+        segments.size(), seconds, (double) totalBytes / Math.max(1, moves),
+        (double) archiveBytes / Math.max(1, moves / copies), columns));
+
+    // Scans every column, and then only the game columns
+    for (boolean readMoves : ImmutableList.of(true, false)) {
+      start = System.nanoTime();
+      Cursor cursor = open(directory);
+      long scannedMoves = 0;
+      long captures = 0;
+      long redWins = 0;
+      while (cursor.nextGame()) {
+        if (cursor.getWinner() == MutableState.RED) {
+          redWins++;
+        }
+        while (readMoves && cursor.nextMove()) {
+          scannedMoves++;
+          if (cursor.getCapturedPieces() != 0) {
+            captures++;
+          }
+        }
+      }
+      seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("Scanned %d games%s in %.2f s (%.0f games/s, %.0f "
+          + "moves/s): red won %d, %d captures", games, readMoves ? " and their moves" : "",
+          seconds, games / seconds, scannedMoves / seconds, redWins, captures));
+    }
+  }
+}
@@ -0,0 +1,338 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.aeroplanechess.client.Piece.Zone;
+import org.aeroplanechess.server.ColumnarArchive.Column;
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Writes games to a {@link ColumnarArchive}, as a {@link MoveJournal.Replay} of the journal or of
+ * its archive: the moves of a game are kept until the game ends (with EndGame, or abandoned), and
+ * then appended to the columns of the current segment, which is written when it has
+ * gamesPerSegment games, and on close. The games that have not ended by then are not written.
+ *
+ * The numbers of the games continue after the segments already in the directory; a segment is
+ * written to a temporary file, synced and renamed, so the archive only ever has whole segments.
+ */
+public class ColumnarArchiveWriter implements MoveJournal.Replay, Closeable {
+
+  private static final String TEMPORARY = ".tmp";
+  private static final int PIECES = 8;
+
+  /** A game that has not ended: the locations of its pieces, and its moves so far. */
+  private static final class Game {
+    final List<String> playerIds;
+    final int[] locations = new int[PIECES];
+    int die;
+    String lastPlayerId;
+    int moves;
+    int[] dice = new int[64];
+    int[] actions = new int[64];
+    int[] moved = new int[64];
+    int[] captured = new int[64];
+    int[] from = new int[64];
+    int[] to = new int[64];
+    boolean[] turnStarts = new boolean[64];
+
+    Game(List<String> playerIds) {
+      this.playerIds = playerIds;
+      for (int piece = 0; piece < PIECES; piece++) {
+        locations[piece] = ColumnarArchive.encodeLocation("H0" + piece % 4);
+      }
+    }
+
+    void grow() {
+      int length = dice.length * 2;
+      dice = Arrays.copyOf(dice, length);
+      actions = Arrays.copyOf(actions, length);
+      moved = Arrays.copyOf(moved, length);
+      captured = Arrays.copyOf(captured, length);
+      from = Arrays.copyOf(from, length);
+      to = Arrays.copyOf(to, length);
+      turnStarts = Arrays.copyOf(turnStarts, length);
+    }
+  }
+
+  /** A column of ints, or of longs for the deltas. */
+  private static final class Values {
+    int[] ints = new int[1024];
+    long[] longs = new long[0];
+    int count;
+
+    void add(int value) {
+      if (count == ints.length) {
+        ints = Arrays.copyOf(ints, count * 2);
+      }
+      ints[count++] = value;
+    }
+
+    void addLong(long value) {
+      if (count == longs.length) {
+        longs = Arrays.copyOf(longs, Math.max(1024, count * 2));
+      }
+      longs[count++] = value;
+    }
+  }
+
+  private final File directory;
+  private final int gamesPerSegment;
+  private final Map<String, Game> games = Maps.newHashMap();
+  private long nextGame;
+
+  private long firstGame;
+  private int segmentGames;
+  private int segmentMoves;
+  private final Map<Column, Values> columns = Maps.newEnumMap(Column.class);
+  private final List<String> playerNames = Lists.newArrayList();
+  private final Map<String, Integer> playerIndexes = Maps.newHashMap();
+
+  public ColumnarArchiveWriter(File directory, int gamesPerSegment) throws IOException {
+    checkArgument(gamesPerSegment > 0);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    this.directory = directory;
+    this.gamesPerSegment = gamesPerSegment;
+    for (File file : ColumnarArchive.list(directory)) {
+      ColumnarArchive.Segment segment = ColumnarArchive.Segment.open(file);
+      nextGame = Math.max(nextGame, segment.getFirstGame() + segment.getGames());
+    }
+    startSegment();
+  }
+
+  public ColumnarArchiveWriter(File directory) throws IOException {
+    this(directory, ColumnarArchive.GAMES_PER_SEGMENT);
+  }
+
+  @Override
+  public void create(String matchId, List<String> playerIds) {
+    games.put(matchId, new Game(playerIds));
+  }
+
+  @Override
+  public void move(String matchId, int version, String playerId, List<Operation> operations,
+      int die) {
+    Game game = games.get(matchId);
+    if (game == null) {
+      return;
+    }
+    if (game.moves == game.dice.length) {
+      game.grow();
+    }
+    int move = game.moves++;
+    int player = game.playerIds.indexOf(playerId) == 1 ? MutableState.YELLOW : MutableState.RED;
+    game.turnStarts[move] = move == 0 || !playerId.equals(game.lastPlayerId);
+    game.lastPlayerId = playerId;
+    game.dice[move] = game.die;
+    if (die != 0) {
+      game.die = die;  // A move without a roll leaves the die to the next one
+    }
+    int action = ColumnarArchive.NO_ACTION;
+    int moved = 0;
+    int captured = 0;
+    int from = ColumnarArchive.NO_LOCATION;
+    int to = ColumnarArchive.NO_LOCATION;
+    Integer winner = null;  // Until an EndGame
+    for (Operation operation : operations) {
+      if (operation instanceof EndGame) {
+        winner = MutableState.NO_WINNER;
+        for (Map.Entry<String, Integer> score
+            : ((EndGame) operation).getPlayerIdToScore().entrySet()) {
+          if (score.getValue() > 0) {
+            winner = game.playerIds.indexOf(score.getKey());
+          }
+        }
+      } else if (operation instanceof Set) {
+        Set set = (Set) operation;
+        String key = set.getKey();
+        if (key.equals("action")) {
+          action = Action.fromLowerString((String) set.getValue()).ordinal();
+        } else if (key.length() == 2 && (key.charAt(0) == 'R' || key.charAt(0) == 'Y')
+            && Character.isDigit(key.charAt(1))) {
+          int piece = (key.charAt(0) == 'R' ? 0 : 4) + key.charAt(1) - '0';
+          int location =
+              ColumnarArchive.encodeLocation((String) ((List<?>) set.getValue()).get(0));
+          int previous = game.locations[piece];
+          game.locations[piece] = location;
+          if (location == previous) {
+            continue;
+          }
+          if (piece / 4 == player) {
+            if (moved == 0) {
+              from = previous;
+              to = location;
+            }
+            moved |= 1 << piece;
+          } else if (ColumnarArchive.getZone(location) == Zone.HANGAR) {
+            captured |= 1 << piece;
+          }
+        }
+      }
+    }
+    game.actions[move] = action;
+    game.moved[move] = moved;
+    game.captured[move] = captured;
+    game.from[move] = from;
+    game.to[move] = to;
+    if (winner != null) {
+      end(matchId, game, winner);
+    }
+  }
+
+  @Override
+  public void abandon(String matchId, int version) {
+    Game game = games.get(matchId);
+    if (game != null) {
+      end(matchId, game, MutableState.NO_WINNER);
+    }
+  }
+
+  /** Writes the current segment, if it has games; the games that have not ended are dropped. */
+  @Override
+  public void close() throws IOException {
+    games.clear();
+    if (segmentGames > 0) {
+      writeSegment();
+    }
+  }
+
+  /** The games written so far, including those of the existing segments. */
+  public long getGames() {
+    return nextGame;
+  }
+
+  private void end(String matchId, Game game, int winner) {
+    games.remove(matchId);
+    columns.get(Column.MATCH_ID).addLong(parseMatchId(matchId));
+    columns.get(Column.RED).add(getPlayerIndex(game.playerIds.get(0)));
+    columns.get(Column.YELLOW).add(getPlayerIndex(game.playerIds.get(1)));
+    columns.get(Column.MOVES).add(game.moves);
+    columns.get(Column.OUTCOME).add(winner == MutableState.NO_WINNER ? 2 : winner);
+    for (int move = 0; move < game.moves; move++) {
+      if (game.turnStarts[move]) {
+        columns.get(Column.TURN_STARTS).addLong(segmentMoves + move);
+      }
+      columns.get(Column.DIE).add(game.dice[move]);
+      columns.get(Column.ACTION).add(game.actions[move]);
+      columns.get(Column.MOVED).add(game.moved[move]);
+      columns.get(Column.CAPTURED).add(game.captured[move]);
+      columns.get(Column.FROM).add(game.from[move]);
+      columns.get(Column.TO).add(game.to[move]);
+    }
+    segmentMoves += game.moves;
+    segmentGames++;
+    nextGame++;
+    if (segmentGames == gamesPerSegment) {
+      try {
+        writeSegment();
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot write the columnar archive", e);
+      }
+    }
+  }
+
+  /** The ids of the server's matches are numbers; others are hashed. */
+  private static long parseMatchId(String matchId) {
+    try {
+      return Long.parseLong(matchId);
+    } catch (NumberFormatException e) {
+      return matchId.hashCode();
+    }
+  }
+
+  private int getPlayerIndex(String playerId) {
+    Integer index = playerIndexes.get(playerId);
+    if (index == null) {
+      index = playerNames.size();
+      playerNames.add(playerId);
+      playerIndexes.put(playerId, index);
+    }
+    return index;
+  }
+
+  private void startSegment() {
+    firstGame = nextGame;
+    segmentGames = 0;
+    segmentMoves = 0;
+    for (Column column : Column.values()) {
+      columns.put(column, new Values());
+    }
+    playerNames.clear();
+    playerIndexes.clear();
+  }
+
+  private byte[] encode(Column column) {
+    Values values = columns.get(column);
+    switch (column.encoding) {
+      case ColumnCodec.BITS:
+        return ColumnCodec.encodeBits(values.ints, values.count, column.bits);
+      case ColumnCodec.RLE:
+        return ColumnCodec.encodeRle(values.ints, values.count);
+      case ColumnCodec.DELTA:
+        return ColumnCodec.encodeDelta(values.longs, values.count);
+      case ColumnCodec.VARINT:
+        return ColumnCodec.encodeVarints(values.ints, values.count);
+      case ColumnCodec.BYTES:
+        return ColumnCodec.encodeBytes(values.ints, values.count);
+      default:
+        return ColumnCodec.encodeStrings(playerNames);
+    }
+  }
+
+  private void writeSegment() throws IOException {
+    Column[] ids = Column.values();
+    byte[][] data = new byte[ids.length][];
+    for (int i = 0; i < ids.length; i++) {
+      data[i] = encode(ids[i]);
+    }
+    String name = String.format("%020d%s", firstGame, ColumnarArchive.SUFFIX);
+    File temporary = new File(directory, name + TEMPORARY);
+    try (FileOutputStream file = new FileOutputStream(temporary)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+      out.writeInt(ColumnarArchive.MAGIC);
+      out.writeInt(ColumnarArchive.FORMAT);
+      out.writeLong(firstGame);
+      out.writeInt(segmentGames);
+      out.writeInt(segmentMoves);
+      out.writeInt(ids.length);
+      CRC32 crc = new CRC32();
+      for (int i = 0; i < ids.length; i++) {
+        crc.reset();
+        crc.update(data[i]);
+        out.writeInt(ids[i].ordinal());
+        out.writeInt(
+            ids[i] == Column.PLAYER_NAMES ? playerNames.size() : columns.get(ids[i]).count);
+        out.writeInt(data[i].length);
+        out.writeInt((int) crc.getValue());
+      }
+      for (byte[] column : data) {
+        out.write(column);
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    if (!temporary.renameTo(new File(directory, name))) {
+      throw new IOException("Cannot rename " + temporary);
+    }
+    startSegment();
+  }
+}
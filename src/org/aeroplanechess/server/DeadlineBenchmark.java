@@ -0,0 +1,89 @@
+package org.aeroplanechess.server;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the turn deadlines. First a {@link TimingWheel} alone: it schedules --deadlines
+ * deadlines of 1 to 60 seconds, cancels half of them and runs until the others expire, and the
+ * benchmark reports the time of a schedule, a cancel and an expiry. Then {@link TurnDeadlines}
+ * on a GameServer with --matches matches that nobody plays, for --seconds seconds, so that every
+ * move is made when a turn of --turnSeconds expires; the benchmark reports the moves, how late
+ * the deadlines expired, and the threads of the JVM, which do not grow with the matches.
+ *
+ * Usage: DeadlineBenchmark [--deadlines=N] [--matches=N] [--turnSeconds=N] [--tickMillis=N]
+ * [--seconds=N] [--seed=S]
+ */
+public class DeadlineBenchmark {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  private static void benchmarkWheel(int count, long tickMillis, Random random) {
+    long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    TimingWheel<Integer> wheel = new TimingWheel<Integer>(tickNanos, 0);
+    List<TimingWheel.Timeout<Integer>> timeouts = Lists.newArrayListWithCapacity(count);
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      timeouts.add(wheel.schedule(i, TimeUnit.MILLISECONDS.toNanos(1000 + random.nextInt(59000))));
+    }
+    double scheduleNanos = (double) (System.nanoTime() - start) / count;
+    start = System.nanoTime();
+    for (int i = 0; i < count; i += 2) {
+      wheel.cancel(timeouts.get(i));
+    }
+    double cancelNanos = (double) (System.nanoTime() - start) / (count / 2);
+    List<Integer> expired = Lists.newArrayListWithCapacity(count);
+    start = System.nanoTime();
+    wheel.advance(TimeUnit.SECONDS.toNanos(61), expired);
+    double expireNanos = (double) (System.nanoTime() - start) / Math.max(1, expired.size());
+    System.out.println(String.format("Timing wheel: %d deadlines; %.0f ns per schedule, %.0f ns "
+        + "per cancel, %.0f ns per expiry (%d expired, %d pending)", count, scheduleNanos,
+        cancelNanos, expireNanos, expired.size(), wheel.size()));
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int deadlineCount = 1000000;
+    int matchCount = 20000;
+    int turnSeconds = 1;
+    long tickMillis = 10;
+    long seconds = 10;
+    long seed = System.nanoTime();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--deadlines=")) {
+        deadlineCount = Integer.parseInt(value);
+      } else if (arg.startsWith("--matches=")) {
+        matchCount = Integer.parseInt(value);
+      } else if (arg.startsWith("--turnSeconds=")) {
+        turnSeconds = Integer.parseInt(value);
+      } else if (arg.startsWith("--tickMillis=")) {
+        tickMillis = Long.parseLong(value);
+      } else if (arg.startsWith("--seconds=")) {
+        seconds = Long.parseLong(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      }
+    }
+    benchmarkWheel(deadlineCount, tickMillis, new Random(seed));
+
+    int threadsBefore = Thread.activeCount();
+    GameServer server = new GameServer();
+    TurnDeadlines deadlines = new TurnDeadlines(server, turnSeconds, tickMillis);
+    deadlines.start();
+    for (int i = 0; i < matchCount; i++) {
+      server.createMatch(PLAYER_IDS);
+    }
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    deadlines.stop();
+    GameServer.Metrics metrics = server.getMetrics();
+    System.out.println(String.format("Turn deadlines: %d matches, %d s turns, %d ms ticks, %d s: "
+        + "%.0f moves/s; %s; %s; %d threads before the server, %d with it", matchCount,
+        turnSeconds, tickMillis, seconds, (double) metrics.getMoves() / seconds,
+        deadlines.getMetrics(), metrics, threadsBefore, Thread.activeCount()));
+    server.shutdown();
+  }
+}
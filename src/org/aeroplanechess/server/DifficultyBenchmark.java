@@ -0,0 +1,97 @@
+package org.aeroplanechess.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import org.aeroplanechess.ai.Difficulty;
+import org.aeroplanechess.ai.ExpectimaxStrategy;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.RandomDice;
+
+/**
+ * Measures the CPU cost of the AI {@link Difficulty} levels, to plan how many AI tables a core can
+ * host: every level plays games against itself on one thread, and the nodes and the thread CPU
+ * time of every decision are recorded.
+ *
+ * Usage: DifficultyBenchmark [--games=N] [--seed=S]
+ */
+public class DifficultyBenchmark {
+
+  /** The cost of the decisions of one level. */
+  public static class Cost {
+    private final Difficulty difficulty;
+    private final RunningStatistics nodes = new RunningStatistics();
+    private final RunningStatistics cpuMillis = new RunningStatistics();
+    private long maxNodes;
+    private double maxCpuMillis;
+
+    Cost(Difficulty difficulty) {
+      this.difficulty = difficulty;
+    }
+
+    void add(long decisionNodes, double decisionCpuMillis) {
+      nodes.add(decisionNodes);
+      cpuMillis.add(decisionCpuMillis);
+      maxNodes = Math.max(maxNodes, decisionNodes);
+      maxCpuMillis = Math.max(maxCpuMillis, decisionCpuMillis);
+    }
+
+    /** Decisions per second of one core, at the mean cost. */
+    public double getDecisionsPerCoreSecond() {
+      return 1000 / cpuMillis.getMean();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d decisions, nodes %.0f mean, %d max (budget %d), "
+          + "CPU %.2f ms mean, %.2f ms max, %.0f decisions per core-second", difficulty,
+          nodes.getCount(), nodes.getMean(), maxNodes, difficulty.getNodeBudget(),
+          cpuMillis.getMean(), maxCpuMillis, getDecisionsPerCoreSecond());
+    }
+  }
+
+  /** Plays games of the level against itself and returns the cost of its decisions. */
+  public static Cost measure(Difficulty difficulty, int games, long seed) {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Random random = new Random(seed);
+    RandomDice dice = new RandomDice(random);
+    Cost cost = new Cost(difficulty);
+    MutableState state = new MutableState();
+    for (int game = 0; game < games; game++) {
+      ExpectimaxStrategy[] strategies = {
+          difficulty.createStrategy(AiStrategies.WEIGHTS, random.nextLong()),
+          difficulty.createStrategy(AiStrategies.WEIGHTS, random.nextLong())};
+      state.reset();
+      state.roll(dice.roll());
+      for (int step = 0; step < TournamentRunner.MAX_STEPS && !state.isGameOver(); step++) {
+        ExpectimaxStrategy strategy = strategies[state.getTurn()];
+        long start = threads.getCurrentThreadCpuTime();
+        int decision = strategy.chooseDecision(state);
+        cost.add(strategy.getNodes(), (threads.getCurrentThreadCpuTime() - start) / 1e6);
+        state.play(decision);
+        state.clearHistory();
+        if (state.isAwaitingRoll()) {
+          state.roll(dice.roll());
+        }
+      }
+    }
+    return cost;
+  }
+
+  public static void main(String[] args) {
+    int games = 20;
+    long seed = System.nanoTime();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--games=")) {
+        games = Integer.parseInt(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      }
+    }
+    for (Difficulty difficulty : Difficulty.values()) {
+      System.out.println(measure(difficulty, games, seed));
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.aeroplanechess.ai.EndgameTablebase.TABLES;
+import static org.aeroplanechess.ai.EndgameTablebase.VALUE_SCALE;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.aeroplanechess.ai.EndgameSolver;
+import org.aeroplanechess.ai.EndgameTablebase;
+import org.aeroplanechess.ai.EndgameTablebase.MemoryStorage;
+import org.aeroplanechess.ai.MutableState;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Builds the endgame tablebase (see {@link EndgameTablebase}) into a file, and maps such a file
+ * into memory, so that a server can load it at startup without reading it: the pages are only
+ * read when the AI first looks up their entries, and the operating system shares them between
+ * processes.
+ *
+ * The file is big-endian: a header of the magic number, the version and the size of every table
+ * (0 for a table that was not built), then for every table built, its scaled win probabilities
+ * (two bytes each) and then its best slots (one byte each), in index order.
+ *
+ * Usage: EndgameTablebaseFile [--tables=N] [--threads=N] [--tolerance=T] FILE
+ * builds the first N tables (4 by default, which takes hours on a few cores; the first table
+ * alone takes seconds).
+ */
+public final class EndgameTablebaseFile {
+
+  private EndgameTablebaseFile() { }  // Prevent instantiation/subclassing
+
+  static final int MAGIC = 0x41455442;  // "AETB"
+  static final int VERSION = 1;
+  private static final int HEADER_BYTES = 4 * (2 + TABLES);
+
+  /** Indexes are split into chunks of this size for the threads. */
+  private static final int CHUNK = 1 << 14;
+
+  /** The entries of a mapped file. Reads don't change the buffer, so they are thread-safe. */
+  private static class MappedStorage implements EndgameTablebase.Storage {
+    private final MappedByteBuffer buffer;
+    private final int[] valueOffsets = new int[TABLES];
+    private final int[] slotOffsets = new int[TABLES];
+
+    MappedStorage(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      checkArgument(buffer.getInt(0) == MAGIC, "Not an endgame tablebase file");
+      checkArgument(buffer.getInt(4) == VERSION, "Unsupported version %s", buffer.getInt(4));
+      int offset = HEADER_BYTES;
+      for (int table = 0; table < TABLES; table++) {
+        int size = buffer.getInt(8 + 4 * table);
+        checkArgument(size == 0 || size == EndgameTablebase.getSize(table), "Bad table size");
+        valueOffsets[table] = size == 0 ? -1 : offset;
+        slotOffsets[table] = offset + 2 * size;
+        offset += 3 * size;
+      }
+      checkArgument(offset == buffer.capacity(), "Bad file size");
+    }
+
+    @Override
+    public boolean hasTable(int table) {
+      return valueOffsets[table] != -1;
+    }
+
+    @Override
+    public double getWinProbability(int table, int index) {
+      return (double) buffer.getChar(valueOffsets[table] + 2 * index) / VALUE_SCALE;
+    }
+
+    @Override
+    public int getBestSlots(int table, int index) {
+      return buffer.get(slotOffsets[table] + index);
+    }
+  }
+
+  /** Maps the file read-only. */
+  public static EndgameTablebase.Storage map(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      // The mapping stays valid once the file is closed
+      return new MappedStorage(randomAccessFile.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()));
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  public static void write(MemoryStorage storage, File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (int table = 0; table < TABLES; table++) {
+        out.writeInt(storage.hasTable(table) ? EndgameTablebase.getSize(table) : 0);
+      }
+      for (int table = 0; table < TABLES; table++) {
+        if (storage.hasTable(table)) {
+          for (char value : storage.getValueArray(table)) {
+            out.writeChar(value);
+          }
+          out.write(storage.getSlotArray(table));
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Solves the first tables, sweeping chunks of each table on several threads until no entry
+   * changes by more than tolerance.
+   */
+  public static MemoryStorage build(int tables, int threads, double tolerance)
+      throws InterruptedException, ExecutionException {
+    final EndgameSolver solver = new EndgameSolver();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int table = 0; table < tables; table++) {
+        long start = System.currentTimeMillis();
+        solver.startTable(table);
+        int size = EndgameTablebase.getSize(table);
+        int sweeps = 0;
+        double change;
+        do {
+          change = 0;
+          for (Future<Double> chunk : executor.invokeAll(getChunks(solver, size, false))) {
+            change = Math.max(change, chunk.get());
+          }
+          sweeps++;
+        } while (change > tolerance);
+        for (Future<Double> chunk : executor.invokeAll(getChunks(solver, size, true))) {
+          chunk.get();
+        }
+        solver.endTable();
+        System.out.println("Table " + table + ": " + size + " entries, " + sweeps + " sweeps, "
+            + (System.currentTimeMillis() - start) / 1000 + " s");
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return solver.getStorage();
+  }
+
+  private static List<Callable<Double>> getChunks(final EndgameSolver solver, int size,
+      final boolean finish) {
+    List<Callable<Double>> chunks = Lists.newArrayList();
+    for (int from = 0; from < size; from += CHUNK) {
+      final int chunkFrom = from;
+      final int chunkTo = Math.min(size, from + CHUNK);
+      chunks.add(new Callable<Double>() {
+        @Override
+        public Double call() {
+          MutableState state = new MutableState();
+          if (finish) {
+            solver.finish(chunkFrom, chunkTo, state);
+            return 0.0;
+          }
+          return solver.sweep(chunkFrom, chunkTo, state);
+        }
+      });
+    }
+    return chunks;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int tables = TABLES;
+    int threads = Runtime.getRuntime().availableProcessors();
+    double tolerance = 1e-6;
+    File file = null;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--tables=")) {
+        tables = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--tolerance=")) {
+        tolerance = Double.parseDouble(value);
+      } else {
+        file = new File(arg);
+      }
+    }
+    checkArgument(file != null, "Usage: EndgameTablebaseFile [--tables=N] [--threads=N] "
+        + "[--tolerance=T] FILE");
+    write(build(tables, threads, tolerance), file);
+  }
+}
@@ -0,0 +1,199 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.aeroplanechess.ai.AiStrategy;
+import org.aeroplanechess.ai.ExpectimaxStrategy;
+import org.aeroplanechess.ai.GameRunner;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.RandomDice;
+import org.aeroplanechess.ai.WeightedEvaluator;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * Tunes the weights of {@link WeightedEvaluator} by self-play with SPSA (simultaneous
+ * perturbation stochastic approximation): every iteration moves all the weights by +-c at random
+ * (one perturbation for each weight), plays the weights moved up against the weights moved down,
+ * and steps every weight toward the side that scored better, by a step proportional to the score
+ * difference. Two evaluations (one match) per iteration estimate the whole gradient, however many
+ * weights there are, which is what makes the noisy match results affordable.
+ *
+ * The matches are game pairs as in {@link TournamentRunner} (the same dice, seats swapped),
+ * played in parallel by expectimax searches of a fixed depth. The gains decay with the usual
+ * exponents: a / (k + 1 + A)^0.602 and c / (k + 1)^0.101 at iteration k, with A a tenth of the
+ * iterations.
+ *
+ * The weights are written to the output file after every iteration, in the format of
+ * {@link WeightedEvaluator#parse}; {@link AiStrategies} loads them at startup.
+ *
+ * Usage: EvaluatorTuner [--iterations=N] [--pairs=N] [--threads=N] [--depth=N] [--a=A] [--c=C]
+ *     [--seed=S] [--start=FILE] FILE
+ * where --start resumes from the weights in a file (the defaults otherwise).
+ */
+public class EvaluatorTuner {
+
+  private static final double ALPHA = 0.602;
+  private static final double GAMMA = 0.101;
+
+  private final double[] weights;
+  private final int depth;
+  private final int pairs;
+  private final int threads;
+  private final double a;
+  private final double c;
+  private final Random random;
+
+  /**
+   * @param pairs The game pairs played per iteration.
+   * @param a The gain of the steps.
+   * @param c The size of the perturbations.
+   */
+  public EvaluatorTuner(double[] weights, int depth, int pairs, int threads, double a, double c,
+      long seed) {
+    checkArgument(weights.length == WeightedEvaluator.FEATURES);
+    checkArgument(pairs > 0 && threads > 0 && a > 0 && c > 0);
+    this.weights = weights.clone();
+    this.depth = depth;
+    this.pairs = pairs;
+    this.threads = threads;
+    this.a = a;
+    this.c = c;
+    this.random = new Random(seed);
+  }
+
+  public double[] getWeights() {
+    return weights.clone();
+  }
+
+  /** Runs the iterations, writing the weights to output (if not null) after each one. */
+  public void tune(int iterations, File output)
+      throws IOException, InterruptedException, ExecutionException {
+    double stability = iterations / 10.0;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int k = 0; k < iterations; k++) {
+        double ak = a / Math.pow(k + 1 + stability, ALPHA);
+        double ck = c / Math.pow(k + 1, GAMMA);
+        double[] plus = new double[weights.length];
+        double[] minus = new double[weights.length];
+        int[] signs = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+          signs[i] = random.nextBoolean() ? 1 : -1;
+          plus[i] = weights[i] + ck * signs[i];
+          minus[i] = weights[i] - ck * signs[i];
+        }
+        double score = playMatch(executor, plus, minus);
+        // The score of minus is 1 - score, so the difference is 2 * score - 1
+        for (int i = 0; i < weights.length; i++) {
+          weights[i] += ak * (2 * score - 1) / (2 * ck * signs[i]);
+        }
+        System.out.println("Iteration " + k + ": score " + score + ", weights "
+            + new WeightedEvaluator(weights).toString().replace('\n', ' '));
+        if (output != null) {
+          write(new WeightedEvaluator(weights), output);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Returns the mean score of the first weights against the second over the game pairs. */
+  private double playMatch(ExecutorService executor, final double[] first, final double[] second)
+      throws InterruptedException, ExecutionException {
+    List<Callable<Double>> gamePairs = Lists.newArrayList();
+    for (int pair = 0; pair < pairs; pair++) {
+      final long seed = random.nextLong();
+      gamePairs.add(new Callable<Double>() {
+        @Override
+        public Double call() {
+          MutableState state = new MutableState();
+          double score = 0;
+          for (int seat = 0; seat < 2; seat++) {
+            AiStrategy firstStrategy =
+                new ExpectimaxStrategy(new WeightedEvaluator(first), depth);
+            AiStrategy secondStrategy =
+                new ExpectimaxStrategy(new WeightedEvaluator(second), depth);
+            AiStrategy[] strategies = seat == 0
+                ? new AiStrategy[] {firstStrategy, secondStrategy}
+                : new AiStrategy[] {secondStrategy, firstStrategy};
+            int winner = GameRunner.play(state, strategies, new RandomDice(new Random(seed)),
+                TournamentRunner.MAX_STEPS);
+            score += winner == MutableState.NO_WINNER ? 0.5 : winner == seat ? 1 : 0;
+          }
+          return score / 2;
+        }
+      });
+    }
+    double total = 0;
+    for (Future<Double> score : executor.invokeAll(gamePairs)) {
+      total += score.get();
+    }
+    return total / pairs;
+  }
+
+  public static WeightedEvaluator read(File file) throws IOException {
+    return WeightedEvaluator.parse(Files.toString(file, Charsets.UTF_8));
+  }
+
+  /** Writes a temporary file first, so that a server starting meanwhile reads whole weights. */
+  public static void write(WeightedEvaluator evaluator, File file) throws IOException {
+    File temporary = new File(file.getPath() + ".tmp");
+    Files.write(evaluator.toString(), temporary, Charsets.UTF_8);
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Could not rename " + temporary + " to " + file);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = 200;
+    int pairs = 200;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int depth = 1;
+    double a = 0.02;
+    double c = 0.05;
+    long seed = System.nanoTime();
+    File start = null;
+    File file = null;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--iterations=")) {
+        iterations = Integer.parseInt(value);
+      } else if (arg.startsWith("--pairs=")) {
+        pairs = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--depth=")) {
+        depth = Integer.parseInt(value);
+      } else if (arg.startsWith("--a=")) {
+        a = Double.parseDouble(value);
+      } else if (arg.startsWith("--c=")) {
+        c = Double.parseDouble(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      } else if (arg.startsWith("--start=")) {
+        start = new File(value);
+      } else {
+        file = new File(arg);
+      }
+    }
+    checkArgument(file != null, "Usage: EvaluatorTuner [--iterations=N] [--pairs=N] [--threads=N] "
+        + "[--depth=N] [--a=A] [--c=C] [--seed=S] [--start=FILE] FILE");
+    double[] weights = start == null
+        ? WeightedEvaluator.DEFAULT_WEIGHTS : read(start).getWeights();
+    new EvaluatorTuner(weights, depth, pairs, threads, a, c, seed).tune(iterations, file);
+  }
+}
@@ -0,0 +1,328 @@
+package org.aeroplanechess.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Message;
+import org.game_api.GameApi.UpdateUI;
+import org.game_api.GameApi.VerifyMoveDone;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the matches of a {@link GameServer} over HTTP on the local machine, with the GameApi
+ * message shapes in JSON (see {@link Json}):
+ *
+ * POST /matches, optionally with {"playerIds": [red, yellow]}, creates a match and answers
+ * {"matchId": id, "playerIds": [...]}; PUT /matches/ID creates it with the id, a positive
+ * number (see {@link PartitionRouter}), and GET /matches answers the ids of the live matches.
+ * GET /matches/ID?playerId=P answers the UpdateUI of the player (or of a viewer, with -1), with
+ * the version of the state in the ETag header.
+ * POST /matches/ID?playerId=P with a MakeMove answers its VerifyMoveDone; a rejected move has
+ * the hackerPlayerId and the reason. The If-Match header names the version the move was made
+ * for (see {@link Match#makeMove}), so that a move sent twice, or after another move, answers
+ * 412 Precondition Failed, with a VerifyMoveDone that has only the reason; without it, the move
+ * is for the current version. A move for a match that migrated meanwhile answers 404, as if it
+ * had been sent after the migration.
+ *
+ * A malformed body answers 400, and one longer than {@link #MAX_BODY_BYTES} answers 413.
+ *
+ * POST /matches/ID/detach detaches the match for its migration, and answers its snapshot as
+ * {"snapshot": base64}; POST /snapshots with the same body makes the match live here (see
+ * {@link GameServer#detach}).
+ *
+ * Players poll for updates; a client in the same JVM can instead connect to the match (see
+ * {@link Match#connect}) to have them pushed, and with --broadcast a {@link BroadcastServer}
+ * pushes them to spectators and players over sockets on the given port.
+ *
+ * With --turnSeconds, {@link TurnDeadlines} enforce the time of the turns: a player that has not
+ * moved in time has a random move made for it.
+ *
+ * With --journal, the matches are written to a {@link MoveJournal} in the directory, and the
+ * live ones are recovered from it on startup; a {@link Checkpointer} snapshots them and compacts
+ * the journal every --checkpoint milliseconds.
+ *
+ * Usage: GameHttpServer [--port=N] [--threads=N] [--journal=DIR] [--sync=ALWAYS|INTERVAL|NEVER]
+ * [--checkpoint=MILLIS] [--broadcast=PORT] [--turnSeconds=N]
+ */
+public class GameHttpServer {
+
+  private static final List<String> DEFAULT_PLAYER_IDS = ImmutableList.of("42", "43");
+  /** The longest request body read; a longer one answers 413. */
+  static final int MAX_BODY_BYTES = 64 << 10;
+
+  private final GameServer gameServer;
+  private final HttpServer httpServer;
+  private final ExecutorService executor;
+
+  public GameHttpServer(GameServer gameServer, int port, int threads) throws IOException {
+    this.gameServer = gameServer;
+    httpServer = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    httpServer.createContext("/matches", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleMatches(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    httpServer.createContext("/snapshots", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleSnapshots(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("game-http-%d").setDaemon(true).build());
+    httpServer.setExecutor(executor);
+  }
+
+  public void start() {
+    httpServer.start();
+  }
+
+  public int getPort() {
+    return httpServer.getAddress().getPort();
+  }
+
+  public void stop() {
+    httpServer.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handleMatches(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    String body = read(exchange.getRequestBody());
+    if (body == null) {
+      respond(exchange, 413, error("Request body over " + MAX_BODY_BYTES + " bytes"));
+      return;
+    }
+    try {
+      if (path.equals("/matches") || path.equals("/matches/")) {
+        if (method.equals("GET")) {
+          List<String> matchIds = Lists.newArrayList();
+          for (Match match : gameServer.getLiveMatches()) {
+            matchIds.add(match.getId());
+          }
+          respond(exchange, 200, Json.toJson(ImmutableMap.<String, Object>of(
+              "matchIds", matchIds)));
+        } else if (method.equals("POST")) {
+          respondCreated(exchange, gameServer.createMatch(getPlayerIds(body)));
+        } else {
+          respond(exchange, 405, error("GET or POST expected"));
+        }
+        return;
+      }
+      String id = path.substring("/matches/".length());
+      if (id.endsWith("/detach")) {
+        if (!method.equals("POST")) {
+          respond(exchange, 405, error("POST expected"));
+          return;
+        }
+        byte[] snapshot = gameServer.detach(id.substring(0, id.length() - "/detach".length()));
+        if (snapshot == null) {
+          respond(exchange, 404, error("No live match " + path));
+        } else {
+          respond(exchange, 200, Json.toJson(ImmutableMap.<String, Object>of(
+              "snapshot", BaseEncoding.base64().encode(snapshot))));
+        }
+        return;
+      }
+      if (method.equals("PUT")) {
+        respondCreated(exchange, gameServer.createMatch(id, getPlayerIds(body)));
+        return;
+      }
+      Match match = gameServer.getMatch(id);
+      String playerId = getQuery(exchange).get("playerId");
+      if (match == null) {
+        respond(exchange, 404, error("No live match " + path));
+      } else if (playerId == null) {
+        respond(exchange, 400, error("playerId expected"));
+      } else if (method.equals("GET")) {
+        int version;
+        UpdateUI updateUI;
+        // The state changes only with the version, so the UpdateUI is of the version read twice
+        do {
+          version = match.getVersion();
+          updateUI = match.getUpdateUI(playerId);
+        } while (version != match.getVersion());
+        exchange.getResponseHeaders().set("ETag", "\"" + version + "\"");
+        respond(exchange, 200, Json.toJson(updateUI));
+      } else if (method.equals("POST")) {
+        Message message = Json.toMessage(body);
+        if (!(message instanceof MakeMove)) {
+          respond(exchange, 400, error("MakeMove expected"));
+          return;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        int version = ifMatch == null ? match.getVersion()
+            : Integer.parseInt(ifMatch.replace("\"", "").trim());
+        VerifyMoveDone verifyMoveDone = match.makeMove(playerId, version, (MakeMove) message);
+        if (Match.isStale(verifyMoveDone) && match.isDetached()) {
+          respond(exchange, 404, error("Match " + match.getId() + " migrated"));
+        } else if (Match.isStale(verifyMoveDone)) {
+          respond(exchange, 412, Json.toJson(verifyMoveDone));
+        } else {
+          respond(exchange, 200, Json.toJson(verifyMoveDone));
+        }
+      } else {
+        respond(exchange, 405, error("GET, POST or PUT expected"));
+      }
+    } catch (IllegalArgumentException | ClassCastException | NullPointerException e) {
+      respond(exchange, 400, error(String.valueOf(e.getMessage())));
+    } catch (IllegalStateException e) {
+      respond(exchange, 409, error(String.valueOf(e.getMessage())));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void handleSnapshots(HttpExchange exchange) throws IOException {
+    String body = read(exchange.getRequestBody());
+    if (body == null) {
+      respond(exchange, 413, error("Request body over " + MAX_BODY_BYTES + " bytes"));
+      return;
+    }
+    try {
+      if (!exchange.getRequestMethod().equals("POST")) {
+        respond(exchange, 405, error("POST expected"));
+        return;
+      }
+      Map<String, Object> request = (Map<String, Object>) Json.parse(body);
+      Match match = gameServer.attach(
+          BaseEncoding.base64().decode((String) request.get("snapshot")));
+      respond(exchange, 200, Json.toJson(ImmutableMap.<String, Object>of(
+          "matchId", match.getId(), "version", match.getVersion())));
+    } catch (IllegalArgumentException | ClassCastException | NullPointerException e) {
+      respond(exchange, 400, error(String.valueOf(e.getMessage())));
+    } catch (IllegalStateException e) {
+      respond(exchange, 409, error(String.valueOf(e.getMessage())));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<String> getPlayerIds(String body) {
+    if (!body.trim().isEmpty()) {
+      Map<String, Object> request = (Map<String, Object>) Json.parse(body);
+      if (request.get("playerIds") != null) {
+        return (List<String>) request.get("playerIds");
+      }
+    }
+    return DEFAULT_PLAYER_IDS;
+  }
+
+  private static void respondCreated(HttpExchange exchange, Match match) throws IOException {
+    respond(exchange, 200, Json.toJson(ImmutableMap.<String, Object>of(
+        "matchId", match.getId(), "playerIds", match.getPlayerIds())));
+  }
+
+  private static Map<String, String> getQuery(HttpExchange exchange)
+      throws UnsupportedEncodingException {
+    Map<String, String> query = Maps.newHashMap();
+    String rawQuery = exchange.getRequestURI().getRawQuery();
+    if (rawQuery != null) {
+      for (String parameter : rawQuery.split("&")) {
+        int equals = parameter.indexOf('=');
+        if (equals > 0) {
+          query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+              URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+      }
+    }
+    return query;
+  }
+
+  private static String error(String message) {
+    return Json.toJson(ImmutableMap.<String, Object>of("error", message));
+  }
+
+  /** Reads a request body, or returns null if it is longer than MAX_BODY_BYTES. */
+  static String read(InputStream in) throws IOException {
+    byte[] bytes = ByteStreams.toByteArray(ByteStreams.limit(in, MAX_BODY_BYTES + 1));
+    return bytes.length > MAX_BODY_BYTES ? null : new String(bytes, Charsets.UTF_8);
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] bytes = json.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.flush();
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = 8080;
+    int threads = 16;
+    File journalDirectory = null;
+    MoveJournal.SyncPolicy syncPolicy = MoveJournal.SyncPolicy.ALWAYS;
+    long checkpointMillis = Checkpointer.PERIOD_MILLIS;
+    int broadcastPort = -1;
+    int turnSeconds = 0;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--port=")) {
+        port = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--journal=")) {
+        journalDirectory = new File(value);
+      } else if (arg.startsWith("--sync=")) {
+        syncPolicy = MoveJournal.SyncPolicy.valueOf(value);
+      } else if (arg.startsWith("--checkpoint=")) {
+        checkpointMillis = Long.parseLong(value);
+      } else if (arg.startsWith("--broadcast=")) {
+        broadcastPort = Integer.parseInt(value);
+      } else if (arg.startsWith("--turnSeconds=")) {
+        turnSeconds = Integer.parseInt(value);
+      }
+    }
+    GameServer gameServer;
+    if (journalDirectory == null) {
+      gameServer = new GameServer();
+    } else {
+      MoveJournal journal = new MoveJournal(journalDirectory, syncPolicy);
+      gameServer = GameServer.recover(Runtime.getRuntime().availableProcessors(),
+          MatchRegistry.STRIPES, journal);
+      new Checkpointer(gameServer, journal).start(checkpointMillis);
+    }
+    if (turnSeconds > 0) {
+      new TurnDeadlines(gameServer, turnSeconds).start();
+    }
+    System.out.println(gameServer.getMetrics());
+    GameHttpServer server = new GameHttpServer(gameServer, port, threads);
+    server.start();
+    System.out.println("Serving matches on http://localhost:" + server.getPort() + "/matches");
+    if (broadcastPort >= 0) {
+      BroadcastServer broadcastServer = new BroadcastServer(gameServer, broadcastPort);
+      broadcastServer.start();
+      System.out.println("Broadcasting updates on localhost:" + broadcastServer.getPort());
+    }
+  }
+}
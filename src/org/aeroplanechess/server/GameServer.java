@@ -0,0 +1,390 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.aeroplanechess.client.AeroplaneChessLogic;
+import org.game_api.GameApi.Operation;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hosts many concurrent matches (see {@link Match}) in one JVM. The matches are actors that share
+ * a fixed pool of threads, one per core by default, so the number of live matches is bounded by
+ * memory rather than by threads; GameHttpServer serves them over HTTP and LoadGenerator plays
+ * them in process. The live matches are kept in a striped {@link MatchRegistry}, and the
+ * counters are atomic, so no lock is shared by all the matches.
+ *
+ * With a {@link MoveJournal} (see {@link #recover}), the matches are journaled, and on startup
+ * the last snapshot and the journal after it (see {@link Checkpointer}) are replayed to rebuild
+ * the matches that were live when the server stopped.
+ */
+public class GameServer {
+
+  /** A snapshot of the counters of the server. */
+  public static class Metrics {
+    private final int liveMatches;
+    private final long createdMatches;
+    private final long finishedMatches;
+    private final long abandonedMatches;
+    private final long moves;
+    private final long rejectedMoves;
+    private final long staleMoves;
+    private final long encodedFrames;
+
+    Metrics(int liveMatches, long createdMatches, long finishedMatches, long abandonedMatches,
+        long moves, long rejectedMoves, long staleMoves, long encodedFrames) {
+      this.liveMatches = liveMatches;
+      this.createdMatches = createdMatches;
+      this.finishedMatches = finishedMatches;
+      this.abandonedMatches = abandonedMatches;
+      this.moves = moves;
+      this.rejectedMoves = rejectedMoves;
+      this.staleMoves = staleMoves;
+      this.encodedFrames = encodedFrames;
+    }
+
+    public int getLiveMatches() {
+      return liveMatches;
+    }
+
+    /** The greatest id of a match created here; without a router, the matches created. */
+    public long getCreatedMatches() {
+      return createdMatches;
+    }
+
+    /** Matches that were played to the end. */
+    public long getFinishedMatches() {
+      return finishedMatches;
+    }
+
+    public long getAbandonedMatches() {
+      return abandonedMatches;
+    }
+
+    /** Moves that were verified and applied. */
+    public long getMoves() {
+      return moves;
+    }
+
+    /** Moves that were verified and rejected, e.g. illegal moves or moves out of turn. */
+    public long getRejectedMoves() {
+      return rejectedMoves;
+    }
+
+    /** Moves that were rejected without a verification, since they were for an old version. */
+    public long getStaleMoves() {
+      return staleMoves;
+    }
+
+    /** Updates encoded for the subscribers of the matches, once per audience (see UpdateFrame). */
+    public long getEncodedFrames() {
+      return encodedFrames;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d live matches (%d created, %d finished, %d abandoned), %d moves, "
+          + "%d rejected, %d stale, %d frames encoded", liveMatches, createdMatches,
+          finishedMatches, abandonedMatches, moves, rejectedMoves, staleMoves, encodedFrames);
+    }
+  }
+
+  private final AeroplaneChessLogic logic = new AeroplaneChessLogic();
+  private final ExecutorService executor;
+  private final MatchRegistry matches;
+  private final MoveJournal journal;
+  /* The ids of the matches being created, reserved until the matches are live */
+  private final Set<String> creatingIds = Sets.newConcurrentHashSet();
+  /*
+   * Held shared by the creation of a match from its create record until it is live, and
+   * exclusively by a checkpoint while it reads the offset of the journal and the live matches
+   */
+  private final ReadWriteLock creationLock = new ReentrantReadWriteLock();
+  private final AtomicLong createdMatches = new AtomicLong();
+  private final AtomicLong finishedMatches = new AtomicLong();
+  private final AtomicLong abandonedMatches = new AtomicLong();
+  private final AtomicLong moves = new AtomicLong();
+  private final AtomicLong rejectedMoves = new AtomicLong();
+  private final AtomicLong staleMoves = new AtomicLong();
+  private final AtomicLong encodedFrames = new AtomicLong();
+  private volatile TurnDeadlines turnDeadlines;
+
+  private GameServer(int threads, int stripes, MoveJournal journal) {
+    checkArgument(threads > 0);
+    executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("game-server-%d").setDaemon(true).build());
+    matches = new MatchRegistry(stripes);
+    this.journal = journal;
+  }
+
+  /**
+   * @param threads The number of matches that run at the same time.
+   * @param stripes The number of stripes of the registry (see {@link MatchRegistry}).
+   */
+  public GameServer(int threads, int stripes) {
+    this(threads, stripes, null);
+  }
+
+  public GameServer(int threads) {
+    this(threads, MatchRegistry.STRIPES);
+  }
+
+  public GameServer() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Returns a server whose matches are written to the journal, after rebuilding the ones that
+   * were live when the journal was last written.
+   */
+  public static GameServer recover(int threads, int stripes, MoveJournal journal)
+      throws IOException {
+    GameServer server = new GameServer(threads, stripes, journal);
+    server.replay();
+    return server;
+  }
+
+  /** Creates a match between the players; the first player is red and moves first. */
+  public Match createMatch(List<String> playerIds) {
+    checkArgument(playerIds.size() == 2 && !playerIds.get(0).equals(playerIds.get(1)));
+    // Skips the ids that a router gave, or that came with a migrated match
+    while (true) {
+      Match match = create(String.valueOf(createdMatches.incrementAndGet()), playerIds);
+      if (match != null) {
+        return match;
+      }
+    }
+  }
+
+  /**
+   * Creates a match with an id given by a {@link PartitionRouter}, which names the matches of
+   * all its nodes. The id is a positive number, like the ones this server gives, and the ones it
+   * gives from now on are greater.
+   */
+  public Match createMatch(String id, List<String> playerIds) {
+    checkArgument(playerIds.size() == 2 && !playerIds.get(0).equals(playerIds.get(1)));
+    checkArgument(isMatchId(id), "A match id is a positive number, not %s", id);
+    long number = Long.parseLong(id);
+    for (long last = createdMatches.get(); last < number; last = createdMatches.get()) {
+      if (createdMatches.compareAndSet(last, number)) {
+        break;
+      }
+    }
+    Match match = create(id, playerIds);
+    checkArgument(match != null, "Duplicate match %s", id);
+    return match;
+  }
+
+  /**
+   * Creates a match, or returns null if a match with the id is live or being created. The id is
+   * reserved until the match is live, so that the journal has one create record of the match,
+   * before any of its moves.
+   */
+  private Match create(String id, List<String> playerIds) {
+    if (!creatingIds.add(id)) {
+      return null;
+    }
+    try {
+      if (matches.get(id) != null) {
+        return null;
+      }
+      Match match = new Match(this, id, playerIds, logic, executor, journal);
+      creationLock.readLock().lock();
+      try {
+        if (journal != null) {
+          try {
+            journal.commit(journal.append(MoveCodec.encodeCreate(id, playerIds)));
+          } catch (IOException e) {
+            throw new IllegalStateException("Cannot write the journal", e);
+          }
+        }
+        matches.add(match);
+      } finally {
+        creationLock.readLock().unlock();
+      }
+      if (turnDeadlines != null) {
+        match.updateTurnDeadline();
+      }
+      return match;
+    } finally {
+      creatingIds.remove(id);
+    }
+  }
+
+  /** Returns the live match with the id, or null. */
+  public Match getMatch(String id) {
+    return matches.get(id);
+  }
+
+  /** Called by a match when it is over: it no longer takes moves, and is no longer live. */
+  void finish(Match match) {
+    if (matches.remove(match)) {
+      finishedMatches.incrementAndGet();
+    }
+  }
+
+  /** Ends a match that cannot go on, e.g. because its players left. */
+  public void abandon(Match match) {
+    match.abandon();
+    if (matches.remove(match)) {
+      abandonedMatches.incrementAndGet();
+    }
+  }
+
+  /**
+   * Detaches a live match, for its migration to another server (see {@link PartitionRouter}):
+   * the match stops taking moves and is no longer live here, and the returned snapshot restores
+   * it on the other server (see {@link #attach}). Returns null if the match is not live. The
+   * matches of a server with a journal do not migrate, since its journal would still have them.
+   */
+  public byte[] detach(String id) {
+    checkState(journal == null, "The matches of a journal do not migrate");
+    Match match = matches.get(id);
+    byte[] snapshot = match == null ? null : match.detach();
+    if (snapshot != null) {
+      matches.remove(match);
+    }
+    return snapshot;
+  }
+
+  /** Makes the match of a snapshot from {@link #detach} live on this server. */
+  public Match attach(byte[] snapshot) {
+    checkState(journal == null, "The matches of a journal do not migrate");
+    Match match = Match.restore(this, snapshot, logic, executor, journal);
+    checkArgument(!match.isOver(), "Match %s is over", match.getId());
+    matches.add(match);
+    if (turnDeadlines != null) {
+      match.updateTurnDeadline();
+    }
+    return match;
+  }
+
+  /** The deadlines of the turns of the matches, or null. */
+  TurnDeadlines getTurnDeadlines() {
+    return turnDeadlines;
+  }
+
+  void setTurnDeadlines(TurnDeadlines turnDeadlines) {
+    this.turnDeadlines = turnDeadlines;
+  }
+
+  void countMove(boolean applied) {
+    (applied ? moves : rejectedMoves).incrementAndGet();
+  }
+
+  void countStaleMove() {
+    staleMoves.incrementAndGet();
+  }
+
+  void countEncodedFrame() {
+    encodedFrames.incrementAndGet();
+  }
+
+  public Metrics getMetrics() {
+    return new Metrics(matches.size(), createdMatches.get(), finishedMatches.get(),
+        abandonedMatches.get(), moves.get(), rejectedMoves.get(), staleMoves.get(),
+        encodedFrames.get());
+  }
+
+  /** Returns the live matches; a match created or ended meanwhile may be missed. */
+  List<Match> getLiveMatches() {
+    return matches.getMatches();
+  }
+
+  /**
+   * Returns the lock that keeps matches from being created while it is held: a match whose
+   * create record is in the journal is then live (see {@link Checkpointer}).
+   */
+  Lock getCreationLock() {
+    return creationLock.writeLock();
+  }
+
+  /**
+   * Rebuilds the matches of the last snapshot and of the journal after it, and registers the ones
+   * that are not over.
+   */
+  private void replay() throws IOException {
+    final Map<String, Match> recovered = Maps.newLinkedHashMap();
+    final Set<String> abandoned = Sets.newHashSet();
+    final Checkpointer.SnapshotInfo snapshot = Checkpointer.readSnapshot(journal.getDirectory(),
+        new MoveJournal.RecordReader() {
+          @Override
+          public void read(byte[] record) {
+            Match match = Match.restore(GameServer.this, record, logic, executor, journal);
+            recovered.put(match.getId(), match);
+          }
+        });
+    if (snapshot != null) {
+      createdMatches.set(snapshot.createdMatches);
+    }
+    journal.replay(new MoveJournal.Replay() {
+      @Override
+      public void create(String matchId, List<String> playerIds) {
+        if (!recovered.containsKey(matchId)) {
+          recovered.put(matchId, new Match(GameServer.this, matchId, playerIds, logic, executor,
+              journal));
+        }
+        if (isMatchId(matchId)) {
+          createdMatches.set(Math.max(createdMatches.get(), Long.parseLong(matchId)));
+        }
+      }
+
+      @Override
+      public void move(String matchId, int version, String playerId, List<Operation> operations,
+          int die) {
+        Match match = getMatch(matchId);
+        if (match != null && match.replayMove(version, playerId, operations, die)) {
+          moves.incrementAndGet();
+        }
+      }
+
+      @Override
+      public void abandon(String matchId, int version) {
+        Match match = getMatch(matchId);
+        if (match != null && match.replayAbandon(version)) {
+          abandoned.add(matchId);
+        }
+      }
+
+      /** Returns null for a match that ended before the snapshot, which did not save it. */
+      private Match getMatch(String matchId) {
+        Match match = recovered.get(matchId);
+        checkState(match != null || snapshot != null, "Unknown match %s in the journal", matchId);
+        return match;
+      }
+    }, snapshot == null ? 0 : snapshot.offset);
+    for (Match match : recovered.values()) {
+      if (!match.isOver()) {
+        matches.add(match);
+      } else if (abandoned.contains(match.getId())) {
+        abandonedMatches.incrementAndGet();
+      } else {
+        finishedMatches.incrementAndGet();
+      }
+    }
+  }
+
+  /** Whether the id is a positive number that fits in a long (and in the columnar archive). */
+  private static boolean isMatchId(String id) {
+    return id.matches("[1-9][0-9]{0,17}");
+  }
+
+  /** Stops the threads; messages that are still queued are dropped. */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
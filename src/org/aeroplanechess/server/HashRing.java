@@ -0,0 +1,125 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A consistent hash ring that assigns match ids to nodes (see {@link PartitionRouter}): every
+ * node has virtualNodes points on a ring of 64-bit hashes, and a match belongs to the node of
+ * the first point at or after the hash of its id. With enough points per node, the matches are
+ * spread evenly, and adding or removing a node only moves the matches of the arcs it takes or
+ * gives up, about 1 / nodes of them, the others staying where they are.
+ *
+ * A ring is immutable: {@link #withNode} and {@link #withoutNode} return new rings, so a router
+ * can swap its ring at once.
+ */
+public final class HashRing {
+
+  public static final int VIRTUAL_NODES = 128;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final int virtualNodes;
+  private final SortedSet<String> nodes;
+  private final TreeMap<Long, String> points;
+
+  private HashRing(int virtualNodes, SortedSet<String> nodes) {
+    this.virtualNodes = virtualNodes;
+    this.nodes = nodes;
+    points = new TreeMap<Long, String>();
+    for (String node : nodes) {
+      for (int i = 0; i < virtualNodes; i++) {
+        addPoint(points, hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  /** A collision gives the point to the greater node, whatever the order of the nodes. */
+  static void addPoint(Map<Long, String> points, long point, String node) {
+    String owner = points.get(point);
+    if (owner == null || owner.compareTo(node) < 0) {
+      points.put(point, node);
+    }
+  }
+
+  public HashRing(Collection<String> nodes, int virtualNodes) {
+    this(virtualNodes, ImmutableSortedSet.copyOf(nodes));
+    checkArgument(virtualNodes > 0);
+  }
+
+  public HashRing(Collection<String> nodes) {
+    this(nodes, VIRTUAL_NODES);
+  }
+
+  public HashRing withNode(String node) {
+    checkArgument(!nodes.contains(node), "%s is already in the ring", node);
+    return new HashRing(virtualNodes,
+        ImmutableSortedSet.<String>naturalOrder().addAll(nodes).add(node).build());
+  }
+
+  public HashRing withoutNode(String node) {
+    checkArgument(nodes.contains(node), "%s is not in the ring", node);
+    ImmutableSortedSet.Builder<String> others = ImmutableSortedSet.naturalOrder();
+    for (String other : nodes) {
+      if (!other.equals(node)) {
+        others.add(other);
+      }
+    }
+    return new HashRing(virtualNodes, others.build());
+  }
+
+  /** Returns the node of a match. */
+  public String getNode(String matchId) {
+    checkState(!points.isEmpty(), "The ring has no node");
+    Map.Entry<Long, String> point = points.ceilingEntry(hash(matchId));
+    return (point == null ? points.firstEntry() : point).getValue();
+  }
+
+  public SortedSet<String> getNodes() {
+    return nodes;
+  }
+
+  /** The share of the ring of every node, which is the expected share of its matches. */
+  public Map<String, Double> getShares() {
+    Map<String, Double> shares = Maps.newTreeMap();
+    for (String node : nodes) {
+      shares.put(node, 0.0);
+    }
+    // The arc before a point belongs to its node; the first arc wraps around
+    long previous = points.lastKey();
+    for (Map.Entry<Long, String> point : points.entrySet()) {
+      double arc = (double) (point.getKey() - previous) / Math.pow(2, 64);
+      shares.put(point.getValue(), shares.get(point.getValue()) + (arc <= 0 ? arc + 1 : arc));
+      previous = point.getKey();
+    }
+    return shares;
+  }
+
+  /** Returns the ids that belong to another node in the other ring. */
+  public List<String> getMoved(HashRing other, Collection<String> matchIds) {
+    ImmutableList.Builder<String> moved = ImmutableList.builder();
+    for (String matchId : matchIds) {
+      if (!getNode(matchId).equals(other.getNode(matchId))) {
+        moved.add(matchId);
+      }
+    }
+    return moved.build();
+  }
+
+  private static long hash(String key) {
+    return HASH.hashString(key, Charsets.UTF_8).asLong();
+  }
+}
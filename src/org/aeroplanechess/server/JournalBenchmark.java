@@ -0,0 +1,183 @@
+package org.aeroplanechess.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.game_api.GameApi;
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+/**
+ * Measures a {@link MoveJournal}: threads play random matches on a journaled GameServer (each
+ * thread plays its own matches, both players, with a {@link RandomPlayer}) until the journal has
+ * the given number of moves, and then a new server recovers the matches from the journal. The
+ * benchmark reports the moves per second and the syncs while playing, the time of the recovery,
+ * and checks that every live match was recovered with the same version and state.
+ *
+ * With --checkpoint, a {@link Checkpointer} runs every given milliseconds while playing, so the
+ * recovery loads its last snapshot and replays the journal after it; the benchmark then also
+ * counts the games in the archive.
+ *
+ * Usage: JournalBenchmark [--moves=N] [--threads=N] [--sync=ALWAYS|INTERVAL|NEVER] [--dir=DIR]
+ * [--checkpoint=MILLIS] [--segment=BYTES] [--seed=S]
+ */
+public class JournalBenchmark {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  /** Plays matches until the server has the moves. */
+  private static void play(GameServer server, Random random, long moves) {
+    RandomPlayer player = new RandomPlayer(random);
+    while (server.getMetrics().getMoves() < moves) {
+      Match match = server.createMatch(PLAYER_IDS);
+      while (!match.isOver() && server.getMetrics().getMoves() < moves) {
+        int version = match.getVersion();
+        List<Operation> move = null;
+        String playerId = null;
+        try {
+          for (String id : PLAYER_IDS) {
+            move = player.chooseMove(match.getUpdateUI(id));
+            if (move != null) {
+              playerId = id;
+              break;
+            }
+          }
+        } catch (RuntimeException e) {
+          // The presenter refused a choice it offered, so the match cannot go on
+          server.abandon(match);
+          break;
+        }
+        if (move == null) {
+          break;
+        }
+        match.makeMove(playerId, version, new MakeMove(move));
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    long moves = 1000000;
+    int threads = 2 * Runtime.getRuntime().availableProcessors();
+    MoveJournal.SyncPolicy syncPolicy = MoveJournal.SyncPolicy.ALWAYS;
+    File directory = null;
+    long checkpointMillis = 0;
+    int segmentBytes = MoveJournal.SEGMENT_BYTES;
+    long seed = System.nanoTime();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--moves=")) {
+        moves = Long.parseLong(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--sync=")) {
+        syncPolicy = MoveJournal.SyncPolicy.valueOf(value);
+      } else if (arg.startsWith("--dir=")) {
+        directory = new File(value);
+      } else if (arg.startsWith("--checkpoint=")) {
+        checkpointMillis = Long.parseLong(value);
+      } else if (arg.startsWith("--segment=")) {
+        segmentBytes = Integer.parseInt(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      }
+    }
+    if (directory == null) {
+      directory = Files.createTempDir();
+    }
+
+    MoveJournal journal = new MoveJournal(directory, syncPolicy, segmentBytes,
+        MoveJournal.SYNC_INTERVAL_MILLIS);
+    final GameServer server = GameServer.recover(1, MatchRegistry.STRIPES, journal);
+    Checkpointer checkpointer = new Checkpointer(server, journal);
+    if (checkpointMillis > 0) {
+      checkpointer.start(checkpointMillis);
+    }
+    final long totalMoves = server.getMetrics().getMoves() + moves;
+    final CountDownLatch done = new CountDownLatch(threads);
+    Random seeds = new Random(seed);
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      final Random random = new Random(seeds.nextLong());
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            play(server, random, totalMoves);
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "journal-benchmark-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    done.await();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    checkpointer.stop();
+    journal.close();
+    GameServer.Metrics metrics = server.getMetrics();
+    System.out.println(String.format("Played %d moves in %.1f s (%.0f moves/s, %d threads, %s): "
+        + "%d syncs, %.1f moves per sync, %.0f bytes per record; %s", moves, seconds,
+        moves / seconds, threads, syncPolicy, journal.getSyncs(),
+        (double) moves / Math.max(1, journal.getSyncs()),
+        (double) journal.getOffset() / journal.getRecords(), metrics));
+
+    MoveJournal recoveredJournal = new MoveJournal(directory, syncPolicy, segmentBytes,
+        MoveJournal.SYNC_INTERVAL_MILLIS);
+    start = System.nanoTime();
+    GameServer recovered = GameServer.recover(1, MatchRegistry.STRIPES, recoveredJournal);
+    seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("Recovered %d records (%d MB) in %.2f s (%.0f records/s): %s",
+        recoveredJournal.getRecords(), recoveredJournal.getOffset() >> 20, seconds,
+        recoveredJournal.getRecords() / seconds, recovered.getMetrics()));
+
+    long checked = 0;
+    long mismatches = 0;
+    for (long id = 1; id <= metrics.getCreatedMatches(); id++) {
+      Match match = server.getMatch(String.valueOf(id));
+      if (match == null) {
+        continue;
+      }
+      Match recoveredMatch = recovered.getMatch(String.valueOf(id));
+      checked++;
+      if (recoveredMatch == null || recoveredMatch.getVersion() != match.getVersion()
+          || !recoveredMatch.getUpdateUI(GameApi.VIEWER_ID).getState().equals(
+              match.getUpdateUI(GameApi.VIEWER_ID).getState())) {
+        mismatches++;
+      }
+    }
+    System.out.println(String.format("Checked %d live matches: %d differ", checked, mismatches));
+    if (checkpointMillis > 0) {
+      final AtomicLong games = new AtomicLong();
+      final AtomicLong archivedMoves = new AtomicLong();
+      Checkpointer.readArchive(directory, new MoveJournal.Replay() {
+        @Override
+        public void create(String matchId, List<String> playerIds) {
+          games.incrementAndGet();
+        }
+
+        @Override
+        public void move(String matchId, int version, String playerId,
+            List<Operation> operations, int die) {
+          archivedMoves.incrementAndGet();
+        }
+
+        @Override
+        public void abandon(String matchId, int version) {
+        }
+      });
+      System.out.println(String.format("The archive has %d games, %d moves", games.get(),
+          archivedMoves.get()));
+    }
+    recoveredJournal.close();
+    server.shutdown();
+    recovered.shutdown();
+  }
+}
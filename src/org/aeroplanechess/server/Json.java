@@ -0,0 +1,339 @@
+package org.aeroplanechess.server;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import org.game_api.GameApi.Message;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Converts GameApi messages to and from JSON on the server, where GameApiJsonHelper (which uses
+ * GWT's JSON classes) is not available. Values are the ones of {@link Message#toMessage}: maps
+ * with String keys, lists, Strings, Integers, Booleans and null; as in GameApiJsonHelper, every
+ * number is read as an Integer, and one that is not an integer in the range of an int is
+ * rejected. Since the JSON comes from HTTP requests, the parser also rejects values nested more
+ * than {@link #MAX_DEPTH} deep, rather than recursing until the stack overflows.
+ */
+public final class Json {
+
+  /** The deepest nesting of objects and arrays parsed, far more than any GameApi message has. */
+  public static final int MAX_DEPTH = 64;
+
+  /* The digits of the integer part of an int, beyond which a number is out of range */
+  private static final int MAX_INT_DIGITS = 10;
+
+  private Json() { }
+
+  public static String toJson(Message message) {
+    return toJson(message.toMessage());
+  }
+
+  public static String toJson(Object value) {
+    StringBuilder json = new StringBuilder();
+    append(json, value);
+    return json.toString();
+  }
+
+  /** Returns the message of a JSON object, or null if its type is missing or unknown. */
+  @SuppressWarnings("unchecked")
+  public static Message toMessage(String json) {
+    Object value = parse(json);
+    if (!(value instanceof Map)) {
+      throw new IllegalArgumentException("JSON object expected: " + json);
+    }
+    if (!(((Map<String, Object>) value).get("type") instanceof String)) {
+      return null;
+    }
+    return Message.messageToHasEquality((Map<String, Object>) value);
+  }
+
+  /** Parses a JSON value; throws an IllegalArgumentException if json is malformed. */
+  public static Object parse(String json) {
+    Parser parser = new Parser(json);
+    Object value = parser.readValue();
+    parser.skipWhitespace();
+    if (parser.position != json.length()) {
+      throw parser.error("end of input expected");
+    }
+    return value;
+  }
+
+  private static void append(StringBuilder json, Object value) {
+    if (value == null) {
+      json.append("null");
+    } else if (value instanceof String) {
+      appendString(json, (String) value);
+    } else if (value instanceof Integer || value instanceof Boolean) {
+      json.append(value);
+    } else if (value instanceof Map) {
+      json.append('{');
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first) {
+          json.append(',');
+        }
+        first = false;
+        appendString(json, (String) entry.getKey());
+        json.append(':');
+        append(json, entry.getValue());
+      }
+      json.append('}');
+    } else if (value instanceof List) {
+      json.append('[');
+      boolean first = true;
+      for (Object element : (List<?>) value) {
+        if (!first) {
+          json.append(',');
+        }
+        first = false;
+        append(json, element instanceof Message ? ((Message) element).toMessage() : element);
+      }
+      json.append(']');
+    } else {
+      throw new IllegalArgumentException("Invalid object encountered: " + value);
+    }
+  }
+
+  private static void appendString(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append("\\u00").append(Character.forDigit(c >> 4, 16))
+                .append(Character.forDigit(c & 15, 16));
+          } else {
+            json.append(c);
+          }
+          break;
+      }
+    }
+    json.append('"');
+  }
+
+  private static class Parser {
+    private final String json;
+    private int position;
+    private int depth;
+
+    Parser(String json) {
+      this.json = json;
+    }
+
+    Object readValue() {
+      skipWhitespace();
+      if (position == json.length()) {
+        throw error("value expected");
+      }
+      char c = json.charAt(position);
+      switch (c) {
+        case '{':
+          enter();
+          Map<String, Object> map = readObject();
+          depth--;
+          return map;
+        case '[':
+          enter();
+          List<Object> list = readArray();
+          depth--;
+          return list;
+        case '"':
+          return readString();
+        case 't':
+          readWord("true");
+          return true;
+        case 'f':
+          readWord("false");
+          return false;
+        case 'n':
+          readWord("null");
+          return null;
+        default:
+          return readNumber();
+      }
+    }
+
+    private void enter() {
+      if (++depth > MAX_DEPTH) {
+        throw error("nested more than " + MAX_DEPTH + " deep");
+      }
+    }
+
+    private Map<String, Object> readObject() {
+      Map<String, Object> map = Maps.newHashMap();
+      position++;
+      skipWhitespace();
+      if (peek() == '}') {
+        position++;
+        return map;
+      }
+      while (true) {
+        skipWhitespace();
+        if (peek() != '"') {
+          throw error("key expected");
+        }
+        String key = readString();
+        skipWhitespace();
+        expect(':');
+        map.put(key, readValue());
+        skipWhitespace();
+        if (peek() == '}') {
+          position++;
+          return map;
+        }
+        expect(',');
+      }
+    }
+
+    private List<Object> readArray() {
+      List<Object> list = Lists.newArrayList();
+      position++;
+      skipWhitespace();
+      if (peek() == ']') {
+        position++;
+        return list;
+      }
+      while (true) {
+        list.add(readValue());
+        skipWhitespace();
+        if (peek() == ']') {
+          position++;
+          return list;
+        }
+        expect(',');
+      }
+    }
+
+    private String readString() {
+      StringBuilder value = new StringBuilder();
+      position++;
+      while (true) {
+        char c = next();
+        if (c == '"') {
+          return value.toString();
+        }
+        if (c != '\\') {
+          value.append(c);
+          continue;
+        }
+        char escaped = next();
+        switch (escaped) {
+          case 'b':
+            value.append('\b');
+            break;
+          case 'f':
+            value.append('\f');
+            break;
+          case 'n':
+            value.append('\n');
+            break;
+          case 'r':
+            value.append('\r');
+            break;
+          case 't':
+            value.append('\t');
+            break;
+          case 'u':
+            if (position + 4 > json.length()) {
+              throw error("unicode escape expected");
+            }
+            value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+            position += 4;
+            break;
+          default:
+            value.append(escaped);
+            break;
+        }
+      }
+    }
+
+    private Integer readNumber() {
+      int start = position;
+      while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+        position++;
+      }
+      if (start == position) {
+        throw error("value expected");
+      }
+      BigDecimal number;
+      try {
+        number = new BigDecimal(json.substring(start, position));
+      } catch (NumberFormatException e) {
+        throw error("number expected");
+      }
+      if (number.signum() == 0) {
+        return 0;
+      }
+      // Checked on the digits before the number is expanded, as an exponent such as 1e999999999
+      // is cheap to parse but not to expand
+      number = number.stripTrailingZeros();
+      if (number.scale() > 0) {
+        throw error("integer expected");
+      }
+      if (number.precision() - number.scale() > MAX_INT_DIGITS) {
+        throw error("integer out of range");
+      }
+      try {
+        return number.intValueExact();
+      } catch (ArithmeticException e) {
+        throw error("integer out of range");
+      }
+    }
+
+    private void readWord(String word) {
+      if (!json.startsWith(word, position)) {
+        throw error(word + " expected");
+      }
+      position += word.length();
+    }
+
+    void skipWhitespace() {
+      while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+        position++;
+      }
+    }
+
+    private char peek() {
+      if (position == json.length()) {
+        throw error("unexpected end of input");
+      }
+      return json.charAt(position);
+    }
+
+    private char next() {
+      char c = peek();
+      position++;
+      return c;
+    }
+
+    private void expect(char c) {
+      if (next() != c) {
+        position--;
+        throw error("'" + c + "' expected");
+      }
+    }
+
+    IllegalArgumentException error(String message) {
+      return new IllegalArgumentException("Invalid JSON at " + position + ": " + message);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package org.aeroplanechess.server;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Message;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.SetTurn;
+import org.game_api.GameApi.UpdateUI;
+import org.game_api.GameApi.VerifyMoveDone;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Plays many matches at once on an in-process {@link GameServer}, to measure how many live tables
+ * a node can host. Each table is played by a {@link RandomPlayer}, so the moves are built by the
+ * same code as the UI's and verified by the server like any other, for the version of the state
+ * they were chosen for; when a match is over, its table starts a new one, so the number of live
+ * tables stays the same. Before each move, a player thinks for a random time of up to twice
+ * --think.
+ *
+ * Every few seconds the generator reports the server's counters, the moves per second, the
+ * latency of the moves (the time to verify and apply a move) and the heap in use.
+ *
+ * Usage: LoadGenerator [--tables=N] [--seconds=S] [--threads=N] [--think=MILLIS] [--seed=S]
+ */
+public class LoadGenerator {
+
+  private static final long REPORT_MILLIS = 5000;
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  /** Plays the matches of one table, for both players. */
+  private class Table {
+    private final Random random;
+    private final RandomPlayer player;
+
+    /* Guarded by this */
+    private Match match;
+
+    Table(long seed) {
+      random = new Random(seed);
+      player = new RandomPlayer(random);
+    }
+
+    synchronized void start() {
+      match = gameServer.createMatch(PLAYER_IDS);
+      for (final String id : PLAYER_IDS) {
+        final Match connectedMatch = match;
+        connectedMatch.connect(id, new Match.Connection() {
+          @Override
+          public void send(Message message, int version) {
+            receive(connectedMatch, id, (UpdateUI) message, version);
+          }
+        });
+      }
+    }
+
+    /** Called by the match's thread. */
+    private void receive(Match match, final String id, final UpdateUI updateUI,
+        final int version) {
+      String turnPlayerId = PLAYER_IDS.get(0);
+      for (Operation operation : updateUI.getLastMove()) {
+        if (operation instanceof EndGame) {
+          if (id.equals(turnPlayerId)) {
+            finishMatch();
+            start();
+          }
+          return;
+        } else if (operation instanceof SetTurn) {
+          turnPlayerId = ((SetTurn) operation).getPlayerId();
+        }
+      }
+      if (!id.equals(turnPlayerId)) {
+        return;
+      }
+      if (thinkMillis == 0) {
+        play(match, id, updateUI, version);
+        return;
+      }
+      final Match playedMatch = match;
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          play(playedMatch, id, updateUI, version);
+        }
+      }, random.nextInt(2 * thinkMillis + 1), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void play(Match playedMatch, String id, UpdateUI updateUI,
+        int version) {
+      if (playedMatch != match) {
+        return;
+      }
+      List<Operation> move;
+      try {
+        move = player.chooseMove(updateUI);
+      } catch (RuntimeException e) {
+        // The presenter refused a choice it offered, so the match cannot go on
+        abandonMatch(e);
+        gameServer.abandon(match);
+        start();
+        return;
+      }
+      if (move != null) {
+        long start = System.nanoTime();
+        addMove(start, match.makeMove(id, version, new MakeMove(move)));
+      }
+    }
+  }
+
+  private final GameServer gameServer;
+  private final ScheduledExecutorService scheduler;
+  private final int thinkMillis;
+
+  /* Guarded by this */
+  private RunningStatistics latencies = new RunningStatistics();
+  private double maxLatencyMillis;
+  private long rejected;
+  private long finishedMatches;
+  private long abandonedMatches;
+  private String lastRejection;
+
+  /**
+   * @param threads The threads of the players, which build the moves after their think time.
+   * @param thinkMillis The mean think time of a player, or 0 to move at once.
+   */
+  public LoadGenerator(GameServer gameServer, int threads, int thinkMillis) {
+    this.gameServer = gameServer;
+    this.thinkMillis = thinkMillis;
+    scheduler = Executors.newScheduledThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("load-generator-%d").setDaemon(true).build());
+  }
+
+  /** Starts the tables, which then play until {@link #stop}. */
+  public void start(int tables, long seed) {
+    Random random = new Random(seed);
+    for (int i = 0; i < tables; i++) {
+      new Table(random.nextLong()).start();
+    }
+  }
+
+  public void stop() {
+    scheduler.shutdownNow();
+  }
+
+  private synchronized void addMove(long startNanos, VerifyMoveDone verifyMoveDone) {
+    double latencyMillis = (System.nanoTime() - startNanos) / 1e6;
+    latencies.add(latencyMillis);
+    maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+    if (verifyMoveDone.getHackerPlayerId() != null) {
+      rejected++;
+      lastRejection = verifyMoveDone.getMessage();
+    }
+  }
+
+  private synchronized void finishMatch() {
+    finishedMatches++;
+  }
+
+  private synchronized void abandonMatch(RuntimeException e) {
+    abandonedMatches++;
+    lastRejection = String.valueOf(e);
+  }
+
+  /** Returns the report of the moves since the last report (latencies), and starts a new one. */
+  public synchronized String report() {
+    String report = String.format("%s; %d matches played to the end, %d abandoned; "
+        + "latency %.2f ms mean, %.2f ms max; %d rejected", gameServer.getMetrics(),
+        finishedMatches, abandonedMatches, latencies.getMean(), maxLatencyMillis, rejected);
+    if (lastRejection != null) {
+      report += " (last: " + lastRejection + ")";
+    }
+    latencies = new RunningStatistics();
+    maxLatencyMillis = 0;
+    return report;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int tables = 10000;
+    int seconds = 60;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int thinkMillis = 1000;
+    long seed = System.nanoTime();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--tables=")) {
+        tables = Integer.parseInt(value);
+      } else if (arg.startsWith("--seconds=")) {
+        seconds = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--think=")) {
+        thinkMillis = Integer.parseInt(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      }
+    }
+    GameServer gameServer = new GameServer(threads);
+    LoadGenerator generator = new LoadGenerator(gameServer, threads, thinkMillis);
+    Runtime runtime = Runtime.getRuntime();
+    long start = System.currentTimeMillis();
+    generator.start(tables, seed);
+    long lastMoves = 0;
+    long lastMillis = start;
+    while (System.currentTimeMillis() - start < seconds * 1000L) {
+      Thread.sleep(REPORT_MILLIS);
+      long now = System.currentTimeMillis();
+      long moves = gameServer.getMetrics().getMoves();
+      System.out.println(String.format("%3d s: %.0f moves/s, heap %d MB; %s",
+          (now - start) / 1000, (moves - lastMoves) * 1000.0 / (now - lastMillis),
+          (runtime.totalMemory() - runtime.freeMemory()) >> 20, generator.report()));
+      lastMoves = moves;
+      lastMillis = now;
+    }
+    generator.stop();
+    gameServer.shutdown();
+  }
+}
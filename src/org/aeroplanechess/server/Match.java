@@ -0,0 +1,663 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.aeroplanechess.client.AeroplaneChessLogic;
+import org.game_api.GameApi;
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.GameState;
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Message;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.Set;
+import org.game_api.GameApi.SetRandomInteger;
+import org.game_api.GameApi.SetTurn;
+import org.game_api.GameApi.UpdateUI;
+import org.game_api.GameApi.VerifyMove;
+import org.game_api.GameApi.VerifyMoveDone;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+/**
+ * One match of a {@link GameServer}: its GameState, verified with AeroplaneChessLogic, and the
+ * connections of its players.
+ *
+ * The state of a match is an immutable snapshot with a version, the number of changes so far. A
+ * move names the version it was made for, and is applied with a compare-and-set of the snapshot
+ * by the thread that submits it, without a lock: a move for another version, such as a
+ * duplicate or a move that lost a race, is rejected before it is verified, and of two moves
+ * verified at the same time only the first to be applied is kept. Reading the state takes no
+ * lock either.
+ *
+ * A move is verified before it is applied, as every player's container would verify it: it must
+ * come from the player whose turn it is (the first player for the initial move), and
+ * AeroplaneChessLogic must find it legal. A move with EndGame ends the match.
+ *
+ * With a {@link MoveJournal}, the compare-and-set of a move is made while it is appended to the
+ * journal, so the journal has the changes of a match in order, and the move is acknowledged
+ * once it is as durable as the journal's SyncPolicy requires. On startup the matches are rebuilt
+ * from the last snapshot (see {@link #restore}) and the journal after it (see {@link #replayMove}).
+ *
+ * The connections are served by an actor: its messages (connections, and the updates after the
+ * moves) are queued in a mailbox and run one at a time, in order, on the server's executor, so
+ * a thread serves a match only while it has messages, and an idle match costs its state and
+ * nothing else. A match runs at most BATCH messages before it yields its thread to the other
+ * matches. An update sends the latest snapshot, so the connections see the versions in order,
+ * but may skip a version when moves come faster than they are sent.
+ *
+ * Subscribers receive the updates encoded (see {@link #subscribe}): the subscribers of a match are
+ * grouped by audience, each player and the viewers, and an update is encoded once per audience
+ * and the same bytes are offered to all of its subscribers, so a match with hundreds of
+ * spectators encodes one frame per move for all of them.
+ *
+ * With {@link TurnDeadlines}, the match moves the deadline of its turn after every move, and a
+ * player that has not moved by the deadline has a random move made for it.
+ *
+ * A match migrates to another server (see {@link PartitionRouter}) as its snapshot: it is
+ * detached here, which stops it taking moves, and restored there.
+ */
+public class Match {
+
+  /**
+   * Receives the messages of a match for one player (UpdateUI after every move). It is called by
+   * the match's thread, one message at a time; a connection that throws is disconnected.
+   */
+  public interface Connection {
+    /** @param version The version of the state in the message (see {@link Match#makeMove}). */
+    void send(Message message, int version);
+  }
+
+  /**
+   * Receives the encoded updates of a match for an audience: a player, or the viewers. It is
+   * called by the match's thread, and must not block (see {@link BroadcastServer}); a subscriber
+   * that throws is unsubscribed.
+   */
+  public interface Subscriber {
+    void offer(UpdateFrame frame);
+  }
+
+  /** A version of the state of a match. */
+  private static class Snapshot {
+    private final int version;
+    private final GameState gameState;
+    private final GameState lastGameState;
+    private final List<Operation> lastMove;
+    private final String lastMovePlayerId;
+    private final String turnPlayerId;
+    private final boolean over;
+
+    Snapshot(int version, GameState gameState, GameState lastGameState, List<Operation> lastMove,
+        String lastMovePlayerId, String turnPlayerId, boolean over) {
+      this.version = version;
+      this.gameState = gameState;
+      this.lastGameState = lastGameState;
+      this.lastMove = lastMove;
+      this.lastMovePlayerId = lastMovePlayerId;
+      this.turnPlayerId = turnPlayerId;
+      this.over = over;
+    }
+  }
+
+  /** The most messages run before the match yields its thread. */
+  private static final int BATCH = 32;
+
+  private final GameServer server;
+  private final String id;
+  private final List<String> playerIds;
+  private final List<Map<String, Object>> playersInfo;
+  private final AeroplaneChessLogic logic;
+  private final Executor executor;
+  /** The journal of the changes, or null. */
+  private final MoveJournal journal;
+  private final AtomicReference<Snapshot> snapshot;
+  private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+  private final Runnable sendUpdates = new Runnable() {
+    @Override
+    public void run() {
+      sendUpdates();
+    }
+  };
+  private final Runnable moveTurnDeadline = new Runnable() {
+    @Override
+    public void run() {
+      moveTurnDeadline();
+    }
+  };
+
+  /* Confined to the messages of the match */
+  private final Map<String, Connection> connections = Maps.newHashMap();
+  private final ListMultimap<String, Subscriber> subscribers = ArrayListMultimap.create();
+  private final Map<String, UpdateFrame> frames = Maps.newHashMap();
+  private int sentVersion;
+  private TurnDeadlines turnDeadlines;
+  private TimingWheel.Timeout<TurnDeadlines.Deadline> turnDeadline;
+  private int turnDeadlineVersion = -1;
+  /* Plays the turns that expire, created at the first one */
+  private RandomPlayer turnPlayer;
+  private volatile boolean detached;
+
+  Match(GameServer server, String id, List<String> playerIds, AeroplaneChessLogic logic,
+      Executor executor, MoveJournal journal) {
+    this.server = server;
+    this.id = id;
+    this.playerIds = ImmutableList.copyOf(playerIds);
+    ImmutableList.Builder<Map<String, Object>> playersInfo = ImmutableList.builder();
+    for (String playerId : playerIds) {
+      playersInfo.add(ImmutableMap.<String, Object>of(GameApi.PLAYER_ID, playerId));
+    }
+    this.playersInfo = playersInfo.build();
+    this.logic = logic;
+    this.executor = executor;
+    this.journal = journal;
+    snapshot = new AtomicReference<Snapshot>(new Snapshot(0, new GameState(), null,
+        ImmutableList.<Operation>of(), null, playerIds.get(0), false));
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public List<String> getPlayerIds() {
+    return playerIds;
+  }
+
+  /** The number of changes so far: the moves, and the end of an abandoned match. */
+  public int getVersion() {
+    return snapshot.get().version;
+  }
+
+  public boolean isOver() {
+    return snapshot.get().over;
+  }
+
+  /**
+   * Connects a player (or a viewer, with GameApi.VIEWER_ID), replacing its earlier connection,
+   * and sends it the current UpdateUI.
+   */
+  public void connect(final String playerId, final Connection connection) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        connections.put(playerId, connection);
+        send(playerId, connection, snapshot.get());
+      }
+    });
+  }
+
+  public void disconnect(final String playerId) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        connections.remove(playerId);
+      }
+    });
+  }
+
+  /**
+   * Subscribes to the updates of a player, or of the viewers with GameApi.VIEWER_ID, and offers
+   * the subscriber the current update. A player (or the viewers) may have any number of
+   * subscribers.
+   */
+  public void subscribe(final String playerId, final Subscriber subscriber) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        subscribers.put(playerId, subscriber);
+        offer(playerId, subscriber, getFrame(playerId, snapshot.get()));
+      }
+    });
+  }
+
+  public void unsubscribe(final String playerId, final Subscriber subscriber) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        subscribers.remove(playerId, subscriber);
+        if (!subscribers.containsKey(playerId)) {
+          frames.remove(playerId);
+        }
+      }
+    });
+  }
+
+  /** Moves the deadline of the turn to the current version, see {@link TurnDeadlines}. */
+  void updateTurnDeadline() {
+    post(moveTurnDeadline);
+  }
+
+  /**
+   * Called by {@link TurnDeadlines} when the turn of a version timed out: makes a random move for
+   * the player of the turn, on the server's executor, unless the match moved meanwhile. The
+   * move is made for the version, so it loses to a move the player makes at the same time.
+   */
+  void expireTurn(final int version) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        playTurn(version);
+      }
+    });
+  }
+
+  /** Returns the current UpdateUI of a player (or a viewer). */
+  public UpdateUI getUpdateUI(String playerId) {
+    return getUpdateUI(playerId, snapshot.get());
+  }
+
+  /**
+   * Verifies the move of a player for the state at expectedVersion and, if it is legal and the
+   * state is still at that version, applies it and sends UpdateUI to the connected players. The
+   * result has the hacker's id if the move was rejected, and only a message if it was stale, i.e.
+   * for another version or beaten to it by another move (see {@link #isStale}), which is no
+   * fault of the player.
+   */
+  public VerifyMoveDone makeMove(String playerId, int expectedVersion, MakeMove makeMove) {
+    Snapshot current = snapshot.get();
+    if (current.version != expectedVersion) {
+      server.countStaleMove();
+      return new VerifyMoveDone(null, "The move is for version " + expectedVersion
+          + ", but the match is at version " + current.version);
+    }
+    if (current.over && detached) {
+      // The move lost the race with the detach, and is for the match on its new server
+      server.countStaleMove();
+      return new VerifyMoveDone(null, "The match was detached at version " + current.version);
+    }
+    List<Operation> operations = makeMove.getOperations();
+    GameState nextGameState = current.gameState.copy();
+    VerifyMoveDone verifyMoveDone = verify(playerId, operations, current, nextGameState);
+    if (verifyMoveDone.getHackerPlayerId() != null) {
+      server.countMove(false);
+      return verifyMoveDone;
+    }
+    Snapshot next = nextSnapshot(current, playerId, operations, nextGameState);
+    if (!commit(current, next, journal == null ? null : MoveCodec.encodeMove(id, next.version,
+        playerId, operations, getDie(operations, nextGameState)))) {
+      server.countStaleMove();
+      return new VerifyMoveDone(null, "Another move was applied to version " + expectedVersion);
+    }
+    server.countMove(true);
+    post(sendUpdates);
+    if (next.over) {
+      server.finish(this);
+    }
+    return verifyMoveDone;
+  }
+
+  /** Returns whether a result of {@link #makeMove} is of a stale move, which was not verified. */
+  public static boolean isStale(VerifyMoveDone verifyMoveDone) {
+    return verifyMoveDone.getHackerPlayerId() == null && verifyMoveDone.getMessage() != null;
+  }
+
+  /** Ends the match without a winner (see {@link GameServer#abandon}); it takes no more moves. */
+  void abandon() {
+    Snapshot current;
+    Snapshot next;
+    do {
+      current = snapshot.get();
+      if (current.over) {
+        return;
+      }
+      next = abandonedSnapshot(current);
+    } while (!commit(current, next,
+        journal == null ? null : MoveCodec.encodeAbandon(id, next.version)));
+    post(sendUpdates);
+  }
+
+  /**
+   * Stops the match taking moves, for its migration to another server (see
+   * {@link GameServer#detach}), and returns its snapshot; a move that loses the race with the
+   * detach is rejected as a stale move. Returns null if the match is over.
+   */
+  byte[] detach() {
+    detached = true;
+    Snapshot current;
+    do {
+      current = snapshot.get();
+      if (current.over) {
+        detached = false;
+        return null;
+      }
+      // The same state, over, so that no move is applied to it any more
+    } while (!snapshot.compareAndSet(current, new Snapshot(current.version, current.gameState,
+        current.lastGameState, current.lastMove, current.lastMovePlayerId, current.turnPlayerId,
+        true)));
+    post(moveTurnDeadline);
+    return encodeSnapshot(current);
+  }
+
+  /** True once the match was detached, see {@link #detach}. */
+  public boolean isDetached() {
+    return detached;
+  }
+
+  /**
+   * Returns the current state of the match in the binary form of a snapshot (see
+   * {@link Checkpointer}). The state of the game is visible to every player, so a GameState is
+   * saved as the values of its keys.
+   */
+  byte[] encodeSnapshot() {
+    return encodeSnapshot(snapshot.get());
+  }
+
+  private byte[] encodeSnapshot(Snapshot current) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput(256);
+    MoveCodec.writeString(out, id);
+    MoveCodec.writeVarint(out, playerIds.size());
+    for (String playerId : playerIds) {
+      MoveCodec.writeString(out, playerId);
+    }
+    MoveCodec.writeVarint(out, current.version);
+    MoveCodec.writeValue(out, current.over);
+    MoveCodec.writeValue(out, current.turnPlayerId);
+    MoveCodec.writeValue(out, current.lastMovePlayerId);
+    MoveCodec.writeVarint(out, current.lastMove.size());
+    for (Operation operation : current.lastMove) {
+      MoveCodec.writeOperation(out, operation);
+    }
+    MoveCodec.writeValue(out, current.gameState.getStateForPlayerId(GameApi.VIEWER_ID));
+    MoveCodec.writeValue(out, current.lastGameState == null ? null
+        : current.lastGameState.getStateForPlayerId(GameApi.VIEWER_ID));
+    return out.toByteArray();
+  }
+
+  /** Returns a match in the state of a snapshot (see {@link #encodeSnapshot}). */
+  @SuppressWarnings("unchecked")
+  static Match restore(GameServer server, byte[] record, AeroplaneChessLogic logic,
+      Executor executor, MoveJournal journal) {
+    ByteBuffer in = ByteBuffer.wrap(record);
+    try {
+      String id = MoveCodec.readString(in);
+      int players = MoveCodec.readVarint(in);
+      List<String> playerIds = Lists.newArrayListWithCapacity(players);
+      for (int i = 0; i < players; i++) {
+        playerIds.add(MoveCodec.readString(in));
+      }
+      Match match = new Match(server, id, playerIds, logic, executor, journal);
+      int version = MoveCodec.readVarint(in);
+      boolean over = (Boolean) MoveCodec.readValue(in);
+      String turnPlayerId = (String) MoveCodec.readValue(in);
+      String lastMovePlayerId = (String) MoveCodec.readValue(in);
+      int size = MoveCodec.readVarint(in);
+      List<Operation> lastMove = Lists.newArrayListWithCapacity(size);
+      for (int i = 0; i < size; i++) {
+        lastMove.add(MoveCodec.readOperation(in));
+      }
+      GameState gameState = toGameState((Map<String, Object>) MoveCodec.readValue(in));
+      GameState lastGameState = toGameState((Map<String, Object>) MoveCodec.readValue(in));
+      match.snapshot.set(new Snapshot(version, gameState, lastGameState,
+          ImmutableList.copyOf(lastMove), lastMovePlayerId, turnPlayerId, over));
+      return match;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | ClassCastException e) {
+      throw new IllegalArgumentException("Corrupt snapshot", e);
+    }
+  }
+
+  private static GameState toGameState(Map<String, Object> state) {
+    if (state == null) {
+      return null;
+    }
+    GameState gameState = new GameState();
+    for (Map.Entry<String, Object> entry : state.entrySet()) {
+      gameState.makeMove(new Set(entry.getKey(), entry.getValue()));
+    }
+    return gameState;
+  }
+
+  /**
+   * Applies a move read from the journal, before the match is live; the die is the value its
+   * SetRandomInteger had. The move is not verified again. A move the match already has (the
+   * snapshot it was restored from may be newer than the journal's offset) is skipped, and false
+   * is returned.
+   */
+  boolean replayMove(int version, String playerId, List<Operation> operations, int die) {
+    Snapshot current = snapshot.get();
+    if (version <= current.version) {
+      return false;
+    }
+    checkState(version == current.version + 1, "Move %s of match %s after version %s", version,
+        id, current.version);
+    GameState nextGameState = current.gameState.copy();
+    for (Operation operation : operations) {
+      if (operation instanceof SetRandomInteger) {
+        nextGameState.makeMove(new Set(((SetRandomInteger) operation).getKey(), die));
+      } else {
+        nextGameState.makeMove(operation);
+      }
+    }
+    snapshot.set(nextSnapshot(current, playerId, operations, nextGameState));
+    return true;
+  }
+
+  /** Abandons the match, as read from the journal, before the match is live (see replayMove). */
+  boolean replayAbandon(int version) {
+    Snapshot current = snapshot.get();
+    if (version <= current.version) {
+      return false;
+    }
+    checkState(version == current.version + 1, "Abandon of match %s after version %s", id,
+        current.version);
+    snapshot.set(abandonedSnapshot(current));
+    return true;
+  }
+
+  /**
+   * Sets the snapshot from current to next and, if there is a journal, appends the record and
+   * waits for its commit. Returns false if the snapshot was not current.
+   */
+  private boolean commit(Snapshot current, Snapshot next, byte[] record) {
+    if (journal == null) {
+      return snapshot.compareAndSet(current, next);
+    }
+    try {
+      long offset = journal.append(record, snapshot, current, next);
+      if (offset < 0) {
+        return false;
+      }
+      journal.commit(offset);
+      return true;
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write the journal", e);
+    }
+  }
+
+  private static Snapshot nextSnapshot(Snapshot current, String playerId,
+      List<Operation> operations, GameState nextGameState) {
+    String turnPlayerId = current.turnPlayerId;
+    boolean over = false;
+    for (Operation operation : operations) {
+      if (operation instanceof SetTurn) {
+        turnPlayerId = ((SetTurn) operation).getPlayerId();
+      } else if (operation instanceof EndGame) {
+        over = true;
+      }
+    }
+    return new Snapshot(current.version + 1, nextGameState, current.gameState,
+        ImmutableList.copyOf(operations), playerId, turnPlayerId, over);
+  }
+
+  private static Snapshot abandonedSnapshot(Snapshot current) {
+    return new Snapshot(current.version + 1, current.gameState, current.lastGameState,
+        current.lastMove, current.lastMovePlayerId, current.turnPlayerId, true);
+  }
+
+  /** Returns the value the move's SetRandomInteger rolled, or 0 if it has none. */
+  private static int getDie(List<Operation> operations, GameState nextGameState) {
+    for (Operation operation : operations) {
+      if (operation instanceof SetRandomInteger) {
+        return (Integer) nextGameState.getStateForPlayerId(GameApi.VIEWER_ID)
+            .get(((SetRandomInteger) operation).getKey());
+      }
+    }
+    return 0;
+  }
+
+  /** Verifies a move, which is made on nextGameState (a copy of the current state). */
+  private VerifyMoveDone verify(String playerId, List<Operation> operations, Snapshot current,
+      GameState nextGameState) {
+    if (current.over) {
+      return new VerifyMoveDone(playerId, "The match is over");
+    }
+    if (!playerId.equals(current.turnPlayerId)) {
+      return new VerifyMoveDone(playerId, "It is not the turn of player " + playerId);
+    }
+    try {
+      nextGameState.makeMove(operations);
+    } catch (RuntimeException e) {
+      return new VerifyMoveDone(playerId, String.valueOf(e));
+    }
+    return logic.verify(new VerifyMove(playersInfo, nextGameState.getStateForPlayerId(playerId),
+        current.gameState.getStateForPlayerId(playerId), operations, playerId,
+        nextGameState.getPlayerIdToNumberOfTokensInPot()));
+  }
+
+  private UpdateUI getUpdateUI(String playerId, Snapshot current) {
+    return new UpdateUI(playerId, playersInfo, current.gameState.getStateForPlayerId(playerId),
+        current.lastGameState == null ? null
+            : current.lastGameState.getStateForPlayerId(playerId),
+        current.lastMove, current.lastMovePlayerId,
+        current.gameState.getPlayerIdToNumberOfTokensInPot());
+  }
+
+  private void sendUpdates() {
+    moveTurnDeadline();
+    Snapshot current = snapshot.get();
+    if (current.version <= sentVersion) {
+      return;
+    }
+    sentVersion = current.version;
+    for (Map.Entry<String, Connection> connection : Maps.newHashMap(connections).entrySet()) {
+      send(connection.getKey(), connection.getValue(), current);
+    }
+    for (String playerId : Lists.newArrayList(subscribers.keySet())) {
+      UpdateFrame frame = getFrame(playerId, current);
+      for (Subscriber subscriber : Lists.newArrayList(subscribers.get(playerId))) {
+        offer(playerId, subscriber, frame);
+      }
+    }
+  }
+
+  /** Moves the deadline of the turn to the current version. */
+  private void moveTurnDeadline() {
+    Snapshot current = snapshot.get();
+    if (current.version == turnDeadlineVersion && turnDeadlines == server.getTurnDeadlines()
+        && !(current.over && turnDeadline != null)) {
+      return;
+    }
+    if (turnDeadline != null) {
+      turnDeadlines.cancel(turnDeadline);
+      turnDeadline = null;
+    }
+    turnDeadlineVersion = current.version;
+    turnDeadlines = server.getTurnDeadlines();
+    if (turnDeadlines != null && !current.over && current.turnPlayerId != null) {
+      int seconds = 0;
+      for (Operation operation : current.lastMove) {
+        if (operation instanceof SetTurn) {
+          seconds = ((SetTurn) operation).getNumberOfSecondsForTurn();
+        }
+      }
+      turnDeadline = turnDeadlines.schedule(this, current.version, seconds);
+    }
+  }
+
+  /** Makes a random move for the player of the turn at version, if the match is still there. */
+  private void playTurn(int version) {
+    Snapshot current = snapshot.get();
+    if (current.version != version || current.over || current.turnPlayerId == null) {
+      return;
+    }
+    List<Operation> move;
+    try {
+      if (turnPlayer == null) {
+        turnPlayer = new RandomPlayer(new Random());
+      }
+      move = turnPlayer.chooseMove(getUpdateUI(current.turnPlayerId, current));
+    } catch (RuntimeException e) {
+      // The presenter refused a choice it offered, so the match cannot go on
+      server.abandon(this);
+      return;
+    }
+    if (move != null) {
+      makeMove(current.turnPlayerId, version, new MakeMove(move));
+    }
+  }
+
+  /** Returns the frame of an audience for a snapshot, encoding it once. */
+  private UpdateFrame getFrame(String playerId, Snapshot current) {
+    UpdateFrame frame = frames.get(playerId);
+    if (frame == null || frame.getVersion() != current.version) {
+      frame = UpdateFrame.encode(id, getUpdateUI(playerId, current), current.version);
+      frames.put(playerId, frame);
+      server.countEncodedFrame();
+    }
+    return frame;
+  }
+
+  private void offer(String playerId, Subscriber subscriber, UpdateFrame frame) {
+    try {
+      subscriber.offer(frame);
+    } catch (RuntimeException e) {
+      subscribers.remove(playerId, subscriber);
+    }
+  }
+
+  private void send(String playerId, Connection connection, Snapshot current) {
+    try {
+      connection.send(getUpdateUI(playerId, current), current.version);
+    } catch (RuntimeException e) {
+      connections.remove(playerId);
+    }
+  }
+
+  private void post(Runnable message) {
+    mailbox.add(message);
+    if (scheduled.compareAndSet(false, true)) {
+      executor.execute(drain);
+    }
+  }
+
+  private void drain() {
+    try {
+      for (int i = 0; i < BATCH; i++) {
+        Runnable message = mailbox.poll();
+        if (message == null) {
+          break;
+        }
+        message.run();
+      }
+    } finally {
+      scheduled.set(false);
+      // A message may have been posted after the last poll, while the match was still scheduled
+      if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+        executor.execute(drain);
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The live matches of a {@link GameServer}, by id. The matches are split into stripes by the
+ * hash of their id, and each stripe has its own lock, so lookups and updates of different
+ * matches seldom wait for each other, and a lock is held only for one map operation. The moves of
+ * a match take no lock at all (see {@link Match#makeMove}).
+ */
+public class MatchRegistry {
+
+  /** The default number of stripes, a power of two. */
+  public static final int STRIPES = 64;
+
+  private final List<Map<String, Match>> stripes;
+  private final int stripeMask;
+  private final AtomicInteger size = new AtomicInteger();
+
+  /** @param stripes The number of locks, a power of two. */
+  public MatchRegistry(int stripes) {
+    checkArgument(stripes > 0 && Integer.bitCount(stripes) == 1);
+    List<Map<String, Match>> maps = Lists.newArrayList();
+    for (int i = 0; i < stripes; i++) {
+      maps.add(Maps.<String, Match>newHashMap());
+    }
+    this.stripes = ImmutableList.copyOf(maps);
+    stripeMask = stripes - 1;
+  }
+
+  public MatchRegistry() {
+    this(STRIPES);
+  }
+
+  /** Returns the match with the id, or null. */
+  public Match get(String id) {
+    Map<String, Match> stripe = getStripe(id);
+    synchronized (stripe) {
+      return stripe.get(id);
+    }
+  }
+
+  public void add(Match match) {
+    Map<String, Match> stripe = getStripe(match.getId());
+    synchronized (stripe) {
+      checkArgument(!stripe.containsKey(match.getId()), "Duplicate match %s", match.getId());
+      stripe.put(match.getId(), match);
+    }
+    size.incrementAndGet();
+  }
+
+  /** Removes the match, and returns false if it was already removed. */
+  public boolean remove(Match match) {
+    Map<String, Match> stripe = getStripe(match.getId());
+    synchronized (stripe) {
+      if (stripe.get(match.getId()) != match) {
+        return false;
+      }
+      stripe.remove(match.getId());
+    }
+    size.decrementAndGet();
+    return true;
+  }
+
+  /** Returns the matches, a stripe at a time: a match added or removed meanwhile may be missed. */
+  public List<Match> getMatches() {
+    List<Match> matches = Lists.newArrayListWithCapacity(size());
+    for (Map<String, Match> stripe : stripes) {
+      synchronized (stripe) {
+        matches.addAll(stripe.values());
+      }
+    }
+    return matches;
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  private Map<String, Match> getStripe(String id) {
+    // Spreads the bits of the hash, since the ids are consecutive numbers
+    int hash = id.hashCode() * 0x9E3779B9;
+    return stripes.get((hash ^ (hash >>> 16)) & stripeMask);
+  }
+}
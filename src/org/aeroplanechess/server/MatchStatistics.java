@@ -0,0 +1,49 @@
+package org.aeroplanechess.server;
+
+/**
+ * Elo and sequential probability ratio test (SPRT) formulas for comparing two players from
+ * their scores (1 for a win, 0.5 for a draw, 0 for a loss).
+ */
+public final class MatchStatistics {
+
+  private MatchStatistics() { }  // Prevent instantiation/subclassing
+
+  /** Scores are clamped away from 0 and 1, where the Elo difference is infinite. */
+  private static final double MIN_SCORE = 1e-4;
+
+  /** Returns the Elo difference that corresponds to the expected score. */
+  public static double getEloDifference(double score) {
+    double clamped = Math.max(MIN_SCORE, Math.min(1 - MIN_SCORE, score));
+    return -400 * Math.log10(1 / clamped - 1);
+  }
+
+  /** Returns the expected score of a player that is elo points stronger. */
+  public static double getExpectedScore(double elo) {
+    return 1 / (1 + Math.pow(10, -elo / 400));
+  }
+
+  /**
+   * Returns the (generalized) SPRT log-likelihood ratio of H1: elo = elo1 against
+   * H0: elo = elo0, given the mean and variance of count independent score samples.
+   */
+  public static double getLogLikelihoodRatio(RunningStatistics scores, double elo0, double elo1) {
+    double variance = scores.getVariance();
+    if (scores.getCount() < 2 || variance <= 0) {
+      return 0;
+    }
+    double score0 = getExpectedScore(elo0);
+    double score1 = getExpectedScore(elo1);
+    return scores.getCount() * (score1 - score0) * (2 * scores.getMean() - score0 - score1)
+        / (2 * variance);
+  }
+
+  /** H0 is accepted once the log-likelihood ratio falls below this bound. */
+  public static double getLowerBound(double alpha, double beta) {
+    return Math.log(beta / (1 - alpha));
+  }
+
+  /** H1 is accepted once the log-likelihood ratio rises above this bound. */
+  public static double getUpperBound(double alpha, double beta) {
+    return Math.log((1 - beta) / alpha);
+  }
+}
@@ -0,0 +1,426 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import org.game_api.GameApi;
+import org.game_api.GameApi.Delete;
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.Set;
+import org.game_api.GameApi.SetRandomInteger;
+import org.game_api.GameApi.SetTurn;
+import org.game_api.GameApi.SetVisibility;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+/**
+ * The binary form of the records of a {@link MoveJournal}. Integers are varints (zigzag when
+ * they can be negative), and the strings of the game (the keys of the state, the parts of a
+ * piece, the actions) are one-byte references to WORDS, so that a move takes about a tenth of
+ * its JSON, and a piece ([location, stacked|unstacked, faceup|facedown]) takes three bytes. The
+ * values are the ones of a GameApi state: Strings, Integers, Booleans, null, lists and maps.
+ *
+ * The archive record of a game (see {@link Checkpointer}) groups its journal records.
+ */
+final class MoveCodec {
+
+  /** Common strings, written as their index: only append to the list, or old journals break. */
+  private static final List<String> WORDS = ImmutableList.of(GameApi.ALL, "die", "action",
+      "R0", "R1", "R2", "R3", "Y0", "Y1", "Y2", "Y3", "lastTwoRolls", "lastTwoMoves", "faceup",
+      "facedown", "stacked", "unstacked", "initialize", "taxi", "move", "stack", "take_shortcut",
+      "jump", "", "42", "43");
+  private static final Map<String, Integer> WORD_INDEX;
+
+  static {
+    ImmutableMap.Builder<String, Integer> wordIndex = ImmutableMap.builder();
+    for (int i = 0; i < WORDS.size(); i++) {
+      wordIndex.put(WORDS.get(i), i);
+    }
+    WORD_INDEX = wordIndex.build();
+  }
+
+  /* Records */
+  private static final int CREATE = 1;
+  private static final int MOVE = 2;
+  private static final int ABANDON = 3;
+  private static final int GAME = 4;
+
+  /* Operations */
+  private static final int SET = 1;
+  private static final int SET_TURN = 2;
+  private static final int SET_RANDOM_INTEGER = 3;
+  private static final int END_GAME = 4;
+  private static final int DELETE = 5;
+  private static final int SET_VISIBILITY = 6;
+
+  /* Values */
+  private static final int NULL = 0;
+  private static final int FALSE = 1;
+  private static final int TRUE = 2;
+  private static final int INTEGER = 3;
+  private static final int STRING = 4;
+  private static final int LIST = 5;
+  private static final int MAP = 6;
+  private static final int PIECE = 7;
+
+  /* The parts of a piece */
+  private static final String ZONES = "HLTF";
+  private static final String STACKED = "stacked";
+  private static final String UNSTACKED = "unstacked";
+  private static final String FACEUP = "faceup";
+  private static final String FACEDOWN = "facedown";
+
+  private MoveCodec() { }
+
+  static byte[] encodeCreate(String matchId, List<String> playerIds) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeByte(CREATE);
+    writeString(out, matchId);
+    writeVarint(out, playerIds.size());
+    for (String playerId : playerIds) {
+      writeString(out, playerId);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @param version The version of the match after the move.
+   * @param die The value of SetRandomInteger in the move, or 0 if there is none.
+   */
+  static byte[] encodeMove(String matchId, int version, String playerId,
+      List<Operation> operations, int die) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput(64);
+    out.writeByte(MOVE);
+    writeString(out, matchId);
+    writeVarint(out, version);
+    writeString(out, playerId);
+    writeVarint(out, die);
+    writeVarint(out, operations.size());
+    for (Operation operation : operations) {
+      writeOperation(out, operation);
+    }
+    return out.toByteArray();
+  }
+
+  /** @param version The version of the match after it was abandoned. */
+  static byte[] encodeAbandon(String matchId, int version) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeByte(ABANDON);
+    writeString(out, matchId);
+    writeVarint(out, version);
+    return out.toByteArray();
+  }
+
+  /** Returns the match id of a record. */
+  static String decodeMatchId(byte[] record) {
+    ByteBuffer in = ByteBuffer.wrap(record);
+    try {
+      in.get();
+      return readString(in);
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Corrupt record", e);
+    }
+  }
+
+  /** Returns the archive record of a game: its journal records, from its creation. */
+  static byte[] encodeGame(String matchId, List<byte[]> records) {
+    ByteArrayDataOutput out = ByteStreams.newDataOutput();
+    out.writeByte(GAME);
+    writeString(out, matchId);
+    writeVarint(out, records.size());
+    for (byte[] record : records) {
+      writeVarint(out, record.length);
+      out.write(record);
+    }
+    return out.toByteArray();
+  }
+
+  /** Returns the journal records of the archive record of a game. */
+  static List<byte[]> decodeGame(byte[] game) {
+    ByteBuffer in = ByteBuffer.wrap(game);
+    try {
+      checkArgument(in.get() == GAME, "Game record expected");
+      readString(in);
+      int size = readVarint(in);
+      List<byte[]> records = Lists.newArrayListWithCapacity(size);
+      for (int i = 0; i < size; i++) {
+        byte[] record = new byte[readVarint(in)];
+        in.get(record);
+        records.add(record);
+      }
+      return records;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Corrupt record", e);
+    }
+  }
+
+  /**
+   * Decodes a record and passes it to replay (the records of a game one by one); throws an
+   * IllegalArgumentException if corrupt.
+   */
+  static void decode(ByteBuffer in, MoveJournal.Replay replay) {
+    try {
+      int type = in.get();
+      String matchId = readString(in);
+      switch (type) {
+        case CREATE:
+          int players = readVarint(in);
+          List<String> playerIds = Lists.newArrayListWithCapacity(players);
+          for (int i = 0; i < players; i++) {
+            playerIds.add(readString(in));
+          }
+          replay.create(matchId, playerIds);
+          break;
+        case MOVE:
+          int version = readVarint(in);
+          String playerId = readString(in);
+          int die = readVarint(in);
+          int size = readVarint(in);
+          List<Operation> operations = Lists.newArrayListWithCapacity(size);
+          for (int i = 0; i < size; i++) {
+            operations.add(readOperation(in));
+          }
+          replay.move(matchId, version, playerId, operations, die);
+          break;
+        case ABANDON:
+          replay.abandon(matchId, readVarint(in));
+          break;
+        case GAME:
+          int records = readVarint(in);
+          for (int i = 0; i < records; i++) {
+            byte[] record = new byte[readVarint(in)];
+            in.get(record);
+            decode(ByteBuffer.wrap(record), replay);
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown record " + type);
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | ClassCastException e) {
+      throw new IllegalArgumentException("Corrupt record", e);
+    }
+  }
+
+  static void writeOperation(ByteArrayDataOutput out, Operation operation) {
+    if (operation instanceof Set) {
+      Set set = (Set) operation;
+      out.writeByte(SET);
+      writeString(out, set.getKey());
+      writeValue(out, set.getValue());
+      writeValue(out, set.getVisibleToPlayerIds());
+    } else if (operation instanceof SetTurn) {
+      SetTurn setTurn = (SetTurn) operation;
+      out.writeByte(SET_TURN);
+      writeString(out, setTurn.getPlayerId());
+      writeVarint(out, setTurn.getNumberOfSecondsForTurn());
+    } else if (operation instanceof SetRandomInteger) {
+      SetRandomInteger setRandomInteger = (SetRandomInteger) operation;
+      out.writeByte(SET_RANDOM_INTEGER);
+      writeString(out, setRandomInteger.getKey());
+      writeVarint(out, zigzag(setRandomInteger.getFrom()));
+      writeVarint(out, zigzag(setRandomInteger.getTo()));
+    } else if (operation instanceof EndGame) {
+      out.writeByte(END_GAME);
+      writeValue(out, ((EndGame) operation).getPlayerIdToScore());
+    } else if (operation instanceof Delete) {
+      out.writeByte(DELETE);
+      writeString(out, ((Delete) operation).getKey());
+    } else if (operation instanceof SetVisibility) {
+      SetVisibility setVisibility = (SetVisibility) operation;
+      out.writeByte(SET_VISIBILITY);
+      writeString(out, setVisibility.getKey());
+      writeValue(out, setVisibility.getVisibleToPlayerIds());
+    } else {
+      // Shuffle and AttemptChangeTokens are not used by the game
+      throw new IllegalArgumentException("Cannot journal " + operation.getMessageName());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  static Operation readOperation(ByteBuffer in) {
+    int type = in.get();
+    switch (type) {
+      case SET: {
+        String key = readString(in);
+        Object value = readValue(in);
+        Object visibleToPlayerIds = readValue(in);
+        return GameApi.ALL.equals(visibleToPlayerIds) ? new Set(key, value)
+            : new Set(key, value, (List<String>) visibleToPlayerIds);
+      }
+      case SET_TURN:
+        return new SetTurn(readString(in), readVarint(in));
+      case SET_RANDOM_INTEGER:
+        return new SetRandomInteger(readString(in), unzigzag(readVarint(in)),
+            unzigzag(readVarint(in)));
+      case END_GAME:
+        return new EndGame((Map<String, Integer>) readValue(in));
+      case DELETE:
+        return new Delete(readString(in));
+      case SET_VISIBILITY: {
+        String key = readString(in);
+        Object visibleToPlayerIds = readValue(in);
+        return GameApi.ALL.equals(visibleToPlayerIds) ? new SetVisibility(key)
+            : new SetVisibility(key, (List<String>) visibleToPlayerIds);
+      }
+      default:
+        throw new IllegalArgumentException("Unknown operation " + type);
+    }
+  }
+
+  static void writeValue(ByteArrayDataOutput out, Object value) {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Integer) {
+      out.writeByte(INTEGER);
+      writeVarint(out, zigzag((Integer) value));
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (isPiece(value)) {
+      List<?> piece = (List<?>) value;
+      String location = (String) piece.get(0);
+      out.writeByte(PIECE);
+      out.writeShort(ZONES.indexOf(location.charAt(0)) << 9
+          | (piece.get(1).equals(STACKED) ? 1 << 8 : 0)
+          | (piece.get(2).equals(FACEUP) ? 1 << 7 : 0)
+          | Integer.parseInt(location.substring(1)));
+    } else if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      out.writeByte(LIST);
+      writeVarint(out, list.size());
+      for (Object element : list) {
+        writeValue(out, element);
+      }
+    } else if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeByte(MAP);
+      writeVarint(out, map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeString(out, (String) entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    } else {
+      throw new IllegalArgumentException("Cannot journal " + value.getClass());
+    }
+  }
+
+  static Object readValue(ByteBuffer in) {
+    int type = in.get();
+    switch (type) {
+      case NULL:
+        return null;
+      case FALSE:
+        return false;
+      case TRUE:
+        return true;
+      case INTEGER:
+        return unzigzag(readVarint(in));
+      case STRING:
+        return readString(in);
+      case LIST: {
+        int size = readVarint(in);
+        List<Object> list = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(in));
+        }
+        return list;
+      }
+      case MAP: {
+        int size = readVarint(in);
+        Map<String, Object> map = Maps.newHashMapWithExpectedSize(size);
+        for (int i = 0; i < size; i++) {
+          map.put(readString(in), readValue(in));
+        }
+        return map;
+      }
+      case PIECE: {
+        int piece = in.getShort();
+        int number = piece & 0x7F;
+        return Lists.<Object>newArrayList(
+            ZONES.charAt(piece >> 9 & 3) + (number < 10 ? "0" : "") + number,
+            (piece & 1 << 8) != 0 ? STACKED : UNSTACKED, (piece & 1 << 7) != 0 ? FACEUP : FACEDOWN);
+      }
+      default:
+        throw new IllegalArgumentException("Unknown value " + type);
+    }
+  }
+
+  /** Whether the value is a piece: [location, stacked|unstacked, faceup|facedown]. */
+  private static boolean isPiece(Object value) {
+    if (!(value instanceof List) || ((List<?>) value).size() != 3) {
+      return false;
+    }
+    List<?> piece = (List<?>) value;
+    if (!(piece.get(0) instanceof String)) {
+      return false;
+    }
+    String location = (String) piece.get(0);
+    return location.length() == 3 && ZONES.indexOf(location.charAt(0)) >= 0
+        && Character.isDigit(location.charAt(1)) && Character.isDigit(location.charAt(2))
+        && (STACKED.equals(piece.get(1)) || UNSTACKED.equals(piece.get(1)))
+        && (FACEUP.equals(piece.get(2)) || FACEDOWN.equals(piece.get(2)));
+  }
+
+  /** Writes a word as (index << 1 | 1), and any other string as (length << 1) and its UTF-8. */
+  static void writeString(ByteArrayDataOutput out, String string) {
+    Integer index = WORD_INDEX.get(string);
+    if (index != null) {
+      writeVarint(out, index << 1 | 1);
+      return;
+    }
+    byte[] bytes = string.getBytes(Charsets.UTF_8);
+    writeVarint(out, bytes.length << 1);
+    out.write(bytes);
+  }
+
+  static String readString(ByteBuffer in) {
+    int header = readVarint(in);
+    if ((header & 1) == 1) {
+      return WORDS.get(header >>> 1);
+    }
+    byte[] bytes = new byte[header >>> 1];
+    in.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  static void writeVarint(ByteArrayDataOutput out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  static int readVarint(ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private static int unzigzag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
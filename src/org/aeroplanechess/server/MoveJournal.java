@@ -0,0 +1,393 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+import org.game_api.GameApi.Operation;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * An append-only journal of the matches of a {@link GameServer}: their creation, every move
+ * that was applied (with the value of its die, so that replaying it gives the same state), and
+ * their abandonment. It is written to segment files of a fixed size through memory-mapped
+ * buffers, so an append is a copy into memory, and is in the page cache (it survives a crash of
+ * the process) as soon as it returns. A record is its length, its CRC32 and its MoveCodec form;
+ * the end of the journal is the first record that is empty, torn or corrupt.
+ *
+ * How often the segment is forced to the disk (it survives a crash of the machine) depends on
+ * the SyncPolicy. With ALWAYS, a move waits until it is forced, but the moves commit in groups:
+ * one thread forces everything written so far while the others wait, and they find their moves
+ * forced when it is done.
+ *
+ * On startup, {@link #replay} reads the journal back (see {@link GameServer#recover}), from the
+ * offset of the last snapshot, and the appends start after its last record. The segments before
+ * the snapshot are compacted by the {@link Checkpointer}.
+ */
+public class MoveJournal implements Closeable {
+
+  /** When appended records are forced to the disk. */
+  public enum SyncPolicy {
+    /** Before the append is acknowledged, with group commit. */
+    ALWAYS,
+    /** Every sync interval, in the background; a crash of the machine loses the last interval. */
+    INTERVAL,
+    /** Only when a segment is full; a crash of the machine loses the current segment. */
+    NEVER
+  }
+
+  /** Receives the records of the journal, in the order they were appended. */
+  public interface Replay {
+    void create(String matchId, List<String> playerIds);
+
+    /**
+     * @param version The version of the match after the move.
+     * @param die The value of the move's SetRandomInteger, or 0 if it has none.
+     */
+    void move(String matchId, int version, String playerId, List<Operation> operations, int die);
+
+    /** @param version The version of the match after it was abandoned. */
+    void abandon(String matchId, int version);
+  }
+
+  public static final int SEGMENT_BYTES = 64 << 20;
+  public static final long SYNC_INTERVAL_MILLIS = 100;
+  private static final String SUFFIX = ".journal";
+  /** The length and the CRC32 of a record. */
+  private static final int HEADER_BYTES = 8;
+
+  private final File directory;
+  private final SyncPolicy syncPolicy;
+  private final int segmentBytes;
+  private final ScheduledExecutorService syncer;
+  private final Object syncLock = new Object();
+  private final AtomicLong syncs = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+
+  /* Guarded by this */
+  private boolean replayed;
+  private boolean closed;
+  private MappedByteBuffer segment;
+  /** The offset in the journal of the first byte of the segment. */
+  private long segmentOffset;
+  private final List<Long> segmentOffsets = Lists.newArrayList();
+
+  /** The offset in the journal after the last record written. */
+  private volatile long writtenOffset;
+  /** The offset in the journal after the last record forced to the disk. */
+  private volatile long syncedOffset;
+
+  /**
+   * @param segmentBytes The size of a segment file, the most bytes mapped at a time.
+   * @param syncIntervalMillis The sync interval of SyncPolicy.INTERVAL.
+   */
+  public MoveJournal(File directory, SyncPolicy syncPolicy, int segmentBytes,
+      long syncIntervalMillis) throws IOException {
+    checkArgument(segmentBytes > HEADER_BYTES && syncIntervalMillis > 0);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    this.directory = directory;
+    this.syncPolicy = syncPolicy;
+    this.segmentBytes = segmentBytes;
+    if (syncPolicy == SyncPolicy.INTERVAL) {
+      syncer = Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("move-journal-sync").setDaemon(true).build());
+      syncer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sync(writtenOffset);
+          } catch (IOException e) {
+            // Retried at the next interval
+          }
+        }
+      }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      syncer = null;
+    }
+  }
+
+  public MoveJournal(File directory, SyncPolicy syncPolicy) throws IOException {
+    this(directory, syncPolicy, SEGMENT_BYTES, SYNC_INTERVAL_MILLIS);
+  }
+
+  public SyncPolicy getSyncPolicy() {
+    return syncPolicy;
+  }
+
+  /** The number of times the journal was forced to the disk. */
+  public long getSyncs() {
+    return syncs.get();
+  }
+
+  /** The number of records replayed and appended. */
+  public long getRecords() {
+    return records.get();
+  }
+
+  /** The size of the journal, in bytes. */
+  public long getOffset() {
+    return writtenOffset;
+  }
+
+  /** Reads the records of a segment, without decoding them. */
+  interface RecordReader {
+    void read(byte[] record);
+  }
+
+  /**
+   * Passes the records of the journal to replay, and opens it for appends after the last one. A
+   * torn or corrupt record ends the journal: the rest of its segment is cleared, and the later
+   * segments are deleted. Must be called once, before the first append.
+   */
+  public void replay(Replay replay) throws IOException {
+    replay(replay, 0);
+  }
+
+  /**
+   * Replays the records from fromOffset, the offset of a snapshot (see {@link Checkpointer}); the
+   * segments before it may have been compacted.
+   */
+  public synchronized void replay(final Replay replay, long fromOffset) throws IOException {
+    checkState(!replayed, "Already replayed");
+    replayed = true;
+    List<Long> offsets = listSegments();
+    if (offsets.isEmpty() ? fromOffset > 0 : offsets.get(0) > fromOffset) {
+      throw new IOException("The journal has no records at offset " + fromOffset);
+    }
+    RecordReader reader = new RecordReader() {
+      @Override
+      public void read(byte[] record) {
+        MoveCodec.decode(ByteBuffer.wrap(record), replay);
+        records.incrementAndGet();
+      }
+    };
+    boolean ended = false;
+    for (int i = 0; i < offsets.size(); i++) {
+      long offset = offsets.get(i);
+      if (ended) {
+        delete(segmentFile(offset));
+        continue;
+      }
+      segmentOffsets.add(offset);
+      if (i + 1 < offsets.size() && offsets.get(i + 1) <= fromOffset) {
+        // Before the snapshot
+        continue;
+      }
+      segmentOffset = offset;
+      segment = map(segmentFile(offset));
+      int position = read(segment, (int) Math.max(0, fromOffset - offset), reader);
+      segment.position(position);
+      writtenOffset = segmentOffset + position;
+      if (position + HEADER_BYTES <= segmentBytes && segment.getInt(position) != 0) {
+        // A torn or corrupt record: clear it, so that it is not read after the next appends
+        while (segment.hasRemaining()) {
+          segment.put((byte) 0);
+        }
+        segment.force();
+        segment.position(position);
+        ended = true;
+      }
+    }
+    if (segment == null) {
+      segmentOffset = 0;
+      segment = map(segmentFile(0));
+      segmentOffsets.add(0L);
+      writtenOffset = 0;
+    }
+    syncedOffset = writtenOffset;
+  }
+
+  /** Returns the offsets of the segments, from the oldest to the one appended to. */
+  synchronized List<Long> getSegmentOffsets() {
+    return ImmutableList.copyOf(segmentOffsets);
+  }
+
+  /** Reads the records of a full segment (not the one appended to). */
+  void readSegment(long offset, RecordReader reader) throws IOException {
+    File file;
+    synchronized (this) {
+      checkArgument(segmentOffsets.contains(offset) && offset != segmentOffset);
+      file = segmentFile(offset);
+    }
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      FileChannel channel = randomAccessFile.getChannel();
+      read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), 0, reader);
+    }
+  }
+
+  /** Deletes a full segment (not the one appended to), once its records are compacted. */
+  synchronized void deleteSegment(long offset) throws IOException {
+    checkArgument(segmentOffsets.contains(offset) && offset != segmentOffset);
+    delete(segmentFile(offset));
+    segmentOffsets.remove(Long.valueOf(offset));
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** Appends a record, and returns the offset after it. */
+  public long append(byte[] record) throws IOException {
+    return append(record, null, null, null);
+  }
+
+  /**
+   * Appends a record if reference is set from expect to update, and returns the offset after it,
+   * or -1 if reference was not expect. The compare-and-set is made while the journal is locked,
+   * so that the records of a match are in the order of its changes.
+   */
+  public synchronized <T> long append(byte[] record, AtomicReference<T> reference, T expect,
+      T update) throws IOException {
+    checkState(replayed && !closed, "The journal is not open");
+    int length = HEADER_BYTES + record.length;
+    checkArgument(length <= segmentBytes, "The record is larger than a segment");
+    if (segment.remaining() < length) {
+      nextSegment();
+    }
+    if (reference != null && !reference.compareAndSet(expect, update)) {
+      return -1;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    segment.putInt(record.length);
+    segment.putInt((int) crc.getValue());
+    segment.put(record);
+    writtenOffset = segmentOffset + segment.position();
+    records.incrementAndGet();
+    return writtenOffset;
+  }
+
+  /**
+   * Waits until the records up to offset are as durable as the SyncPolicy requires: with ALWAYS,
+   * until they are forced to the disk.
+   */
+  public void commit(long offset) throws IOException {
+    if (syncPolicy == SyncPolicy.ALWAYS) {
+      sync(offset);
+    }
+  }
+
+  /** Forces the records up to offset to the disk, with the ones appended meanwhile. */
+  public void sync(long offset) throws IOException {
+    if (syncedOffset >= offset) {
+      return;
+    }
+    synchronized (syncLock) {
+      // Another thread may have forced the record while this one waited
+      if (syncedOffset >= offset) {
+        return;
+      }
+      MappedByteBuffer buffer;
+      long target;
+      synchronized (this) {
+        buffer = segment;
+        target = writtenOffset;
+      }
+      buffer.force();
+      syncs.incrementAndGet();
+      syncedOffset = target;
+    }
+  }
+
+  /** Forces the journal to the disk; it takes no more appends. */
+  @Override
+  public void close() throws IOException {
+    if (syncer != null) {
+      syncer.shutdownNow();
+    }
+    synchronized (this) {
+      if (closed || segment == null) {
+        closed = true;
+        return;
+      }
+      closed = true;
+    }
+    sync(writtenOffset);
+  }
+
+  /** Reads the records from position, and returns the position after the last one. */
+  private static int read(ByteBuffer buffer, int position, RecordReader reader) {
+    CRC32 crc = new CRC32();
+    while (position + HEADER_BYTES <= buffer.limit()) {
+      int length = buffer.getInt(position);
+      if (length <= 0 || length > buffer.limit() - position - HEADER_BYTES) {
+        break;
+      }
+      byte[] record = new byte[length];
+      buffer.position(position + HEADER_BYTES);
+      buffer.get(record);
+      crc.reset();
+      crc.update(record);
+      if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+        break;
+      }
+      reader.read(record);
+      position += HEADER_BYTES + length;
+    }
+    return position;
+  }
+
+  /** Forces the full segment, and maps the next one. Called with the lock held. */
+  private void nextSegment() throws IOException {
+    segment.force();
+    long offset = segmentOffset + segment.position();
+    segment = map(segmentFile(offset));
+    segmentOffset = offset;
+    segmentOffsets.add(offset);
+  }
+
+  /** Returns the offsets of the segment files, in order. */
+  private List<Long> listSegments() {
+    File[] files = directory.listFiles();
+    List<Long> offsets = Lists.newArrayList();
+    for (File file : files == null ? new File[0] : files) {
+      if (file.getName().endsWith(SUFFIX)) {
+        offsets.add(parseOffset(file));
+      }
+    }
+    Collections.sort(offsets);
+    return offsets;
+  }
+
+  private static void delete(File file) throws IOException {
+    if (!file.delete()) {
+      throw new IOException("Cannot delete " + file);
+    }
+  }
+
+  private File segmentFile(long offset) {
+    return new File(directory, String.format("%020d%s", offset, SUFFIX));
+  }
+
+  private static long parseOffset(File file) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  private MappedByteBuffer map(File file) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after the file is closed
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+  }
+}
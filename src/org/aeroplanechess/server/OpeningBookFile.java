@@ -0,0 +1,192 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.aeroplanechess.ai.ExpectimaxStrategy;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.OpeningBook;
+import org.aeroplanechess.ai.OpeningBookBuilder;
+import org.aeroplanechess.ai.TranspositionTable;
+import org.aeroplanechess.ai.WeightedEvaluator;
+import org.aeroplanechess.client.AeroplaneChessState;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Builds the opening book (see {@link OpeningBook}) into a file, and maps such a file into
+ * memory, so that a server loads it lazily: the pages are only read when the AI first looks up
+ * their entries.
+ *
+ * The file is big-endian: a header of the magic number, the version and the number of entries,
+ * then the keys of all the entries in ascending order (eight bytes each), their scaled values
+ * (two bytes each) and their decisions (one byte each). The keys come first and together, so
+ * that a binary search touches few pages.
+ *
+ * Usage: OpeningBookFile [--rolls=N] [--depth=N] [--threads=N] FILE
+ * searches the states within N die rolls of the start (5 by default: about 24,000 states; each
+ * roll more multiplies them by about eight) with expectimax to the given depth (3 by default)
+ * and the evaluator weights of {@link AiStrategies}.
+ */
+public final class OpeningBookFile {
+
+  private OpeningBookFile() { }  // Prevent instantiation/subclassing
+
+  static final int MAGIC = 0x41454F42;  // "AEOB"
+  static final int VERSION = 1;
+  private static final int HEADER_BYTES = 4 * 3;
+  private static final int ENTRY_BYTES = 8 + 2 + 1;
+
+  /** States are split into chunks of this size for the threads. */
+  private static final int CHUNK = 64;
+
+  /** The entries of a mapped file. Reads don't change the buffer, so they are thread-safe. */
+  private static class MappedStorage implements OpeningBook.Storage {
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int valueOffset;
+    private final int decisionOffset;
+
+    MappedStorage(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      checkArgument(buffer.getInt(0) == MAGIC, "Not an opening book file");
+      checkArgument(buffer.getInt(4) == VERSION, "Unsupported version %s", buffer.getInt(4));
+      size = buffer.getInt(8);
+      checkArgument(HEADER_BYTES + (long) size * ENTRY_BYTES == buffer.capacity(),
+          "Bad file size");
+      valueOffset = HEADER_BYTES + 8 * size;
+      decisionOffset = valueOffset + 2 * size;
+    }
+
+    @Override
+    public int getSize() {
+      return size;
+    }
+
+    @Override
+    public long getKey(int index) {
+      return buffer.getLong(HEADER_BYTES + 8 * index);
+    }
+
+    @Override
+    public int getDecision(int index) {
+      return buffer.get(decisionOffset + index);
+    }
+
+    @Override
+    public int getScaledValue(int index) {
+      return buffer.getShort(valueOffset + 2 * index);
+    }
+  }
+
+  /** Maps the file read-only. */
+  public static OpeningBook.Storage map(File file) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      // The mapping stays valid once the file is closed
+      return new MappedStorage(randomAccessFile.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length()));
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+  public static void write(OpeningBook.Storage storage, File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      int size = storage.getSize();
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(size);
+      for (int index = 0; index < size; index++) {
+        out.writeLong(storage.getKey(index));
+      }
+      for (int index = 0; index < size; index++) {
+        out.writeShort(storage.getScaledValue(index));
+      }
+      for (int index = 0; index < size; index++) {
+        out.writeByte(storage.getDecision(index));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Searches the states within rolls die rolls of the start on several threads, which share one
+   * transposition table.
+   */
+  public static OpeningBook.MemoryStorage build(int rolls, final int depth, int threads)
+      throws InterruptedException, ExecutionException {
+    long start = System.currentTimeMillis();
+    final OpeningBookBuilder builder = new OpeningBookBuilder();
+    final TranspositionTable table =
+        new TranspositionTable(256 << 20, TranspositionTable.SHARED_EPOCH_SEARCHES);
+    List<AeroplaneChessState> states = OpeningBookBuilder.getStates(rolls);
+    List<Callable<Void>> chunks = Lists.newArrayList();
+    for (int from = 0; from < states.size(); from += CHUNK) {
+      final List<AeroplaneChessState> chunk =
+          states.subList(from, Math.min(states.size(), from + CHUNK));
+      chunks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          ExpectimaxStrategy strategy = new ExpectimaxStrategy(
+              new WeightedEvaluator(AiStrategies.WEIGHTS), depth, true, table);
+          MutableState state = new MutableState();
+          for (AeroplaneChessState canonical : chunk) {
+            builder.search(canonical, strategy, state);
+          }
+          return null;
+        }
+      });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<Void> chunk : executor.invokeAll(chunks)) {
+        chunk.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    System.out.println("Opening book: " + states.size() + " entries, "
+        + (System.currentTimeMillis() - start) / 1000 + " s");
+    return builder.getStorage();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rolls = 5;
+    int depth = 3;
+    int threads = Runtime.getRuntime().availableProcessors();
+    File file = null;
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--rolls=")) {
+        rolls = Integer.parseInt(value);
+      } else if (arg.startsWith("--depth=")) {
+        depth = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else {
+        file = new File(arg);
+      }
+    }
+    checkArgument(file != null, "Usage: OpeningBookFile [--rolls=N] [--depth=N] [--threads=N] "
+        + "FILE");
+    write(build(rolls, depth, threads), file);
+  }
+}
@@ -0,0 +1,106 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import org.aeroplanechess.ai.AiStrategy;
+import org.aeroplanechess.ai.Decision;
+import org.aeroplanechess.ai.MctsStrategy;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.RandomStrategy;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Monte Carlo Tree Search on several threads (root parallelization): every worker grows its own
+ * {@link MctsStrategy} tree from its own copy of the state, with its own random numbers, until the
+ * shared deadline. The root visits of all the trees are then added up, and the decision that was
+ * searched the most overall is played. Since the workers share nothing while they search, they
+ * scale with the number of cores.
+ *
+ * Like every strategy, one instance must only be used by one thread at a time; the workers run
+ * on the given fork-join pool, which can be shared with other strategies.
+ */
+public class ParallelMctsStrategy implements AiStrategy {
+
+  private final ForkJoinPool pool;
+  private final int timeBudgetMillis;
+  private final List<Worker> workers = Lists.newArrayList();
+  private final int[] decisionVisits = new int[Decision.LIMIT];
+
+  private static class Worker implements Callable<Void> {
+    private final MctsStrategy mcts;
+    private final MutableState state = new MutableState();
+    private final int[] decisions = new int[MutableState.MAX_DECISIONS];
+    private final int[] visits = new int[MutableState.MAX_DECISIONS];
+    private long deadlineMillis;
+
+    Worker(MctsStrategy mcts) {
+      this.mcts = mcts;
+    }
+
+    @Override
+    public Void call() {
+      mcts.startSearch(state);
+      mcts.search(deadlineMillis);
+      return null;
+    }
+  }
+
+  /**
+   * @param workers The number of trees searched in parallel.
+   * @param maxIterations The most playouts of each tree.
+   * @param timeBudgetMillis The longest a search may take (0 for no limit).
+   */
+  public ParallelMctsStrategy(ForkJoinPool pool, int workers, int maxIterations,
+      int timeBudgetMillis, long seed) {
+    checkArgument(workers > 0);
+    this.pool = pool;
+    this.timeBudgetMillis = timeBudgetMillis;
+    for (int i = 0; i < workers; i++) {
+      Random random = new Random(seed + i);
+      this.workers.add(new Worker(new MctsStrategy(
+          new RandomStrategy(random), random, maxIterations, timeBudgetMillis)));
+    }
+  }
+
+  @Override
+  public int chooseDecision(MutableState state) {
+    long deadlineMillis = timeBudgetMillis == 0
+        ? Long.MAX_VALUE : System.currentTimeMillis() + timeBudgetMillis;
+    for (Worker worker : workers) {
+      worker.state.copyFrom(state);
+      worker.deadlineMillis = deadlineMillis;
+    }
+    pool.invokeAll(workers);
+
+    int best = -1;
+    for (int i = 0; i < decisionVisits.length; i++) {
+      decisionVisits[i] = 0;
+    }
+    for (Worker worker : workers) {
+      int count = worker.mcts.getRootVisits(worker.decisions, worker.visits);
+      for (int i = 0; i < count; i++) {
+        int decision = worker.decisions[i];
+        decisionVisits[decision] += worker.visits[i];
+        if (best == -1 || decisionVisits[decision] > decisionVisits[best]) {
+          best = decision;
+        }
+      }
+    }
+    return best;
+  }
+
+  /** The number of playouts of the last search, over all the workers. */
+  public long getIterations() {
+    long iterations = 0;
+    for (Worker worker : workers) {
+      iterations += worker.mcts.getIterations();
+    }
+    return iterations;
+  }
+}
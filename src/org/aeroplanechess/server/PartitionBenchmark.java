@@ -0,0 +1,282 @@
+package org.aeroplanechess.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.SetTurn;
+import org.game_api.GameApi.UpdateUI;
+import org.game_api.GameApi.VerifyMoveDone;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs a {@link PartitionRouter} over --nodes {@link GameHttpServer} processes on this machine,
+ * and plays --matches matches through it, over HTTP, with --players threads of
+ * {@link RandomPlayer}s. A third of the way through --seconds another process joins, and at two
+ * thirds the first one leaves; the benchmark reports the matches of every node, the matches each
+ * rebalance migrated (against the 1 / nodes that consistent hashing moves) and how long it took,
+ * the moves per second, and the moves that failed. A lost match (one the router no longer finds
+ * before it is over) or a rejected move is a failure.
+ *
+ * Usage: PartitionBenchmark [--nodes=N] [--matches=N] [--players=N] [--seconds=S] [--seed=S]
+ */
+public class PartitionBenchmark {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+  private static final long START_TIMEOUT_MILLIS = 30000;
+
+  private final String router;
+  private final Queue<String> matchIds = new ConcurrentLinkedQueue<String>();
+  private final AtomicLong moves = new AtomicLong();
+  private final AtomicLong finished = new AtomicLong();
+  private final AtomicLong abandoned = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+  private volatile boolean stopped;
+
+  private PartitionBenchmark(String router) {
+    this.router = router;
+  }
+
+  /** Plays moves of the matches, a move of a match at a time, until stopped. */
+  private void play(long seed) {
+    RandomPlayer player = new RandomPlayer(new Random(seed));
+    while (!stopped) {
+      String matchId = matchIds.poll();
+      if (matchId == null) {
+        return;
+      }
+      try {
+        if (playMove(player, matchId)) {
+          matchIds.add(matchId);
+        }
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Match " + matchId + ": " + e);
+        lost.incrementAndGet();
+      }
+    }
+  }
+
+  /** Plays the move of the player of the turn; returns false once the match is over. */
+  private boolean playMove(RandomPlayer player, String matchId) throws IOException {
+    PartitionRouter.Response view = get(matchId, PLAYER_IDS.get(0));
+    if (view.status == 404) {
+      lost.incrementAndGet();
+      return false;
+    }
+    String turnPlayerId = PLAYER_IDS.get(0);
+    for (Operation operation : ((UpdateUI) Json.toMessage(view.body)).getLastMove()) {
+      if (operation instanceof SetTurn) {
+        turnPlayerId = ((SetTurn) operation).getPlayerId();
+      }
+    }
+    PartitionRouter.Response turn = get(matchId, turnPlayerId);
+    if (turn.status == 404) {
+      lost.incrementAndGet();
+      return false;
+    }
+    List<Operation> move;
+    try {
+      move = player.chooseMove((UpdateUI) Json.toMessage(turn.body));
+    } catch (RuntimeException e) {
+      // The presenter refused a choice it offered, so the match cannot go on
+      abandoned.incrementAndGet();
+      return false;
+    }
+    if (move == null) {
+      abandoned.incrementAndGet();
+      return false;
+    }
+    PartitionRouter.Response response = PartitionRouter.send(router, "POST",
+        "/matches/" + matchId + "?playerId=" + turnPlayerId, turn.etag,
+        Json.toJson(new MakeMove(move)));
+    if (response.status != 200
+        || ((VerifyMoveDone) Json.toMessage(response.body)).getHackerPlayerId() != null) {
+      System.err.println("Match " + matchId + ": move rejected: " + response.body);
+      rejected.incrementAndGet();
+      return true;
+    }
+    moves.incrementAndGet();
+    for (Operation operation : move) {
+      if (operation instanceof EndGame) {
+        finished.incrementAndGet();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private PartitionRouter.Response get(String matchId, String playerId) throws IOException {
+    return PartitionRouter.send(router, "GET", "/matches/" + matchId + "?playerId=" + playerId,
+        null, null);
+  }
+
+  /** Starts a GameHttpServer process on a free port, and returns it once it serves. */
+  private static Process startNode(int port) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+        + "java";
+    Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        GameHttpServer.class.getName(), "--port=" + port, "--threads=8")
+        .redirectErrorStream(true).start();
+    final BufferedReader out =
+        new BufferedReader(new InputStreamReader(process.getInputStream(), Charsets.UTF_8));
+    long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+    String line;
+    while ((line = out.readLine()) != null && !line.startsWith("Serving")) {
+      if (System.currentTimeMillis() > deadline) {
+        break;
+      }
+    }
+    if (line == null || !line.startsWith("Serving")) {
+      process.destroy();
+      throw new IOException("The node on port " + port + " did not start");
+    }
+    // Drains the output of the node, so that it never blocks on it
+    Thread drain = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (out.readLine() != null) { }
+        } catch (IOException e) {
+          // The node exited
+        }
+      }
+    });
+    drain.setDaemon(true);
+    drain.start();
+    return process;
+  }
+
+  private static int getFreePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static String describe(PartitionRouter router) throws IOException {
+    Map<String, Integer> matches = Maps.newTreeMap();
+    for (String node : router.getRing().getNodes()) {
+      matches.put(node, router.getMatchIds(node).size());
+    }
+    return matches.toString();
+  }
+
+  private static void rebalance(PartitionRouter router, String node, boolean add)
+      throws IOException {
+    int before = 0;
+    for (String other : router.getRing().getNodes()) {
+      before += router.getMatchIds(other).size();
+    }
+    long start = System.nanoTime();
+    int migrated = add ? router.addNode(node) : router.removeNode(node);
+    System.out.println(String.format("%s %s in %.0f ms: migrated %d of %d matches (%.1f%%, "
+        + "expected %.1f%%); matches by node: %s", add ? "Added" : "Removed", node,
+        (System.nanoTime() - start) / 1e6, migrated, before, 100.0 * migrated / Math.max(1, before),
+        100.0 / (router.getRing().getNodes().size() + (add ? 0 : 1)),
+        describe(router)));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int nodeCount = 3;
+    int matchCount = 300;
+    int playerCount = 4;
+    long seconds = 30;
+    long seed = System.nanoTime();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--nodes=")) {
+        nodeCount = Integer.parseInt(value);
+      } else if (arg.startsWith("--matches=")) {
+        matchCount = Integer.parseInt(value);
+      } else if (arg.startsWith("--players=")) {
+        playerCount = Integer.parseInt(value);
+      } else if (arg.startsWith("--seconds=")) {
+        seconds = Long.parseLong(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      }
+    }
+    final List<Process> processes = Lists.newArrayList();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        for (Process process : processes) {
+          process.destroy();
+        }
+      }
+    });
+    List<String> nodes = Lists.newArrayList();
+    for (int i = 0; i <= nodeCount; i++) {
+      int port = getFreePort();
+      processes.add(startNode(port));
+      nodes.add("localhost:" + port);
+    }
+    String joining = nodes.remove(nodeCount);
+    PartitionRouter router = new PartitionRouter(nodes, 0, 16);
+    router.start();
+    final PartitionBenchmark benchmark = new PartitionBenchmark("localhost:" + router.getPort());
+    for (int i = 0; i < matchCount; i++) {
+      PartitionRouter.Response created =
+          PartitionRouter.send(benchmark.router, "POST", "/matches", null, "");
+      benchmark.matchIds.add((String) ((Map<?, ?>) Json.parse(created.body)).get("matchId"));
+    }
+    System.out.println(String.format("%d nodes, %d matches by node: %s; ring shares: %s",
+        nodeCount, matchCount, describe(router), router.getRing().getShares()));
+
+    List<Thread> players = Lists.newArrayList();
+    Random random = new Random(seed);
+    for (int i = 0; i < playerCount; i++) {
+      final long playerSeed = random.nextLong();
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          benchmark.play(playerSeed);
+        }
+      }, "player-" + i);
+      thread.start();
+      players.add(thread);
+    }
+    long start = System.nanoTime();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds) / 3);
+    rebalance(router, joining, true);
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds) / 3);
+    rebalance(router, nodes.get(0), false);
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds) / 3);
+    benchmark.stopped = true;
+    for (Thread thread : players) {
+      thread.join();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    // The matches still playing must all be found where the router looks for them
+    for (String matchId : benchmark.matchIds) {
+      if (benchmark.get(matchId, PLAYER_IDS.get(0)).status != 200) {
+        benchmark.lost.incrementAndGet();
+      }
+    }
+    System.out.println(String.format("%d moves in %.1f s (%.0f moves/s): %d matches finished, "
+        + "%d abandoned by their players, %d still playing; %d moves rejected, %d matches lost; "
+        + "router: %s", benchmark.moves.get(), elapsed, benchmark.moves.get() / elapsed,
+        benchmark.finished.get(), benchmark.abandoned.get(), benchmark.matchIds.size(),
+        benchmark.rejected.get(), benchmark.lost.get(), router.getMetrics()));
+    router.stop();
+    for (Process process : processes) {
+      process.destroy();
+    }
+  }
+}
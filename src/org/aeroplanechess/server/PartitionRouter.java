@@ -0,0 +1,412 @@
+package org.aeroplanechess.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Partitions the matches over several {@link GameHttpServer} processes, the nodes, named by
+ * their host:port: the router serves the same HTTP API as a node, and forwards every request on
+ * a match, with its GameApi message, to the node that owns the match in a {@link HashRing}. The
+ * router names the matches, so that it knows their node before they exist: POST /matches
+ * creates the match with the next id on its node (see {@link GameServer#createMatch(String,
+ * List)}). A body longer than a node would read ({@link GameHttpServer#MAX_BODY_BYTES}) answers
+ * 413 without being forwarded.
+ *
+ * POST /nodes with {"node": "host:port"} adds a node, DELETE /nodes/host:port removes one, and
+ * GET /nodes answers the nodes and their matches; POST /nodes without a node migrates the
+ * matches that are not on their node. A change of the nodes rebalances the matches:
+ * the router switches to the new ring, and then migrates every match whose node changed, by
+ * detaching it from its old node and attaching its snapshot (its GameState, turn and last move)
+ * to the new one. Meanwhile a request for a migrating match finds it on neither node, and the
+ * router retries it until the match is attached; a move that raced with the detach is rejected
+ * by the old node as a stale move, and retried on the new one.
+ *
+ * Usage: PartitionRouter [--port=N] [--threads=N] host:port ...
+ * See {@link PartitionBenchmark} for a run with several local processes.
+ */
+public class PartitionRouter {
+
+  private static final long RETRY_MILLIS = 5;
+  private static final long RETRY_TIMEOUT_MILLIS = 2000;
+  private static final int TIMEOUT_MILLIS = 10000;
+
+  /** A response of a node. */
+  static final class Response {
+    final int status;
+    final String body;
+    final String etag;
+
+    Response(int status, String body, String etag) {
+      this.status = status;
+      this.body = body;
+      this.etag = etag;
+    }
+  }
+
+  private final HttpServer httpServer;
+  private final ExecutorService executor;
+  /* The ring is read by the requests, and replaced by a rebalance under the write lock */
+  private final ReadWriteLock ringLock = new ReentrantReadWriteLock();
+  private volatile HashRing ring;
+  private final AtomicLong nextId = new AtomicLong();
+  /* The migrations in progress, during which a missing match is retried */
+  private final AtomicInteger migrations = new AtomicInteger();
+  /* The rebalances finished, so that a match missed while one ran is retried after it ended */
+  private final AtomicLong rebalances = new AtomicLong();
+  private final AtomicLong forwarded = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong migrated = new AtomicLong();
+
+  public PartitionRouter(Collection<String> nodes, int port, int threads) throws IOException {
+    ring = new HashRing(nodes);
+    httpServer = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    httpServer.createContext("/matches", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleMatches(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    httpServer.createContext("/nodes", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          handleNodes(exchange);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setNameFormat("partition-router-%d").setDaemon(true).build());
+    httpServer.setExecutor(executor);
+  }
+
+  /** Starts serving; the ids of the new matches follow the ids of the nodes' live matches. */
+  public void start() throws IOException {
+    for (String node : ring.getNodes()) {
+      for (String matchId : getMatchIds(node)) {
+        try {
+          nextId.set(Math.max(nextId.get(), Long.parseLong(matchId)));
+        } catch (NumberFormatException e) {
+          // Not an id of a router
+        }
+      }
+    }
+    httpServer.start();
+  }
+
+  public int getPort() {
+    return httpServer.getAddress().getPort();
+  }
+
+  public void stop() {
+    httpServer.stop(0);
+    executor.shutdownNow();
+  }
+
+  public HashRing getRing() {
+    return ring;
+  }
+
+  public String getMetrics() {
+    return String.format("%d nodes, %d requests forwarded, %d retried, %d matches migrated",
+        ring.getNodes().size(), forwarded.get(), retried.get(), migrated.get());
+  }
+
+  /** Adds a node, and migrates the matches it now owns to it; returns the matches migrated. */
+  public synchronized int addNode(String node) throws IOException {
+    return rebalance(ring.withNode(node));
+  }
+
+  /** Migrates the matches of a node to the others, and removes it; returns the matches migrated. */
+  public synchronized int removeNode(String node) throws IOException {
+    return rebalance(ring.withoutNode(node));
+  }
+
+  /**
+   * Migrates the matches that are not on their node, e.g. those that a failed rebalance left on
+   * their old node; returns the matches migrated.
+   */
+  public int rebalance() throws IOException {
+    return rebalance(ring);
+  }
+
+  /** Returns the ids of the live matches of a node. */
+  @SuppressWarnings("unchecked")
+  public List<String> getMatchIds(String node) throws IOException {
+    Response response = send(node, "GET", "/matches", null, null);
+    checkOk(node, response);
+    return (List<String>) ((Map<String, Object>) Json.parse(response.body)).get("matchIds");
+  }
+
+  /**
+   * Switches to the ring, and then migrates the matches whose node changed, one at a time. Only
+   * one rebalance runs at a time, and the creation of matches waits for the switch, so that no
+   * match is created on its old node after its node was listed.
+   */
+  private synchronized int rebalance(HashRing next) throws IOException {
+    HashRing previous = ring;
+    migrations.incrementAndGet();
+    try {
+      ringLock.writeLock().lock();
+      try {
+        ring = next;
+      } finally {
+        ringLock.writeLock().unlock();
+      }
+      int count = 0;
+      for (String node : previous.getNodes()) {
+        for (String matchId : getMatchIds(node)) {
+          String owner = next.getNode(matchId);
+          if (!owner.equals(node) && migrate(matchId, node, owner)) {
+            count++;
+          }
+        }
+      }
+      migrated.addAndGet(count);
+      return count;
+    } finally {
+      rebalances.incrementAndGet();
+      migrations.decrementAndGet();
+    }
+  }
+
+  /**
+   * Moves a match from a node to another, and returns false if it ended before it was detached.
+   * If the new node does not take it, it is attached back to the old node, and the rebalance
+   * fails, leaving the match for the next one (see {@link #rebalance()}).
+   */
+  @SuppressWarnings("unchecked")
+  private boolean migrate(String matchId, String from, String to) throws IOException {
+    Response detached = send(from, "POST", "/matches/" + matchId + "/detach", null, null);
+    if (detached.status == 404) {
+      return false;
+    }
+    checkOk(from, detached);
+    String snapshot = Json.toJson(ImmutableMap.<String, Object>of("snapshot",
+        ((Map<String, Object>) Json.parse(detached.body)).get("snapshot")));
+    Response attached;
+    try {
+      attached = send(to, "POST", "/snapshots", null, snapshot);
+    } catch (IOException e) {
+      attached = new Response(503, String.valueOf(e.getMessage()), null);
+    }
+    if (attached.status != 200) {
+      checkOk(from, send(from, "POST", "/snapshots", null, snapshot));
+      throw new IOException("Cannot migrate match " + matchId + " to " + to + ": "
+          + attached.body);
+    }
+    return true;
+  }
+
+  private void handleMatches(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    String query = exchange.getRequestURI().getRawQuery();
+    String body = GameHttpServer.read(exchange.getRequestBody());
+    if (body == null) {
+      respond(exchange, new Response(413, error("Request body over "
+          + GameHttpServer.MAX_BODY_BYTES + " bytes"), null));
+      return;
+    }
+    try {
+      if (path.equals("/matches") || path.equals("/matches/")) {
+        if (method.equals("POST")) {
+          // Created under the read lock, so a rebalance lists the node after the match is there
+          ringLock.readLock().lock();
+          try {
+            String id = String.valueOf(nextId.incrementAndGet());
+            respond(exchange, send(ring.getNode(id), "PUT", "/matches/" + id, null, body));
+          } finally {
+            ringLock.readLock().unlock();
+          }
+        } else if (method.equals("GET")) {
+          List<String> matchIds = Lists.newArrayList();
+          for (String node : ring.getNodes()) {
+            matchIds.addAll(getMatchIds(node));
+          }
+          respond(exchange, new Response(200, Json.toJson(ImmutableMap.<String, Object>of(
+              "matchIds", matchIds)), null));
+        } else {
+          respond(exchange, new Response(405, error("GET or POST expected"), null));
+        }
+        return;
+      }
+      String id = path.substring("/matches/".length());
+      String target = path + (query == null ? "" : "?" + query);
+      String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_TIMEOUT_MILLIS);
+      while (true) {
+        long rebalanced = rebalances.get();
+        HashRing current = ring;
+        Response response = send(current.getNode(id), method, target, ifMatch,
+            method.equals("GET") ? null : body);
+        forwarded.incrementAndGet();
+        // A missing match may be migrating, or on a node the ring has just replaced
+        if (response.status != 404
+            || (migrations.get() == 0 && rebalances.get() == rebalanced && current == ring)
+            || System.nanoTime() > deadline) {
+          respond(exchange, response);
+          return;
+        }
+        retried.incrementAndGet();
+        Thread.sleep(RETRY_MILLIS);
+      }
+    } catch (IOException e) {
+      respond(exchange, new Response(502, error(String.valueOf(e.getMessage())), null));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      respond(exchange, new Response(503, error("Interrupted"), null));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void handleNodes(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    String body = GameHttpServer.read(exchange.getRequestBody());
+    if (body == null) {
+      respond(exchange, new Response(413, error("Request body over "
+          + GameHttpServer.MAX_BODY_BYTES + " bytes"), null));
+      return;
+    }
+    try {
+      if (method.equals("GET")) {
+        Map<String, Object> nodes = Maps.newTreeMap();
+        for (String node : ring.getNodes()) {
+          nodes.put(node, getMatchIds(node).size());
+        }
+        respond(exchange, new Response(200, Json.toJson(ImmutableMap.<String, Object>of(
+            "nodes", nodes)), null));
+      } else if (method.equals("POST")) {
+        String node = body.trim().isEmpty() ? null
+            : (String) ((Map<String, Object>) Json.parse(body)).get("node");
+        respondMigrated(exchange, node == null ? rebalance() : addNode(node));
+      } else if (method.equals("DELETE") && path.startsWith("/nodes/")) {
+        respondMigrated(exchange, removeNode(path.substring("/nodes/".length())));
+      } else {
+        respond(exchange, new Response(405, error("GET, POST or DELETE expected"), null));
+      }
+    } catch (IllegalArgumentException | IllegalStateException | ClassCastException e) {
+      respond(exchange, new Response(400, error(String.valueOf(e.getMessage())), null));
+    } catch (IOException e) {
+      respond(exchange, new Response(502, error(String.valueOf(e.getMessage())), null));
+    }
+  }
+
+  private void respondMigrated(HttpExchange exchange, int count) throws IOException {
+    respond(exchange, new Response(200, Json.toJson(ImmutableMap.<String, Object>of(
+        "nodes", ImmutableList.copyOf(ring.getNodes()), "migrated", count)), null));
+  }
+
+  /** Sends a request to a node over a local socket (kept alive by HttpURLConnection). */
+  static Response send(String node, String method, String target, String ifMatch, String body)
+      throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://" + node + target).openConnection();
+    connection.setConnectTimeout(TIMEOUT_MILLIS);
+    connection.setReadTimeout(TIMEOUT_MILLIS);
+    connection.setRequestMethod(method);
+    if (ifMatch != null) {
+      connection.setRequestProperty("If-Match", ifMatch);
+    }
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body.getBytes(Charsets.UTF_8));
+      }
+    }
+    int status = connection.getResponseCode();
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    String response = "";
+    if (in != null) {
+      try {
+        response = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+      } finally {
+        in.close();
+      }
+    }
+    return new Response(status, response, connection.getHeaderField("ETag"));
+  }
+
+  private static void checkOk(String node, Response response) throws IOException {
+    if (response.status != 200) {
+      throw new IOException(node + " answered " + response.status + ": " + response.body);
+    }
+  }
+
+  private static String error(String message) {
+    return Json.toJson(ImmutableMap.<String, Object>of("error", message));
+  }
+
+  private static void respond(HttpExchange exchange, Response response) throws IOException {
+    byte[] bytes = response.body.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    if (response.etag != null) {
+      exchange.getResponseHeaders().set("ETag", response.etag);
+    }
+    exchange.sendResponseHeaders(response.status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.flush();
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = 8000;
+    int threads = 16;
+    List<String> nodes = Lists.newArrayList();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--port=")) {
+        port = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else {
+        nodes.add(arg);
+      }
+    }
+    if (nodes.isEmpty()) {
+      System.err.println("Usage: PartitionRouter [--port=N] [--threads=N] host:port ...");
+      return;
+    }
+    PartitionRouter router = new PartitionRouter(nodes, port, threads);
+    try {
+      router.start();
+    } catch (IOException e) {
+      router.stop();
+      throw e;
+    }
+    System.out.println("Routing matches to " + nodes + " on http://localhost:" + router.getPort()
+        + "/matches");
+  }
+}
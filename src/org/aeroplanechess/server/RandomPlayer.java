@@ -0,0 +1,101 @@
+package org.aeroplanechess.server;
+
+import java.util.List;
+import java.util.Random;
+
+import org.aeroplanechess.client.AeroplaneChessPresenter;
+import org.aeroplanechess.client.AeroplaneChessPresenter.AeroplaneChessMessage;
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.aeroplanechess.client.Piece;
+import org.game_api.GameApi.Container;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.UpdateUI;
+import org.game_api.GameApi.VerifyMoveDone;
+
+import com.google.common.base.Optional;
+
+/**
+ * Chooses random moves with a headless AeroplaneChessPresenter, whose view makes random choices,
+ * so that the moves are built by the same code as the UI's. A player can play for both players
+ * of a match, since the presenter takes all its state from each UpdateUI. Not thread-safe.
+ */
+class RandomPlayer implements AeroplaneChessPresenter.View, Container {
+  private final Random random;
+  private final AeroplaneChessPresenter presenter;
+  private AeroplaneChessMessage message;
+  private List<Piece> possiblePieces;
+  private List<Operation> move;
+
+  RandomPlayer(Random random) {
+    this.random = random;
+    presenter = new AeroplaneChessPresenter(this, this);
+  }
+
+  /**
+   * Returns the operations of a random move of the player of updateUI, or null if the player has
+   * no move to make (e.g. it is not its turn). Throws a RuntimeException if the presenter refuses
+   * the choice it offered.
+   */
+  List<Operation> chooseMove(UpdateUI updateUI) {
+    message = null;
+    possiblePieces = null;
+    move = null;
+    // Makes the initial move, if the state is empty
+    presenter.updateUI(updateUI);
+    if (message == null) {
+      return move;
+    }
+    switch (message) {
+      case ROLL_AVAILABLE:
+        presenter.dieRolled();
+        presenter.piecesSelected(possiblePieces.isEmpty() ? Optional.<Piece>absent()
+            : Optional.of(possiblePieces.get(random.nextInt(possiblePieces.size()))));
+        break;
+      case STACK_AVAILABLE:
+        presenter.stackSelected(random.nextBoolean());
+        break;
+      case SHORTCUT_AVAILABLE:
+        presenter.shortcutSelected(random.nextBoolean());
+        break;
+      case JUMP_AVAILABLE:
+        presenter.showJump();
+        break;
+      default:
+        break;
+    }
+    return move;
+  }
+
+  @Override
+  public void sendMakeMove(List<Operation> operations) {
+    move = operations;
+  }
+
+  @Override
+  public void setPresenter(AeroplaneChessPresenter aeroplaneChessPresenter) {
+  }
+
+  @Override
+  public void setViewerState(List<Piece> redPieces, List<Piece> yellowPieces, int die,
+      AeroplaneChessMessage aeroplaneChessMessage, Action lastAction) {
+  }
+
+  @Override
+  public void setPlayerState(List<Piece> myPieces, List<Piece> opponentPieces, int die,
+      AeroplaneChessMessage aeroplaneChessMessage, Action lastAction, boolean isAI) {
+    message = aeroplaneChessMessage;
+  }
+
+  @Override
+  public void choosePieces(List<Piece> possiblePieces, boolean backToHangar) {
+    this.possiblePieces = possiblePieces;
+  }
+
+  @Override
+  public void sendGameReady() {
+  }
+
+  @Override
+  public void sendVerifyMoveDone(VerifyMoveDone verifyMoveDone) {
+  }
+}
@@ -0,0 +1,166 @@
+package org.aeroplanechess.server;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.VerifyMoveDone;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Measures the registry and the versioned moves under contention: many threads hammer a small
+ * set of hot matches, among many cold ones. In each round a thread looks up a random match in
+ * the registry, then reads the version and the state of a random hot match, chooses a move for
+ * its turn player with a {@link RandomPlayer}, and submits it for that version; when another
+ * thread was faster, the move is rejected as stale, without being verified. A hot match that is
+ * over is replaced by a new one.
+ *
+ * The benchmark runs once for each number of stripes, and reports the rounds, the applied moves
+ * and the stale moves per second.
+ *
+ * Usage: RegistryBenchmark [--threads=N] [--hot=N] [--matches=N] [--stripes=N,N,...]
+ * [--seconds=S] [--seed=S]
+ */
+public class RegistryBenchmark {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  private final GameServer gameServer;
+  private final AtomicReferenceArray<Match> hotMatches;
+  private final String[] ids;
+  private final AtomicLong rounds = new AtomicLong();
+  private final AtomicLong moves = new AtomicLong();
+  private final AtomicLong staleMoves = new AtomicLong();
+  private final AtomicLong rejectedMoves = new AtomicLong();
+  private volatile boolean running = true;
+
+  RegistryBenchmark(int stripes, int hot, int matches) {
+    gameServer = new GameServer(1, stripes);
+    hotMatches = new AtomicReferenceArray<Match>(hot);
+    for (int i = 0; i < hot; i++) {
+      hotMatches.set(i, gameServer.createMatch(PLAYER_IDS));
+    }
+    for (int i = 0; i < matches; i++) {
+      gameServer.createMatch(PLAYER_IDS);
+    }
+    ids = new String[hot + matches];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = String.valueOf(i + 1);
+    }
+  }
+
+  /** Plays rounds until the benchmark stops. */
+  private void hammer(Random random) {
+    RandomPlayer player = new RandomPlayer(random);
+    while (running) {
+      gameServer.getMatch(ids[random.nextInt(ids.length)]);
+      int slot = random.nextInt(hotMatches.length());
+      Match match = hotMatches.get(slot);
+      if (match.isOver()) {
+        replace(slot, match);
+        continue;
+      }
+      int version = match.getVersion();
+      String playerId = null;
+      List<Operation> move = null;
+      try {
+        for (String id : PLAYER_IDS) {
+          move = player.chooseMove(match.getUpdateUI(id));
+          if (move != null) {
+            playerId = id;
+            break;
+          }
+        }
+      } catch (RuntimeException e) {
+        // The presenter refused a choice it offered, so the match cannot go on
+        gameServer.abandon(match);
+      }
+      if (move != null) {
+        VerifyMoveDone verifyMoveDone = match.makeMove(playerId, version, new MakeMove(move));
+        if (Match.isStale(verifyMoveDone)) {
+          staleMoves.incrementAndGet();
+        } else if (verifyMoveDone.getHackerPlayerId() == null) {
+          moves.incrementAndGet();
+        } else {
+          rejectedMoves.incrementAndGet();
+        }
+      }
+      rounds.incrementAndGet();
+    }
+  }
+
+  private void replace(int slot, Match match) {
+    Match next = gameServer.createMatch(PLAYER_IDS);
+    if (!hotMatches.compareAndSet(slot, match, next)) {
+      gameServer.abandon(next);
+    }
+  }
+
+  /** Runs the threads for the given time, and returns the report. */
+  String run(int threads, int seconds, long seed) throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(threads);
+    Random seeds = new Random(seed);
+    for (int i = 0; i < threads; i++) {
+      final Random random = new Random(seeds.nextLong());
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            hammer(random);
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "registry-benchmark-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    long start = System.nanoTime();
+    Thread.sleep(seconds * 1000L);
+    running = false;
+    done.await();
+    double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+    gameServer.shutdown();
+    return String.format("%.0f rounds/s, %.0f moves/s, %.0f stale/s (%.1f%% of the moves sent), "
+        + "%d rejected; %s", rounds.get() / elapsedSeconds, moves.get() / elapsedSeconds,
+        staleMoves.get() / elapsedSeconds,
+        100.0 * staleMoves.get() / Math.max(1, moves.get() + staleMoves.get()),
+        rejectedMoves.get(), gameServer.getMetrics());
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int threads = 4 * Runtime.getRuntime().availableProcessors();
+    int hot = 4;
+    int matches = 100000;
+    String stripes = "1," + MatchRegistry.STRIPES;
+    int seconds = 10;
+    long seed = System.nanoTime();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--hot=")) {
+        hot = Integer.parseInt(value);
+      } else if (arg.startsWith("--matches=")) {
+        matches = Integer.parseInt(value);
+      } else if (arg.startsWith("--stripes=")) {
+        stripes = value;
+      } else if (arg.startsWith("--seconds=")) {
+        seconds = Integer.parseInt(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      }
+    }
+    for (String stripeCount : stripes.split(",")) {
+      RegistryBenchmark benchmark =
+          new RegistryBenchmark(Integer.parseInt(stripeCount.trim()), hot, matches);
+      System.out.println(String.format("%d threads, %d hot matches, %s stripes: %s", threads, hot,
+          stripeCount.trim(), benchmark.run(threads, seconds, seed)));
+    }
+  }
+}
@@ -0,0 +1,318 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.aeroplanechess.ai.AiStrategy;
+import org.aeroplanechess.ai.AntitheticDice;
+import org.aeroplanechess.ai.Dice;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.RandomDice;
+import org.aeroplanechess.ai.RandomStrategy;
+import org.aeroplanechess.ai.Rules;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Estimates metrics of the game (the first-player advantage, the expected game length, ...)
+ * under rule variants by simulating games, with fewer games than plain simulation needs:
+ * <ul>
+ * <li>Common random numbers: sample i of every variant is played with the same die rolls and the
+ * same player randomness, so the differences between variants are measured on paired games and
+ * most of the luck cancels out.
+ * <li>Antithetic dice: each sample is the mean of a game and of the same game with mirrored die
+ * rolls (see {@link AntitheticDice}).
+ * <li>Streaming accumulators: only the running mean and variance are kept, and the simulation
+ * stops as soon as every estimate is within the target confidence half width.
+ * </ul>
+ * Samples are simulated in fixed batches on a thread pool and merged in sample order, so the
+ * estimates only depend on the seed, not on the number of threads.
+ *
+ * Usage: RuleAnalytics [--metric=firstPlayerWins|turns|decisions] [--width=W] [--samples=N]
+ *     [--threads=N] [--seed=S] [--no-antithetic] [rules1 rules2 ...]
+ * where rules are in the format of {@link Rules#toString}, e.g. "jump=0". The first rules are the
+ * baseline that the others are compared to (the standard rules if there are none).
+ */
+public class RuleAnalytics {
+
+  /** A value measured on one simulated game. */
+  public interface Metric {
+    /**
+     * @param winner The winning side, or {@link MutableState#NO_WINNER} if the game was cut off.
+     * @param turns The number of turns played (a turn ends when the other player is to move).
+     * @param decisions The number of decisions played.
+     */
+    double measure(int winner, int turns, int decisions);
+  }
+
+  /** 1 if red (who moves first) wins, 0 if yellow wins, 0.5 if the game was cut off. */
+  public static final Metric FIRST_PLAYER_WINS = new Metric() {
+    @Override
+    public double measure(int winner, int turns, int decisions) {
+      return winner == MutableState.NO_WINNER ? 0.5 : winner == MutableState.RED ? 1 : 0;
+    }
+  };
+
+  public static final Metric TURNS = new Metric() {
+    @Override
+    public double measure(int winner, int turns, int decisions) {
+      return turns;
+    }
+  };
+
+  public static final Metric DECISIONS = new Metric() {
+    @Override
+    public double measure(int winner, int turns, int decisions) {
+      return decisions;
+    }
+  };
+
+  /** Creates the players of a simulated game from the random numbers of its sample. */
+  public interface StrategyFactory {
+    AiStrategy create(Random random);
+  }
+
+  public static final StrategyFactory RANDOM_STRATEGIES = new StrategyFactory() {
+    @Override
+    public AiStrategy create(Random random) {
+      return new RandomStrategy(random);
+    }
+  };
+
+  /** The estimated metric under one rule variant. */
+  public static class Estimate {
+    private final Rules rules;
+    private final RunningStatistics value = new RunningStatistics();
+    /** The paired difference to the baseline (empty for the baseline itself). */
+    private final RunningStatistics difference = new RunningStatistics();
+
+    Estimate(Rules rules) {
+      this.rules = rules;
+    }
+
+    public Rules getRules() {
+      return rules;
+    }
+
+    public RunningStatistics getValue() {
+      return value;
+    }
+
+    public RunningStatistics getDifference() {
+      return difference;
+    }
+
+    void merge(Estimate other) {
+      value.merge(other.value);
+      difference.merge(other.difference);
+    }
+
+    @Override
+    public String toString() {
+      return rules + ": " + value
+          + (difference.getCount() == 0 ? "" : ", difference to baseline " + difference);
+    }
+  }
+
+  /** Games still running after this many decisions are cut off. */
+  static final int MAX_STEPS = 20000;
+  static final int BATCH_SIZE = 256;
+
+  private final List<Rules> variants;
+  private final Metric metric;
+  private final StrategyFactory strategyFactory;
+  private final boolean antithetic;
+  private final int threads;
+
+  /**
+   * @param variants The rules to compare; the first are the baseline.
+   * @param antithetic Whether each sample also plays the mirrored die rolls.
+   */
+  public RuleAnalytics(List<Rules> variants, Metric metric, StrategyFactory strategyFactory,
+      boolean antithetic, int threads) {
+    checkArgument(!variants.isEmpty());
+    this.variants = ImmutableList.copyOf(variants);
+    this.metric = metric;
+    this.strategyFactory = strategyFactory;
+    this.antithetic = antithetic;
+    this.threads = threads;
+  }
+
+  /**
+   * Simulates samples until the 95% confidence half width of the baseline value and of every
+   * difference to the baseline is at most targetHalfWidth, or until maxSamples samples.
+   * Returns one estimate per variant.
+   */
+  public List<Estimate> estimate(double targetHalfWidth, long maxSamples, long seed)
+      throws InterruptedException {
+    List<Estimate> estimates = newEstimates();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      long nextSample = 0;
+      while (nextSample < maxSamples && !isPreciseEnough(estimates, targetHalfWidth)) {
+        List<Callable<List<Estimate>>> batches = Lists.newArrayList();
+        for (int i = 0; i < threads && nextSample < maxSamples; i++) {
+          long end = Math.min(maxSamples, nextSample + BATCH_SIZE);
+          batches.add(new Batch(nextSample, end, seed));
+          nextSample = end;
+        }
+        for (Future<List<Estimate>> batch : executor.invokeAll(batches)) {
+          List<Estimate> batchEstimates = batch.get();
+          for (int v = 0; v < estimates.size(); v++) {
+            estimates.get(v).merge(batchEstimates.get(v));
+          }
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return estimates;
+  }
+
+  private boolean isPreciseEnough(List<Estimate> estimates, double targetHalfWidth) {
+    // Fewer samples give unreliable variances
+    if (estimates.get(0).value.getCount() < BATCH_SIZE) {
+      return false;
+    }
+    if (estimates.get(0).value.getHalfWidth(RunningStatistics.Z_95) > targetHalfWidth) {
+      return false;
+    }
+    for (Estimate estimate : estimates.subList(1, estimates.size())) {
+      if (estimate.difference.getHalfWidth(RunningStatistics.Z_95) > targetHalfWidth) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private List<Estimate> newEstimates() {
+    List<Estimate> estimates = Lists.newArrayList();
+    for (Rules rules : variants) {
+      estimates.add(new Estimate(rules));
+    }
+    return estimates;
+  }
+
+  /** Simulates samples [start, end) of all the variants. */
+  private class Batch implements Callable<List<Estimate>> {
+    private final long start;
+    private final long end;
+    private final long seed;
+
+    Batch(long start, long end, long seed) {
+      this.start = start;
+      this.end = end;
+      this.seed = seed;
+    }
+
+    @Override
+    public List<Estimate> call() {
+      List<Estimate> estimates = newEstimates();
+      MutableState[] states = new MutableState[variants.size()];
+      for (int v = 0; v < states.length; v++) {
+        states[v] = new MutableState(variants.get(v));
+      }
+      for (long sample = start; sample < end; sample++) {
+        long sampleSeed = mix(seed + sample);
+        double baseline = 0;
+        for (int v = 0; v < states.length; v++) {
+          double value = play(states[v], sampleSeed, false);
+          if (antithetic) {
+            value = (value + play(states[v], sampleSeed, true)) / 2;
+          }
+          estimates.get(v).value.add(value);
+          if (v == 0) {
+            baseline = value;
+          } else {
+            estimates.get(v).difference.add(value - baseline);
+          }
+        }
+      }
+      return estimates;
+    }
+  }
+
+  /** Plays one game with the random numbers of a sample and measures it. */
+  private double play(MutableState state, long sampleSeed, boolean mirrored) {
+    Dice dice = new RandomDice(new Random(sampleSeed));
+    if (mirrored) {
+      dice = new AntitheticDice(dice);
+    }
+    Random random = new Random(~sampleSeed);
+    AiStrategy[] strategies = {strategyFactory.create(random), strategyFactory.create(random)};
+    state.reset();
+    state.roll(dice.roll());
+    int turns = 1;
+    int decisions = 0;
+    while (!state.isGameOver() && decisions < MAX_STEPS) {
+      int turn = state.getTurn();
+      state.play(strategies[turn].chooseDecision(state));
+      state.clearHistory();
+      decisions++;
+      if (state.getTurn() != turn) {
+        turns++;
+      }
+      if (state.isAwaitingRoll()) {
+        state.roll(dice.roll());
+      }
+    }
+    return metric.measure(state.getWinner(), turns, decisions);
+  }
+
+  /** Spreads consecutive sample numbers over the seeds (SplitMix64's finalizer). */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Metric metric = FIRST_PLAYER_WINS;
+    double width = 0.01;
+    long samples = 1000000;
+    int threads = Runtime.getRuntime().availableProcessors();
+    long seed = 0;
+    boolean antithetic = true;
+    List<Rules> variants = Lists.newArrayList();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.equals("--metric=firstPlayerWins")) {
+        metric = FIRST_PLAYER_WINS;
+      } else if (arg.equals("--metric=turns")) {
+        metric = TURNS;
+      } else if (arg.equals("--metric=decisions")) {
+        metric = DECISIONS;
+      } else if (arg.startsWith("--width=")) {
+        width = Double.parseDouble(value);
+      } else if (arg.startsWith("--samples=")) {
+        samples = Long.parseLong(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--seed=")) {
+        seed = Long.parseLong(value);
+      } else if (arg.equals("--no-antithetic")) {
+        antithetic = false;
+      } else {
+        variants.add(Rules.parse(arg));
+      }
+    }
+    if (variants.isEmpty()) {
+      variants.add(Rules.STANDARD);
+    }
+    RuleAnalytics analytics =
+        new RuleAnalytics(variants, metric, RANDOM_STRATEGIES, antithetic, threads);
+    for (Estimate estimate : analytics.estimate(width, samples, seed)) {
+      System.out.println(estimate);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.aeroplanechess.server;
+
+/**
+ * Streaming mean and variance (Welford's algorithm), so that samples don't have to be stored.
+ * Not thread-safe; accumulate per thread and {@link #merge} the results.
+ */
+public class RunningStatistics {
+
+  /** z for a two-sided 95% confidence interval. */
+  public static final double Z_95 = 1.959964;
+
+  private long count;
+  private double mean;
+  private double squaredDeviations;
+
+  public void add(double sample) {
+    count++;
+    double delta = sample - mean;
+    mean += delta / count;
+    squaredDeviations += delta * (sample - mean);
+  }
+
+  /** Adds all the samples of other (Chan et al.'s parallel update). */
+  public void merge(RunningStatistics other) {
+    if (other.count == 0) {
+      return;
+    }
+    long total = count + other.count;
+    double delta = other.mean - mean;
+    mean += delta * other.count / total;
+    squaredDeviations += other.squaredDeviations + delta * delta * count * other.count / total;
+    count = total;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  /** The unbiased sample variance (0 with fewer than two samples). */
+  public double getVariance() {
+    return count < 2 ? 0 : squaredDeviations / (count - 1);
+  }
+
+  public double getStandardError() {
+    return count == 0 ? 0 : Math.sqrt(getVariance() / count);
+  }
+
+  /** Half the width of the confidence interval of the mean for the given z. */
+  public double getHalfWidth(double z) {
+    return z * getStandardError();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%.4f +- %.4f (n=%d)", mean, getHalfWidth(Z_95), count);
+  }
+}
@@ -0,0 +1,156 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collection;
+
+/**
+ * A hashed hierarchical timing wheel: LEVELS wheels of SLOTS slots, where a slot of level 0 is a
+ * tick, and a slot of level n is a turn of level n - 1. A timeout is linked into the slot of its
+ * deadline at the lowest level whose turn has it, so scheduling and cancelling it are O(1),
+ * whatever the number of timeouts. When the wheel reaches the slot of a higher level, its
+ * timeouts are moved down to the lower levels (each timeout moves at most LEVELS - 1 times), and
+ * the timeouts of the slot of level 0 of a tick expire at that tick.
+ *
+ * With 4 levels of 64 slots a wheel spans 2^24 ticks, 19 days of ticks of 100 ms; a later
+ * deadline waits in the last slot of the last level and is placed again when it gets there.
+ * Deadlines are rounded up to ticks, so a timeout expires up to a tick late. Not thread-safe.
+ */
+public final class TimingWheel<T> {
+
+  public static final int LEVELS = 4;
+  private static final int SLOT_BITS = 6;
+  public static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+
+  /** A scheduled item; it is linked into the list of its slot until it expires or is cancelled. */
+  public static final class Timeout<T> {
+    private final T item;
+    private final long deadlineTick;
+    private Timeout<T> previous;
+    private Timeout<T> next;
+
+    private Timeout(T item, long deadlineTick) {
+      this.item = item;
+      this.deadlineTick = deadlineTick;
+    }
+
+    public T getItem() {
+      return item;
+    }
+
+    /** Returns true until the timeout expires or is cancelled. */
+    public boolean isPending() {
+      return next != null;
+    }
+  }
+
+  private final long tickNanos;
+  private final long startNanos;
+  /* The sentinels of the circular lists of the slots, by level and slot */
+  private final Timeout<T>[][] slots;
+  private long tick;
+  private int size;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TimingWheel(long tickNanos, long startNanos) {
+    checkArgument(tickNanos > 0);
+    this.tickNanos = tickNanos;
+    this.startNanos = startNanos;
+    slots = new Timeout[LEVELS][SLOTS];
+    for (Timeout<T>[] level : slots) {
+      for (int i = 0; i < SLOTS; i++) {
+        Timeout<T> sentinel = new Timeout<T>(null, 0);
+        sentinel.previous = sentinel;
+        sentinel.next = sentinel;
+        level[i] = sentinel;
+      }
+    }
+  }
+
+  /** Schedules an item to expire at the first tick at or after deadlineNanos (by nanoTime). */
+  public Timeout<T> schedule(T item, long deadlineNanos) {
+    long ticks = (deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+    Timeout<T> timeout = new Timeout<T>(item, Math.max(ticks, tick + 1));
+    place(timeout);
+    size++;
+    return timeout;
+  }
+
+  /** Returns false if the timeout had already expired or been cancelled. */
+  public boolean cancel(Timeout<T> timeout) {
+    if (!timeout.isPending()) {
+      return false;
+    }
+    unlink(timeout);
+    size--;
+    return true;
+  }
+
+  /** Advances the wheel to nowNanos, and adds the items that expired to expired, in order. */
+  public void advance(long nowNanos, Collection<? super T> expired) {
+    long target = (nowNanos - startNanos) / tickNanos;
+    while (tick < target) {
+      tick++;
+      // Moves the timeouts of the slots reached on the higher levels down, highest first
+      for (int level = LEVELS - 1; level > 0; level--) {
+        if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+          Timeout<T> sentinel = slots[level][(int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK];
+          while (sentinel.next != sentinel) {
+            Timeout<T> timeout = sentinel.next;
+            unlink(timeout);
+            place(timeout);
+          }
+        }
+      }
+      Timeout<T> sentinel = slots[0][(int) tick & SLOT_MASK];
+      while (sentinel.next != sentinel) {
+        Timeout<T> timeout = sentinel.next;
+        unlink(timeout);
+        size--;
+        expired.add(timeout.item);
+      }
+    }
+  }
+
+  /** The timeouts that are pending. */
+  public int size() {
+    return size;
+  }
+
+  public long getTickNanos() {
+    return tickNanos;
+  }
+
+  /**
+   * Links a timeout into the slot of its deadline at the lowest level where the deadline and the
+   * current tick are in the same turn of the level above, so that the slot is reached before the
+   * deadline. The last level has no level above, and takes the deadlines less than a turn of its
+   * slots ahead.
+   */
+  private void place(Timeout<T> timeout) {
+    long deadline = Math.max(timeout.deadlineTick, tick);
+    int level = 0;
+    while (level < LEVELS - 1 && (deadline ^ tick) >>> (SLOT_BITS * (level + 1)) != 0) {
+      level++;
+    }
+    long slots = (deadline >>> (SLOT_BITS * level)) - (tick >>> (SLOT_BITS * level));
+    int slot = (int) (deadline >>> (SLOT_BITS * level)) & SLOT_MASK;
+    if (slots >= SLOTS) {
+      // Beyond the span of the wheel: the last slot that the wheel reaches before it turns
+      slot = (int) ((tick >>> (SLOT_BITS * level)) - 1) & SLOT_MASK;
+    }
+    Timeout<T> sentinel = this.slots[level][slot];
+    timeout.previous = sentinel.previous;
+    timeout.next = sentinel;
+    sentinel.previous.next = timeout;
+    sentinel.previous = timeout;
+  }
+
+  private static <T> void unlink(Timeout<T> timeout) {
+    timeout.previous.next = timeout.next;
+    timeout.next.previous = timeout.previous;
+    timeout.previous = null;
+    timeout.next = null;
+  }
+}
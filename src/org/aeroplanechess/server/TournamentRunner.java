@@ -0,0 +1,346 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.aeroplanechess.ai.AiStrategy;
+import org.aeroplanechess.ai.GameRunner;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.RandomDice;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Plays matches between AI strategies (see {@link AiStrategies}) to compare them.
+ *
+ * Every pairing of two strategies plays game pairs: both games of a pair are rolled from the same
+ * dice seed and the strategies swap seats, which removes the first-mover advantage (and much of
+ * the luck of the dice) from the comparison. Game pairs are played in parallel, and a pairing stops
+ * early once the SPRT decides between H0: elo = elo0 and H1: elo = elo1 (alpha = beta = 0.05).
+ *
+ * Every game is appended to the results file as soon as its pair is played. When the runner is
+ * started again with the same file, the pairs already in it are counted instead of played again.
+ *
+ * Usage: TournamentRunner [--gauntlet] [--pairs=N] [--threads=N] [--results=FILE] [--elo0=E]
+ *     [--elo1=E] strategy1 strategy2 ...
+ * In a round-robin every strategy plays every other one; in a gauntlet the first strategy plays
+ * all the others.
+ */
+public class TournamentRunner {
+
+  public enum Mode {
+    ROUND_ROBIN, GAUNTLET
+  }
+
+  /** Games still running after this many decisions are scored as draws. */
+  static final int MAX_STEPS = 20000;
+
+  private static final double ALPHA = 0.05;
+  private static final double BETA = 0.05;
+
+  /** The results of all games between two strategies, from the point of view of the first. */
+  public static class Pairing {
+    private final String first;
+    private final String second;
+    /** Scores of the game pairs (the mean of the two games). */
+    private final RunningStatistics scores = new RunningStatistics();
+    /** The same scores from the point of view of the second strategy. */
+    private final RunningStatistics secondScores = new RunningStatistics();
+    private final BitSet playedPairs = new BitSet();
+    private int wins;
+    private int losses;
+    private int draws;
+    private int nextPair;
+    private double logLikelihoodRatio;
+
+    Pairing(String first, String second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    public String getKey() {
+      return first + "-" + second;
+    }
+
+    public RunningStatistics getScores() {
+      return scores;
+    }
+
+    public int getGames() {
+      return wins + losses + draws;
+    }
+
+    public double getLogLikelihoodRatio() {
+      return logLikelihoodRatio;
+    }
+
+    /** True if the SPRT accepted H0 or H1. */
+    public boolean isDecided() {
+      return logLikelihoodRatio <= MatchStatistics.getLowerBound(ALPHA, BETA)
+          || logLikelihoodRatio >= MatchStatistics.getUpperBound(ALPHA, BETA);
+    }
+
+    void add(int pair, double[] results, double elo0, double elo1) {
+      playedPairs.set(pair);
+      for (double result : results) {
+        wins += result == 1 ? 1 : 0;
+        losses += result == 0 ? 1 : 0;
+        draws += result == 0.5 ? 1 : 0;
+      }
+      scores.add((results[0] + results[1]) / 2);
+      secondScores.add(1 - (results[0] + results[1]) / 2);
+      logLikelihoodRatio = MatchStatistics.getLogLikelihoodRatio(scores, elo0, elo1);
+    }
+
+    @Override
+    public String toString() {
+      double score = scores.getMean();
+      double halfWidth = scores.getHalfWidth(RunningStatistics.Z_95);
+      String sprt = logLikelihoodRatio >= MatchStatistics.getUpperBound(ALPHA, BETA) ? "H1"
+          : logLikelihoodRatio <= MatchStatistics.getLowerBound(ALPHA, BETA) ? "H0"
+          : "undecided";
+      return String.format(
+          "%s vs %s: %d games (+%d -%d =%d), score %.1f%% [%.1f%%, %.1f%%], "
+              + "Elo %+.1f [%+.1f, %+.1f], SPRT %s (LLR %.2f)",
+          first, second, getGames(), wins, losses, draws,
+          100 * score, 100 * (score - halfWidth), 100 * (score + halfWidth),
+          MatchStatistics.getEloDifference(score),
+          MatchStatistics.getEloDifference(score - halfWidth),
+          MatchStatistics.getEloDifference(score + halfWidth),
+          sprt, logLikelihoodRatio);
+    }
+  }
+
+  /** Two games with the same dice, where the strategies swap seats. */
+  private static class GamePair implements Callable<GamePair> {
+    private final Pairing pairing;
+    private final int pair;
+    /** Results for the first strategy, playing red then yellow. */
+    private final double[] results = new double[2];
+
+    GamePair(Pairing pairing, int pair) {
+      this.pairing = pairing;
+      this.pair = pair;
+    }
+
+    @Override
+    public GamePair call() {
+      MutableState state = new MutableState();
+      long seed = pairing.getKey().hashCode() * 0x9E3779B97F4A7C15L + pair;
+      for (int seat = 0; seat < 2; seat++) {
+        AiStrategy first = AiStrategies.get(pairing.first).get();
+        AiStrategy second = AiStrategies.get(pairing.second).get();
+        AiStrategy[] strategies = seat == 0
+            ? new AiStrategy[] {first, second}
+            : new AiStrategy[] {second, first};
+        int winner = GameRunner.play(
+            state, strategies, new RandomDice(new Random(seed)), MAX_STEPS);
+        results[seat] = winner == MutableState.NO_WINNER ? 0.5 : winner == seat ? 1 : 0;
+      }
+      return this;
+    }
+  }
+
+  private final List<Pairing> pairings;
+  private final Map<String, Pairing> pairingsByKey = Maps.newHashMap();
+  private final int maxPairs;
+  private final int threads;
+  private final File resultsFile;
+  private final double elo0;
+  private final double elo1;
+
+  /**
+   * @param maxPairs Maximum number of game pairs per pairing.
+   * @param resultsFile Where the games are appended (and resumed from), or null.
+   */
+  public TournamentRunner(List<String> strategies, Mode mode, int maxPairs, int threads,
+      File resultsFile, double elo0, double elo1) {
+    checkArgument(strategies.size() >= 2, "At least two strategies are needed.");
+    checkArgument(elo0 < elo1);
+    List<Pairing> pairings = Lists.newArrayList();
+    for (int i = 0; i < strategies.size(); i++) {
+      AiStrategies.get(strategies.get(i));  // Fail early on unknown strategies
+      for (int j = i + 1; j < strategies.size() && (mode == Mode.ROUND_ROBIN || i == 0); j++) {
+        Pairing pairing = new Pairing(strategies.get(i), strategies.get(j));
+        pairings.add(pairing);
+        pairingsByKey.put(pairing.getKey(), pairing);
+      }
+    }
+    this.pairings = ImmutableList.copyOf(pairings);
+    this.maxPairs = maxPairs;
+    this.threads = threads;
+    this.resultsFile = resultsFile;
+    this.elo0 = elo0;
+    this.elo1 = elo1;
+  }
+
+  public List<Pairing> getPairings() {
+    return pairings;
+  }
+
+  /** Plays all the pairings until they are decided or have played maxPairs game pairs. */
+  public void run() throws IOException, InterruptedException {
+    if (resultsFile != null && resultsFile.exists()) {
+      resume();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CompletionService<GamePair> completionService =
+        new ExecutorCompletionService<GamePair>(executor);
+    Writer writer = resultsFile == null ? null : new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(resultsFile, true), Charsets.UTF_8));
+    int running = 0;
+    try {
+      while (true) {
+        // Keep every thread busy (with one pair queued each) while there are pairs to play
+        GamePair gamePair;
+        while (running < 2 * threads && (gamePair = getNextGamePair()) != null) {
+          completionService.submit(gamePair);
+          running++;
+        }
+        if (running == 0) {
+          break;
+        }
+        gamePair = completionService.take().get();
+        running--;
+        gamePair.pairing.add(gamePair.pair, gamePair.results, elo0, elo1);
+        if (writer != null) {
+          for (int seat = 0; seat < 2; seat++) {
+            writer.write(gamePair.pairing.getKey() + "\t" + gamePair.pair + "\t" + seat + "\t"
+                + gamePair.results[seat] + "\n");
+          }
+          writer.flush();
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  /** Returns the next game pair of the undecided pairing that has played the fewest pairs. */
+  private GamePair getNextGamePair() {
+    Pairing next = null;
+    for (Pairing pairing : pairings) {
+      while (pairing.playedPairs.get(pairing.nextPair)) {
+        pairing.nextPair++;  // Already played before the runner was resumed
+      }
+      if (!pairing.isDecided() && pairing.nextPair < maxPairs
+          && (next == null || pairing.nextPair < next.nextPair)) {
+        next = pairing;
+      }
+    }
+    return next == null ? null : new GamePair(next, next.nextPair++);
+  }
+
+  /** Counts the game pairs that are (completely) in the results file. */
+  private void resume() throws IOException {
+    Map<String, double[]> halves = Maps.newHashMap();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(resultsFile), Charsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t");
+        Pairing pairing = fields.length == 4 ? pairingsByKey.get(fields[0]) : null;
+        if (pairing == null) {
+          continue;  // Another tournament, or a line that was cut short
+        }
+        String pairKey = fields[0] + "\t" + fields[1];
+        int seat = Integer.parseInt(fields[2]);
+        double[] results = halves.get(pairKey);
+        if (results == null) {
+          results = new double[] {-1, -1};
+          halves.put(pairKey, results);
+        }
+        results[seat] = Double.parseDouble(fields[3]);
+        if (results[0] >= 0 && results[1] >= 0) {
+          pairing.add(Integer.parseInt(fields[1]), results, elo0, elo1);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void printReport(PrintStream out) {
+    Map<String, RunningStatistics> totals = Maps.newLinkedHashMap();
+    for (Pairing pairing : pairings) {
+      out.println(pairing);
+      addTotal(totals, pairing.first, pairing.scores);
+      addTotal(totals, pairing.second, pairing.secondScores);
+    }
+    for (Map.Entry<String, RunningStatistics> total : totals.entrySet()) {
+      RunningStatistics scores = total.getValue();
+      out.println(String.format("%s: score %.1f%% +- %.1f%% over %d game pairs", total.getKey(),
+          100 * scores.getMean(), 100 * scores.getHalfWidth(RunningStatistics.Z_95),
+          scores.getCount()));
+    }
+  }
+
+  private static void addTotal(Map<String, RunningStatistics> totals, String strategy,
+      RunningStatistics scores) {
+    if (!totals.containsKey(strategy)) {
+      totals.put(strategy, new RunningStatistics());
+    }
+    totals.get(strategy).merge(scores);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Mode mode = Mode.ROUND_ROBIN;
+    int pairs = 1000;
+    int threads = Runtime.getRuntime().availableProcessors();
+    File resultsFile = null;
+    double elo0 = 0;
+    double elo1 = 20;
+    List<String> strategies = Lists.newArrayList();
+    for (String arg : args) {
+      String value = arg.substring(arg.indexOf('=') + 1);
+      if (arg.equals("--gauntlet")) {
+        mode = Mode.GAUNTLET;
+      } else if (arg.startsWith("--pairs=")) {
+        pairs = Integer.parseInt(value);
+      } else if (arg.startsWith("--threads=")) {
+        threads = Integer.parseInt(value);
+      } else if (arg.startsWith("--results=")) {
+        resultsFile = new File(value);
+      } else if (arg.startsWith("--elo0=")) {
+        elo0 = Double.parseDouble(value);
+      } else if (arg.startsWith("--elo1=")) {
+        elo1 = Double.parseDouble(value);
+      } else {
+        strategies.add(arg);
+      }
+    }
+    TournamentRunner runner =
+        new TournamentRunner(strategies, mode, pairs, threads, resultsFile, elo0, elo1);
+    runner.run();
+    runner.printReport(System.out);
+  }
+}
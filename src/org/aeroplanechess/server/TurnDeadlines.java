@@ -0,0 +1,199 @@
+package org.aeroplanechess.server;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Enforces the time limits of the turns of the matches of a {@link GameServer}: when a player
+ * has not moved by the deadline of its turn, the match makes a random move for it (see
+ * {@link Match#expireTurn}), verified by AeroplaneChessLogic as any other move. The time of a
+ * turn is the numberOfSecondsForTurn of the SetTurn that started it or, when that is 0 (as the
+ * logic's moves have it), the default of the server.
+ *
+ * The deadlines of all the matches are kept in one {@link TimingWheel}, whose thread ticks every
+ * tick, so a match costs a node of the wheel and no thread or timer of its own. A match moves its
+ * deadline after every move; scheduling and cancelling a deadline is O(1), under the lock of the
+ * wheel.
+ */
+public class TurnDeadlines {
+
+  public static final long TICK_MILLIS = 100;
+
+  /** A snapshot of the counters of the deadlines. */
+  public static class Metrics {
+    private final int pending;
+    private final long scheduled;
+    private final long cancelled;
+    private final long expired;
+    private final double meanLatenessMillis;
+    private final double maxLatenessMillis;
+
+    Metrics(int pending, long scheduled, long cancelled, long expired, double meanLatenessMillis,
+        double maxLatenessMillis) {
+      this.pending = pending;
+      this.scheduled = scheduled;
+      this.cancelled = cancelled;
+      this.expired = expired;
+      this.meanLatenessMillis = meanLatenessMillis;
+      this.maxLatenessMillis = maxLatenessMillis;
+    }
+
+    public int getPending() {
+      return pending;
+    }
+
+    public long getScheduled() {
+      return scheduled;
+    }
+
+    /** Deadlines that were cancelled since their player moved in time. */
+    public long getCancelled() {
+      return cancelled;
+    }
+
+    public long getExpired() {
+      return expired;
+    }
+
+    /** The time from the deadlines to their expiry; up to a tick, when the thread keeps up. */
+    public double getMeanLatenessMillis() {
+      return meanLatenessMillis;
+    }
+
+    public double getMaxLatenessMillis() {
+      return maxLatenessMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d deadlines pending, %d scheduled, %d cancelled, %d expired "
+          + "(%.1f ms late on average, %.1f ms at most)", pending, scheduled, cancelled, expired,
+          meanLatenessMillis, maxLatenessMillis);
+    }
+  }
+
+  /** The deadline of the turn of a match at a version. */
+  static final class Deadline {
+    final Match match;
+    final int version;
+    final long deadlineNanos;
+
+    Deadline(Match match, int version, long deadlineNanos) {
+      this.match = match;
+      this.version = version;
+      this.deadlineNanos = deadlineNanos;
+    }
+  }
+
+  private final GameServer server;
+  private final long turnMillis;
+  private final long tickMillis;
+  /* Guarded by this */
+  private final TimingWheel<Deadline> wheel;
+  private long scheduled;
+  private long cancelled;
+  private long expired;
+  private final RunningStatistics lateness = new RunningStatistics();
+  private double maxLatenessMillis;
+
+  private final Thread thread;
+  private volatile boolean stopped;
+
+  /**
+   * @param turnSeconds The time of a turn whose SetTurn has no numberOfSecondsForTurn.
+   * @param tickMillis The resolution of the deadlines.
+   */
+  public TurnDeadlines(GameServer server, int turnSeconds, long tickMillis) {
+    checkArgument(turnSeconds > 0 && tickMillis > 0);
+    this.server = server;
+    turnMillis = TimeUnit.SECONDS.toMillis(turnSeconds);
+    this.tickMillis = tickMillis;
+    wheel = new TimingWheel<Deadline>(TimeUnit.MILLISECONDS.toNanos(tickMillis),
+        System.nanoTime());
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        tick();
+      }
+    }, "turn-deadlines");
+    thread.setDaemon(true);
+  }
+
+  public TurnDeadlines(GameServer server, int turnSeconds) {
+    this(server, turnSeconds, TICK_MILLIS);
+  }
+
+  /** Starts the deadlines of the live matches and of the matches created from now on. */
+  public void start() {
+    server.setTurnDeadlines(this);
+    for (Match match : server.getLiveMatches()) {
+      match.updateTurnDeadline();
+    }
+    thread.start();
+  }
+
+  public void stop() throws InterruptedException {
+    server.setTurnDeadlines(null);
+    stopped = true;
+    thread.interrupt();
+    thread.join();
+  }
+
+  public synchronized Metrics getMetrics() {
+    return new Metrics(wheel.size(), scheduled, cancelled, expired, lateness.getMean(),
+        maxLatenessMillis);
+  }
+
+  /**
+   * Schedules the deadline of the turn of a match at a version.
+   *
+   * @param seconds The numberOfSecondsForTurn of the turn, or 0 for the default.
+   */
+  synchronized TimingWheel.Timeout<Deadline> schedule(Match match, int version, int seconds) {
+    scheduled++;
+    long millis = seconds > 0 ? TimeUnit.SECONDS.toMillis(seconds) : turnMillis;
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    return wheel.schedule(new Deadline(match, version, deadlineNanos), deadlineNanos);
+  }
+
+  synchronized void cancel(TimingWheel.Timeout<Deadline> timeout) {
+    if (wheel.cancel(timeout)) {
+      cancelled++;
+    }
+  }
+
+  private void tick() {
+    List<Deadline> deadlines = Lists.newArrayList();
+    while (!stopped) {
+      try {
+        Thread.sleep(tickMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      synchronized (this) {
+        long now = System.nanoTime();
+        wheel.advance(now, deadlines);
+        expired += deadlines.size();
+        for (Deadline deadline : deadlines) {
+          double latenessMillis = (now - deadline.deadlineNanos) / 1e6;
+          lateness.add(latenessMillis);
+          maxLatenessMillis = Math.max(maxLatenessMillis, latenessMillis);
+        }
+      }
+      try {
+        for (Deadline deadline : deadlines) {
+          deadline.match.expireTurn(deadline.version);
+        }
+      } catch (RejectedExecutionException e) {
+        // The server shut down
+        return;
+      }
+      deadlines.clear();
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package org.aeroplanechess.server;
+
+import java.nio.ByteBuffer;
+
+import org.game_api.GameApi.Message;
+
+import com.google.common.base.Charsets;
+
+/**
+ * An update of a match, encoded once for all the connections of an audience (see
+ * {@link Match#subscribe}): a line of JSON, {"matchId": id, "version": N, "message": UpdateUI}.
+ * The bytes are shared, and each connection writes them through its own view.
+ */
+public final class UpdateFrame {
+  private final String matchId;
+  private final int version;
+  private final ByteBuffer bytes;
+
+  private UpdateFrame(String matchId, int version, ByteBuffer bytes) {
+    this.matchId = matchId;
+    this.version = version;
+    this.bytes = bytes;
+  }
+
+  public static UpdateFrame encode(String matchId, Message message, int version) {
+    String json = "{\"matchId\":" + Json.toJson(matchId) + ",\"version\":" + version
+        + ",\"message\":" + Json.toJson(message) + "}\n";
+    return new UpdateFrame(matchId, version, ByteBuffer.wrap(json.getBytes(Charsets.UTF_8))
+        .asReadOnlyBuffer());
+  }
+
+  public String getMatchId() {
+    return matchId;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /** Returns a new view of the bytes, with its own position. */
+  public ByteBuffer getBytes() {
+    return bytes.duplicate();
+  }
+
+  public int size() {
+    return bytes.capacity();
+  }
+}
@@ -0,0 +1,61 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.aeroplanechess.client.AeroplaneChessState;
+import org.aeroplanechess.client.Color;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+@RunWith(JUnit4.class)
+public class ColorSymmetryTest {
+
+  private final ImmutableList<String> playerIds = ImmutableList.of("41", "42");
+
+  @Test
+  public void testCanonicalFormOfPlayedStates() {
+    Random random = new Random(12);
+    MutableState state = new MutableState();
+    MutableState canonicalState = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int[] canonicalDecisions = new int[MutableState.MAX_DECISIONS];
+    for (int game = 0; game < 20; game++) {
+      state.reset();
+      state.roll(random.nextInt(6) + 1);
+      while (!state.isGameOver()) {
+        AeroplaneChessState original = state.toAeroplaneChessState(playerIds);
+        AeroplaneChessState canonical = ColorSymmetry.canonicalize(original);
+        assertTrue(canonical.getTurn().isRed());
+        assertEquals(original.getPlayerIds().get(state.getTurn()), canonical.getPlayerIds().get(0));
+
+        // Back to the original
+        AeroplaneChessState back = ColorSymmetry.uncanonicalize(canonical, original.getTurn());
+        assertEquals(original.getPieces(Color.R), back.getPieces(Color.R));
+        assertEquals(original.getPieces(Color.Y), back.getPieces(Color.Y));
+        assertEquals(original.getPlayerIds(), back.getPlayerIds());
+
+        // The same decisions are available, and the hashes agree
+        canonicalState.set(canonical);
+        int count = state.getDecisions(decisions);
+        assertEquals(count, canonicalState.getDecisions(canonicalDecisions));
+        for (int i = 0; i < count; i++) {
+          assertEquals(decisions[i], canonicalDecisions[i]);
+        }
+        assertEquals(canonicalState.getHash(), ColorSymmetry.getCanonicalHash(state));
+        assertEquals(canonicalState.getHash(), ColorSymmetry.getCanonicalHash(canonicalState));
+
+        state.play(strategy.chooseDecision(state));
+        if (state.isAwaitingRoll()) {
+          state.roll(random.nextInt(6) + 1);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DifficultyTest {
+
+  private final double[] weights = {0.9, 0.2, -0.1, 0.1, 0.02, 0.01, -0.2, 0.1};
+
+  @Test
+  public void testUsesTheGivenWeights() {
+    Evaluator evaluator = Difficulty.HARD.createStrategy(weights, 1).getEvaluator();
+    assertTrue(evaluator instanceof WeightedEvaluator);
+    assertArrayEquals(weights, ((WeightedEvaluator) evaluator).getWeights(), 0);
+  }
+
+  @Test
+  public void testNoisyLevelsUseTheGivenWeights() {
+    Evaluator evaluator = Difficulty.EASY.createStrategy(weights, 7).getEvaluator();
+    Evaluator expected = new NoisyEvaluator(
+        new WeightedEvaluator(weights), Difficulty.EASY.getNoise(), 7);
+    Random random = new Random(3);
+    RandomStrategy strategy = new RandomStrategy(random);
+    MutableState state = new MutableState();
+    state.reset();
+    state.roll(6);
+    for (int step = 0; step < 40 && !state.isGameOver(); step++) {
+      assertEquals(expected.evaluate(state), evaluator.evaluate(state), 0);
+      state.play(strategy.chooseDecision(state));
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+    }
+  }
+}
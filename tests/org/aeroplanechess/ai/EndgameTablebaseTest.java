@@ -0,0 +1,130 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class EndgameTablebaseTest {
+
+  /** The (1, 1) table: it is solved in seconds. */
+  private static EndgameTablebase tablebase;
+
+  private final int[] pieces = new int[8];
+
+  @BeforeClass
+  public static void solve() {
+    tablebase = new EndgameTablebase(new EndgameSolver().solve(1, 1e-5));
+  }
+
+  @Test
+  public void testIndexRoundTrip() {
+    MutableState state = new MutableState();
+    for (int table = 0; table < EndgameTablebase.TABLES; table++) {
+      int size = EndgameTablebase.getSize(table);
+      for (int index = 0; index < size; index += table == 0 ? 1 : 97) {
+        EndgameTablebase.setState(state, table, index, pieces);
+        assertEquals(table, EndgameTablebase.getTable(state));
+        assertEquals(index, EndgameTablebase.getIndex(state));
+      }
+    }
+  }
+
+  @Test
+  public void testIndexOfPlayedStates() {
+    Random random = new Random(5);
+    MutableState state = new MutableState();
+    MutableState copy = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    int checked = 0;
+    for (int game = 0; game < 50; game++) {
+      state.reset();
+      state.roll(random.nextInt(6) + 1);
+      while (!state.isGameOver()) {
+        int table = EndgameTablebase.getTable(state);
+        if (table != EndgameTablebase.NOT_COVERED && state.getRoll(0) == -1) {
+          int index = EndgameTablebase.getIndex(state);
+          EndgameTablebase.setState(copy, table, index, pieces);
+          assertEquals(index, EndgameTablebase.getIndex(copy));
+          checked++;
+        }
+        state.play(strategy.chooseDecision(state));
+        if (state.isAwaitingRoll()) {
+          state.roll(random.nextInt(6) + 1);
+        }
+      }
+    }
+    assertTrue(checked > 100);
+  }
+
+  @Test
+  public void testNotCovered() {
+    MutableState state = new MutableState();
+    assertEquals(EndgameTablebase.NOT_COVERED, EndgameTablebase.getTable(state));
+    EndgameTablebase.setState(state, EndgameTablebase.getTable(2, 2), 0, pieces);
+    assertFalse(tablebase.contains(state));
+    MutableState variant = new MutableState(Rules.parse("jump=0,shortcut=12"));
+    EndgameTablebase.setState(variant, 0, 0, pieces);
+    assertEquals(EndgameTablebase.NOT_COVERED, EndgameTablebase.getTable(variant));
+  }
+
+  @Test
+  public void testValuesAreConsistent() {
+    MutableState state = new MutableState();
+    for (int index = 0; index < EndgameTablebase.getSize(0); index += 7) {
+      EndgameTablebase.setState(state, 0, index, pieces);
+      double value = tablebase.getWinProbability(state);
+      assertTrue(value >= 0 && value <= 1);
+      assertEquals(value, tablebase.searchTurnStart(state), 1e-3);
+    }
+  }
+
+  @Test
+  public void testCloseToHomeWins() {
+    MutableState state = new MutableState();
+    int nearHome = MutableState.position(MutableState.FINAL_STRETCH, 4);
+    setPieces(state, nearHome, MutableState.position(MutableState.HANGAR, 0));
+    assertTrue(tablebase.getWinProbability(state) > 0.5);
+    setPieces(state, MutableState.position(MutableState.HANGAR, 0), nearHome);
+    assertTrue(tablebase.getWinProbability(state) < 0.5);
+  }
+
+  @Test
+  public void testSelfPlayMatchesValue() {
+    // Both sides play the tablebase decisions, so red should win as often as the value says
+    MutableState state = new MutableState();
+    setPieces(state, MutableState.position(MutableState.TRACK, 30),
+        MutableState.position(MutableState.TRACK, 6));
+    double value = tablebase.getWinProbability(state);
+    AiStrategy strategy = new EndgameStrategy(tablebase, new RandomStrategy());
+    RandomDice dice = new RandomDice(new Random(11));
+    MutableState game = new MutableState();
+    int games = 4000;
+    int wins = 0;
+    for (int i = 0; i < games; i++) {
+      game.copyFrom(state);
+      game.roll(dice.roll());
+      wins += GameRunner.playOut(game, new AiStrategy[] {strategy, strategy}, dice, 10000)
+          == MutableState.RED ? 1 : 0;
+    }
+    assertEquals(value, (double) wins / games, 0.025);
+  }
+
+  /** Sets red's one piece and yellow's one piece (the others are home), red to move. */
+  private void setPieces(MutableState state, int red, int yellow) {
+    for (int i = 0; i < pieces.length; i++) {
+      pieces[i] = MutableState.position(MutableState.HANGAR, i % 4) | MutableState.FACEDOWN;
+    }
+    pieces[0] = red;
+    pieces[4] = yellow;
+    state.setTurnStart(pieces, MutableState.RED, Action.MOVE);
+  }
+}
@@ -0,0 +1,122 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ExpectimaxStrategyTest {
+
+  private final Evaluator evaluator = new ProgressEvaluator();
+
+  @Test
+  public void testPruningKeepsValues() {
+    Random random = new Random(5);
+    MutableState state = new MutableState();
+    RandomStrategy randomStrategy = new RandomStrategy(random);
+    ExpectimaxStrategy full = new ExpectimaxStrategy(evaluator, 2, false, false, null);
+    ExpectimaxStrategy star1 = new ExpectimaxStrategy(evaluator, 2, false);
+    ExpectimaxStrategy star2 = new ExpectimaxStrategy(evaluator, 2, true);
+    long fullNodes = 0;
+    long star1Nodes = 0;
+    state.reset();
+    state.roll(random.nextInt(6) + 1);
+    for (int step = 0; step < 150 && !state.isGameOver(); step++) {
+      int decision = full.chooseDecision(state);
+      for (ExpectimaxStrategy pruned : new ExpectimaxStrategy[] {star1, star2}) {
+        assertEquals(decision, pruned.chooseDecision(state));
+        assertEquals(full.getValue(), pruned.getValue(), 1e-9);
+      }
+      fullNodes += full.getNodes();
+      star1Nodes += star1.getNodes();
+
+      state.play(randomStrategy.chooseDecision(state));
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+    }
+    assertEquals(150, state.getHistorySize());
+    assertTrue(star1Nodes < fullNodes);
+  }
+
+  @Test
+  public void testAnytimeSearch() {
+    MutableState state = new MutableState();
+    state.roll(6);
+    state.play(Decision.taxi(0));
+    state.roll(6);
+    ExpectimaxStrategy expectimax = new ExpectimaxStrategy(evaluator, 3);
+    expectimax.chooseDecision(state);
+    double value = expectimax.getValue();
+
+    // Out of time at once: the first decision is used
+    ExpectimaxStrategy sliced =
+        new ExpectimaxStrategy(evaluator, 3, false, new TranspositionTable(1 << 20));
+    sliced.startSearch(state);
+    assertFalse(sliced.search(System.currentTimeMillis() - 1));
+    assertEquals(0, sliced.getCompletedDepth());
+    assertEquals(1, state.getHistorySize());
+
+    // Resumed in short slices until finished: the table keeps the work of aborted iterations.
+    // Entries reached again at fewer rolls can be deeper than needed, hence the tolerance
+    while (!sliced.search(System.currentTimeMillis() + 1)) { }
+    assertEquals(3, sliced.getCompletedDepth());
+    assertEquals(value, sliced.getValue(), 0.01);
+    assertEquals(1, state.getHistorySize());
+  }
+
+  @Test
+  public void testNodeBudget() {
+    MutableState state = new MutableState();
+    state.roll(6);
+    state.play(Decision.taxi(0));
+    state.roll(6);
+    ExpectimaxStrategy budgeted = new ExpectimaxStrategy(evaluator, 8);
+    budgeted.setNodeBudget(5000);
+    int decision = budgeted.chooseDecision(state);
+    assertEquals(5000, budgeted.getNodes());
+    assertTrue(budgeted.getCompletedDepth() >= 1 && budgeted.getCompletedDepth() < 8);
+    assertEquals(1, state.getHistorySize());
+
+    // The same work on any machine: the same decision and depth, whatever the clock says
+    budgeted.startSearch(state);
+    assertTrue(budgeted.search(Long.MAX_VALUE));
+    assertEquals(decision, budgeted.getBestDecision());
+    assertEquals(5000, budgeted.getNodes());
+  }
+
+  @Test
+  public void testNoisyEvaluator() {
+    MutableState state = new MutableState();
+    state.roll(6);
+    NoisyEvaluator noisy = new NoisyEvaluator(evaluator, 0.2, 1);
+    double value = noisy.evaluate(state);
+    assertEquals(value, noisy.evaluate(state), 0);
+    assertEquals(evaluator.evaluate(state), value, 0.2);
+    assertFalse(value == new NoisyEvaluator(evaluator, 0.2, 2).evaluate(state));
+    assertEquals(evaluator.evaluate(state),
+        new NoisyEvaluator(evaluator, 0, 1).evaluate(state), 0);
+  }
+
+  @Test
+  public void testBeatsRandom() {
+    Random random = new Random(3);
+    MutableState state = new MutableState();
+    int wins = 0;
+    for (int game = 0; game < 20; game++) {
+      AiStrategy expectimax = new ExpectimaxStrategy(evaluator, 1);
+      AiStrategy[] strategies = game % 2 == 0
+          ? new AiStrategy[] {expectimax, new RandomStrategy(random)}
+          : new AiStrategy[] {new RandomStrategy(random), expectimax};
+      int winner = GameRunner.play(state, strategies, new RandomDice(random), 10000);
+      wins += winner == game % 2 ? 1 : 0;
+    }
+    assertTrue(wins >= 15);
+  }
+}
@@ -0,0 +1,77 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class MctsStrategyTest {
+
+  @Test
+  public void testSearchLeavesStateUnchanged() {
+    Random random = new Random(1);
+    MutableState state = new MutableState();
+    RandomStrategy randomStrategy = new RandomStrategy(random);
+    MctsStrategy mcts = new MctsStrategy(new RandomStrategy(random), random, 200, 0);
+    state.reset();
+    state.roll(6);
+    for (int step = 0; step < 50; step++) {
+      List<Integer> before = snapshot(state);
+      int historySize = state.getHistorySize();
+      int decision = mcts.chooseDecision(state);
+      assertEquals(200, mcts.getIterations());
+      assertEquals(before, snapshot(state));
+      assertEquals(historySize, state.getHistorySize());
+
+      int[] decisions = new int[MutableState.MAX_DECISIONS];
+      int[] visits = new int[MutableState.MAX_DECISIONS];
+      int count = mcts.getRootVisits(decisions, visits);
+      int total = 0;
+      for (int i = 0; i < count; i++) {
+        total += visits[i];
+      }
+      assertEquals(200, total);
+      assertTrue(Decision.toString(decision), state.getDecisions(decisions) > 0);
+
+      state.play(randomStrategy.chooseDecision(state));
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+    }
+  }
+
+  @Test
+  public void testBeatsRandom() {
+    Random random = new Random(3);
+    MutableState state = new MutableState();
+    int wins = 0;
+    for (int game = 0; game < 10; game++) {
+      AiStrategy mcts = new MctsStrategy(new RandomStrategy(random), random, 300, 0);
+      AiStrategy[] strategies = game % 2 == 0
+          ? new AiStrategy[] {mcts, new RandomStrategy(random)}
+          : new AiStrategy[] {new RandomStrategy(random), mcts};
+      int winner = GameRunner.play(state, strategies, new RandomDice(random), 10000);
+      wins += winner == game % 2 ? 1 : 0;
+    }
+    assertTrue(wins >= 7);
+  }
+
+  private List<Integer> snapshot(MutableState state) {
+    List<Integer> snapshot = Lists.newArrayList(state.getTurn(), state.getDie(),
+        state.getRoll(0), state.getRoll(1), state.getMoves(0), state.getMoves(1));
+    for (int side = 0; side < 2; side++) {
+      for (int id = 0; id < 4; id++) {
+        snapshot.add(state.getPiece(side, id));
+      }
+    }
+    return snapshot;
+  }
+}
@@ -0,0 +1,84 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.aeroplanechess.client.AeroplaneChessState;
+import org.aeroplanechess.client.Color;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OpeningBookTest {
+
+  private static List<AeroplaneChessState> states;
+  private static OpeningBook book;
+
+  @BeforeClass
+  public static void build() {
+    states = OpeningBookBuilder.getStates(3);
+    OpeningBookBuilder builder = new OpeningBookBuilder();
+    ExpectimaxStrategy strategy = new ExpectimaxStrategy(new ProgressEvaluator(), 1);
+    MutableState state = new MutableState();
+    for (AeroplaneChessState canonical : states) {
+      builder.search(canonical, strategy, state);
+    }
+    book = new OpeningBook(builder.getStorage());
+  }
+
+  @Test
+  public void testBookHasEveryState() {
+    assertEquals(states.size(), book.getSize());
+    ExpectimaxStrategy strategy = new ExpectimaxStrategy(new ProgressEvaluator(), 1);
+    MutableState state = new MutableState();
+    MutableState mirrored = new MutableState();
+    for (AeroplaneChessState canonical : states) {
+      assertTrue(canonical.getTurn().isRed());
+      state.set(canonical);
+      int decision = book.getDecision(state);
+      assertEquals(strategy.chooseDecision(state), decision);
+      assertEquals(strategy.getValue(), book.getValue(state), 1e-4);
+
+      // Yellow gets the same decision, with the opposite value for red
+      mirrored.set(ColorSymmetry.uncanonicalize(canonical, Color.Y));
+      assertEquals(decision, book.getDecision(mirrored));
+      assertEquals(-book.getValue(state), book.getValue(mirrored), 0);
+    }
+  }
+
+  @Test
+  public void testStatesOutsideTheBook() {
+    Random random = new Random(14);
+    MutableState state = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    state.roll(random.nextInt(6) + 1);
+    for (int step = 0; step < 200 && !state.isGameOver(); step++) {
+      state.play(strategy.chooseDecision(state));
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+    }
+    // Far into the game
+    assertFalse(book.contains(state));
+    MutableState variant = new MutableState(Rules.parse("jump=0,shortcut=12"));
+    variant.set(states.get(0));
+    assertEquals(OpeningBook.NOT_FOUND, book.getDecision(variant));
+  }
+
+  @Test
+  public void testOpeningBookStrategy() {
+    OpeningBookStrategy strategy = new OpeningBookStrategy(
+        book, new ExpectimaxStrategy(new ProgressEvaluator(), 1));
+    MutableState state = new MutableState();
+    state.set(states.get(states.size() - 1));
+    strategy.startSearch(state);
+    assertTrue(strategy.search(0));  // Answered from the book, without time
+    assertEquals(book.getDecision(state), strategy.getBestDecision());
+  }
+}
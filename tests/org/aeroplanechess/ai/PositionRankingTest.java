@@ -0,0 +1,94 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.aeroplanechess.client.Color;
+import org.aeroplanechess.client.Piece;
+import org.aeroplanechess.client.Piece.Zone;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Sets;
+
+@RunWith(JUnit4.class)
+public class PositionRankingTest {
+
+  private final int[] pieces = new int[8];
+
+  @Test
+  public void testPieceRanksAreDense() {
+    Set<Integer> ranks = Sets.newHashSet();
+    for (int piece = 0; piece < 1 << 10; piece++) {
+      int rank = PositionRanking.rankPiece(piece);
+      if (rank != -1) {
+        assertTrue(ranks.add(rank));
+        // The Piece constructor accepts it
+        new Piece(Zone.values()[MutableState.zoneOf(piece)], 0,
+            piece & MutableState.SPACE_MASK, Color.R, (piece & MutableState.STACKED) != 0,
+            (piece & MutableState.FACEDOWN) != 0);
+      }
+    }
+    assertEquals(PositionRanking.PIECE_STATES, ranks.size());
+    assertEquals(PositionRanking.PIECE_STATES - 1, (int) Collections.max(ranks));
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Random random = new Random(7);
+    MutableState state = new MutableState();
+    for (int i = 0; i < 10000; i++) {
+      long rank = i == 0 ? 0 : i == 1 ? PositionRanking.POSITIONS - 1
+          : (random.nextLong() >>> 1) % PositionRanking.POSITIONS;
+      PositionRanking.setState(state, rank);
+      assertEquals(rank, PositionRanking.rank(state));
+
+      long canonical = rank % PositionRanking.CANONICAL_POSITIONS;
+      PositionRanking.unrankCanonical(canonical, pieces);
+      state.setTurnStart(pieces, MutableState.RED, Action.MOVE);
+      assertEquals(canonical, PositionRanking.rankCanonical(state));
+    }
+  }
+
+  @Test
+  public void testPlayedPositions() {
+    Random random = new Random(8);
+    MutableState state = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    state.roll(random.nextInt(6) + 1);
+    while (!state.isGameOver()) {
+      int turn = PositionRanking.unrank(PositionRanking.rank(state), pieces);
+      assertEquals(state.getTurn(), turn);
+      for (int i = 0; i < pieces.length; i++) {
+        assertEquals(state.getPiece(i / 4, i % 4), pieces[i]);
+      }
+      state.play(strategy.chooseDecision(state));
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+    }
+  }
+
+  @Test
+  public void testColorSymmetry() {
+    Random random = new Random(9);
+    MutableState state = new MutableState();
+    MutableState mirrored = new MutableState();
+    int[] mirroredPieces = new int[8];
+    for (int i = 0; i < 1000; i++) {
+      PositionRanking.setState(state, (random.nextLong() >>> 1) % PositionRanking.POSITIONS);
+      for (int id = 0; id < 8; id++) {
+        mirroredPieces[(id + 4) % 8] = PositionRanking.rotate(state.getPiece(id / 4, id % 4));
+      }
+      mirrored.setTurnStart(mirroredPieces, state.getTurn() ^ 1, Action.MOVE);
+      assertEquals(PositionRanking.rankCanonical(state), PositionRanking.rankCanonical(mirrored));
+      assertTrue(PositionRanking.rankCanonical(state) < PositionRanking.CANONICAL_POSITIONS);
+    }
+  }
+}
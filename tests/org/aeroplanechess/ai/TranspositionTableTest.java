@@ -0,0 +1,103 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TranspositionTableTest {
+
+  @Test
+  public void testStoreAndProbe() {
+    TranspositionTable table = new TranspositionTable(1 << 16);
+    assertEquals(1 << 16, table.getMemoryBytes());
+    long hash = 0x123456789ABCDEFL;
+    assertEquals(TranspositionTable.MISS, table.probe(hash));
+    table.store(hash, -0.25, 3, TranspositionTable.LOWER, Decision.move(2));
+    long data = table.probe(hash);
+    assertEquals(-0.25, TranspositionTable.getValue(data), 0);
+    assertEquals(3, TranspositionTable.getDepth(data));
+    assertEquals(TranspositionTable.LOWER, TranspositionTable.getBound(data));
+    assertEquals(Decision.move(2), TranspositionTable.getDecision(data));
+  }
+
+  @Test
+  public void testDepthPreferredAndAlwaysReplace() {
+    TranspositionTable table = new TranspositionTable(1 << 16);
+    long buckets = (1 << 16) / TranspositionTable.BUCKET_BYTES;
+    long deep = 5;
+    long shallow = deep + buckets;
+    long other = deep + 2 * buckets;
+    table.store(deep, 0.5, 4, TranspositionTable.EXACT, TranspositionTable.NO_DECISION);
+    table.store(shallow, 0.1, 1, TranspositionTable.EXACT, TranspositionTable.NO_DECISION);
+    table.store(other, 0.2, 2, TranspositionTable.EXACT, TranspositionTable.NO_DECISION);
+    // The deep entry stays, the always-replace entry holds the last shallower one
+    assertEquals(4, TranspositionTable.getDepth(table.probe(deep)));
+    assertEquals(TranspositionTable.MISS, table.probe(shallow));
+    assertEquals(2, TranspositionTable.getDepth(table.probe(other)));
+    // Entries of older searches are replaced first
+    table.newSearch();
+    table.store(shallow, 0.1, 1, TranspositionTable.EXACT, TranspositionTable.NO_DECISION);
+    assertEquals(TranspositionTable.MISS, table.probe(deep));
+    assertEquals(1, TranspositionTable.getDepth(table.probe(shallow)));
+  }
+
+  @Test
+  public void testSharedTableAgesOncePerEpoch() {
+    TranspositionTable table = new TranspositionTable(1 << 16, 3);
+    long buckets = (1 << 16) / TranspositionTable.BUCKET_BYTES;
+    long deep = 5;
+    long shallow = deep + buckets;
+    table.store(deep, 0.5, 4, TranspositionTable.EXACT, TranspositionTable.NO_DECISION);
+    // The searches that start beside the one that stored the deep entry do not age it
+    table.newSearch();
+    table.newSearch();
+    table.store(shallow, 0.1, 1, TranspositionTable.EXACT, TranspositionTable.NO_DECISION);
+    assertEquals(4, TranspositionTable.getDepth(table.probe(deep)));
+    assertEquals(1, TranspositionTable.getDepth(table.probe(shallow)));
+    // The next epoch does
+    table.newSearch();
+    table.store(shallow + buckets, 0.2, 1, TranspositionTable.EXACT,
+        TranspositionTable.NO_DECISION);
+    assertEquals(TranspositionTable.MISS, table.probe(deep));
+  }
+
+  @Test
+  public void testSearchWithTable() {
+    Random random = new Random(5);
+    Evaluator evaluator = new ProgressEvaluator();
+    MutableState state = new MutableState();
+    RandomStrategy randomStrategy = new RandomStrategy(random);
+    ExpectimaxStrategy plain = new ExpectimaxStrategy(evaluator, 2);
+    long plainNodes = 0;
+    long tableNodes = 0;
+    long tableHits = 0;
+    state.reset();
+    state.roll(random.nextInt(6) + 1);
+    for (int step = 0; step < 100 && !state.isGameOver(); step++) {
+      ExpectimaxStrategy withTable =
+          new ExpectimaxStrategy(evaluator, 2, true, new TranspositionTable(1 << 20));
+      plain.chooseDecision(state);
+      withTable.chooseDecision(state);
+      // A state can come back after fewer rolls (e.g. both players pass), and then the deeper
+      // result stored for it is used, so the values are close but not always equal
+      assertEquals(plain.getValue(), withTable.getValue(), 0.01);
+      plainNodes += plain.getNodes();
+      tableNodes += withTable.getNodes();
+      assertTrue(withTable.getTableHits() <= withTable.getTableProbes());
+      tableHits += withTable.getTableHits();
+
+      state.play(randomStrategy.chooseDecision(state));
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+    }
+    assertTrue(tableNodes < plainNodes);
+    assertTrue(tableHits > 0);
+  }
+}
@@ -0,0 +1,84 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+@RunWith(JUnit4.class)
+public class TurnPlannerTest {
+
+  private final Evaluator evaluator = new ProgressEvaluator();
+  private final TurnPlanner planner = new TurnPlanner(evaluator);
+  private final ImmutableList<String> playerIds = ImmutableList.of("41", "42");
+
+  @Test
+  public void testPlansOfPlayedStates() {
+    Random random = new Random(15);
+    MutableState state = new MutableState();
+    MutableState copy = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int chains = 0;
+    for (int game = 0; game < 20; game++) {
+      state.reset();
+      state.roll(random.nextInt(6) + 1);
+      while (!state.isGameOver()) {
+        long hash = state.getHash();
+        int side = state.getTurn();
+        TurnPlanner.Plan plan = planner.plan(state);
+        assertEquals(hash, state.getHash());
+        assertEquals(getBestValue(state, side), plan.getValue(), 1e-12);
+
+        // The best chain for each first decision is no better than the best chain
+        int count = state.getDecisions(decisions);
+        for (int i = 0; i < count; i++) {
+          TurnPlanner.Plan firstPlan = planner.plan(state, decisions[i]);
+          assertEquals(decisions[i], firstPlan.getDecision(0));
+          assertTrue(firstPlan.getValue() <= plan.getValue());
+        }
+
+        // The plan is played to the end of the chain, as the presenter would play it
+        copy.copyFrom(state);
+        for (int step = 0; step < plan.getSize(); step++) {
+          copy.set(copy.toAeroplaneChessState(playerIds));
+          assertEquals(plan.getHash(step), copy.getHash());
+          copy.play(plan.getDecision(step));
+        }
+        assertTrue(copy.isGameOver() || copy.isAwaitingRoll() || copy.getTurn() != side);
+        chains += plan.getSize() > 1 ? 1 : 0;
+
+        state.play(strategy.chooseDecision(state));
+        if (state.isAwaitingRoll()) {
+          state.roll(random.nextInt(6) + 1);
+        }
+      }
+    }
+    assertTrue(chains > 20);
+  }
+
+  /** The value of the best chain, found without sharing values. */
+  private double getBestValue(MutableState state, int side) {
+    if (state.isGameOver()) {
+      return state.getWinner() == side ? ExpectimaxStrategy.WIN : -ExpectimaxStrategy.WIN;
+    }
+    if (state.isAwaitingRoll() || state.getTurn() != side) {
+      return side == MutableState.RED ? evaluator.evaluate(state) : -evaluator.evaluate(state);
+    }
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int count = state.getDecisions(decisions);
+    double best = -ExpectimaxStrategy.WIN;
+    for (int i = 0; i < count; i++) {
+      state.play(decisions[i]);
+      best = Math.max(best, getBestValue(state, side));
+      state.undo();
+    }
+    return best;
+  }
+}
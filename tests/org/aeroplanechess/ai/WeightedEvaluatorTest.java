@@ -0,0 +1,90 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.aeroplanechess.ai.WeightedEvaluator.Feature;
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+@RunWith(JUnit4.class)
+public class WeightedEvaluatorTest {
+
+  private final double[] features = new double[WeightedEvaluator.FEATURES];
+
+  @Test
+  public void testParseToString() {
+    double[] weights = {0.9, 0.2, -0.3, 0.1, 0.05, 0.01, -0.2, 0.125};
+    WeightedEvaluator evaluator = new WeightedEvaluator(weights);
+    assertArrayEquals(weights, WeightedEvaluator.parse(evaluator.toString()).getWeights(), 0);
+
+    // Missing features keep their default weight
+    double[] parsed = WeightedEvaluator.parse("# Tuned\n\nexposed = -0.5\n").getWeights();
+    assertEquals(-0.5, parsed[Feature.EXPOSED.ordinal()], 0);
+    assertEquals(WeightedEvaluator.DEFAULT_WEIGHTS[Feature.PROGRESS.ordinal()],
+        parsed[Feature.PROGRESS.ordinal()], 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseUnknownFeature() {
+    WeightedEvaluator.parse("progress=1\ncolor=2");
+  }
+
+  @Test
+  public void testFeatures() {
+    MutableState state = new MutableState();
+    WeightedEvaluator.getFeatures(state, MutableState.RED, features);
+    assertEquals(4, features[Feature.HANGAR.ordinal()], 0);
+    assertEquals(1, features[Feature.TEMPO.ordinal()], 0);
+
+    // Red on T30 (a red space) is 3 spaces ahead of yellow on T27, and 6 before the shortcut
+    int[] pieces = new int[8];
+    for (int i = 0; i < pieces.length; i++) {
+      pieces[i] = MutableState.position(MutableState.HANGAR, i % 4) | MutableState.FACEDOWN;
+    }
+    pieces[0] = MutableState.position(MutableState.TRACK, 30);
+    pieces[4] = MutableState.position(MutableState.TRACK, 27);
+    state.setTurnStart(pieces, MutableState.YELLOW, Action.MOVE);
+    WeightedEvaluator.getFeatures(state, MutableState.RED, features);
+    assertEquals(1, features[Feature.EXPOSED.ordinal()], 0);
+    assertEquals(1, features[Feature.SHORTCUT.ordinal()], 0);
+    assertEquals(0, features[Feature.HANGAR.ordinal()], 0);
+    assertEquals(0, features[Feature.TEMPO.ordinal()], 0);
+    // T32 is red, T36 (the shortcut) doesn't count
+    assertEquals(1.0 / 6, features[Feature.JUMP.ordinal()], 1e-9);
+    WeightedEvaluator.getFeatures(state, MutableState.YELLOW, features);
+    assertEquals(0, features[Feature.EXPOSED.ordinal()], 0);
+  }
+
+  @Test
+  public void testMirroredStatesHaveOppositeValues() {
+    Random random = new Random(13);
+    WeightedEvaluator evaluator = new WeightedEvaluator();
+    MutableState state = new MutableState();
+    MutableState mirrored = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    ImmutableList<String> playerIds = ImmutableList.of("41", "42");
+    for (int game = 0; game < 20; game++) {
+      state.reset();
+      state.roll(random.nextInt(6) + 1);
+      while (!state.isGameOver()) {
+        double value = evaluator.evaluate(state);
+        assertTrue(Math.abs(value) < ExpectimaxStrategy.WIN);
+        mirrored.set(ColorSymmetry.mirror(state.toAeroplaneChessState(playerIds)));
+        assertEquals(-value, evaluator.evaluate(mirrored), 1e-9);
+
+        state.play(strategy.chooseDecision(state));
+        if (state.isAwaitingRoll()) {
+          state.roll(random.nextInt(6) + 1);
+        }
+      }
+    }
+  }
+}
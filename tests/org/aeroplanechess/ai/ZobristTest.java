@@ -0,0 +1,74 @@
+package org.aeroplanechess.ai;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+@RunWith(JUnit4.class)
+public class ZobristTest {
+
+  private final ImmutableList<String> playerIds = ImmutableList.of("41", "42");
+
+  @Test
+  public void testIncrementalHashMatchesFullHash() {
+    Random random = new Random(17);
+    MutableState state = new MutableState();
+    MutableState copy = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    state.reset();
+    state.roll(random.nextInt(6) + 1);
+    List<Long> hashes = Lists.newArrayList();
+    Set<Long> distinct = Sets.newHashSet();
+    while (!state.isGameOver()) {
+      assertEquals(state.computeHash(), state.getHash());
+      hashes.add(state.getHash());
+      distinct.add(state.getHash());
+
+      // The same state, built from scratch
+      copy.set(state.toAeroplaneChessState(playerIds));
+      assertEquals(state.getHash(), copy.getHash());
+
+      state.play(strategy.chooseDecision(state));
+      assertEquals(state.computeHash(), state.getHash());
+      if (state.isAwaitingRoll()) {
+        long beforeRoll = state.getHash();
+        state.roll(1);
+        long one = state.getHash();
+        state.unroll();
+        assertEquals(beforeRoll, state.getHash());
+        state.roll(random.nextInt(6) + 1);
+        assertEquals(state.getDie() == 1, state.getHash() == one);
+      }
+    }
+    assertTrue(distinct.size() > hashes.size() * 9 / 10);
+    for (int i = hashes.size() - 1; i >= 0; i--) {
+      state.undo();
+      assertEquals(hashes.get(i).longValue(), state.getHash());
+    }
+  }
+
+  @Test
+  public void testDieMattersOnlyOnceRolled() {
+    MutableState state = new MutableState();
+    MutableState other = new MutableState();
+    state.roll(2);
+    other.roll(4);
+    assertFalse(state.getHash() == other.getHash());
+    state.play(Decision.taxi(0));
+    other.play(Decision.taxi(0));
+    // Both turns passed, and the die is to be rolled
+    assertEquals(state.getHash(), other.getHash());
+  }
+}
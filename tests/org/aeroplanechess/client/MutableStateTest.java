@@ -0,0 +1,274 @@
+package org.aeroplanechess.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.aeroplanechess.client.Constants.*;
+import org.aeroplanechess.ai.Decision;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.MutableState.Phase;
+import org.aeroplanechess.ai.RandomStrategy;
+import org.aeroplanechess.ai.Rules;
+import org.aeroplanechess.client.Piece.Zone;
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.Set;
+import org.game_api.GameApi.SetRandomInteger;
+import org.game_api.GameApi.SetTurn;
+import org.game_api.GameApi.VerifyMove;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Tests that {@link MutableState} follows the same rules as {@link AeroplaneChessLogic}.
+ * Random games are played on the MutableState, and every decision is also turned into the
+ * operations the presenter would send. Those operations must be verified by the logic, and
+ * applying them must give the same state (and the same turn/die/game over) as the MutableState.
+ */
+@RunWith(JUnit4.class)
+public class MutableStateTest {
+
+  private final AeroplaneChessLogic aeroplaneChessLogic = new AeroplaneChessLogic();
+
+  private final String rId = "41";
+  private final String yId = "42";
+  private final ImmutableList<String> playerIds = ImmutableList.of(rId, yId);
+  private final List<Map<String, Object>> playersInfo = ImmutableList.<Map<String, Object>>of(
+      ImmutableMap.<String, Object>of("playerId", rId),
+      ImmutableMap.<String, Object>of("playerId", yId));
+
+  @Test
+  public void testRandomGamesFollowLogic() {
+    Random random = new Random(2014);
+    MutableState state = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    int games = 0;
+    int steps = 0;
+
+    for (; games < 200; games++) {
+      state.reset();
+      state.roll(random.nextInt(6) + 1);
+      Map<String, Object> apiState = toApiState(state);
+      while (!state.isGameOver()) {
+        AeroplaneChessState lastState = state.toAeroplaneChessState(playerIds);
+        int decision = strategy.chooseDecision(state);
+        state.play(decision);
+        if (state.isAwaitingRoll()) {
+          state.roll(random.nextInt(6) + 1);
+        }
+        List<Operation> operations = getOperations(lastState, decision, state);
+        assertNull(aeroplaneChessLogic.verify(new VerifyMove(playersInfo, apiState, apiState,
+            operations, getPlayerId(lastState.getTurn()), ImmutableMap.<String, Integer>of()))
+            .getHackerPlayerId());
+
+        // Apply the operations and compare
+        boolean rolled = false;
+        boolean ended = false;
+        Color turn = null;
+        Map<String, Object> nextApiState = Maps.newHashMap(apiState);
+        for (Operation operation : operations) {
+          if (operation instanceof Set) {
+            nextApiState.put(((Set) operation).getKey(), ((Set) operation).getValue());
+          }
+          else if (operation instanceof SetRandomInteger) {
+            nextApiState.put(DIE, state.getDie());
+            rolled = true;
+          }
+          else if (operation instanceof SetTurn) {
+            turn = Color.fromPlayerOrder(playerIds.indexOf(((SetTurn) operation).getPlayerId()));
+          }
+          else if (operation instanceof EndGame) {
+            ended = true;
+          }
+        }
+        assertEquals(Decision.toString(decision), ended, state.isGameOver());
+        if (!ended) {
+          assertEquals(toApiState(state), nextApiState);
+          assertEquals(MutableState.getColor(state.getTurn()), turn);
+          if (!rolled) {
+            assertEquals(lastState.getDie(), state.getDie());
+          }
+        }
+        apiState = nextApiState;
+        state.clearHistory();
+        steps++;
+      }
+    }
+    assertTrue(steps > games * 50);
+  }
+
+  @Test
+  public void testUndoRestoresState() {
+    Random random = new Random(7);
+    MutableState state = new MutableState();
+    RandomStrategy strategy = new RandomStrategy(random);
+    state.reset();
+    state.roll(3);
+    List<Map<String, Object>> states = Lists.newArrayList();
+    while (!state.isGameOver()) {
+      states.add(toApiState(state));
+      state.play(strategy.chooseDecision(state));
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+    }
+    assertEquals(states.size(), state.getHistorySize());
+    for (int i = states.size() - 1; i >= 0; i--) {
+      state.undo();
+      assertFalse(state.isGameOver());
+      assertEquals(states.get(i), toApiState(state));
+    }
+  }
+
+  @Test
+  public void testRulesWithoutJumpOrShortcut() {
+    Random random = new Random(11);
+    MutableState state = new MutableState(Rules.parse("jump=0,shortcut=0"));
+    RandomStrategy strategy = new RandomStrategy(random);
+    for (int games = 0; games < 20; games++) {
+      state.reset();
+      state.roll(random.nextInt(6) + 1);
+      while (!state.isGameOver()) {
+        Phase phase = state.getPhase();
+        assertTrue(phase != Phase.JUMP && phase != Phase.SHORTCUT);
+        state.play(strategy.chooseDecision(state));
+        state.clearHistory();
+        if (state.isAwaitingRoll()) {
+          state.roll(random.nextInt(6) + 1);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSetFromState() {
+    AeroplaneChessState aeroplaneChessState = new AeroplaneChessState(
+        Color.Y, playerIds, 6, AeroplaneChessState.Action.MOVE,
+        ImmutableList.of(
+            new Piece(Zone.TRACK, 0, 22, Color.R, false, false),
+            new Piece(Zone.HANGAR, 1, 1, Color.R, false, false),
+            new Piece(Zone.HANGAR, 2, 2, Color.R, false, true),
+            new Piece(Zone.LAUNCH, 3, 0, Color.R, false, false)),
+        ImmutableList.of(
+            new Piece(Zone.TRACK, 0, 10, Color.Y, true, false),
+            new Piece(Zone.TRACK, 1, 10, Color.Y, true, false),
+            new Piece(Zone.FINAL_STRETCH, 2, 3, Color.Y, false, false),
+            new Piece(Zone.HANGAR, 3, 3, Color.Y, false, false)),
+        ImmutableList.of(6, -1),
+        ImmutableList.of("10", ""));
+    MutableState state = new MutableState();
+    state.set(aeroplaneChessState);
+
+    // Pieces 0 and 1 just moved (stacked) onto yellow's shortcut
+    assertEquals(MutableState.YELLOW, state.getTurn());
+    assertEquals(Phase.SHORTCUT, state.getPhase());
+    assertEquals(3, state.getMoves(0));
+    assertEquals(ImmutableList.of("01", ""),
+        state.toAeroplaneChessState(playerIds).getLastTwoMoves());
+  }
+
+  private String getPlayerId(Color color) {
+    return playerIds.get(MutableState.getSide(color));
+  }
+
+  private Map<String, Object> toApiState(MutableState state) {
+    AeroplaneChessState aeroplaneChessState = state.toAeroplaneChessState(playerIds);
+    Map<String, Object> apiState = Maps.newHashMap();
+    apiState.put(DIE, state.getDie());
+    apiState.put(ACTION, aeroplaneChessState.getAction().name().toLowerCase());
+    for (Color color : new Color[] {Color.R, Color.Y}) {
+      for (Piece piece : aeroplaneChessState.getPieces(color)) {
+        apiState.put(color.name() + piece.getPieceId(),
+            aeroplaneChessLogic.pieceToGameApiPiece(piece));
+      }
+    }
+    apiState.put(LAST_TWO_ROLLS, aeroplaneChessState.getLastTwoRolls());
+    apiState.put(LAST_TWO_MOVES, aeroplaneChessState.getLastTwoMoves());
+    return apiState;
+  }
+
+  /**
+   * Returns the operations the presenter sends for decision, given the state before and after
+   * the decision was played.
+   */
+  private List<Operation> getOperations(AeroplaneChessState lastState, int decision,
+      MutableState state) {
+    Color turn = lastState.getTurn();
+    String playerId = getPlayerId(turn);
+    List<Piece> movedPieces = Lists.newArrayList();
+    AeroplaneChessState nextState = state.toAeroplaneChessState(playerIds);
+    String movedLast = lastState.getLastTwoMoves().get(0);
+
+    switch (Decision.getKind(decision)) {
+      case Decision.PASS_KIND:
+        return aeroplaneChessLogic.getOperationsMove(lastState, movedPieces, EMPTY_PIECES,
+            playerId);
+      case Decision.BACK_TO_HANGAR_KIND:
+        for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+          if (lastState.getLastTwoMoves().get(0).contains("" + id)
+              || lastState.getLastTwoMoves().get(1).contains("" + id)) {
+            movedPieces.add(new Piece(Zone.HANGAR, id, id, turn, false, false));
+          }
+        }
+        return aeroplaneChessLogic.getOperationsMove(lastState, movedPieces, EMPTY_PIECES,
+            playerId);
+      case Decision.TAXI_KIND:
+        movedPieces.add(nextState.getPieces(turn).get(Decision.getPieceId(decision)));
+        return aeroplaneChessLogic.getOperationsTaxi(lastState, movedPieces, EMPTY_PIECES,
+            playerId);
+      case Decision.MOVE_KIND:
+        Piece selected = lastState.getPieces(turn).get(Decision.getPieceId(decision));
+        for (Piece piece : lastState.getPieces(turn)) {
+          if (piece.equals(selected) || (selected.isStacked() && piece.isStacked()
+              && piece.getLocation().equals(selected.getLocation()))) {
+            movedPieces.add(nextState.getPieces(turn).get(piece.getPieceId()));
+          }
+        }
+        return aeroplaneChessLogic.getOperationsMove(lastState, movedPieces, EMPTY_PIECES,
+            playerId);
+      case Decision.STACK_KIND:
+      case Decision.UNSTACK_KIND:
+        String location = lastState.getPieces(turn)
+            .get(movedLast.charAt(0) - '0').getLocation();
+        for (Piece piece : lastState.getPieces(turn)) {
+          if (piece.getLocation().equals(location)) {
+            movedPieces.add(nextState.getPieces(turn).get(piece.getPieceId()));
+          }
+        }
+        return aeroplaneChessLogic.getOperationsStack(lastState, movedPieces, EMPTY_PIECES,
+            playerId);
+      case Decision.JUMP_KIND:
+        for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+          if (movedLast.contains("" + id)) {
+            movedPieces.add(nextState.getPieces(turn).get(id));
+          }
+        }
+        return aeroplaneChessLogic.getOperationsJump(lastState, movedPieces, EMPTY_PIECES,
+            playerId);
+      case Decision.TAKE_SHORTCUT_KIND:
+        for (int id = 0; id < PIECES_PER_PLAYER; id++) {
+          if (movedLast.contains("" + id)) {
+            movedPieces.add(nextState.getPieces(turn).get(id));
+          }
+        }
+        return aeroplaneChessLogic.getOperationsTakeShortcut(lastState, movedPieces,
+            EMPTY_PIECES, playerId);
+      default:
+        assertEquals(Decision.DECLINE_SHORTCUT, decision);
+        return aeroplaneChessLogic.getOperationsTakeShortcut(lastState, movedPieces,
+            EMPTY_PIECES, playerId);
+    }
+  }
+}
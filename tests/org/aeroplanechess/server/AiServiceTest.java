@@ -0,0 +1,186 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.aeroplanechess.ai.AnytimeStrategy;
+import org.aeroplanechess.ai.ColorSymmetry;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.client.AeroplaneChessState;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class AiServiceTest {
+
+  private static final ImmutableList<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  /** The search of a state that waits to be released, and answers the number of its search. */
+  private class BlockingStrategy implements AnytimeStrategy {
+    private int search;
+
+    @Override
+    public int chooseDecision(MutableState state) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void startSearch(MutableState state) {
+      synchronized (AiServiceTest.this) {
+        searchedHashes.add(ColorSymmetry.getCanonicalHash(state));
+        search = searchedHashes.size();
+      }
+      started.release();
+    }
+
+    @Override
+    public boolean search(long deadlineMillis) {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return true;
+    }
+
+    @Override
+    public int getBestDecision() {
+      return search;
+    }
+  }
+
+  /* Guarded by this */
+  private final List<Long> searchedHashes = Lists.newArrayList();
+  private final Semaphore started = new Semaphore(0);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private AiService service;
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    service.shutdown();
+  }
+
+  private void createService(int threads, int queueCapacity) {
+    service = new AiService(threads, queueCapacity, new Supplier<AnytimeStrategy>() {
+      @Override
+      public AnytimeStrategy get() {
+        return new BlockingStrategy();
+      }
+    });
+  }
+
+  /** The first state of a game, after red rolled die. */
+  private static AeroplaneChessState createState(int die) {
+    MutableState state = new MutableState();
+    state.reset();
+    state.roll(die);
+    return state.toAeroplaneChessState(PLAYER_IDS);
+  }
+
+  private static long later(long millis) {
+    return System.currentTimeMillis() + millis;
+  }
+
+  /** Waits until a worker has started a search. */
+  private void awaitStart() throws InterruptedException {
+    assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testMirroredStatesShareASearch() throws Exception {
+    createService(1, 4);
+    AeroplaneChessState first = createState(6);
+    AeroplaneChessState second = createState(5);
+    Future<Integer> searching = service.request(first, later(60000));
+    awaitStart();
+    // The same state seen by the other color, while its search runs
+    assertSame(searching, service.request(ColorSymmetry.mirror(first), later(70000)));
+    // And while its search is queued, even with an earlier deadline
+    Future<Integer> queued = service.request(second, later(60000));
+    assertSame(queued, service.request(ColorSymmetry.mirror(second), later(50000)));
+    assertSame(queued, service.request(second, later(60000)));
+    release.countDown();
+    assertEquals(1, (int) searching.get(10, TimeUnit.SECONDS));
+    assertEquals(2, (int) queued.get(10, TimeUnit.SECONDS));
+
+    AiService.Metrics metrics = service.getMetrics();
+    assertEquals(5, metrics.getRequests());
+    assertEquals(3, metrics.getCoalesced());
+    assertEquals(0, metrics.getRejected());
+    synchronized (this) {
+      assertEquals(2, searchedHashes.size());
+    }
+  }
+
+  @Test
+  public void testImpatientRequestGetsItsOwnSearch() throws Exception {
+    createService(2, 4);
+    AeroplaneChessState state = createState(6);
+    Future<Integer> patient = service.request(state, later(60000));
+    awaitStart();
+    // The search that started would answer after the deadline of this request
+    Future<Integer> impatient = service.request(ColorSymmetry.mirror(state), later(30000));
+    assertNotSame(patient, impatient);
+    awaitStart();
+    release.countDown();
+    assertEquals(1, (int) patient.get(10, TimeUnit.SECONDS));
+    assertEquals(2, (int) impatient.get(10, TimeUnit.SECONDS));
+    assertEquals(0, service.getMetrics().getCoalesced());
+    synchronized (this) {
+      assertEquals(searchedHashes.get(0), searchedHashes.get(1));
+    }
+  }
+
+  @Test
+  public void testFullQueueRejects() throws Exception {
+    createService(1, 1);
+    service.request(createState(6), later(60000));
+    awaitStart();
+    Future<Integer> queued = service.request(createState(5), later(60000));
+    Future<Integer> rejected = service.request(createState(4), later(60000));
+    assertTrue(rejected.isDone());
+    try {
+      rejected.get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    AiService.Metrics metrics = service.getMetrics();
+    assertEquals(1, metrics.getRejected());
+    assertEquals(1, metrics.getQueueDepth());
+    // A request for a queued state still shares its search
+    assertSame(queued, service.request(createState(5), later(60000)));
+  }
+
+  @Test
+  public void testShutdownCancelsPendingRequests() throws Exception {
+    createService(1, 4);
+    Future<Integer> searching = service.request(createState(6), later(60000));
+    awaitStart();
+    Future<Integer> queued = service.request(createState(5), later(60000));
+    service.shutdown();
+    assertTrue(searching.isCancelled());
+    assertTrue(queued.isCancelled());
+    synchronized (this) {
+      assertEquals(1, searchedHashes.size());
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aeroplanechess.server.ArchiveIndex.Event;
+import org.aeroplanechess.server.ArchiveIndex.Query;
+import org.aeroplanechess.server.ArchiveIndex.Result;
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+@RunWith(JUnit4.class)
+public class ArchiveIndexTest {
+
+  /* Three games of moves [0, 4), none and [4, 10); the first game's moves are the winner's */
+  private static final int MOVES = 10;
+  private static final int[] GAME_STARTS = {0, 4, 4, MOVES};
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final ArchiveIndex.SegmentIndex index = createIndex();
+
+  /** The moves of a game, each made with a known die; the first is made with none. */
+  private static final class ScriptedGame {
+    private final String matchId;
+    private final List<String> playerIds;
+    private final List<String> movers = Lists.newArrayList();
+    private final List<Integer> dice = Lists.newArrayList();
+    private final List<List<Operation>> moves = Lists.newArrayList();
+
+    ScriptedGame(String matchId, String red, String yellow) {
+      this.matchId = matchId;
+      this.playerIds = ImmutableList.of(red, yellow);
+    }
+
+    /** Adds a move of the action, which sets pieces to locations given in pairs ("R0", "T05"). */
+    ScriptedGame move(String playerId, int die, String action, String... pieces) {
+      List<Operation> operations = Lists.newArrayList();
+      operations.add(new Set("action", action));
+      for (int i = 0; i < pieces.length; i += 2) {
+        operations.add(new Set(pieces[i], ImmutableList.of(pieces[i + 1])));
+      }
+      movers.add(playerId);
+      dice.add(die);
+      moves.add(operations);
+      return this;
+    }
+
+    /** Replays the game, which the winner wins with its last move, or which is abandoned. */
+    void replay(MoveJournal.Replay replay, String winnerId) {
+      replay.create(matchId, playerIds);
+      for (int move = 0; move < moves.size(); move++) {
+        List<Operation> operations = Lists.newArrayList(moves.get(move));
+        if (winnerId != null && move == moves.size() - 1) {
+          String loserId = playerIds.get(1 - playerIds.indexOf(winnerId));
+          operations.add(new EndGame(ImmutableMap.of(winnerId, 1, loserId, 0)));
+        }
+        // A roll is journaled with the move before the one made with it
+        int roll = move + 1 < moves.size() ? dice.get(move + 1) : 0;
+        replay.move(matchId, move + 1, movers.get(move), operations, roll);
+      }
+      if (winnerId == null) {
+        replay.abandon(matchId, moves.size() + 1);
+      }
+    }
+  }
+
+  private static Bitmap bitmap(int... moves) {
+    Bitmap.Builder builder = new Bitmap.Builder(MOVES);
+    for (int move : moves) {
+      builder.add(move);
+    }
+    return builder.build();
+  }
+
+  private static ArchiveIndex.SegmentIndex createIndex() {
+    Map<Event, Bitmap> bitmaps = new EnumMap<Event, Bitmap>(Event.class);
+    for (Event event : Event.values()) {
+      bitmaps.put(event, bitmap());
+    }
+    bitmaps.put(Event.CAPTURE, bitmap(1));
+    bitmaps.put(Event.SIX, bitmap(2, 5, 7));
+    bitmaps.put(Event.TAXI, bitmap(5, 8));
+    bitmaps.put(Event.WINNER, bitmap(0, 1, 2, 3));
+    return new ArchiveIndex.SegmentIndex(GAME_STARTS.length - 1, MOVES, bitmaps, GAME_STARTS);
+  }
+
+  /** Checks the parsed form of the query and the moves, games and winner moves it counts. */
+  private void assertQuery(String expected, long moves, long games, long winnerMoves,
+      String query) {
+    Query parsed = Query.parse(query);
+    assertEquals(expected, parsed.toString());
+    Result result = index.count(parsed);
+    assertEquals(moves, result.getMoves());
+    assertEquals(games, result.getGames());
+    assertEquals(winnerMoves, result.getWinnerMoves());
+  }
+
+  private static void assertMoves(ArchiveIndex.SegmentIndex index, Event event, int... moves) {
+    List<Integer> actual = Lists.newArrayList();
+    Bitmap bitmap = index.bitmaps.get(event);
+    for (int move = bitmap.nextSetBit(0); move >= 0; move = bitmap.nextSetBit(move + 1)) {
+      actual.add(move);
+    }
+    assertEquals(event.toString(), Ints.asList(moves), actual);
+  }
+
+  private static void assertParseFails(String message, String query) {
+    try {
+      Query.parse(query);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals(message, e.getMessage());
+    }
+  }
+
+  @Test
+  public void testAndBindsTighterThanOr() {
+    // {1} | {5}
+    assertQuery("(CAPTURE | (SIX & TAXI))", 2, 2, 1, "capture | six & taxi");
+    // {} | {5, 8}
+    assertQuery("((CAPTURE & SIX) | TAXI)", 2, 1, 0, "capture & six | taxi");
+  }
+
+  @Test
+  public void testParentheses() {
+    // {1, 2, 5, 7} & {5, 8}
+    assertQuery("((CAPTURE | SIX) & TAXI)", 1, 1, 0, "(capture | six) & taxi");
+    assertQuery("(CAPTURE | (SIX & TAXI))", 2, 2, 1, " ( capture|(six&taxi) ) ");
+  }
+
+  @Test
+  public void testNot() {
+    // The complement of a single event, and of a group
+    assertQuery("(!SIX & TAXI)", 1, 1, 0, "!six & taxi");
+    assertQuery("!(SIX | TAXI)", 6, 2, 3, "!(six | taxi)");
+    assertQuery("!!SIX", 3, 2, 1, "!!six");
+    assertQuery("(TAXI & !SIX)", 1, 1, 0, "taxi & !six");
+    assertQuery("!(TAXI & !SIX)", 9, 2, 4, "!(taxi & !six)");
+  }
+
+  @Test
+  public void testParseErrors() {
+    assertParseFails("Expected an event at  in six &", "six &");
+    assertParseFails("Missing ) in (six | taxi", "(six | taxi");
+    assertParseFails("Unexpected ) in six)", "six)");
+    assertParseFails("Unexpected taxi in six taxi", "six taxi");
+    try {
+      Query.parse("nothing");
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Not an event
+    }
+  }
+
+  @Test
+  public void testBuildsTheEventsOfASegment() throws IOException {
+    File directory = folder.newFolder("archive");
+    try (ColumnarArchiveWriter writer = new ColumnarArchiveWriter(directory)) {
+      new ScriptedGame("1", "42", "43")
+          .move("42", 0, "initialize")
+          .move("42", 6, "taxi", "R0", "L00")
+          .move("42", 6, "move", "R0", "T10")
+          // The third 6 sends R0 back, and the turn passes
+          .move("42", 6, "move", "R0", "H00")
+          .move("43", 2, "move")
+          .move("43", 6, "taxi", "Y0", "L00")
+          .move("43", 6, "move", "Y1", "F02")
+          .move("42", 3, "take_shortcut", "R1", "T20", "Y1", "H01")
+          .move("42", 4, "move", "R1", "T24", "Y0", "H00")
+          .move("43", 5, "move", "Y2", "F04")
+          // Back within the final stretch, and out of it
+          .move("43", 5, "move", "Y2", "F01")
+          .move("43", 5, "move", "Y2", "T49")
+          .move("42", 2, "move", "R2", "F01")
+          .move("42", 2, "move", "R2", "F03")
+          // R2 finishes on a 6, and the turn goes on
+          .move("42", 6, "move", "R2", "H02")
+          .move("42", 1, "move", "R3", "T01")
+          // R1 finishes on a 6 with the last move, before the next game's first turn
+          .move("42", 6, "move", "R1", "H01")
+          .replay(writer, "42");
+      new ScriptedGame("2", "43", "42")
+          .move("43", 0, "initialize")
+          .move("43", 6, "taxi", "R0", "L00")
+          .move("42", 1, "move")
+          .replay(writer, null);
+    }
+    List<File> files = ColumnarArchive.list(directory);
+    assertEquals(1, files.size());
+    ArchiveIndex.SegmentIndex index =
+        ArchiveIndex.SegmentIndex.build(ColumnarArchive.Segment.open(files.get(0)));
+    assertEquals(2, index.games);
+    assertEquals(20, index.moves);
+    assertEquals(Ints.asList(0, 17, 20), Ints.asList(index.gameStarts));
+
+    assertMoves(index, Event.CAPTURE, 7, 8);
+    // Y1 was captured on F02, Y0 on its launch space
+    assertMoves(index, Event.INTERSECTION_CAPTURE, 7);
+    assertMoves(index, Event.TAXI, 1, 5, 18);
+    assertMoves(index, Event.STACK);
+    assertMoves(index, Event.JUMP);
+    assertMoves(index, Event.SHORTCUT, 7);
+    // Moves into the final stretch and forward within it are not backtracks
+    assertMoves(index, Event.BACKTRACK, 10, 11);
+    assertMoves(index, Event.THREE_SIXES, 3);
+    assertMoves(index, Event.MULTIPLE);
+    assertMoves(index, Event.SIX, 1, 2, 3, 5, 6, 14, 16, 18);
+    // The first six of each player, in each game
+    assertMoves(index, Event.FIRST_SIX, 1, 5, 18);
+    assertMoves(index, Event.TURN_START, 0, 4, 7, 9, 12, 17, 19);
+    assertMoves(index, Event.WINNER, 0, 1, 2, 3, 7, 8, 12, 13, 14, 15, 16);
+
+    Result result = index.count(Query.parse("three_sixes | intersection_capture"));
+    assertEquals(2, result.getMoves());
+    assertEquals(1, result.getGames());
+    assertEquals(2, result.getWinnerMoves());
+  }
+}
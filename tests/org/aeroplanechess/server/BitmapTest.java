@@ -0,0 +1,186 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BitmapTest {
+
+  private static final int CHUNK = Bitmap.CHUNK;
+  private static final int ARRAY_MAX = Bitmap.ARRAY_MAX;
+  /* Three chunks, the last of them partial */
+  private static final int SIZE = 2 * CHUNK + 1000;
+  /* The values of a chunk: empty, arrays, a bitmap just over the arrays, and denser bitmaps */
+  private static final int[] COUNTS = {0, 50, ARRAY_MAX, ARRAY_MAX + 1, 20000, CHUNK};
+
+  private final Random random = new Random(42);
+
+  private static Bitmap build(int size, BitSet values) {
+    Bitmap.Builder builder = new Bitmap.Builder(size);
+    for (int value = values.nextSetBit(0); value >= 0; value = values.nextSetBit(value + 1)) {
+      builder.add(value);
+    }
+    return builder.build();
+  }
+
+  /** The bytes of a chunk: its type, and its values or words. */
+  private static int getChunkBytes(int cardinality) {
+    return cardinality == 0 ? 1 : cardinality <= ARRAY_MAX ? 3 + 2 * cardinality : 1 + CHUNK / 8;
+  }
+
+  /**
+   * Checks that the bitmap has the values of expected, and the chunk types that a bitmap built
+   * from them has.
+   */
+  private static void assertBitmap(BitSet expected, Bitmap bitmap) {
+    assertEquals(expected.cardinality(), bitmap.cardinality());
+    int last = -1;
+    for (int value = expected.nextSetBit(0); value >= 0; value = expected.nextSetBit(value + 1)) {
+      assertEquals(value, bitmap.nextSetBit(last + 1));
+      last = value;
+    }
+    assertEquals(-1, bitmap.nextSetBit(last + 1));
+    assertEquals(build(bitmap.size(), expected).getBytes(), bitmap.getBytes());
+  }
+
+  /** Adds count random values of the chunk to values, or all of the chunk if it is shorter. */
+  private void addChunk(BitSet values, int chunk, int count) {
+    int start = chunk * CHUNK;
+    int length = Math.min(CHUNK, SIZE - start);
+    if (count >= length) {
+      values.set(start, start + length);
+      return;
+    }
+    int added = 0;
+    while (added < count) {
+      int value = start + random.nextInt(length);
+      if (!values.get(value)) {
+        values.set(value);
+        added++;
+      }
+    }
+  }
+
+  @Test
+  public void testArrayAndBitsTransition() {
+    BitSet values = new BitSet();
+    for (int i = 0; i < ARRAY_MAX; i++) {
+      values.set(3 * i);
+    }
+    Bitmap array = build(SIZE, values);
+    assertEquals(4 + getChunkBytes(ARRAY_MAX) + 2 * getChunkBytes(0), array.getBytes());
+    assertBitmap(values, array);
+
+    values.set(CHUNK - 1);
+    Bitmap bits = build(SIZE, values);
+    assertEquals(4 + getChunkBytes(ARRAY_MAX + 1) + 2 * getChunkBytes(0), bits.getBytes());
+    assertBitmap(values, bits);
+    assertTrue(bits.contains(CHUNK - 1));
+    assertFalse(bits.contains(CHUNK - 2));
+
+    // The operations go back to an array when the chunk has ARRAY_MAX values or fewer
+    BitSet last = new BitSet();
+    last.set(CHUNK - 1);
+    Bitmap lastBitmap = build(SIZE, last);
+    assertEquals(array.getBytes(), bits.andNot(lastBitmap).getBytes());
+    assertEquals(bits.getBytes(), array.or(lastBitmap).getBytes());
+    assertEquals(array.getBytes(), bits.and(array).getBytes());
+  }
+
+  @Test
+  public void testOperationsAcrossChunkTypes() {
+    for (int countA : COUNTS) {
+      for (int countB : COUNTS) {
+        BitSet a = new BitSet();
+        BitSet b = new BitSet();
+        for (int chunk = 0; chunk < 3; chunk++) {
+          addChunk(a, chunk, chunk == 1 ? countB : countA);
+          addChunk(b, chunk, chunk == 1 ? countA : countB);
+        }
+        Bitmap bitmapA = build(SIZE, a);
+        Bitmap bitmapB = build(SIZE, b);
+        assertBitmap(a, bitmapA);
+
+        BitSet and = (BitSet) a.clone();
+        and.and(b);
+        assertBitmap(and, bitmapA.and(bitmapB));
+        assertBitmap(and, bitmapB.and(bitmapA));
+        BitSet or = (BitSet) a.clone();
+        or.or(b);
+        assertBitmap(or, bitmapA.or(bitmapB));
+        assertBitmap(or, bitmapB.or(bitmapA));
+        BitSet andNot = (BitSet) a.clone();
+        andNot.andNot(b);
+        assertBitmap(andNot, bitmapA.andNot(bitmapB));
+        BitSet notAnd = (BitSet) b.clone();
+        notAnd.andNot(a);
+        assertBitmap(notAnd, bitmapB.andNot(bitmapA));
+      }
+    }
+  }
+
+  @Test
+  public void testFull() {
+    for (int size : new int[] {1, 64, 1000, CHUNK, CHUNK + 128, CHUNK + ARRAY_MAX + 1, SIZE}) {
+      BitSet all = new BitSet();
+      all.set(0, size);
+      Bitmap full = Bitmap.full(size);
+      assertEquals(size, full.size());
+      assertBitmap(all, full);
+      assertTrue(full.contains(size - 1));
+      assertEquals(size - 1, full.nextSetBit(size - 1));
+      assertEquals(0, full.andNot(full).cardinality());
+    }
+  }
+
+  @Test
+  public void testNextSetBit() {
+    BitSet values = new BitSet();
+    // Bits on the edges of words, an empty chunk, and an array in the last chunk
+    addChunk(values, 0, 20000);
+    values.set(63);
+    values.set(64);
+    values.clear(CHUNK - 64, CHUNK);
+    values.set(2 * CHUNK + 10);
+    values.set(2 * CHUNK + 999);
+    Bitmap bitmap = build(SIZE, values);
+    for (int from = 0; from <= SIZE; from++) {
+      int expected = values.nextSetBit(from);
+      assertEquals(expected == -1 || expected >= SIZE ? -1 : expected, bitmap.nextSetBit(from));
+    }
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    BitSet values = new BitSet();
+    addChunk(values, 0, 50);
+    addChunk(values, 2, CHUNK);
+    Bitmap bitmap = build(SIZE, values);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bitmap.write(new DataOutputStream(bytes));
+    assertEquals(bitmap.getBytes(), bytes.size());
+    Bitmap read = Bitmap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(SIZE, read.size());
+    assertBitmap(values, read);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testValuesMustIncrease() {
+    Bitmap.Builder builder = new Bitmap.Builder(SIZE);
+    builder.add(5);
+    builder.add(5);
+  }
+}
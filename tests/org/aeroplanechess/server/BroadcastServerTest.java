@@ -0,0 +1,167 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+@RunWith(JUnit4.class)
+public class BroadcastServerTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  private GameServer gameServer;
+  private BroadcastServer broadcastServer;
+  private final List<String> matchIds = Lists.newArrayList();
+
+  @Before
+  public void setUp() throws IOException {
+    gameServer = new GameServer(2);
+    for (int i = 0; i <= BroadcastServer.MAX_WATCHES; i++) {
+      matchIds.add(gameServer.createMatch(PLAYER_IDS).getId());
+    }
+    // A long flush window, so that all the frames of the commands wait in the queue together
+    broadcastServer = new BroadcastServer(gameServer, 0, 50);
+    broadcastServer.start();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    broadcastServer.stop();
+    gameServer.shutdown();
+  }
+
+  private Socket connect() throws IOException {
+    Socket socket = new Socket("localhost", broadcastServer.getPort());
+    socket.setSoTimeout(10000);
+    return socket;
+  }
+
+  private static void send(Socket socket, String commands) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write(commands.getBytes(Charsets.UTF_8));
+    out.flush();
+  }
+
+  /** Reads frames until one of every match was received, and returns the matches received. */
+  private static Set<String> receive(BufferedReader in, Set<String> expected) throws IOException {
+    Set<String> received = Sets.newHashSet();
+    while (!received.containsAll(expected)) {
+      String line = in.readLine();
+      assertTrue("The server closed the connection", line != null);
+      received.add((String) ((Map<?, ?>) Json.parse(line)).get("matchId"));
+    }
+    return received;
+  }
+
+  @Test
+  public void testWatchUnwatchAndWatchAgain() throws IOException {
+    try (Socket socket = connect()) {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+      // The frame of the first match may be queued after it is unwatched, so the client has
+      // frames of one more match than it may watch
+      StringBuilder commands = new StringBuilder();
+      for (String matchId : matchIds.subList(0, BroadcastServer.MAX_WATCHES)) {
+        commands.append("WATCH ").append(matchId).append('\n');
+      }
+      commands.append("UNWATCH ").append(matchIds.get(0)).append('\n');
+      commands.append("WATCH ").append(matchIds.get(BroadcastServer.MAX_WATCHES)).append('\n');
+      send(socket, commands.toString());
+      receive(in, Sets.newHashSet(matchIds.subList(1, matchIds.size())));
+
+      // The client watches again a match it unwatched
+      send(socket, "UNWATCH " + matchIds.get(1) + "\nWATCH " + matchIds.get(0) + " 42\n");
+      receive(in, Sets.newHashSet(matchIds.get(0)));
+      assertEquals(1, broadcastServer.getMetrics().getClients());
+    }
+
+    // The server still serves new clients
+    try (Socket socket = connect()) {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+      send(socket, "WATCH " + matchIds.get(1) + "\n");
+      receive(in, Sets.newHashSet(matchIds.get(1)));
+    }
+  }
+
+  @Test
+  public void testKeepsServingAfterFailedAccepts() throws Exception {
+    final AtomicInteger failures = new AtomicInteger();
+    BroadcastServer failingServer = new BroadcastServer(gameServer, 0, 0) {
+      @Override
+      SocketChannel acceptChannel() throws IOException {
+        if (failures.get() > 0) {
+          failures.decrementAndGet();
+          throw new IOException("Too many open files");
+        }
+        return super.acceptChannel();
+      }
+    };
+    failingServer.start();
+    try (Socket watching = new Socket("localhost", failingServer.getPort())) {
+      watching.setSoTimeout(10000);
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(watching.getInputStream(), Charsets.UTF_8));
+      send(watching, "WATCH " + matchIds.get(0) + "\n");
+      receive(in, Sets.newHashSet(matchIds.get(0)));
+
+      // The accepts of a connection fail, and the server still serves the client it has
+      failures.set(3);
+      try (Socket refused = new Socket("localhost", failingServer.getPort())) {
+        refused.setSoTimeout(10000);
+        send(watching, "WATCH " + matchIds.get(1) + "\n");
+        receive(in, Sets.newHashSet(matchIds.get(1)));
+
+        // The connection is accepted once the accepts succeed again
+        BufferedReader refusedIn = new BufferedReader(
+            new InputStreamReader(refused.getInputStream(), Charsets.UTF_8));
+        send(refused, "WATCH " + matchIds.get(2) + "\n");
+        receive(refusedIn, Sets.newHashSet(matchIds.get(2)));
+        assertEquals(0, failures.get());
+        assertEquals(2, failingServer.getMetrics().getClients());
+      }
+    } finally {
+      failingServer.stop();
+    }
+  }
+
+  @Test
+  public void testRefusesTooManyWatches() throws IOException {
+    try (Socket socket = connect()) {
+      BufferedReader in = new BufferedReader(
+          new InputStreamReader(socket.getInputStream(), Charsets.UTF_8));
+      StringBuilder commands = new StringBuilder();
+      for (String matchId : matchIds) {
+        commands.append("WATCH ").append(matchId).append('\n');
+      }
+      send(socket, commands.toString());
+      String line;
+      String error = null;
+      while ((line = in.readLine()) != null) {
+        error = (String) ((Map<?, ?>) Json.parse(line)).get("error");
+      }
+      assertEquals("At most " + BroadcastServer.MAX_WATCHES + " matches may be watched", error);
+    }
+  }
+}
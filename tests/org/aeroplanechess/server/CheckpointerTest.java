@@ -0,0 +1,332 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.game_api.GameApi;
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+@RunWith(JUnit4.class)
+public class CheckpointerTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+  /* Small segments, so that the moves of a game fill several */
+  private static final int SEGMENT_BYTES = 4096;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final RandomPlayer player = new RandomPlayer(new Random(7));
+  private final List<GameServer> servers = Lists.newArrayList();
+  private File directory;
+
+  @Before
+  public void setUp() {
+    directory = folder.getRoot();
+  }
+
+  @After
+  public void tearDown() {
+    for (GameServer server : servers) {
+      server.shutdown();
+    }
+  }
+
+  /** Pauses the next commit, once it is asked to, until it is resumed. */
+  private static class PausingJournal extends MoveJournal {
+    final CountDownLatch paused = new CountDownLatch(1);
+    final CountDownLatch resumed = new CountDownLatch(1);
+    volatile boolean pauseNextCommit;
+
+    PausingJournal(File directory, int segmentBytes) throws IOException {
+      super(directory, MoveJournal.SyncPolicy.NEVER, segmentBytes,
+          MoveJournal.SYNC_INTERVAL_MILLIS);
+    }
+
+    @Override
+    public void commit(long offset) throws IOException {
+      if (pauseNextCommit) {
+        pauseNextCommit = false;
+        paused.countDown();
+        try {
+          resumed.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      super.commit(offset);
+    }
+  }
+
+  private MoveJournal openJournal(int segmentBytes) throws IOException {
+    return new MoveJournal(directory, MoveJournal.SyncPolicy.NEVER, segmentBytes,
+        MoveJournal.SYNC_INTERVAL_MILLIS);
+  }
+
+  private MoveJournal openJournal() throws IOException {
+    return openJournal(SEGMENT_BYTES);
+  }
+
+  private GameServer recover(MoveJournal journal) throws IOException {
+    GameServer server = GameServer.recover(1, MatchRegistry.STRIPES, journal);
+    servers.add(server);
+    return server;
+  }
+
+  /** Plays moves of the match, both players, until it is over or has made the moves. */
+  private void play(GameServer server, Match match, int moves) {
+    for (int i = 0; i < moves && !match.isOver(); i++) {
+      int version = match.getVersion();
+      List<Operation> move = null;
+      String playerId = null;
+      try {
+        for (String id : PLAYER_IDS) {
+          move = player.chooseMove(match.getUpdateUI(id));
+          if (move != null) {
+            playerId = id;
+            break;
+          }
+        }
+      } catch (RuntimeException e) {
+        // The presenter refused a choice it offered, so the match cannot go on
+        server.abandon(match);
+        return;
+      }
+      assertNotNull(move);
+      assertNull(match.makeMove(playerId, version, new MakeMove(move)).getHackerPlayerId());
+    }
+  }
+
+  private void playToTheEnd(GameServer server, Match match) {
+    play(server, match, Integer.MAX_VALUE);
+  }
+
+  /** Plays new matches until the journal is a segment longer, so that a checkpoint compacts. */
+  private void fillSegment(GameServer server, MoveJournal journal) {
+    long offset = journal.getOffset();
+    while (journal.getOffset() < offset + SEGMENT_BYTES) {
+      play(server, server.createMatch(PLAYER_IDS), 50);
+    }
+  }
+
+  /** Checks that the live matches of server were recovered with the same version and state. */
+  private static void assertRecovered(GameServer server, GameServer recovered) {
+    assertEquals(server.getLiveMatches().size(), recovered.getLiveMatches().size());
+    for (Match match : server.getLiveMatches()) {
+      Match recoveredMatch = recovered.getMatch(match.getId());
+      assertNotNull(match.getId(), recoveredMatch);
+      assertEquals(match.getVersion(), recoveredMatch.getVersion());
+      assertEquals(match.getUpdateUI(GameApi.VIEWER_ID).getState(),
+          recoveredMatch.getUpdateUI(GameApi.VIEWER_ID).getState());
+    }
+  }
+
+  /** Returns the ids of the games of the archive, in order. */
+  private List<String> readArchivedGames() throws IOException {
+    final List<String> games = Lists.newArrayList();
+    Checkpointer.readArchive(directory, new MoveJournal.Replay() {
+      @Override
+      public void create(String matchId, List<String> playerIds) {
+        games.add(matchId);
+      }
+
+      @Override
+      public void move(String matchId, int version, String playerId,
+          List<Operation> operations, int die) {
+      }
+
+      @Override
+      public void abandon(String matchId, int version) {
+      }
+    });
+    return games;
+  }
+
+  private File getFile(long offset, String suffix) {
+    return new File(directory, String.format("%020d%s", offset, suffix));
+  }
+
+  @Test
+  public void testCheckpointCompactAndRecover() throws IOException {
+    MoveJournal journal = openJournal();
+    GameServer server = recover(journal);
+    Match ended = server.createMatch(PLAYER_IDS);
+    playToTheEnd(server, ended);
+    Match live = server.createMatch(PLAYER_IDS);
+    play(server, live, 5);
+    fillSegment(server, journal);
+    new Checkpointer(server, journal).checkpoint();
+
+    // The segments before the snapshot were compacted, and the ended game archived
+    assertTrue(journal.getSegmentOffsets().get(0) > 0);
+    assertFalse(getFile(0, ".journal").exists());
+    List<String> archived = readArchivedGames();
+    assertTrue(archived.contains(ended.getId()));
+    assertFalse(archived.contains(live.getId()));
+
+    play(server, live, 5);
+    journal.close();
+    MoveJournal recoveredJournal = openJournal();
+    GameServer recovered = recover(recoveredJournal);
+    assertRecovered(server, recovered);
+    assertNull(recovered.getMatch(ended.getId()));
+    long createdMatches = server.getMetrics().getCreatedMatches();
+    assertEquals(createdMatches, recovered.getMetrics().getCreatedMatches());
+    assertEquals(String.valueOf(createdMatches + 1), recovered.createMatch(PLAYER_IDS).getId());
+
+    // The records of the games that were live were kept, and are archived once they end
+    playToTheEnd(recovered, recovered.getMatch(live.getId()));
+    fillSegment(recovered, recoveredJournal);
+    new Checkpointer(recovered, recoveredJournal).checkpoint();
+    List<String> rearchived = readArchivedGames();
+    assertEquals(archived, rearchived.subList(0, archived.size()));
+    assertTrue(rearchived.contains(live.getId()));
+    assertEquals(rearchived.size(), ImmutableSet.copyOf(rearchived).size());
+    recoveredJournal.close();
+    assertRecovered(recovered, recover(openJournal()));
+  }
+
+  @Test
+  public void testReplaySkipsTheChangesInTheSnapshot() throws IOException {
+    // One segment, so that the checkpoint compacts nothing, and the journal before the snapshot
+    // is still there to replay
+    MoveJournal journal = openJournal(1 << 20);
+    GameServer server = recover(journal);
+    Match first = server.createMatch(PLAYER_IDS);
+    Match second = server.createMatch(PLAYER_IDS);
+    play(server, first, 10);
+    play(server, second, 10);
+    long offset = journal.getOffset();
+    // Changes made while the snapshot reads the matches: moves of its matches, a new match, and
+    // a match that ends before the snapshot reads it
+    play(server, first, 10);
+    play(server, server.createMatch(PLAYER_IDS), 5);
+    playToTheEnd(server, server.createMatch(PLAYER_IDS));
+    new Checkpointer(server, journal).checkpoint();
+    long snapshotOffset = journal.getOffset();
+    assertTrue(snapshotOffset > offset);
+    assertTrue(getFile(snapshotOffset, ".snapshot").renameTo(getFile(offset, ".snapshot")));
+
+    play(server, second, 10);
+    journal.close();
+    assertRecovered(server, recover(openJournal(1 << 20)));
+  }
+
+  @Test
+  public void testCheckpointWaitsForTheMatchesBeingCreated() throws Exception {
+    final PausingJournal journal = new PausingJournal(directory, SEGMENT_BYTES);
+    final GameServer server = recover(journal);
+    fillSegment(server, journal);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      // The create record of the match is in the journal, but the match is not live yet
+      journal.pauseNextCommit = true;
+      Future<Match> created = executor.submit(new Callable<Match>() {
+        @Override
+        public Match call() {
+          return server.createMatch(PLAYER_IDS);
+        }
+      });
+      assertTrue(journal.paused.await(10, TimeUnit.SECONDS));
+      Future<String> checkpoint = executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws IOException {
+          return new Checkpointer(server, journal).checkpoint();
+        }
+      });
+      try {
+        checkpoint.get(100, TimeUnit.MILLISECONDS);
+        fail("The checkpoint did not wait for the match being created");
+      } catch (TimeoutException e) {
+        // Waiting for the creation
+      }
+      journal.resumed.countDown();
+      Match match = created.get();
+      checkpoint.get();
+      play(server, match, 10);
+    } finally {
+      journal.resumed.countDown();
+      executor.shutdownNow();
+    }
+    journal.close();
+    assertRecovered(server, recover(openJournal()));
+  }
+
+  @Test
+  public void testInterruptedCompactionIsDoneAgain() throws IOException {
+    MoveJournal journal = openJournal();
+    GameServer server = recover(journal);
+    Match ended = server.createMatch(PLAYER_IDS);
+    playToTheEnd(server, ended);
+    fillSegment(server, journal);
+    File backup = folder.newFolder();
+    List<Long> segments = journal.getSegmentOffsets();
+    for (long segment : segments) {
+      Files.copy(getFile(segment, ".journal"), new File(backup, getFile(segment, ".journal")
+          .getName()));
+    }
+    new Checkpointer(server, journal).checkpoint();
+    List<String> archived = readArchivedGames();
+    assertTrue(archived.contains(ended.getId()));
+
+    // The compaction was interrupted after its pending file: the compacted segments were not
+    // deleted, and an archive of a later compaction was written without its pending file
+    long compactedOffset = journal.getSegmentOffsets().get(0);
+    for (long segment : segments) {
+      if (segment < compactedOffset) {
+        Files.copy(new File(backup, getFile(segment, ".journal").getName()),
+            getFile(segment, ".journal"));
+      }
+    }
+    File strayArchive = getFile(compactedOffset + 1, ".archive");
+    Files.copy(getFile(compactedOffset, ".archive"), strayArchive);
+    journal.close();
+
+    MoveJournal recoveredJournal = openJournal();
+    GameServer recovered = recover(recoveredJournal);
+    assertRecovered(server, recovered);
+    fillSegment(recovered, recoveredJournal);
+    new Checkpointer(recovered, recoveredJournal).checkpoint();
+    assertFalse(strayArchive.exists());
+    for (long segment : segments) {
+      if (segment < compactedOffset) {
+        assertFalse(getFile(segment, ".journal").exists());
+      }
+    }
+    // The segments that were compacted are not archived twice
+    List<String> rearchived = readArchivedGames();
+    assertEquals(archived, rearchived.subList(0, archived.size()));
+    assertEquals(rearchived.size(), ImmutableSet.copyOf(rearchived).size());
+    recoveredJournal.close();
+    assertRecovered(recovered, recover(openJournal()));
+  }
+}
@@ -0,0 +1,147 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+
+@RunWith(JUnit4.class)
+public class ColumnCodecTest {
+
+  private final Random random = new Random(11);
+
+  private static ColumnCodec.Reader reader(int encoding, int bits, byte[] column) {
+    return ColumnCodec.newReader(encoding, bits, ByteBuffer.wrap(column));
+  }
+
+  /** Reads the values in order, and again skipping random runs of them. */
+  private void assertReads(int[] values, int count, int encoding, int bits, byte[] column) {
+    ColumnCodec.Reader reader = reader(encoding, bits, column);
+    for (int i = 0; i < count; i++) {
+      assertEquals("value " + i, values[i], reader.next());
+    }
+    reader = reader(encoding, bits, column);
+    for (int i = 0; i < count; ) {
+      int skipped = random.nextInt(Math.min(count - i, 40) + 1);
+      reader.skip(skipped);
+      i += skipped;
+      if (i < count) {
+        assertEquals("value " + i + " after a skip", values[i], reader.next());
+        i++;
+      }
+    }
+  }
+
+  @Test
+  public void testBits() {
+    int count = 1001;
+    int[] values = new int[count];
+    for (int bits = 1; bits <= 8; bits++) {
+      for (int i = 0; i < count; i++) {
+        values[i] = random.nextInt(1 << bits);
+      }
+      // The greatest value, which has every bit set, across a byte boundary
+      values[2] = (1 << bits) - 1;
+      byte[] column = ColumnCodec.encodeBits(values, count, bits);
+      assertEquals((count * bits + 7) / 8, column.length);
+      assertReads(values, count, ColumnCodec.BITS, bits, column);
+    }
+  }
+
+  @Test
+  public void testBitsAreMasked() {
+    // The bits above the width are dropped, and do not spill into the next value
+    byte[] column = ColumnCodec.encodeBits(new int[] {0xff, 0, 5}, 3, 3);
+    ColumnCodec.Reader reader = reader(ColumnCodec.BITS, 3, column);
+    assertEquals(7, reader.next());
+    assertEquals(0, reader.next());
+    assertEquals(5, reader.next());
+  }
+
+  @Test
+  public void testRle() {
+    int count = 2000;
+    int[] values = new int[count];
+    for (int i = 0; i < count; ) {
+      // Runs of one value, and some longer than a one-byte varint
+      int run = random.nextInt(4) == 0 ? 128 + random.nextInt(300) : 1 + random.nextInt(5);
+      int value = random.nextInt(256);
+      for (int j = 0; j < run && i < count; j++) {
+        values[i++] = value;
+      }
+    }
+    byte[] column = ColumnCodec.encodeRle(values, count);
+    assertReads(values, count, ColumnCodec.RLE, 0, column);
+    assertEquals(0, ColumnCodec.encodeRle(values, 0).length);
+    // A run of 300 is the byte and a two-byte varint
+    assertEquals(3, ColumnCodec.encodeRle(new int[300], 300).length);
+  }
+
+  @Test
+  public void testDelta() {
+    long[] values = {0, 1, -1, 1000, 999, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE,
+        Long.MIN_VALUE, 0, 1L << 40, -(1L << 40), 42};
+    byte[] column = ColumnCodec.encodeDelta(values, values.length);
+    ColumnCodec.Reader reader = reader(ColumnCodec.DELTA, 0, column);
+    for (long value : values) {
+      assertEquals(value, reader.nextLong());
+    }
+    // Small differences of either sign take a byte
+    assertEquals(4, ColumnCodec.encodeDelta(new long[] {5, 4, 10, -50}, 4).length);
+
+    int[] ints = new int[500];
+    long[] longs = new long[ints.length];
+    for (int i = 1; i < ints.length; i++) {
+      ints[i] = ints[i - 1] + random.nextInt(100) - 30;
+      longs[i] = ints[i];
+    }
+    assertReads(ints, ints.length, ColumnCodec.DELTA, 0,
+        ColumnCodec.encodeDelta(longs, longs.length));
+  }
+
+  @Test
+  public void testVarintsAndBytes() {
+    int count = 500;
+    int[] values = new int[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = random.nextInt(1 << random.nextInt(31));
+    }
+    values[0] = Integer.MAX_VALUE;
+    assertReads(values, count, ColumnCodec.VARINT, 0, ColumnCodec.encodeVarints(values, count));
+    for (int i = 0; i < count; i++) {
+      values[i] = random.nextInt(256);
+    }
+    byte[] column = ColumnCodec.encodeBytes(values, count);
+    assertEquals(count, column.length);
+    assertReads(values, count, ColumnCodec.BYTES, 0, column);
+  }
+
+  @Test
+  public void testStrings() {
+    List<String> strings = ImmutableList.of("42", "", "a player", "\u00e9\u20ac");
+    ByteBuffer column = ByteBuffer.wrap(ColumnCodec.encodeStrings(strings));
+    assertEquals(strings, ColumnCodec.decodeStrings(column));
+    assertFalse(column.hasRemaining());
+    assertEquals(ImmutableList.of(), ColumnCodec.decodeStrings(
+        ByteBuffer.wrap(ColumnCodec.encodeStrings(ImmutableList.<String>of()))));
+  }
+
+  @Test
+  public void testUnknownEncoding() {
+    try {
+      reader(ColumnCodec.STRINGS, 0, new byte[0]);
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals("Unknown encoding " + ColumnCodec.STRINGS, e.getMessage());
+    }
+  }
+}
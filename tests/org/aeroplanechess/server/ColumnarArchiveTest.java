@@ -0,0 +1,374 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.client.AeroplaneChessState.Action;
+import org.game_api.GameApi.EndGame;
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+@RunWith(JUnit4.class)
+public class ColumnarArchiveTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+  private static final List<String> OTHER_PLAYER_IDS = ImmutableList.of("7", "42");
+  private static final int GAMES_PER_SEGMENT = 3;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File journalDirectory;
+  private File directory;
+  private GameServer server;
+
+  /** A move of a game as the journal has it, and its columns as the writer should save them. */
+  private static final class Move {
+    String playerId;
+    int die;
+    Action action;
+    int moved;
+    int captured;
+    String from;
+    String to;
+  }
+
+  /** The games of the journal, in the order they ended, which is the order of the archive. */
+  private static final class Games implements MoveJournal.Replay {
+    final Map<String, List<String>> playerIds = Maps.newHashMap();
+    final Map<String, List<Move>> moves = Maps.newHashMap();
+    final Map<String, Map<String, String>> locations = Maps.newHashMap();
+    final Map<String, Integer> dice = Maps.newHashMap();
+    final List<String> ended = Lists.newArrayList();
+    final Map<String, Integer> winners = Maps.newHashMap();
+
+    @Override
+    public void create(String matchId, List<String> players) {
+      playerIds.put(matchId, players);
+      moves.put(matchId, Lists.<Move>newArrayList());
+      locations.put(matchId, Maps.<String, String>newHashMap());
+      dice.put(matchId, 0);
+    }
+
+    @Override
+    public void move(String matchId, int version, String playerId, List<Operation> operations,
+        int die) {
+      Move move = new Move();
+      move.playerId = playerId;
+      move.die = dice.get(matchId);
+      if (die != 0) {
+        dice.put(matchId, die);
+      }
+      String side = playerIds.get(matchId).indexOf(playerId) == 0 ? "R" : "Y";
+      for (Operation operation : operations) {
+        if (operation instanceof EndGame) {
+          ended.add(matchId);
+          int winner = MutableState.NO_WINNER;
+          for (Map.Entry<String, Integer> score
+              : ((EndGame) operation).getPlayerIdToScore().entrySet()) {
+            if (score.getValue() > 0) {
+              winner = playerIds.get(matchId).indexOf(score.getKey());
+            }
+          }
+          winners.put(matchId, winner);
+        } else if (operation instanceof Set) {
+          Set set = (Set) operation;
+          if (set.getKey().equals("action")) {
+            move.action = Action.fromLowerString((String) set.getValue());
+          } else if (set.getKey().matches("[RY][0-3]")) {
+            String location = (String) ((List<?>) set.getValue()).get(0);
+            String previous = locations.get(matchId).put(set.getKey(), location);
+            if (previous == null) {
+              previous = "H0" + set.getKey().charAt(1);
+            }
+            if (location.equals(previous)) {
+              continue;
+            }
+            int piece = "RY".indexOf(set.getKey().charAt(0)) * 4 + set.getKey().charAt(1) - '0';
+            if (set.getKey().startsWith(side)) {
+              if (move.moved == 0) {
+                move.from = previous;
+                move.to = location;
+              }
+              move.moved |= 1 << piece;
+            } else if (location.startsWith("H")) {
+              move.captured |= 1 << piece;
+            }
+          }
+        }
+      }
+      moves.get(matchId).add(move);
+    }
+
+    @Override
+    public void abandon(String matchId, int version) {
+      ended.add(matchId);
+      winners.put(matchId, MutableState.NO_WINNER);
+    }
+  }
+
+  /** Passes the records to both replays. */
+  private static MoveJournal.Replay tee(final MoveJournal.Replay first,
+      final MoveJournal.Replay second) {
+    return new MoveJournal.Replay() {
+      @Override
+      public void create(String matchId, List<String> playerIds) {
+        first.create(matchId, playerIds);
+        second.create(matchId, playerIds);
+      }
+
+      @Override
+      public void move(String matchId, int version, String playerId,
+          List<Operation> operations, int die) {
+        first.move(matchId, version, playerId, operations, die);
+        second.move(matchId, version, playerId, operations, die);
+      }
+
+      @Override
+      public void abandon(String matchId, int version) {
+        first.abandon(matchId, version);
+        second.abandon(matchId, version);
+      }
+    };
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    journalDirectory = folder.newFolder();
+    directory = new File(folder.getRoot(), "columns");
+    server = GameServer.recover(1, MatchRegistry.STRIPES,
+        new MoveJournal(journalDirectory, MoveJournal.SyncPolicy.NEVER));
+  }
+
+  @After
+  public void tearDown() {
+    server.shutdown();
+  }
+
+  /** Plays moves of a match until it is over or has made the moves. */
+  private void play(Match match, RandomPlayer player, int moves) {
+    for (int i = 0; i < moves && !match.isOver(); i++) {
+      List<Operation> move = null;
+      String playerId = null;
+      try {
+        for (String id : match.getPlayerIds()) {
+          move = player.chooseMove(match.getUpdateUI(id));
+          if (move != null) {
+            playerId = id;
+            break;
+          }
+        }
+      } catch (RuntimeException e) {
+        // The presenter refused a choice it offered, so the match cannot go on
+        server.abandon(match);
+        return;
+      }
+      assertNotNull(move);
+      assertNull(
+          match.makeMove(playerId, match.getVersion(), new MakeMove(move)).getHackerPlayerId());
+    }
+  }
+
+  /**
+   * Plays games to the end, one of them abandoned and one left unfinished, writes the journal to
+   * an archive through the writer, and returns the games as the journal has them.
+   */
+  private Games writeArchive(int games) throws IOException {
+    RandomPlayer player = new RandomPlayer(new Random(3));
+    Match unfinished = server.createMatch(PLAYER_IDS);
+    play(unfinished, player, 10);
+    for (int i = 0; i < games; i++) {
+      Match match = server.createMatch(i % 2 == 0 ? PLAYER_IDS : OTHER_PLAYER_IDS);
+      if (i == 1) {
+        play(match, player, 30);
+        server.abandon(match);
+      } else {
+        play(match, player, Integer.MAX_VALUE);
+      }
+    }
+    play(unfinished, player, 10);
+    server.shutdown();
+    Games recorded = new Games();
+    try (ColumnarArchiveWriter writer =
+        new ColumnarArchiveWriter(directory, GAMES_PER_SEGMENT)) {
+      MoveJournal journal = new MoveJournal(journalDirectory, MoveJournal.SyncPolicy.NEVER);
+      journal.replay(tee(writer, recorded));
+      journal.close();
+      assertEquals(games, writer.getGames());
+    }
+    assertFalse(recorded.ended.contains(unfinished.getId()));
+    return recorded;
+  }
+
+  /** Checks the fields of the cursor's game, and of its moves up to movesRead of them. */
+  private static void assertGame(Games games, String matchId, ColumnarArchive.Cursor cursor,
+      int movesRead) {
+    List<String> playerIds = games.playerIds.get(matchId);
+    List<Move> moves = games.moves.get(matchId);
+    assertEquals(Long.parseLong(matchId), cursor.getMatchId());
+    assertEquals(playerIds.get(0), cursor.getRedPlayerId());
+    assertEquals(playerIds.get(1), cursor.getYellowPlayerId());
+    assertEquals(moves.size(), cursor.getMoveCount());
+    assertEquals(games.winners.get(matchId).intValue(), cursor.getWinner());
+    String lastPlayerId = null;
+    for (int i = 0; i < movesRead && i < moves.size(); i++) {
+      Move move = moves.get(i);
+      assertTrue(cursor.nextMove());
+      String message = "match " + matchId + " move " + i;
+      assertEquals(message, i, cursor.getMoveNumber());
+      assertEquals(message, playerIds.indexOf(move.playerId) == 0 ? MutableState.RED
+          : MutableState.YELLOW, cursor.getPlayer());
+      assertEquals(message, !move.playerId.equals(lastPlayerId), cursor.isTurnStart());
+      assertEquals(message, move.die, cursor.getDie());
+      assertEquals(message, move.action, cursor.getAction());
+      assertEquals(message, move.moved, cursor.getMovedPieces());
+      assertEquals(message, move.captured, cursor.getCapturedPieces());
+      assertEquals(message, move.from, ColumnarArchive.decodeLocation(cursor.getFrom()));
+      assertEquals(message, move.to, ColumnarArchive.decodeLocation(cursor.getTo()));
+      lastPlayerId = move.playerId;
+    }
+    if (movesRead >= moves.size()) {
+      assertFalse(cursor.nextMove());
+    }
+  }
+
+  @Test
+  public void testWritesAndReadsTheGames() throws IOException {
+    Games games = writeArchive(8);
+    // Segments of 3, 3 and 2 games, the last written on close, and no temporary file left
+    List<File> files = ColumnarArchive.list(directory);
+    assertEquals(3, files.size());
+    assertEquals(files.size(), directory.listFiles().length);
+    long firstGame = 0;
+    int totalMoves = 0;
+    for (File file : files) {
+      ColumnarArchive.Segment segment = ColumnarArchive.Segment.open(file);
+      assertEquals(String.format("%020d.columns", firstGame), file.getName());
+      assertEquals(firstGame, segment.getFirstGame());
+      firstGame += segment.getGames();
+      totalMoves += segment.getMoves();
+    }
+    assertEquals(8, firstGame);
+    int recordedMoves = 0;
+    for (String matchId : games.ended) {
+      recordedMoves += games.moves.get(matchId).size();
+    }
+    assertEquals(recordedMoves, totalMoves);
+
+    ColumnarArchive.Cursor cursor = ColumnarArchive.open(directory);
+    boolean abandoned = false;
+    for (int i = 0; i < games.ended.size(); i++) {
+      assertTrue(cursor.nextGame());
+      assertEquals(i % GAMES_PER_SEGMENT, cursor.getGameIndex());
+      assertGame(games, games.ended.get(i), cursor, Integer.MAX_VALUE);
+      abandoned |= cursor.getWinner() == MutableState.NO_WINNER;
+    }
+    assertTrue(abandoned);
+    assertFalse(cursor.nextGame());
+  }
+
+  @Test
+  public void testNextGameSkipsTheMovesLeft() throws IOException {
+    Games games = writeArchive(8);
+    Random random = new Random(5);
+    for (int pass = 0; pass < 5; pass++) {
+      ColumnarArchive.Cursor cursor = ColumnarArchive.open(directory);
+      for (String matchId : games.ended) {
+        assertTrue(cursor.nextGame());
+        // None of the moves, some of them, or all
+        int size = games.moves.get(matchId).size();
+        int movesRead = random.nextInt(3) == 0 ? 0 : random.nextInt(size + 1);
+        assertGame(games, matchId, cursor, movesRead);
+      }
+      assertFalse(cursor.nextGame());
+    }
+  }
+
+  @Test
+  public void testAWriterContinuesTheNumbering() throws IOException {
+    final Games games = writeArchive(4);
+    // A temporary file of a segment that was not renamed is not part of the archive
+    assertTrue(new File(directory, String.format("%020d.columns.tmp", 4)).createNewFile());
+    try (ColumnarArchiveWriter writer = new ColumnarArchiveWriter(directory, GAMES_PER_SEGMENT)) {
+      assertEquals(4, writer.getGames());
+      // The first game again, with another id
+      String first = games.ended.get(0);
+      writer.create("1000", games.playerIds.get(first));
+      MoveJournal journal = new MoveJournal(journalDirectory, MoveJournal.SyncPolicy.NEVER);
+      journal.replay(new MoveJournal.Replay() {
+        @Override
+        public void create(String matchId, List<String> playerIds) {
+        }
+
+        @Override
+        public void move(String matchId, int version, String playerId,
+            List<Operation> operations, int die) {
+          if (matchId.equals(games.ended.get(0))) {
+            writer.move("1000", version, playerId, operations, die);
+          }
+        }
+
+        @Override
+        public void abandon(String matchId, int version) {
+        }
+      });
+      journal.close();
+      assertEquals(5, writer.getGames());
+    }
+    List<File> files = ColumnarArchive.list(directory);
+    assertEquals(3, files.size());
+    ColumnarArchive.Segment last = ColumnarArchive.Segment.open(files.get(2));
+    assertEquals(4, last.getFirstGame());
+    assertEquals(1, last.getGames());
+    ColumnarArchive.Cursor cursor = last.cursor();
+    assertTrue(cursor.nextGame());
+    assertEquals(1000, cursor.getMatchId());
+    assertEquals(games.moves.get(games.ended.get(0)).size(), cursor.getMoveCount());
+    assertFalse(cursor.nextGame());
+  }
+
+  @Test
+  public void testCorruptColumnIsDetected() throws IOException {
+    writeArchive(3);
+    File file = ColumnarArchive.list(directory).get(0);
+    ColumnarArchive.Segment.open(file);
+    try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+      // A byte of the last column, TO
+      long position = out.length() - 1;
+      out.seek(position);
+      int value = out.read();
+      out.seek(position);
+      out.write(value ^ 1);
+    }
+    try {
+      ColumnarArchive.Segment.open(file);
+      fail();
+    } catch (IOException e) {
+      assertEquals("Corrupt column TO in " + file, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.UpdateUI;
+import org.game_api.GameApi.VerifyMoveDone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+@RunWith(JUnit4.class)
+public class GameHttpServerTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  private GameServer gameServer;
+  private GameHttpServer httpServer;
+  private String node;
+
+  @Before
+  public void setUp() throws IOException {
+    gameServer = new GameServer(1);
+    httpServer = new GameHttpServer(gameServer, 0, 2);
+    httpServer.start();
+    node = "localhost:" + httpServer.getPort();
+  }
+
+  @After
+  public void tearDown() {
+    httpServer.stop();
+    gameServer.shutdown();
+  }
+
+  private PartitionRouter.Response send(String method, String target, String ifMatch,
+      String body) throws IOException {
+    return PartitionRouter.send(node, method, target, ifMatch, body);
+  }
+
+  private String createMatch() throws IOException {
+    PartitionRouter.Response created = send("POST", "/matches", null,
+        "{\"playerIds\": [\"42\", \"43\"]}");
+    assertEquals(200, created.status);
+    Map<?, ?> response = (Map<?, ?>) Json.parse(created.body);
+    assertEquals(PLAYER_IDS, response.get("playerIds"));
+    return (String) response.get("matchId");
+  }
+
+  /** Makes a random move of the player whose turn it is, at the version of the ETag. */
+  private PartitionRouter.Response makeMove(String matchId, Random random) throws IOException {
+    for (String playerId : PLAYER_IDS) {
+      PartitionRouter.Response view = send("GET", "/matches/" + matchId + "?playerId="
+          + playerId, null, null);
+      assertEquals(200, view.status);
+      List<Operation> move =
+          new RandomPlayer(random).chooseMove((UpdateUI) Json.toMessage(view.body));
+      if (move != null) {
+        return send("POST", "/matches/" + matchId + "?playerId=" + playerId, view.etag,
+            Json.toJson(new MakeMove(move)));
+      }
+    }
+    throw new AssertionError("No player has a move to make");
+  }
+
+  @Test
+  public void testPlaysAMatch() throws IOException {
+    String matchId = createMatch();
+    Random random = new Random(5);
+    for (int i = 0; i < 20; i++) {
+      PartitionRouter.Response response = makeMove(matchId, random);
+      assertEquals(200, response.status);
+      assertNull(((VerifyMoveDone) Json.toMessage(response.body)).getHackerPlayerId());
+    }
+    assertEquals(20, gameServer.getMatch(matchId).getVersion());
+    PartitionRouter.Response view = send("GET", "/matches/" + matchId + "?playerId=42", null,
+        null);
+    assertEquals("\"20\"", view.etag);
+    assertEquals(gameServer.getMatch(matchId).getUpdateUI("42"), Json.toMessage(view.body));
+
+    Map<?, ?> matchIds = (Map<?, ?>) Json.parse(send("GET", "/matches", null, null).body);
+    assertEquals(ImmutableList.of(matchId), matchIds.get("matchIds"));
+  }
+
+  @Test
+  public void testStaleMovesAnswer412() throws IOException {
+    String matchId = createMatch();
+    String playerId = PLAYER_IDS.get(0);
+    String target = "/matches/" + matchId + "?playerId=" + playerId;
+    PartitionRouter.Response view = send("GET", target, null, null);
+    List<Operation> move =
+        new RandomPlayer(new Random(0)).chooseMove((UpdateUI) Json.toMessage(view.body));
+    if (move == null) {
+      playerId = PLAYER_IDS.get(1);
+      target = "/matches/" + matchId + "?playerId=" + playerId;
+      view = send("GET", target, null, null);
+      move = new RandomPlayer(new Random(0)).chooseMove((UpdateUI) Json.toMessage(view.body));
+    }
+    String body = Json.toJson(new MakeMove(move));
+    assertEquals(200, send("POST", target, view.etag, body).status);
+
+    // The move sent again is for the version before it
+    PartitionRouter.Response stale = send("POST", target, view.etag, body);
+    assertEquals(412, stale.status);
+    VerifyMoveDone verifyMoveDone = (VerifyMoveDone) Json.toMessage(stale.body);
+    assertNull(verifyMoveDone.getHackerPlayerId());
+    assertTrue(verifyMoveDone.getMessage(), verifyMoveDone.getMessage().contains("version 0"));
+    assertEquals(1, gameServer.getMatch(matchId).getVersion());
+  }
+
+  @Test
+  public void testMalformedBodiesAnswer400() throws IOException {
+    String matchId = createMatch();
+    String target = "/matches/" + matchId + "?playerId=42";
+    String nested = Strings.repeat("[", 10000);
+    assertEquals(400, send("POST", target, null, nested).status);
+    assertEquals(400, send("POST", "/matches", null, "{\"playerIds\": " + nested).status);
+    assertEquals(400, send("POST", "/snapshots", null, nested).status);
+    assertEquals(400, send("POST", target, null, "{\"type\": \"MakeMove\"").status);
+    assertEquals(400, send("POST", target, null, "{\"type\": \"EndGame\", "
+        + "\"playerIdToScore\": {\"42\": 1.9}}").status);
+    assertEquals(400, send("POST", target, null, "{}").status);
+    assertEquals(400, send("POST", target, null, "{\"type\": \"MakeMove\"}").status);
+    assertEquals(400, send("POST", target, "\"x\"",
+        "{\"type\": \"MakeMove\", \"operations\": []}").status);
+    assertEquals(0, gameServer.getMatch(matchId).getVersion());
+    // The server is still serving
+    assertEquals(200, makeMove(matchId, new Random(1)).status);
+  }
+
+  @Test
+  public void testLongBodiesAnswer413() throws IOException {
+    String matchId = createMatch();
+    String body = "\"" + Strings.repeat("a", GameHttpServer.MAX_BODY_BYTES) + "\"";
+    PartitionRouter.Response response = send("POST", "/matches/" + matchId + "?playerId=42",
+        null, body);
+    assertEquals(413, response.status);
+    assertTrue(response.body, response.body.contains("Request body over"));
+    assertEquals(413, send("POST", "/snapshots", null, body).status);
+    assertEquals(1, gameServer.getLiveMatches().size());
+    // A body of the longest length is read
+    String longest = Strings.repeat(" ", GameHttpServer.MAX_BODY_BYTES - 2) + "{}";
+    assertEquals(200, send("POST", "/matches", null, longest).status);
+  }
+}
@@ -0,0 +1,108 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+@RunWith(JUnit4.class)
+public class HashRingTest {
+
+  private static final List<String> NODES = ImmutableList.of("node-a", "node-b", "node-c",
+      "node-d");
+  private static final List<String> MATCH_IDS = createMatchIds(20000);
+
+  private static List<String> createMatchIds(int count) {
+    List<String> matchIds = Lists.newArrayList();
+    for (int i = 1; i <= count; i++) {
+      matchIds.add(String.valueOf(i));
+    }
+    return matchIds;
+  }
+
+  private static void assertSameNodes(HashRing expected, HashRing ring) {
+    assertEquals(expected.getNodes(), ring.getNodes());
+    assertEquals(expected.getShares(), ring.getShares());
+    assertEquals(ImmutableList.of(), expected.getMoved(ring, MATCH_IDS));
+  }
+
+  @Test
+  public void testSharesSumToOne() {
+    HashRing ring = new HashRing(NODES);
+    Map<String, Double> shares = ring.getShares();
+    assertEquals(NODES, ImmutableList.copyOf(shares.keySet()));
+    double sum = 0;
+    for (double share : shares.values()) {
+      sum += share;
+    }
+    assertEquals(1.0, sum, 1e-9);
+    // The shares of the nodes are the shares of the matches they get
+    Map<String, Integer> counts = Maps.newHashMap();
+    for (String matchId : MATCH_IDS) {
+      String node = ring.getNode(matchId);
+      counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+    }
+    for (String node : NODES) {
+      assertEquals(shares.get(node), (double) counts.get(node) / MATCH_IDS.size(), 0.02);
+    }
+    assertEquals(ImmutableMap.of("node-a", 1.0), new HashRing(NODES.subList(0, 1)).getShares());
+  }
+
+  @Test
+  public void testWithNodeMovesItsShare() {
+    HashRing ring = new HashRing(NODES);
+    HashRing larger = ring.withNode("node-e");
+    List<String> moved = ring.getMoved(larger, MATCH_IDS);
+    // About 1 / 5 of the matches move, all of them to the new node
+    assertEquals(0.2, (double) moved.size() / MATCH_IDS.size(), 0.05);
+    assertEquals(larger.getShares().get("node-e"), (double) moved.size() / MATCH_IDS.size(),
+        0.02);
+    for (String matchId : moved) {
+      assertEquals("node-e", larger.getNode(matchId));
+    }
+    // Removing it moves the same matches back
+    assertEquals(moved, larger.getMoved(larger.withoutNode("node-e"), MATCH_IDS));
+    assertSameNodes(ring, larger.withoutNode("node-e"));
+  }
+
+  @Test
+  public void testWithoutNodeOnlyMovesItsMatches() {
+    HashRing ring = new HashRing(NODES);
+    HashRing smaller = ring.withoutNode("node-b");
+    List<String> moved = ring.getMoved(smaller, MATCH_IDS);
+    assertTrue(!moved.isEmpty());
+    for (String matchId : MATCH_IDS) {
+      assertEquals(moved.contains(matchId), ring.getNode(matchId).equals("node-b"));
+    }
+  }
+
+  @Test
+  public void testTheOrderOfTheNodesDoesNotMatter() {
+    HashRing ring = new HashRing(NODES);
+    assertSameNodes(ring, new HashRing(Lists.reverse(NODES)));
+    assertSameNodes(ring, new HashRing(NODES.subList(2, 4)).withNode("node-b")
+        .withNode("node-a"));
+    assertSameNodes(ring, new HashRing(ImmutableList.of("node-d", "node-x")).withNode("node-a")
+        .withoutNode("node-x").withNode("node-c").withNode("node-b"));
+  }
+
+  @Test
+  public void testCollisionsGoToTheGreaterNode() {
+    Map<Long, String> points = Maps.newHashMap();
+    HashRing.addPoint(points, 7, "node-a");
+    HashRing.addPoint(points, 7, "node-b");
+    HashRing.addPoint(points, 8, "node-b");
+    HashRing.addPoint(points, 8, "node-a");
+    assertEquals(ImmutableMap.of(7L, "node-b", 8L, "node-b"), points);
+  }
+}
@@ -0,0 +1,157 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Message;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.UpdateUI;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class JsonTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+
+  private static void assertMalformed(String json) {
+    try {
+      Json.parse(json);
+      fail("Parsed " + json);
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid JSON at "));
+    }
+  }
+
+  @Test
+  public void testValuesRoundTrip() {
+    Map<String, Object> value = ImmutableMap.<String, Object>of(
+        "ints", ImmutableList.of(0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE),
+        "booleans", ImmutableList.of(true, false),
+        "empty", ImmutableList.of(ImmutableMap.of(), ImmutableList.of()),
+        "nested", ImmutableMap.of("a", ImmutableList.of(ImmutableMap.of("b", "c"))),
+        "strings", Lists.newArrayList("", "plain", null));
+    assertEquals(value, Json.parse(Json.toJson(value)));
+  }
+
+  @Test
+  public void testMessagesRoundTrip() {
+    GameServer server = new GameServer(1);
+    try {
+      Match match = server.createMatch(PLAYER_IDS);
+      RandomPlayer player = new RandomPlayer(new Random(3));
+      for (int i = 0; i < 10; i++) {
+        for (String playerId : PLAYER_IDS) {
+          UpdateUI updateUI = match.getUpdateUI(playerId);
+          assertEquals(updateUI, Json.toMessage(Json.toJson(updateUI)));
+          List<Operation> move = player.chooseMove(updateUI);
+          if (move != null) {
+            Message makeMove = new MakeMove(move);
+            assertEquals(makeMove, Json.toMessage(Json.toJson(makeMove)));
+            match.makeMove(playerId, match.getVersion(), new MakeMove(move));
+          }
+        }
+      }
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  @Test
+  public void testEscapes() {
+    String value = "quote \" backslash \\ newline \n return \r tab \t bell \u0007 e\u0301";
+    String json = Json.toJson(value);
+    assertEquals("\"quote \\\" backslash \\\\ newline \\n return \\r tab \\t bell \\u0007 "
+        + "e\u0301\"", json);
+    assertEquals(value, Json.parse(json));
+    assertEquals("\b\f/\u00e9\u20ac", Json.parse("\"\\b\\f\\/\\u00e9\\u20AC\""));
+  }
+
+  @Test
+  public void testWhitespace() {
+    assertEquals(ImmutableMap.of("a", ImmutableList.of(1, 2)),
+        Json.parse(" \n{ \"a\" :\t[ 1 ,2 ] }\r\n"));
+  }
+
+  @Test
+  public void testNumbers() {
+    assertEquals(1, Json.parse("1"));
+    assertEquals(-7, Json.parse("-7"));
+    assertEquals(0, Json.parse("-0"));
+    assertEquals(0, Json.parse("0e-999999999"));
+    // Integers written with a fraction or an exponent, as a double would be
+    assertEquals(2, Json.parse("2.0"));
+    assertEquals(100, Json.parse("1e2"));
+    assertEquals(Integer.MAX_VALUE, Json.parse("2147483647"));
+    assertEquals(Integer.MIN_VALUE, Json.parse("-2147483648"));
+  }
+
+  @Test
+  public void testRejectsNumbersThatAreNotInts() {
+    assertMalformed("1.9");
+    assertMalformed("-0.5");
+    assertMalformed("1e-999999999");
+    assertMalformed("2147483648");
+    assertMalformed("-2147483649");
+    assertMalformed("1e20");
+    assertMalformed("1e999999999");
+    assertMalformed("[1, 99999999999999999999]");
+    assertMalformed("1..2");
+    assertMalformed("-");
+  }
+
+  @Test
+  public void testRejectsMalformedInput() {
+    assertMalformed("");
+    assertMalformed("   ");
+    assertMalformed("{");
+    assertMalformed("[1, 2");
+    assertMalformed("[1 2]");
+    assertMalformed("{\"a\" 1}");
+    assertMalformed("{a: 1}");
+    assertMalformed("{\"a\": 1,}");
+    assertMalformed("\"unterminated");
+    assertMalformed("\"\\u12\"");
+    assertMalformed("tru");
+    assertMalformed("nul");
+    assertMalformed("{} {}");
+    assertMalformed("x");
+  }
+
+  @Test
+  public void testBoundsTheNesting() {
+    String nested = Strings.repeat("[", Json.MAX_DEPTH) + Strings.repeat("]", Json.MAX_DEPTH);
+    assertTrue(Json.parse(nested) instanceof List);
+    assertMalformed("[" + nested + "]");
+    assertMalformed(Strings.repeat("{\"a\":", Json.MAX_DEPTH + 1) + "1"
+        + Strings.repeat("}", Json.MAX_DEPTH + 1));
+    // Far deeper than the stack would take, had the parser no bound
+    assertMalformed(Strings.repeat("[", 1 << 20));
+  }
+
+  @Test
+  public void testToMessage() {
+    assertNull(Json.toMessage("{\"type\": \"Unknown\"}"));
+    assertNull(Json.toMessage("{}"));
+    assertNull(Json.toMessage("{\"type\": 1}"));
+    try {
+      Json.toMessage("[1]");
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("JSON object expected"));
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.VerifyMoveDone;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class MatchTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+  private static final int THREADS = 8;
+  private static final int ROUNDS = 20;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+  private final List<GameServer> servers = Lists.newArrayList();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    for (GameServer server : servers) {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Holds the appends of the moves until THREADS of them are there, so that all the moves of a
+   * round get past the check of the version before any of them is applied.
+   */
+  private static class RacingJournal extends MoveJournal {
+    private final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+
+    RacingJournal(File directory) throws IOException {
+      super(directory, MoveJournal.SyncPolicy.NEVER);
+    }
+
+    @Override
+    public <T> long append(byte[] record, AtomicReference<T> reference, T expect, T update)
+        throws IOException {
+      if (reference != null) {
+        try {
+          barrier.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+          throw new AssertionError(e);
+        }
+      }
+      return super.append(record, reference, expect, update);
+    }
+  }
+
+  private MoveJournal openJournal() throws IOException {
+    return new MoveJournal(folder.getRoot(), MoveJournal.SyncPolicy.NEVER);
+  }
+
+  private GameServer recover(MoveJournal journal) throws IOException {
+    GameServer server = GameServer.recover(1, MatchRegistry.STRIPES, journal);
+    servers.add(server);
+    return server;
+  }
+
+  /**
+   * Plays rounds in which THREADS threads make a move at the same version at once, each its own
+   * random move, and checks that exactly one of them is applied and the others are stale.
+   */
+  private void raceMoves(GameServer server, final Match match) throws InterruptedException,
+      ExecutionException {
+    List<RandomPlayer> players = Lists.newArrayList();
+    for (int i = 0; i < THREADS; i++) {
+      players.add(new RandomPlayer(new Random(i)));
+    }
+    for (int round = 0; round < ROUNDS && !match.isOver(); round++) {
+      final int version = match.getVersion();
+      final String playerId = getTurnPlayerId(match);
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<VerifyMoveDone>> results = Lists.newArrayList();
+      for (RandomPlayer player : players) {
+        final List<Operation> move = player.chooseMove(match.getUpdateUI(playerId));
+        assertNotNull(move);
+        results.add(executor.submit(new Callable<VerifyMoveDone>() {
+          @Override
+          public VerifyMoveDone call() throws InterruptedException {
+            start.await();
+            return match.makeMove(playerId, version, new MakeMove(move));
+          }
+        }));
+      }
+      GameServer.Metrics before = server.getMetrics();
+      start.countDown();
+      int applied = 0;
+      for (Future<VerifyMoveDone> result : results) {
+        // The losers are stale, not hackers
+        assertNull(result.get().getHackerPlayerId());
+        if (!Match.isStale(result.get())) {
+          applied++;
+        }
+      }
+      assertEquals(1, applied);
+      assertEquals(version + 1, match.getVersion());
+      GameServer.Metrics after = server.getMetrics();
+      assertEquals(1, after.getMoves() - before.getMoves());
+      assertEquals(THREADS - 1, after.getStaleMoves() - before.getStaleMoves());
+      assertEquals(0, after.getRejectedMoves() - before.getRejectedMoves());
+    }
+  }
+
+  /** Returns the id of the player who has a move to make. */
+  private static String getTurnPlayerId(Match match) {
+    RandomPlayer player = new RandomPlayer(new Random(0));
+    for (String playerId : PLAYER_IDS) {
+      if (player.chooseMove(match.getUpdateUI(playerId)) != null) {
+        return playerId;
+      }
+    }
+    throw new AssertionError("No player has a move to make");
+  }
+
+  @Test
+  public void testMovesForAnotherVersionAreStale() {
+    GameServer server = new GameServer(1);
+    servers.add(server);
+    Match match = server.createMatch(PLAYER_IDS);
+    String playerId = getTurnPlayerId(match);
+    MakeMove move =
+        new MakeMove(new RandomPlayer(new Random(0)).chooseMove(match.getUpdateUI(playerId)));
+    VerifyMoveDone applied = match.makeMove(playerId, 0, move);
+    assertNull(applied.getHackerPlayerId());
+    assertFalse(Match.isStale(applied));
+
+    // The same move, sent again
+    VerifyMoveDone stale = match.makeMove(playerId, 0, move);
+    assertTrue(stale.getMessage(), Match.isStale(stale));
+    assertNull(stale.getHackerPlayerId());
+    assertEquals(1, match.getVersion());
+    assertEquals(1, server.getMetrics().getStaleMoves());
+    assertEquals(0, server.getMetrics().getRejectedMoves());
+
+    // A move of the wrong player is rejected, and not stale
+    String otherId = PLAYER_IDS.get(PLAYER_IDS.indexOf(getTurnPlayerId(match)) ^ 1);
+    VerifyMoveDone rejected = match.makeMove(otherId, 1, move);
+    assertEquals(otherId, rejected.getHackerPlayerId());
+    assertFalse(Match.isStale(rejected));
+  }
+
+  @Test
+  public void testMovesForADetachedMatchAreStale() {
+    GameServer server = new GameServer(1);
+    servers.add(server);
+    Match match = server.createMatch(PLAYER_IDS);
+    String playerId = getTurnPlayerId(match);
+    MakeMove move =
+        new MakeMove(new RandomPlayer(new Random(0)).chooseMove(match.getUpdateUI(playerId)));
+    assertNotNull(server.detach(match.getId()));
+    VerifyMoveDone stale = match.makeMove(playerId, 0, move);
+    assertTrue(stale.getMessage(), Match.isStale(stale));
+    assertEquals(0, match.getVersion());
+  }
+
+  @Test
+  public void testOneOfTheRacingMovesWins() throws Exception {
+    GameServer server = new GameServer(1);
+    servers.add(server);
+    raceMoves(server, server.createMatch(PLAYER_IDS));
+  }
+
+  @Test
+  public void testOneOfTheRacingMovesIsJournaled() throws Exception {
+    MoveJournal journal = new RacingJournal(folder.getRoot());
+    GameServer server = recover(journal);
+    Match match = server.createMatch(PLAYER_IDS);
+    raceMoves(server, match);
+    int version = match.getVersion();
+    assertTrue(version > 0);
+    journal.close();
+
+    // All the moves of each round got to the compare-and-set, and the journal has the one that
+    // won it, and none of the others
+    Match recovered = recover(openJournal()).getMatch(match.getId());
+    assertEquals(version, recovered.getVersion());
+    assertEquals(match.getUpdateUI(PLAYER_IDS.get(0)).getState(),
+        recovered.getUpdateUI(PLAYER_IDS.get(0)).getState());
+  }
+}
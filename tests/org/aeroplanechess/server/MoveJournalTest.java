@@ -0,0 +1,248 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.game_api.GameApi.Operation;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class MoveJournalTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+  /* Small segments, so that a few records fill one */
+  private static final int SEGMENT_BYTES = 64;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Lists the records it replays, as "create ID" and "abandon ID VERSION". */
+  private static class RecordList implements MoveJournal.Replay {
+    final List<String> records = Lists.newArrayList();
+
+    @Override
+    public void create(String matchId, List<String> playerIds) {
+      records.add("create " + matchId);
+    }
+
+    @Override
+    public void move(String matchId, int version, String playerId, List<Operation> operations,
+        int die) {
+      records.add("move " + matchId + " " + version);
+    }
+
+    @Override
+    public void abandon(String matchId, int version) {
+      records.add("abandon " + matchId + " " + version);
+    }
+  }
+
+  private MoveJournal open(MoveJournal.SyncPolicy syncPolicy) throws IOException {
+    return new MoveJournal(folder.getRoot(), syncPolicy, SEGMENT_BYTES,
+        MoveJournal.SYNC_INTERVAL_MILLIS);
+  }
+
+  private static List<String> replay(MoveJournal journal) throws IOException {
+    RecordList recordList = new RecordList();
+    journal.replay(recordList);
+    return recordList.records;
+  }
+
+  /** Appends the records of a match, and returns the offset before each of them. */
+  private static List<Long> appendMatch(MoveJournal journal, String matchId, int abandons,
+      List<String> expected) throws IOException {
+    List<Long> offsets = Lists.newArrayList();
+    offsets.add(journal.getOffset());
+    journal.append(MoveCodec.encodeCreate(matchId, PLAYER_IDS));
+    expected.add("create " + matchId);
+    for (int version = 1; version <= abandons; version++) {
+      offsets.add(journal.getOffset());
+      journal.append(MoveCodec.encodeAbandon(matchId, version));
+      expected.add("abandon " + matchId + " " + version);
+    }
+    return offsets;
+  }
+
+  private File getSegmentFile(long offset) {
+    return new File(folder.getRoot(), String.format("%020d.journal", offset));
+  }
+
+  /** Writes bytes at an offset of the journal, as a crash in the middle of a write would. */
+  private void write(MoveJournal journal, long offset, byte[] bytes) throws IOException {
+    List<Long> segments = journal.getSegmentOffsets();
+    long segment = 0;
+    for (long start : segments) {
+      if (start <= offset) {
+        segment = start;
+      }
+    }
+    try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(segment), "rw")) {
+      file.seek(offset - segment);
+      file.write(bytes);
+    }
+  }
+
+  @Test
+  public void testAppendAndReplay() throws IOException {
+    MoveJournal journal = open(MoveJournal.SyncPolicy.NEVER);
+    assertEquals(ImmutableList.of(), replay(journal));
+    List<String> expected = Lists.newArrayList();
+    appendMatch(journal, "1", 2, expected);
+    appendMatch(journal, "2", 0, expected);
+    long offset = journal.getOffset();
+    journal.close();
+
+    MoveJournal reopened = open(MoveJournal.SyncPolicy.NEVER);
+    assertEquals(expected, replay(reopened));
+    assertEquals(offset, reopened.getOffset());
+    assertEquals(expected.size(), reopened.getRecords());
+    // The appends go on after the last record
+    appendMatch(reopened, "3", 1, expected);
+    reopened.close();
+    assertEquals(expected, replay(open(MoveJournal.SyncPolicy.NEVER)));
+  }
+
+  @Test
+  public void testSegmentRollover() throws IOException {
+    MoveJournal journal = open(MoveJournal.SyncPolicy.NEVER);
+    replay(journal);
+    List<String> expected = Lists.newArrayList();
+    for (int i = 1; i <= 10; i++) {
+      appendMatch(journal, String.valueOf(i), 3, expected);
+    }
+    List<Long> segments = journal.getSegmentOffsets();
+    assertTrue(segments.size() > 2);
+    assertEquals(0L, (long) segments.get(0));
+    for (long segment : segments) {
+      assertTrue(getSegmentFile(segment).exists());
+    }
+    journal.close();
+
+    MoveJournal reopened = open(MoveJournal.SyncPolicy.NEVER);
+    assertEquals(expected, replay(reopened));
+    assertEquals(segments, reopened.getSegmentOffsets());
+  }
+
+  @Test
+  public void testCorruptTailIsTruncated() throws IOException {
+    MoveJournal journal = open(MoveJournal.SyncPolicy.NEVER);
+    replay(journal);
+    List<String> expected = Lists.newArrayList();
+    appendMatch(journal, "1", 1, expected);
+    List<Long> offsets = appendMatch(journal, "2", 1, expected);
+    journal.close();
+    // The creation of the second match is corrupt: its CRC no longer matches
+    long corruptOffset = offsets.get(0);
+    write(journal, corruptOffset + 4, new byte[] {1, 2, 3, 4});
+    expected.subList(expected.size() - 2, expected.size()).clear();
+
+    MoveJournal reopened = open(MoveJournal.SyncPolicy.NEVER);
+    assertEquals(expected, replay(reopened));
+    assertEquals(corruptOffset, reopened.getOffset());
+    // A record of the same length over the corrupt one ends where the record after it was, which
+    // was cleared, so it is not read back
+    appendMatch(reopened, "3", 0, expected);
+    reopened.close();
+    assertEquals(expected, replay(open(MoveJournal.SyncPolicy.NEVER)));
+  }
+
+  @Test
+  public void testTornTailIsTruncated() throws IOException {
+    MoveJournal journal = open(MoveJournal.SyncPolicy.NEVER);
+    replay(journal);
+    List<String> expected = Lists.newArrayList();
+    appendMatch(journal, "1", 1, expected);
+    long offset = journal.getOffset();
+    journal.close();
+    // The header of a record that was never written, with a length and garbage
+    write(journal, offset, new byte[] {0, 0, 0, 40, 7, 7, 7, 7, 7});
+
+    MoveJournal reopened = open(MoveJournal.SyncPolicy.NEVER);
+    assertEquals(expected, replay(reopened));
+    assertEquals(offset, reopened.getOffset());
+    // A shorter record over the torn one is read back, and the torn bytes after it are not
+    reopened.append(MoveCodec.encodeAbandon("1", 2));
+    expected.add("abandon 1 2");
+    reopened.close();
+    assertEquals(expected, replay(open(MoveJournal.SyncPolicy.NEVER)));
+  }
+
+  @Test
+  public void testCorruptRecordDeletesTheLaterSegments() throws IOException {
+    MoveJournal journal = open(MoveJournal.SyncPolicy.NEVER);
+    replay(journal);
+    List<String> expected = Lists.newArrayList();
+    List<Long> offsets = Lists.newArrayList();
+    for (int i = 1; i <= 10; i++) {
+      offsets.addAll(appendMatch(journal, String.valueOf(i), 3, expected));
+    }
+    List<Long> segments = journal.getSegmentOffsets();
+    journal.close();
+    // The second record of the first segment is corrupt, so the journal ends before it
+    write(journal, offsets.get(1) + 4, new byte[] {1, 2, 3, 4});
+
+    MoveJournal reopened = open(MoveJournal.SyncPolicy.NEVER);
+    assertEquals(expected.subList(0, 1), replay(reopened));
+    assertEquals(ImmutableList.of(0L), reopened.getSegmentOffsets());
+    for (long segment : segments.subList(1, segments.size())) {
+      assertFalse(getSegmentFile(segment).exists());
+    }
+  }
+
+  @Test
+  public void testReplayFromAMissingOffset() throws IOException {
+    MoveJournal journal = open(MoveJournal.SyncPolicy.NEVER);
+    try {
+      journal.replay(new RecordList(), 100);
+      fail();
+    } catch (IOException e) {
+      assertEquals("The journal has no records at offset 100", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testGroupCommit() throws IOException {
+    MoveJournal journal = open(MoveJournal.SyncPolicy.ALWAYS);
+    replay(journal);
+    long first = journal.append(MoveCodec.encodeCreate("1", PLAYER_IDS));
+    long second = journal.append(MoveCodec.encodeAbandon("1", 1));
+    assertEquals(0, journal.getSyncs());
+    // Forcing the first record forces the second one with it
+    journal.commit(first);
+    assertEquals(1, journal.getSyncs());
+    journal.commit(second);
+    assertEquals(1, journal.getSyncs());
+    journal.commit(journal.append(MoveCodec.encodeCreate("2", PLAYER_IDS)));
+    assertEquals(2, journal.getSyncs());
+    journal.close();
+    assertEquals(2, journal.getSyncs());
+  }
+
+  @Test
+  public void testIntervalSync() throws IOException, InterruptedException {
+    MoveJournal journal = new MoveJournal(folder.getRoot(), MoveJournal.SyncPolicy.INTERVAL,
+        SEGMENT_BYTES, 10);
+    replay(journal);
+    // The append does not wait for the disk; the background sync forces it
+    journal.commit(journal.append(MoveCodec.encodeCreate("1", PLAYER_IDS)));
+    for (int i = 0; i < 500 && journal.getSyncs() == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(journal.getSyncs() > 0);
+    journal.close();
+  }
+}
@@ -0,0 +1,107 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.aeroplanechess.ai.Decision;
+import org.aeroplanechess.ai.MctsStrategy;
+import org.aeroplanechess.ai.MutableState;
+import org.aeroplanechess.ai.RandomStrategy;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class ParallelMctsStrategyTest {
+
+  private static final int WORKERS = 3;
+  private static final int ITERATIONS = 100;
+  private static final long SEED = 5;
+
+  private final ForkJoinPool pool = new ForkJoinPool(2);
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  private static List<Integer> snapshot(MutableState state) {
+    List<Integer> snapshot = Lists.newArrayList(state.getTurn(), state.getDie(),
+        state.getRoll(0), state.getRoll(1), state.getMoves(0), state.getMoves(1),
+        state.getHistorySize());
+    for (int side = 0; side < 2; side++) {
+      for (int id = 0; id < 4; id++) {
+        snapshot.add(state.getPiece(side, id));
+      }
+    }
+    return snapshot;
+  }
+
+  @Test
+  public void testPlaysTheMostVisitedDecisionOverAllTrees() {
+    ParallelMctsStrategy strategy =
+        new ParallelMctsStrategy(pool, WORKERS, ITERATIONS, 0, SEED);
+    // The trees of the workers, grown again one after the other with the same random numbers
+    List<MctsStrategy> trees = Lists.newArrayList();
+    for (int i = 0; i < WORKERS; i++) {
+      Random random = new Random(SEED + i);
+      trees.add(new MctsStrategy(new RandomStrategy(random), random, ITERATIONS, 0));
+    }
+    Random random = new Random(1);
+    RandomStrategy randomStrategy = new RandomStrategy(random);
+    MutableState state = new MutableState();
+    MutableState copy = new MutableState();
+    int[] decisions = new int[MutableState.MAX_DECISIONS];
+    int[] visits = new int[MutableState.MAX_DECISIONS];
+    state.reset();
+    state.roll(6);
+    for (int step = 0; step < 30 && !state.isGameOver(); step++) {
+      List<Integer> before = snapshot(state);
+      int decision = strategy.chooseDecision(state);
+      // The state passed in is left as it was
+      assertEquals(before, snapshot(state));
+      assertEquals(WORKERS * ITERATIONS, strategy.getIterations());
+
+      int[] totals = new int[Decision.LIMIT];
+      for (MctsStrategy tree : trees) {
+        copy.copyFrom(state);
+        tree.startSearch(copy);
+        tree.search(Long.MAX_VALUE);
+        int count = tree.getRootVisits(decisions, visits);
+        for (int i = 0; i < count; i++) {
+          totals[decisions[i]] += visits[i];
+        }
+      }
+      int most = 0;
+      for (int total : totals) {
+        most = Math.max(most, total);
+      }
+      assertEquals(Decision.toString(decision), most, totals[decision]);
+
+      boolean legal = false;
+      int count = state.getDecisions(decisions);
+      for (int i = 0; i < count; i++) {
+        legal |= decisions[i] == decision;
+      }
+      assertTrue(Decision.toString(decision), legal);
+
+      state.play(decision);
+      if (state.isAwaitingRoll()) {
+        state.roll(random.nextInt(6) + 1);
+      }
+      if (!state.isGameOver()) {
+        state.play(randomStrategy.chooseDecision(state));
+        if (state.isAwaitingRoll()) {
+          state.roll(random.nextInt(6) + 1);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,405 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.game_api.GameApi.MakeMove;
+import org.game_api.GameApi.Operation;
+import org.game_api.GameApi.UpdateUI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@RunWith(JUnit4.class)
+public class PartitionRouterTest {
+
+  private static final List<String> PLAYER_IDS = ImmutableList.of("42", "43");
+  private static final String PLAYERS = "{\"playerIds\": [\"42\", \"43\"]}";
+
+  /**
+   * A node that forwards every request to another, and can hold the snapshots attached to it
+   * until the gate opens, or refuse them.
+   */
+  private static final class GatedNode {
+    final HttpServer httpServer;
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    final String node;
+    final CountDownLatch attaching = new CountDownLatch(1);
+    volatile CountDownLatch gate = new CountDownLatch(0);
+    volatile int refusal;
+
+    GatedNode(final String target) throws IOException {
+      httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      httpServer.createContext("/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          try {
+            forward(exchange, target);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            exchange.close();
+          }
+        }
+      });
+      httpServer.setExecutor(executor);
+      httpServer.start();
+      node = "localhost:" + httpServer.getAddress().getPort();
+    }
+
+    void forward(HttpExchange exchange, String target) throws IOException, InterruptedException {
+      String body = GameHttpServer.read(exchange.getRequestBody());
+      PartitionRouter.Response response;
+      if (exchange.getRequestURI().getPath().equals("/snapshots")) {
+        attaching.countDown();
+        gate.await();
+      }
+      if (exchange.getRequestURI().getPath().equals("/snapshots") && refusal != 0) {
+        response = new PartitionRouter.Response(refusal, "{\"error\": \"Refused\"}", null);
+      } else {
+        String query = exchange.getRequestURI().getRawQuery();
+        String method = exchange.getRequestMethod();
+        response = PartitionRouter.send(target, method, exchange.getRequestURI().getPath()
+            + (query == null ? "" : "?" + query),
+            exchange.getRequestHeaders().getFirst("If-Match"),
+            method.equals("GET") ? null : body);
+      }
+      byte[] bytes = response.body.getBytes(Charsets.UTF_8);
+      if (response.etag != null) {
+        exchange.getResponseHeaders().set("ETag", response.etag);
+      }
+      exchange.sendResponseHeaders(response.status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+
+    void stop() {
+      httpServer.stop(0);
+      executor.shutdownNow();
+    }
+  }
+
+  private final List<GameServer> gameServers = Lists.newArrayList();
+  private final List<GameHttpServer> httpServers = Lists.newArrayList();
+  /* The game server of every node, a gated node having the one of the node it forwards to */
+  private final Map<String, GameServer> servers = Maps.newHashMap();
+  private final List<String> nodes = Lists.newArrayList();
+  private final List<GatedNode> gatedNodes = Lists.newArrayList();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private PartitionRouter router;
+
+  @Before
+  public void setUp() throws IOException {
+    for (int i = 0; i < 3; i++) {
+      GameServer gameServer = new GameServer(1);
+      GameHttpServer httpServer = new GameHttpServer(gameServer, 0, 4);
+      httpServer.start();
+      gameServers.add(gameServer);
+      httpServers.add(httpServer);
+      String node = "localhost:" + httpServer.getPort();
+      servers.put(node, gameServer);
+      nodes.add(node);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    if (router != null) {
+      router.stop();
+    }
+    for (GatedNode gatedNode : gatedNodes) {
+      gatedNode.gate.countDown();
+      gatedNode.stop();
+    }
+    for (GameHttpServer httpServer : httpServers) {
+      httpServer.stop();
+    }
+    for (GameServer gameServer : gameServers) {
+      gameServer.shutdown();
+    }
+  }
+
+  private void startRouter(String... routerNodes) throws IOException {
+    router = new PartitionRouter(ImmutableList.copyOf(routerNodes), 0, 8);
+    router.start();
+  }
+
+  /** Adds a node that forwards to the last node, which the router does not know. */
+  private GatedNode addGatedNode() throws IOException {
+    GatedNode gatedNode = new GatedNode(nodes.get(2));
+    gatedNodes.add(gatedNode);
+    servers.put(gatedNode.node, gameServers.get(2));
+    return gatedNode;
+  }
+
+  private PartitionRouter.Response send(String method, String target, String ifMatch,
+      String body) throws IOException {
+    return PartitionRouter.send("localhost:" + router.getPort(), method, target, ifMatch, body);
+  }
+
+  private String createMatch() throws IOException {
+    PartitionRouter.Response created = send("POST", "/matches", null, PLAYERS);
+    assertEquals(created.body, 200, created.status);
+    return (String) ((Map<?, ?>) Json.parse(created.body)).get("matchId");
+  }
+
+  /** Makes a random move of the player whose turn it is, through the router. */
+  private PartitionRouter.Response makeMove(String matchId, Random random) throws IOException {
+    for (String playerId : PLAYER_IDS) {
+      String target = "/matches/" + matchId + "?playerId=" + playerId;
+      PartitionRouter.Response view = send("GET", target, null, null);
+      assertEquals(view.body, 200, view.status);
+      List<Operation> move =
+          new RandomPlayer(random).chooseMove((UpdateUI) Json.toMessage(view.body));
+      if (move != null) {
+        return send("POST", target, view.etag, Json.toJson(new MakeMove(move)));
+      }
+    }
+    throw new AssertionError("No player has a move to make");
+  }
+
+  /** Creates the matches and makes moves in them; returns the version of every match. */
+  private Map<String, Integer> playMatches(int count, int moves, Random random)
+      throws IOException {
+    Map<String, Integer> versions = Maps.newHashMap();
+    for (int i = 0; i < count; i++) {
+      String matchId = createMatch();
+      for (int move = 0; move < moves; move++) {
+        assertEquals(200, makeMove(matchId, random).status);
+      }
+      versions.put(matchId, moves);
+    }
+    return versions;
+  }
+
+  /** Checks that every match is live on its node only, at its version, and no other is. */
+  private void assertPlaced(Map<String, Integer> versions) {
+    int live = 0;
+    for (GameServer gameServer : gameServers) {
+      live += gameServer.getLiveMatches().size();
+    }
+    assertEquals(versions.size(), live);
+    for (Map.Entry<String, Integer> entry : versions.entrySet()) {
+      String matchId = entry.getKey();
+      Match match = servers.get(router.getRing().getNode(matchId)).getMatch(matchId);
+      assertNotNull("Match " + matchId, match);
+      assertEquals("Match " + matchId, (int) entry.getValue(), match.getVersion());
+    }
+  }
+
+  /** Returns a match that moves to a node with the ring, creating matches until one does. */
+  private String createMatchMovingTo(String node, Map<String, Integer> versions)
+      throws IOException {
+    HashRing next = router.getRing().withNode(node);
+    for (int i = 0; i < 100; i++) {
+      String matchId = createMatch();
+      versions.put(matchId, 0);
+      if (next.getNode(matchId).equals(node)) {
+        return matchId;
+      }
+    }
+    throw new AssertionError("No match moves to " + node);
+  }
+
+  @Test
+  public void testIdsFollowTheNodesMatches() throws IOException {
+    assertEquals(200, PartitionRouter.send(nodes.get(0), "PUT", "/matches/41", null, PLAYERS)
+        .status);
+    assertEquals(200, PartitionRouter.send(nodes.get(1), "PUT", "/matches/7", null, PLAYERS)
+        .status);
+    startRouter(nodes.get(0), nodes.get(1));
+    for (int id = 42; id < 52; id++) {
+      String matchId = createMatch();
+      assertEquals(String.valueOf(id), matchId);
+      assertNotNull(servers.get(router.getRing().getNode(matchId)).getMatch(matchId));
+    }
+    Map<?, ?> matchIds = (Map<?, ?>) Json.parse(send("GET", "/matches", null, null).body);
+    assertEquals(12, ((List<?>) matchIds.get("matchIds")).size());
+  }
+
+  @Test
+  public void testAddsAndRemovesNodesWithoutLosingMatches() throws IOException {
+    startRouter(nodes.get(0), nodes.get(1));
+    Random random = new Random(7);
+    Map<String, Integer> versions = playMatches(30, 3, random);
+    assertPlaced(versions);
+
+    HashRing before = router.getRing();
+    PartitionRouter.Response added =
+        send("POST", "/nodes", null, "{\"node\": \"" + nodes.get(2) + "\"}");
+    assertEquals(added.body, 200, added.status);
+    int moved = 0;
+    for (String matchId : versions.keySet()) {
+      if (!before.getNode(matchId).equals(router.getRing().getNode(matchId))) {
+        moved++;
+      }
+    }
+    assertTrue(moved > 0);
+    assertEquals(moved, ((Map<?, ?>) Json.parse(added.body)).get("migrated"));
+    assertPlaced(versions);
+
+    // The migrated matches go on where they were
+    for (String matchId : versions.keySet()) {
+      assertEquals(200, makeMove(matchId, random).status);
+      versions.put(matchId, versions.get(matchId) + 1);
+    }
+    assertPlaced(versions);
+
+    PartitionRouter.Response removed = send("DELETE", "/nodes/" + nodes.get(0), null, null);
+    assertEquals(removed.body, 200, removed.status);
+    assertFalse(router.getRing().getNodes().contains(nodes.get(0)));
+    assertEquals(0, gameServers.get(0).getLiveMatches().size());
+    assertPlaced(versions);
+  }
+
+  @Test
+  public void testMovesGoOnDuringRebalances() throws Exception {
+    startRouter(nodes.get(0), nodes.get(1));
+    final Map<String, Integer> versions = playMatches(10, 0, new Random(1));
+    List<Future<Integer>> players = Lists.newArrayList();
+    for (final String matchId : versions.keySet()) {
+      players.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException {
+          Random random = new Random(matchId.hashCode());
+          for (int move = 0; move < 30; move++) {
+            PartitionRouter.Response response = makeMove(matchId, random);
+            // A move racing with the migration is retried on the new node, not lost
+            assertEquals(response.body, 200, response.status);
+          }
+          return 30;
+        }
+      }));
+    }
+    router.addNode(nodes.get(2));
+    router.removeNode(nodes.get(0));
+    router.addNode(nodes.get(0));
+    for (Future<Integer> player : players) {
+      player.get(30, TimeUnit.SECONDS);
+    }
+    for (String matchId : versions.keySet()) {
+      versions.put(matchId, 30);
+    }
+    assertPlaced(versions);
+  }
+
+  @Test
+  public void testRetriesAMatchUntilItIsAttached() throws Exception {
+    startRouter(nodes.get(0), nodes.get(1));
+    final GatedNode gatedNode = addGatedNode();
+    Map<String, Integer> versions = Maps.newHashMap();
+    final String matchId = createMatchMovingTo(gatedNode.node, versions);
+    String target = "/matches/" + matchId + "?playerId=" + PLAYER_IDS.get(0);
+    final PartitionRouter.Response view = send("GET", target, null, null);
+    List<Operation> move =
+        new RandomPlayer(new Random(0)).chooseMove((UpdateUI) Json.toMessage(view.body));
+    if (move == null) {
+      target = "/matches/" + matchId + "?playerId=" + PLAYER_IDS.get(1);
+      move = new RandomPlayer(new Random(0)).chooseMove(
+          (UpdateUI) Json.toMessage(send("GET", target, null, null).body));
+    }
+    final String moveTarget = target;
+    final String body = Json.toJson(new MakeMove(move));
+
+    gatedNode.gate = new CountDownLatch(1);
+    Future<Integer> rebalance = executor.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() throws IOException {
+        return router.addNode(gatedNode.node);
+      }
+    });
+    assertTrue(gatedNode.attaching.await(10, TimeUnit.SECONDS));
+    // The match is on neither node, or on its old one, until the rebalance attaches it
+    Future<PartitionRouter.Response> moved = executor.submit(
+        new Callable<PartitionRouter.Response>() {
+          @Override
+          public PartitionRouter.Response call() throws IOException {
+            return send("POST", moveTarget, view.etag, body);
+          }
+        });
+    try {
+      moved.get(100, TimeUnit.MILLISECONDS);
+      fail("The move was answered while the match was migrating");
+    } catch (TimeoutException e) {
+      // Retried
+    }
+    gatedNode.gate.countDown();
+    assertEquals(200, moved.get(10, TimeUnit.SECONDS).status);
+    assertTrue(rebalance.get(10, TimeUnit.SECONDS) > 0);
+    versions.put(matchId, 1);
+    assertPlaced(versions);
+  }
+
+  @Test
+  public void testAFailedMigrationIsRolledBack() throws IOException {
+    startRouter(nodes.get(0), nodes.get(1));
+    GatedNode gatedNode = addGatedNode();
+    Map<String, Integer> versions = Maps.newHashMap();
+    createMatchMovingTo(gatedNode.node, versions);
+    HashRing before = router.getRing();
+
+    gatedNode.refusal = 503;
+    PartitionRouter.Response refused =
+        send("POST", "/nodes", null, "{\"node\": \"" + gatedNode.node + "\"}");
+    assertEquals(502, refused.status);
+    assertTrue(refused.body, refused.body.contains("Cannot migrate match"));
+    // The ring has the node, but the matches it refused are live on their old node
+    assertTrue(router.getRing().getNodes().contains(gatedNode.node));
+    assertEquals(0, gameServers.get(2).getLiveMatches().size());
+    for (String matchId : versions.keySet()) {
+      assertNotNull(servers.get(before.getNode(matchId)).getMatch(matchId));
+    }
+
+    gatedNode.refusal = 0;
+    PartitionRouter.Response rebalanced = send("POST", "/nodes", null, "");
+    assertEquals(rebalanced.body, 200, rebalanced.status);
+    assertPlaced(versions);
+    Random random = new Random(2);
+    for (String matchId : versions.keySet()) {
+      assertEquals(200, makeMove(matchId, random).status);
+    }
+  }
+
+  @Test
+  public void testLongBodiesAnswer413() throws IOException {
+    startRouter(nodes.get(0), nodes.get(1));
+    String body = "\"" + Strings.repeat("a", GameHttpServer.MAX_BODY_BYTES) + "\"";
+    PartitionRouter.Response response = send("POST", "/matches", null, body);
+    assertEquals(413, response.status);
+    assertTrue(response.body, response.body.contains("Request body over"));
+    assertEquals(413, send("POST", "/nodes", null, body).status);
+    assertEquals(ImmutableMap.of("matchIds", ImmutableList.of()),
+        Json.parse(send("GET", "/matches", null, null).body));
+  }
+}
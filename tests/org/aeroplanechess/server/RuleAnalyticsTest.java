@@ -0,0 +1,117 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.aeroplanechess.ai.Rules;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class RuleAnalyticsTest {
+
+  private static final long SEED = 17;
+
+  /** Measures the turns of the games, and records them in the order they were played. */
+  private static class RecordedTurns implements RuleAnalytics.Metric {
+    final List<Integer> turns = Lists.newArrayList();
+
+    @Override
+    public synchronized double measure(int winner, int turns, int decisions) {
+      this.turns.add(turns);
+      return turns;
+    }
+  }
+
+  private static List<RuleAnalytics.Estimate> estimate(List<Rules> variants,
+      RuleAnalytics.Metric metric, boolean antithetic, int threads, double targetHalfWidth,
+      long maxSamples) throws InterruptedException {
+    return new RuleAnalytics(variants, metric, RuleAnalytics.RANDOM_STRATEGIES, antithetic,
+        threads).estimate(targetHalfWidth, maxSamples, SEED);
+  }
+
+  @Test
+  public void testSameRulesGiveNoDifference() throws InterruptedException {
+    // Paired samples of the same rules are the same games
+    List<RuleAnalytics.Estimate> estimates = estimate(
+        ImmutableList.of(Rules.STANDARD, Rules.STANDARD), RuleAnalytics.TURNS, true, 2, 0, 300);
+    RunningStatistics baseline = estimates.get(0).getValue();
+    RunningStatistics difference = estimates.get(1).getDifference();
+    assertEquals(300, baseline.getCount());
+    assertTrue(baseline.getVariance() > 0);
+    assertEquals(baseline.getMean(), estimates.get(1).getValue().getMean(), 0);
+    assertEquals(300, difference.getCount());
+    assertEquals(0, difference.getMean(), 0);
+    assertEquals(0, difference.getVariance(), 0);
+    assertEquals(0, estimates.get(0).getDifference().getCount());
+  }
+
+  @Test
+  public void testAntitheticSamplesAverageTwoGames() throws InterruptedException {
+    RecordedTurns metric = new RecordedTurns();
+    RunningStatistics value = estimate(ImmutableList.of(Rules.STANDARD), metric, true, 1, 0, 100)
+        .get(0).getValue();
+    assertEquals(100, value.getCount());
+    assertEquals(200, metric.turns.size());
+    // Each sample is a game and the game with the mirrored die rolls
+    RunningStatistics samples = new RunningStatistics();
+    boolean mirroredDiffers = false;
+    for (int i = 0; i < metric.turns.size(); i += 2) {
+      samples.add((metric.turns.get(i) + metric.turns.get(i + 1)) / 2.0);
+      mirroredDiffers |= !metric.turns.get(i).equals(metric.turns.get(i + 1));
+    }
+    assertTrue(mirroredDiffers);
+    assertEquals(samples.getMean(), value.getMean(), 1e-9);
+    assertEquals(samples.getVariance(), value.getVariance(), 1e-9);
+
+    // Without antithetic dice, the samples are the first games of the pairs
+    RecordedTurns plainMetric = new RecordedTurns();
+    estimate(ImmutableList.of(Rules.STANDARD), plainMetric, false, 1, 0, 100);
+    for (int i = 0; i < plainMetric.turns.size(); i++) {
+      assertEquals(metric.turns.get(2 * i), plainMetric.turns.get(i));
+    }
+  }
+
+  @Test
+  public void testEstimatesDoNotDependOnTheThreads() throws InterruptedException {
+    List<Rules> variants = ImmutableList.of(Rules.STANDARD, Rules.parse("jump=0"));
+    List<RuleAnalytics.Estimate> one = estimate(variants, RuleAnalytics.TURNS, true, 1, 0, 600);
+    List<RuleAnalytics.Estimate> three = estimate(variants, RuleAnalytics.TURNS, true, 3, 0, 600);
+    for (int v = 0; v < variants.size(); v++) {
+      assertEquals(one.get(v).getValue().getMean(), three.get(v).getValue().getMean(), 0);
+      assertEquals(one.get(v).getDifference().getMean(),
+          three.get(v).getDifference().getMean(), 0);
+      assertEquals(one.get(v).getDifference().getVariance(),
+          three.get(v).getDifference().getVariance(), 0);
+    }
+  }
+
+  @Test
+  public void testStopsOnceTheHalfWidthIsReached() throws InterruptedException {
+    double target = 0.04;
+    RunningStatistics value = estimate(ImmutableList.of(Rules.STANDARD),
+        RuleAnalytics.FIRST_PLAYER_WINS, false, 1, target, 100000).get(0).getValue();
+    long count = value.getCount();
+    assertTrue(value.getHalfWidth(RunningStatistics.Z_95) <= target);
+    assertEquals(0, count % RuleAnalytics.BATCH_SIZE);
+    assertTrue(count > RuleAnalytics.BATCH_SIZE);
+    // A batch less was not precise enough
+    RunningStatistics fewer = estimate(ImmutableList.of(Rules.STANDARD),
+        RuleAnalytics.FIRST_PLAYER_WINS, false, 1, target, count - RuleAnalytics.BATCH_SIZE)
+        .get(0).getValue();
+    assertTrue(fewer.getHalfWidth(RunningStatistics.Z_95) > target);
+  }
+
+  @Test
+  public void testStopsAtMaxSamples() throws InterruptedException {
+    List<RuleAnalytics.Estimate> estimates = estimate(ImmutableList.of(Rules.STANDARD),
+        RuleAnalytics.FIRST_PLAYER_WINS, true, 2, 0, RuleAnalytics.BATCH_SIZE + 44);
+    assertEquals(RuleAnalytics.BATCH_SIZE + 44, estimates.get(0).getValue().getCount());
+  }
+}
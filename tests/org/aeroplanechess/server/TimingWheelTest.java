@@ -0,0 +1,121 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+@RunWith(JUnit4.class)
+public class TimingWheelTest {
+
+  /* The ticks that a turn of each level spans */
+  private static final long LEVEL_1 = TimingWheel.SLOTS;
+  private static final long LEVEL_2 = LEVEL_1 * TimingWheel.SLOTS;
+  private static final long LEVEL_3 = LEVEL_2 * TimingWheel.SLOTS;
+  private static final long SPAN = LEVEL_3 * TimingWheel.SLOTS;
+
+  /* Ticks of a nanosecond, so that nanos and ticks are the same */
+  private final TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+
+  private List<String> advance(long now) {
+    List<String> expired = Lists.newArrayList();
+    wheel.advance(now, expired);
+    return expired;
+  }
+
+  /** Checks that the item expires at its deadline, and not a tick before. */
+  private void assertExpiresAt(String item, long deadline) {
+    assertEquals(ImmutableList.of(), advance(deadline - 1));
+    assertEquals(ImmutableList.of(item), advance(deadline));
+  }
+
+  @Test
+  public void testExpiresAtTheDeadlineOfEachLevel() {
+    wheel.schedule("level 0", 5);
+    wheel.schedule("level 1", LEVEL_1 + 3);
+    wheel.schedule("level 2", LEVEL_2 + 7);
+    wheel.schedule("level 3", LEVEL_3 + 9);
+    assertEquals(4, wheel.size());
+    assertExpiresAt("level 0", 5);
+    assertExpiresAt("level 1", LEVEL_1 + 3);
+    assertExpiresAt("level 2", LEVEL_2 + 7);
+    assertExpiresAt("level 3", LEVEL_3 + 9);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testCascadesAcrossLevels() {
+    // Each is placed on level 2, and moved down at the start of the turn of its level 1 slot
+    wheel.schedule("b", 2 * LEVEL_2 + LEVEL_1 + 1);
+    wheel.schedule("a", 2 * LEVEL_2 + 1);
+    wheel.schedule("c", 2 * LEVEL_2 + LEVEL_1 + 1);
+    assertExpiresAt("a", 2 * LEVEL_2 + 1);
+    // The timeouts of a slot expire in the order they were scheduled
+    assertEquals(ImmutableList.of(), advance(2 * LEVEL_2 + LEVEL_1));
+    assertEquals(ImmutableList.of("b", "c"), advance(2 * LEVEL_2 + LEVEL_1 + 1));
+  }
+
+  @Test
+  public void testDeadlinesBeyondTheSpan() {
+    wheel.schedule("beyond", SPAN + 10);
+    wheel.schedule("far beyond", 3 * SPAN + 5);
+    // Scheduled from a tick that is not at the start of a turn
+    advance(LEVEL_3 + 17);
+    wheel.schedule("from later", LEVEL_3 + 17 + SPAN);
+    assertExpiresAt("beyond", SPAN + 10);
+    assertExpiresAt("from later", LEVEL_3 + 17 + SPAN);
+    assertExpiresAt("far beyond", 3 * SPAN + 5);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testCancelAfterCascade() {
+    TimingWheel.Timeout<String> cancelled = wheel.schedule("cancelled", LEVEL_2 + LEVEL_1 + 2);
+    wheel.schedule("kept", LEVEL_2 + LEVEL_1 + 2);
+    // Moved down to level 1, and then to level 0
+    advance(LEVEL_2);
+    advance(LEVEL_2 + LEVEL_1);
+    assertTrue(cancelled.isPending());
+    assertTrue(wheel.cancel(cancelled));
+    assertFalse(cancelled.isPending());
+    assertEquals(1, wheel.size());
+    assertFalse(wheel.cancel(cancelled));
+    assertEquals(1, wheel.size());
+    assertEquals(ImmutableList.of("kept"), advance(LEVEL_2 + 2 * LEVEL_1));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testCancelAfterExpiry() {
+    TimingWheel.Timeout<String> timeout = wheel.schedule("a", 3);
+    assertExpiresAt("a", 3);
+    assertFalse(timeout.isPending());
+    assertFalse(wheel.cancel(timeout));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testDeadlinesAreRoundedUpToTicks() {
+    TimingWheel<String> wheel = new TimingWheel<String>(100, 1000);
+    wheel.schedule("a", 1250);
+    List<String> expired = Lists.newArrayList();
+    wheel.advance(1299, expired);
+    assertEquals(ImmutableList.of(), expired);
+    wheel.advance(1300, expired);
+    assertEquals(ImmutableList.of("a"), expired);
+    // A deadline that passed expires at the next tick
+    wheel.schedule("b", 0);
+    wheel.advance(1399, expired);
+    assertEquals(ImmutableList.of("a"), expired);
+    wheel.advance(1400, expired);
+    assertEquals(ImmutableList.of("a", "b"), expired);
+  }
+}
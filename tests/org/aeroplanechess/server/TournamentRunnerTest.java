@@ -0,0 +1,155 @@
+package org.aeroplanechess.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.aeroplanechess.ai.AiStrategy;
+import org.aeroplanechess.ai.MutableState;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+@RunWith(JUnit4.class)
+public class TournamentRunnerTest {
+
+  private static final List<String> STRATEGIES = ImmutableList.of("random", "test-first");
+  private static final String KEY = "random-test-first";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** A cheap strategy that always makes the first decision. */
+  @BeforeClass
+  public static void registerStrategy() {
+    AiStrategies.register("test-first", new Supplier<AiStrategy>() {
+      @Override
+      public AiStrategy get() {
+        return new AiStrategy() {
+          private final int[] decisions = new int[MutableState.MAX_DECISIONS];
+
+          @Override
+          public int chooseDecision(MutableState state) {
+            state.getDecisions(decisions);
+            return decisions[0];
+          }
+        };
+      }
+    });
+  }
+
+  private static String line(String key, int pair, int seat, double result) {
+    return key + "\t" + pair + "\t" + seat + "\t" + result;
+  }
+
+  private File writeResults(List<String> lines) throws IOException {
+    File file = folder.newFile();
+    Files.write(Joiner.on('\n').join(lines) + "\n", file, Charsets.UTF_8);
+    return file;
+  }
+
+  @Test
+  public void testSprtAcceptsH1() {
+    TournamentRunner.Pairing pairing = new TournamentRunner.Pairing("a", "b");
+    int pairs = 0;
+    while (!pairing.isDecided()) {
+      assertTrue(pairs < 100);
+      pairing.add(pairs, new double[] {1, pairs % 2}, 0, 200);
+      pairs++;
+    }
+    assertTrue(pairs > 2);
+    assertTrue(pairing.getLogLikelihoodRatio() >= MatchStatistics.getUpperBound(0.05, 0.05));
+    assertEquals(2 * pairs, pairing.getGames());
+    assertTrue(pairing.toString(), pairing.toString().contains("SPRT H1"));
+  }
+
+  @Test
+  public void testSprtAcceptsH0() {
+    TournamentRunner.Pairing pairing = new TournamentRunner.Pairing("a", "b");
+    int pairs = 0;
+    while (!pairing.isDecided()) {
+      assertTrue(pairs < 100);
+      pairing.add(pairs, new double[] {0, pairs % 2}, 0, 200);
+      pairs++;
+    }
+    assertTrue(pairing.getLogLikelihoodRatio() <= MatchStatistics.getLowerBound(0.05, 0.05));
+    assertTrue(pairing.toString(), pairing.toString().contains("SPRT H0"));
+  }
+
+  @Test
+  public void testRunStopsAtMaxPairs() throws Exception {
+    TournamentRunner runner = new TournamentRunner(STRATEGIES,
+        TournamentRunner.Mode.ROUND_ROBIN, 3, 2, null, 0, 5);
+    runner.run();
+    TournamentRunner.Pairing pairing = runner.getPairings().get(0);
+    assertEquals(6, pairing.getGames());
+    assertEquals(3, pairing.getScores().getCount());
+  }
+
+  @Test
+  public void testResumePlaysOnlyTheMissingPairs() throws Exception {
+    List<String> lines = ImmutableList.of(
+        line(KEY, 0, 0, 1.0),
+        line(KEY, 0, 1, 0.0),
+        line(KEY, 1, 0, 0.5),
+        line(KEY, 1, 1, 1.0),
+        line("random-mcts", 2, 0, 1.0),  // Another tournament
+        line(KEY, 3, 1, 0.0),
+        line(KEY, 3, 0, 1.0),
+        line(KEY, 2, 0, 1.0),  // Half of a pair, which is played again
+        KEY + "\t4");  // Cut short
+    File file = writeResults(lines);
+    TournamentRunner runner = new TournamentRunner(STRATEGIES,
+        TournamentRunner.Mode.ROUND_ROBIN, 5, 1, file, 0, 5);
+    runner.run();
+    TournamentRunner.Pairing pairing = runner.getPairings().get(0);
+    assertFalse(pairing.isDecided());
+    assertEquals(10, pairing.getGames());
+
+    // The pairs that were played were appended, each with both games
+    List<String> appended = Files.readLines(file, Charsets.UTF_8);
+    assertEquals(lines, appended.subList(0, lines.size()));
+    Set<String> played = Sets.newHashSet();
+    for (String line : appended.subList(lines.size(), appended.size())) {
+      String[] fields = line.split("\t");
+      assertEquals(KEY, fields[0]);
+      played.add(fields[1] + "\t" + fields[2]);
+    }
+    assertEquals(ImmutableSet.of("2\t0", "2\t1", "4\t0", "4\t1"), played);
+    assertEquals(lines.size() + 4, appended.size());
+  }
+
+  @Test
+  public void testResumedDecidedPairingPlaysNoMore() throws Exception {
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    for (int pair = 0; pair < 20; pair++) {
+      lines.add(line(KEY, pair, 0, 1.0));
+      lines.add(line(KEY, pair, 1, pair % 2));
+    }
+    File file = writeResults(lines.build());
+    long length = file.length();
+    TournamentRunner runner = new TournamentRunner(STRATEGIES,
+        TournamentRunner.Mode.ROUND_ROBIN, 100, 1, file, 0, 200);
+    runner.run();
+    TournamentRunner.Pairing pairing = runner.getPairings().get(0);
+    assertTrue(pairing.isDecided());
+    assertEquals(40, pairing.getGames());
+    assertEquals(length, file.length());
+  }
+}